@@ -8,6 +8,7 @@ import androidx.activity.EdgeToEdge;
 import androidx.appcompat.app.AppCompatActivity;
 
 import it.uniba.berluxoding.medboxapp.controller.AuthenticationActivity;
+import it.uniba.berluxoding.medboxapp.sync.JournalSyncer;
 
 /**
  * Activity principale che funge da schermata di avvio dell'applicazione.
@@ -23,6 +24,9 @@ public class MainActivity extends AppCompatActivity {
         // Imposta il layout per questa activity
         setContentView(R.layout.activity_main);
 
+        // Riprende l'invio delle misurazioni rimaste nel giornale locale
+        JournalSyncer.get(this).requestSync();
+
         // Utilizza un Handler per avviare l'activity di autenticazione dopo un ritardo di 100 ms
         new Handler().postDelayed(() -> {
             // Crea un'intent per aprire l'activity "AuthenticationActivity"
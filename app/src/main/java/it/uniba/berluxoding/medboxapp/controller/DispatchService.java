@@ -0,0 +1,167 @@
+package it.uniba.berluxoding.medboxapp.controller;
+
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.ServiceInfo;
+import android.os.Build;
+import android.os.IBinder;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.core.app.NotificationCompat;
+import androidx.core.content.ContextCompat;
+
+import com.google.firebase.database.DataSnapshot;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import it.uniba.berluxoding.medboxapp.R;
+
+/**
+ * Servizio in primo piano che segue la coda delle richieste e apre gli strumenti richiesti.
+ *
+ * Il servizio mantiene la sottoscrizione alla coda ({@link RequestQueue}) per tutta la vita dell'applicazione,
+ * anche mentre è aperto uno strumento: le richieste che arrivano nel frattempo restano in attesa nella coda
+ * e vengono prenotate non appena la MedBox torna libera, senza ripetere la sottoscrizione.
+ * La MedBox torna libera quando ricompare la schermata di attesa, che lo segnala con {@link #idle(Context)}.
+ *
+ * Gli strumenti vengono aperti dal servizio con FLAG_ACTIVITY_NEW_TASK, sopra la schermata di attesa: su Android 10
+ * e successivi il sistema consente di avviare un'attività da un servizio solo mentre un'attività dell'applicazione
+ * è visibile. Per questo il servizio non prenota richieste finché la schermata di attesa non ha chiamato
+ * {@link #idle(Context)}, anche quando viene ricreato dal sistema (START_STICKY) con l'applicazione in background:
+ * altrimenti prenoterebbe una richiesta senza poter aprire lo strumento.
+ */
+public class DispatchService extends Service {
+
+    private static final String TAG = "DISPATCH_SERVICE";
+
+    //Azione con cui la schermata di attesa segnala che la MedBox è libera.
+    static final String ACTION_IDLE = "it.uniba.berluxoding.medboxapp.action.IDLE";
+
+    private static final String CHANNEL_ID = "dispatch";
+    private static final int NOTIFICATION_ID = 1;
+
+    private RequestQueue requestQueue;
+
+    /**
+     * Avvia il servizio, se non è già in esecuzione, e segnala che la MedBox è libera di servire la prossima richiesta.
+     *
+     * @param context Un contesto qualsiasi dell'applicazione.
+     */
+    public static void idle(@NonNull Context context) {
+        Intent intent = new Intent(context, DispatchService.class);
+        intent.setAction(ACTION_IDLE);
+        ContextCompat.startForegroundService(context, intent);
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        startInForeground();
+        requestQueue = new RequestQueue(this, this::onRequest);
+        requestQueue.start();
+        Log.d(TAG, "Dispatch service started");
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // Un riavvio del servizio da parte del sistema arriva con un intent null e non rende libera la MedBox
+        if (intent != null && ACTION_IDLE.equals(intent.getAction())) {
+            requestQueue.release();
+        }
+        return START_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        requestQueue.stop();
+        super.onDestroy();
+    }
+
+    @Nullable
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    /**
+     * Porta il servizio in primo piano, con una notifica persistente.
+     */
+    private void startInForeground() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationChannel channel = new NotificationChannel(CHANNEL_ID, "Richieste di misurazione",
+                    NotificationManager.IMPORTANCE_LOW);
+            getSystemService(NotificationManager.class).createNotificationChannel(channel);
+        }
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(this, CHANNEL_ID)
+                .setSmallIcon(R.mipmap.ic_appicon)
+                .setContentTitle("MedBox")
+                .setContentText("In attesa di richieste da AsilApp")
+                .setPriority(NotificationCompat.PRIORITY_LOW)
+                .setOngoing(true);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            startForeground(NOTIFICATION_ID, builder.build(), ServiceInfo.FOREGROUND_SERVICE_TYPE_DATA_SYNC);
+        } else {
+            startForeground(NOTIFICATION_ID, builder.build());
+        }
+    }
+
+    /**
+     * Gestisce una richiesta prenotata da questa MedBox.
+     *
+     * @param requestId    L'ID della richiesta nella coda.
+     * @param dataSnapshot I dati della richiesta.
+     * @return true se è stato aperto uno strumento.
+     */
+    private boolean onRequest(@NonNull String requestId, @NonNull DataSnapshot dataSnapshot) {
+        // Leggi i dati della richiesta
+        String userId = dataSnapshot.child("userId").getValue(String.class);
+        String strumento = dataSnapshot.child("strumento").getValue(String.class);
+        List<String> strumenti = new ArrayList<>();
+        for (DataSnapshot child : dataSnapshot.child("strumenti").getChildren()) {
+            strumenti.add(child.getValue(String.class));
+        }
+
+        Log.d("Firebase", "Richiesta ricevuta: id=" + requestId + ", userId=" + userId + ", strumento=" + strumento
+                + ", strumenti=" + strumenti);
+
+        // Apre la nuova activity in base allo strumento richiesto, oppure la sessione combinata
+        if (!strumenti.isEmpty() && userId != null) {
+            RequestResponse.opened(requestId);
+            return VitalsSession.start(this, userId, strumenti, requestId);
+        }
+        if (openInstrument(strumento, userId, requestId)) return true;
+        RequestResponse.cancel(this, requestId);
+        return false;
+    }
+
+    /**
+     * Avvia la schermata corrispondente allo strumento richiesto dall'utente.
+     *
+     * @param strumento Il nome dello strumento richiesto.
+     * @param uId       L'ID dell'utente che ha effettuato la richiesta.
+     * @param requestId L'ID della richiesta, a cui lo strumento risponde.
+     * @return true se lo strumento è gestito ed è stato aperto.
+     */
+    private boolean openInstrument(String strumento, String uId, String requestId) {
+        Class<?> target = VitalsSession.activityFor(strumento);
+        if (target == null || uId == null) {
+            Log.w("Firebase", "Richiesta non valida: strumento=" + strumento + ", userId=" + uId);
+            return false;
+        }
+        RequestResponse.opened(requestId);
+        Intent intent = new Intent(this, target);
+        intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        intent.putExtra("userId", uId);
+        intent.putExtra("requestId", requestId);
+        // Lo strumento viene preparato in parallelo all'avvio della sua attività
+        InstrumentWarmup.warm(this, intent, strumento, uId);
+        startActivity(intent);
+        return true;
+    }
+}
@@ -0,0 +1,66 @@
+package it.uniba.berluxoding.medboxapp.controller;
+
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.FirebaseDatabase;
+
+import it.uniba.berluxoding.medboxapp.controller.devices.CameraSessionManager;
+
+/**
+ * Prepara lo strumento richiesto mentre la sua attività viene avviata, invece che dopo.
+ *
+ * Per ogni strumento la chiave Firebase della misurazione, da cui derivano i percorsi di salvataggio, viene creata
+ * subito e passata all'attività nell'extra {@value #EXTRA_MEASUREMENT_KEY}. Per il cardiofrequenzimetro vengono
+ * anche scelta e aperta la fotocamera e accesa la torcia ({@link CameraSessionManager#prewarm(Context)}):
+ * l'attività adotta la sessione già aperta e la misurazione è pronta appena la schermata compare.
+ */
+public final class InstrumentWarmup {
+
+    private static final String TAG = "INSTRUMENT_WARMUP";
+
+    //Extra con la chiave della misurazione creata in anticipo.
+    public static final String EXTRA_MEASUREMENT_KEY = "measurementKey";
+
+    private InstrumentWarmup() {
+    }
+
+    /**
+     * Avvia la preparazione dello strumento e aggiunge all'intent dell'attività la chiave della misurazione.
+     * Va chiamato subito prima di avviare l'attività.
+     *
+     * @param context   Un contesto qualsiasi dell'applicazione.
+     * @param intent    L'intent dell'attività dello strumento.
+     * @param strumento Il nome dello strumento.
+     * @param userId    L'ID dell'utente.
+     */
+    @MainThread
+    public static void warm(@NonNull Context context, @NonNull Intent intent, @NonNull String strumento, @NonNull String userId) {
+        if ("cardifrequenzimetro".equals(strumento)) {
+            CameraSessionManager.prewarm(context);
+        }
+        // La chiave generata da push() è calcolata localmente e non richiede il server
+        String key = FirebaseDatabase.getInstance().getReference()
+                .child("AsilApp").child(userId).child("misurazioni").push().getKey();
+        intent.putExtra(EXTRA_MEASUREMENT_KEY, key);
+        Log.d(TAG, "Warming " + strumento + ", measurement " + key);
+    }
+
+    /**
+     * @param intent  L'intent con cui è stata avviata l'attività dello strumento.
+     * @param userRef Il riferimento all'utente nel database.
+     * @return La chiave della misurazione creata in anticipo, oppure una nuova chiave se l'attività
+     * non è stata avviata dal servizio di smistamento.
+     */
+    @Nullable
+    public static String measurementKey(@NonNull Intent intent, @NonNull DatabaseReference userRef) {
+        String key = intent.getStringExtra(EXTRA_MEASUREMENT_KEY);
+        return key != null ? key : userRef.child("misurazioni").push().getKey();
+    }
+}
@@ -0,0 +1,301 @@
+package it.uniba.berluxoding.medboxapp.controller;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.firebase.database.ChildEventListener;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.FirebaseDatabase;
+import com.google.firebase.database.MutableData;
+import com.google.firebase.database.ServerValue;
+import com.google.firebase.database.Transaction;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ * Coda delle richieste di misurazione, condivisa da tutte le MedBox dello stesso account.
+ *
+ * I client aggiungono le richieste con push() sotto "medbox/richieste": le chiavi generate sono ordinate
+ * cronologicamente, quindi le richieste vengono servite nell'ordine di arrivo. Ogni MedBox segue la coda con un
+ * {@link ChildEventListener} e, quando è libera, prenota la richiesta più vecchia con una transazione che
+ * scrive il proprio identificativo in "medboxId" e l'istante in "presaIl" solo se nessun'altra l'ha già fatto.
+ * La richiesta prenotata viene consegnata al {@link Listener} e la sua risposta ({@link RequestResponse}) passa
+ * allo stato "presa"; le altre MedBox passano alla successiva.
+ *
+ * La richiesta resta nella coda, con la prenotazione, finché non viene scritto il suo esito
+ * ({@link RequestResponse#putOutcome}), che la rimuove. Finché la richiesta è in carico la prenotazione viene
+ * rinnovata ogni {@value #RENEW_INTERVAL_MS} ms; una prenotazione non rinnovata da più di {@value #CLAIM_TIMEOUT_MS} ms,
+ * lasciata da una MedBox che si è arrestata, scade e la richiesta può essere prenotata di nuovo, anche dalla stessa MedBox.
+ * Le scadenze sono confrontate con l'ora del server ({@link ServerClock}), non con l'orologio del dispositivo.
+ * Se la transazione fallisce per un errore del database la richiesta resta candidata e il tentativo viene ripetuto
+ * dopo {@value #RETRY_DELAY_MS} ms.
+ *
+ * Una MedBox gestisce una richiesta alla volta: dopo la consegna la coda continua a ricevere le nuove richieste,
+ * ma non ne prenota altre fino a {@link #release()}. Anche una coda appena creata attende {@link #release()}
+ * prima di prenotare la prima richiesta. La classe è usata solo dal thread principale.
+ */
+public final class RequestQueue {
+
+    private static final String TAG = "REQUEST_QUEUE";
+
+    //Nodo della coda delle richieste.
+    static final String QUEUE_PATH = "medbox/richieste";
+
+    //Durata oltre la quale una prenotazione non rinnovata può essere ripresa, in millisecondi.
+    static final long CLAIM_TIMEOUT_MS = 2 * 60 * 1000;
+
+    //Intervallo di rinnovo della prenotazione della richiesta in carico, in millisecondi.
+    static final long RENEW_INTERVAL_MS = CLAIM_TIMEOUT_MS / 4;
+
+    //Attesa prima di ritentare una prenotazione fallita per un errore del database, in millisecondi.
+    static final long RETRY_DELAY_MS = 5000;
+
+    /**
+     * Riceve le richieste prenotate da questa MedBox.
+     */
+    public interface Listener {
+        /**
+         * @param requestId L'ID della richiesta, cioè la sua chiave nella coda.
+         * @param request   I dati della richiesta.
+         * @return true se la richiesta è stata presa in carico e la coda non deve prenotarne altre fino a
+         * {@link #release()}, false se non è stato possibile servirla.
+         */
+        boolean onRequest(@NonNull String requestId, @NonNull DataSnapshot request);
+    }
+
+    private final DatabaseReference queueRef;
+    private final String medboxId;
+    private final Listener listener;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable claimNextTask = this::claimNext;
+    private final Runnable renewTask = this::renewClaim;
+
+    //Richieste presenti nella coda, comprese quelle prenotate da altre MedBox, ordinate per chiave e quindi per arrivo.
+    private final TreeMap<String, DataSnapshot> requests = new TreeMap<>();
+
+    private ChildEventListener childListener;
+
+    //Ultima richiesta prenotata da questa MedBox, che non viene prenotata di nuovo finché resta nella coda.
+    private String lastClaimed;
+
+    //true mentre una prenotazione è in corso.
+    private boolean claiming;
+
+    //true dalla creazione della coda, e da quando una richiesta è stata consegnata, fino a release().
+    private boolean delivered = true;
+
+    /**
+     * @param context  Un contesto qualsiasi dell'applicazione.
+     * @param listener Il destinatario delle richieste prenotate.
+     */
+    public RequestQueue(@NonNull Context context, @NonNull Listener listener) {
+        this.queueRef = FirebaseDatabase.getInstance().getReference(QUEUE_PATH);
+        this.medboxId = medboxId(context);
+        this.listener = listener;
+    }
+
+    /**
+     * Inizia a seguire la coda, pronta a prenotare la prossima richiesta.
+     */
+    @MainThread
+    public void start() {
+        if (childListener != null) return;
+        ServerClock.listen();
+        requests.clear();
+        childListener = queueRef.orderByKey().addChildEventListener(new ChildEventListener() {
+            @Override
+            public void onChildAdded(@NonNull DataSnapshot snapshot, @Nullable String previousChildName) {
+                offer(snapshot);
+            }
+
+            @Override
+            public void onChildChanged(@NonNull DataSnapshot snapshot, @Nullable String previousChildName) {
+                offer(snapshot);
+            }
+
+            @Override
+            public void onChildRemoved(@NonNull DataSnapshot snapshot) {
+                requests.remove(snapshot.getKey());
+            }
+
+            @Override
+            public void onChildMoved(@NonNull DataSnapshot snapshot, @Nullable String previousChildName) {
+            }
+
+            @Override
+            public void onCancelled(@NonNull DatabaseError error) {
+                Log.e("Firebase", "Errore nel recupero delle richieste: " + error.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Smette di seguire la coda. Una prenotazione già in corso viene comunque completata.
+     */
+    @MainThread
+    public void stop() {
+        if (childListener == null) return;
+        queueRef.removeEventListener(childListener);
+        childListener = null;
+        requests.clear();
+        handler.removeCallbacks(claimNextTask);
+        handler.removeCallbacks(renewTask);
+    }
+
+    /**
+     * Aggiunge o aggiorna una richiesta della coda.
+     */
+    private void offer(DataSnapshot snapshot) {
+        String key = snapshot.getKey();
+        if (key == null) return;
+        requests.put(key, snapshot);
+        claimNext();
+    }
+
+    /**
+     * Tenta di prenotare la richiesta più vecchia non prenotata, se la MedBox è libera. Se tutte le richieste
+     * sono prenotate, ricontrolla la coda alla prima scadenza.
+     */
+    private void claimNext() {
+        handler.removeCallbacks(claimNextTask);
+        if (claiming || delivered || childListener == null) return;
+
+        long now = ServerClock.now();
+        long nextExpiry = Long.MAX_VALUE;
+        String requestId = null;
+        for (Map.Entry<String, DataSnapshot> entry : requests.entrySet()) {
+            if (entry.getKey().equals(lastClaimed)) continue;
+            DataSnapshot request = entry.getValue();
+            long expiry = claimExpiry(request.child("medboxId").getValue(String.class), request.child("presaIl").getValue(Long.class));
+            if (expiry <= now) {
+                requestId = entry.getKey();
+                break;
+            }
+            nextExpiry = Math.min(nextExpiry, expiry);
+        }
+        if (requestId == null) {
+            if (nextExpiry != Long.MAX_VALUE) handler.postDelayed(claimNextTask, nextExpiry - now);
+            return;
+        }
+
+        claiming = true;
+        final String claimedId = requestId;
+        queueRef.child(claimedId).runTransaction(new Transaction.Handler() {
+            @NonNull
+            @Override
+            public Transaction.Result doTransaction(@NonNull MutableData data) {
+                // Il primo tentativo può usare una copia locale vuota: il server lo rifiuta e lo ripete con il valore reale
+                if (data.getValue() == null) return Transaction.success(data);
+                if (claimExpiry(data.child("medboxId").getValue(String.class), data.child("presaIl").getValue(Long.class))
+                        > ServerClock.now()) {
+                    return Transaction.abort();
+                }
+                data.child("medboxId").setValue(medboxId);
+                data.child("presaIl").setValue(ServerValue.TIMESTAMP);
+                return Transaction.success(data);
+            }
+
+            @Override
+            public void onComplete(@Nullable DatabaseError error, boolean committed, @Nullable DataSnapshot snapshot) {
+                claiming = false;
+                if (error != null) {
+                    // La richiesta resta candidata: l'errore può essere temporaneo
+                    Log.e("Firebase", "Errore nella prenotazione della richiesta: " + error.getMessage());
+                    handler.postDelayed(claimNextTask, RETRY_DELAY_MS);
+                    return;
+                }
+                boolean claimed = committed && snapshot != null && snapshot.exists()
+                        && medboxId.equals(snapshot.child("medboxId").getValue(String.class));
+                if (!claimed) {
+                    Log.d(TAG, "Request " + claimedId + " taken by another MedBox");
+                    // La prenotazione altrui viene considerata fino alla sua scadenza
+                    if (snapshot != null && snapshot.exists()) requests.put(claimedId, snapshot);
+                    else requests.remove(claimedId);
+                    claimNext();
+                    return;
+                }
+
+                Log.d(TAG, "Claimed request " + claimedId);
+                lastClaimed = claimedId;
+                // La richiesta resta nella coda fino all'esito; la prenotazione viene pubblicata nella risposta
+                Map<String, Object> updates = new HashMap<>();
+                RequestResponse.putClaimed(updates, claimedId, medboxId);
+                FirebaseDatabase.getInstance().getReference().updateChildren(updates)
+                        .addOnFailureListener(e -> Log.e("Firebase", "Errore nella pubblicazione della prenotazione: " + e.getMessage()));
+                delivered = listener.onRequest(claimedId, snapshot);
+                if (delivered) handler.postDelayed(renewTask, RENEW_INTERVAL_MS);
+                claimNext();
+            }
+        });
+    }
+
+    /**
+     * Rinnova la prenotazione della richiesta in carico, finché è nella coda e prenotata da questa MedBox.
+     */
+    private void renewClaim() {
+        if (!delivered || lastClaimed == null) return;
+        queueRef.child(lastClaimed).runTransaction(new Transaction.Handler() {
+            @NonNull
+            @Override
+            public Transaction.Result doTransaction(@NonNull MutableData data) {
+                if (data.getValue() == null) return Transaction.success(data);
+                if (!medboxId.equals(data.child("medboxId").getValue(String.class))) return Transaction.abort();
+                data.child("presaIl").setValue(ServerValue.TIMESTAMP);
+                return Transaction.success(data);
+            }
+
+            @Override
+            public void onComplete(@Nullable DatabaseError error, boolean committed, @Nullable DataSnapshot snapshot) {
+                if (error != null) Log.e("Firebase", "Errore nel rinnovo della prenotazione: " + error.getMessage());
+            }
+        });
+        handler.postDelayed(renewTask, RENEW_INTERVAL_MS);
+    }
+
+    /**
+     * Segnala che la richiesta consegnata è conclusa e la MedBox può prenotare la successiva.
+     */
+    @MainThread
+    public void release() {
+        delivered = false;
+        handler.removeCallbacks(renewTask);
+        claimNext();
+    }
+
+    /**
+     * @param owner     La MedBox che ha prenotato la richiesta, oppure null.
+     * @param claimedAt L'istante della prenotazione secondo il server, oppure null.
+     * @return L'istante, secondo il server, in cui la prenotazione scade: zero se la richiesta non è prenotata.
+     */
+    static long claimExpiry(@Nullable String owner, @Nullable Long claimedAt) {
+        if (owner == null) return 0;
+        return claimedAt != null ? claimedAt + CLAIM_TIMEOUT_MS : Long.MAX_VALUE;
+    }
+
+    /**
+     * @return L'identificativo di questa installazione, generato al primo utilizzo: distingue MedBox
+     * diverse collegate allo stesso account.
+     */
+    @NonNull
+    static String medboxId(@NonNull Context context) {
+        SharedPreferences preferences = context.getApplicationContext().getSharedPreferences("medbox", Context.MODE_PRIVATE);
+        String id = preferences.getString("medboxId", null);
+        if (id == null) {
+            id = UUID.randomUUID().toString();
+            preferences.edit().putString("medboxId", id).apply();
+        }
+        return id;
+    }
+}
@@ -0,0 +1,142 @@
+package it.uniba.berluxoding.medboxapp.controller;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.firebase.database.ServerValue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import it.uniba.berluxoding.medboxapp.sync.JournalSyncer;
+import it.uniba.berluxoding.medboxapp.sync.MeasurementJournal;
+
+/**
+ * Risposte alle richieste di misurazione, scritte in "medbox/risposte/&lt;id della richiesta&gt;".
+ *
+ * Ogni risposta contiene:
+ * - "stato": "presa" quando una MedBox prenota la richiesta, poi "completata", "interrotta" (sessione combinata
+ *   chiusa con solo parte delle misurazioni) o "annullata" (strumento chiuso senza misurare);
+ * - "medboxId" e "presaIl": la MedBox che ha preso la richiesta e l'istante della prenotazione;
+ * - "misurazioni": le chiavi delle misurazioni salvate, ciascuna con il nome dello strumento;
+ * - "conclusaIl" e "durataMs": l'istante della conclusione, fissato sul dispositivo e corretto con lo scarto
+ *   dall'ora del server ({@link ServerClock}), e il tempo trascorso dall'apertura dello strumento.
+ * Il client che ha inviato la richiesta può quindi inviarne altre senza attendere e riconoscere ogni risposta
+ * dall'ID della propria richiesta. I campi sono scritti come percorsi distinti, così ogni aggiornamento
+ * si aggiunge ai precedenti invece di sostituirli.
+ *
+ * I metodi aggiungono i percorsi a una mappa da passare a updateChildren, insieme alle misurazioni.
+ * Con un ID di richiesta null non aggiungono nulla.
+ */
+public final class RequestResponse {
+
+    private static final String TAG = "REQUEST_RESPONSE";
+
+    //Nodo delle risposte.
+    static final String RESPONSES_PATH = "medbox/risposte";
+
+    public static final String CLAIMED = "presa";
+    public static final String COMPLETED = "completata";
+    public static final String INTERRUPTED = "interrotta";
+    public static final String CANCELLED = "annullata";
+
+    //Richiesta affidata allo strumento aperto e non ancora conclusa, oppure null, e istante di apertura.
+    private static String openRequestId;
+    private static long openedAt;
+
+    private RequestResponse() {
+    }
+
+    /**
+     * @param requestId L'ID della richiesta.
+     * @return Il percorso della risposta alla richiesta.
+     */
+    @NonNull
+    public static String path(@NonNull String requestId) {
+        return RESPONSES_PATH + "/" + requestId;
+    }
+
+    /**
+     * Aggiunge la prenotazione della richiesta da parte di questa MedBox.
+     */
+    public static void putClaimed(@NonNull Map<String, Object> updates, @NonNull String requestId, @NonNull String medboxId) {
+        String path = path(requestId);
+        updates.put(path + "/stato", CLAIMED);
+        updates.put(path + "/medboxId", medboxId);
+        updates.put(path + "/presaIl", ServerValue.TIMESTAMP);
+    }
+
+    /**
+     * Segna la richiesta come affidata allo strumento appena aperto: se lo strumento viene chiuso senza
+     * concluderla, {@link #cancelOpen(Context)} la annulla.
+     *
+     * @param requestId L'ID della richiesta.
+     */
+    @MainThread
+    public static void opened(@NonNull String requestId) {
+        openRequestId = requestId;
+        openedAt = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Aggiunge una misurazione salvata per la richiesta.
+     *
+     * @param strumento Il nome dello strumento.
+     * @param key       L'ID della misurazione.
+     */
+    public static void putReading(@NonNull Map<String, Object> updates, @Nullable String requestId,
+                                  @NonNull String strumento, @NonNull String key) {
+        if (requestId == null) return;
+        updates.put(path(requestId) + "/misurazioni/" + key, strumento);
+    }
+
+    /**
+     * Aggiunge l'esito finale della richiesta, con l'istante della conclusione e la durata, e la rimozione
+     * della richiesta dalla coda ({@link RequestQueue}), che fino a quel momento ne conserva la prenotazione.
+     *
+     * @param stato Uno tra {@link #COMPLETED}, {@link #INTERRUPTED} e {@link #CANCELLED}.
+     */
+    @MainThread
+    public static void putOutcome(@NonNull Map<String, Object> updates, @Nullable String requestId, @NonNull String stato) {
+        if (requestId == null) return;
+        String path = path(requestId);
+        updates.put(RequestQueue.QUEUE_PATH + "/" + requestId, null);
+        updates.put(path + "/stato", stato);
+        // La mappa può essere inviata molto dopo, dal giornale: l'istante viene fissato ora, secondo l'ora del server
+        updates.put(path + "/conclusaIl", ServerClock.now());
+        if (requestId.equals(openRequestId)) {
+            updates.put(path + "/durataMs", SystemClock.elapsedRealtime() - openedAt);
+            openRequestId = null;
+        }
+    }
+
+    /**
+     * Annulla la richiesta affidata a uno strumento chiuso senza misurare.
+     *
+     * @param context Un contesto qualsiasi dell'applicazione.
+     */
+    @MainThread
+    public static void cancelOpen(@NonNull Context context) {
+        if (openRequestId == null) return;
+        Log.d(TAG, "Request " + openRequestId + " closed without a measurement");
+        cancel(context, openRequestId);
+    }
+
+    /**
+     * Pubblica l'annullamento di una richiesta, ad esempio perché non valida.
+     *
+     * @param context   Un contesto qualsiasi dell'applicazione.
+     * @param requestId L'ID della richiesta.
+     */
+    @MainThread
+    public static void cancel(@NonNull Context context, @NonNull String requestId) {
+        Map<String, Object> updates = new HashMap<>();
+        putOutcome(updates, requestId, CANCELLED);
+        JournalSyncer.submit(context, MeasurementJournal.requestId(requestId), updates);
+    }
+}
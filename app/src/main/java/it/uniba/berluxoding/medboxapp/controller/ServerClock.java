@@ -0,0 +1,57 @@
+package it.uniba.berluxoding.medboxapp.controller;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.FirebaseDatabase;
+import com.google.firebase.database.ValueEventListener;
+
+/**
+ * Stima dell'ora del server Firebase, ottenuta correggendo l'orologio del dispositivo con lo scarto
+ * pubblicato dal database in ".info/serverTimeOffset".
+ *
+ * Lo scarto viene seguito dal primo utilizzo e aggiornato a ogni riconnessione; finché non è noto vale zero.
+ * Serve a confrontare gli istanti scritti con ServerValue.TIMESTAMP anche se l'orologio del dispositivo è sbagliato,
+ * e a registrare istanti che restano corretti quando la scrittura arriva al server in ritardo.
+ */
+final class ServerClock {
+
+    //Scarto tra l'orologio del server e quello del dispositivo, in millisecondi.
+    private static volatile long offset;
+
+    private static boolean listening;
+
+    private ServerClock() {
+    }
+
+    /**
+     * @return L'istante attuale secondo il server, in millisecondi dall'epoca.
+     */
+    static long now() {
+        listen();
+        return System.currentTimeMillis() + offset;
+    }
+
+    /**
+     * Inizia a seguire lo scarto, se non lo si sta già facendo.
+     */
+    static synchronized void listen() {
+        if (listening) return;
+        listening = true;
+        FirebaseDatabase.getInstance().getReference(".info/serverTimeOffset").addValueEventListener(new ValueEventListener() {
+            @Override
+            public void onDataChange(@NonNull DataSnapshot snapshot) {
+                Long value = snapshot.getValue(Long.class);
+                if (value != null) offset = value;
+            }
+
+            @Override
+            public void onCancelled(@NonNull DatabaseError error) {
+                Log.e("Firebase", "Errore nella lettura dello scarto dell'orologio: " + error.getMessage());
+            }
+        });
+    }
+}
@@ -0,0 +1,187 @@
+package it.uniba.berluxoding.medboxapp.controller;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+import it.uniba.berluxoding.medboxapp.controller.devices.BloodPressureActivity;
+import it.uniba.berluxoding.medboxapp.controller.devices.HeartRateMonitorActivity;
+import it.uniba.berluxoding.medboxapp.controller.devices.ThermometerActivity;
+import it.uniba.berluxoding.medboxapp.sync.JournalSyncer;
+import it.uniba.berluxoding.medboxapp.sync.MeasurementJournal;
+
+/**
+ * Sessione di misurazione combinata: raccoglie le misurazioni di più strumenti per lo stesso utente
+ * e le salva tutte con un'unica scrittura multi-percorso, invece di una scrittura per strumento.
+ *
+ * Ogni strumento, ottenuta la propria misurazione, la aggiunge alla sessione con {@link #addReading} e
+ * chiama {@link #proceed(Context)}, che apre direttamente lo strumento successivo senza tornare
+ * alla schermata di attesa; dopo l'ultimo strumento la sessione viene salvata. Per ogni misurazione
+ * vengono scritti i due percorsi dell'utente e una voce nella risposta alla richiesta ({@link RequestResponse}),
+ * insieme all'esito finale;
+ * la scrittura passa dal giornale locale delle misurazioni ({@link JournalSyncer}).
+ *
+ * Ogni strumento aperto dalla sessione riceve nell'extra {@value #EXTRA_STEP} il numero del proprio passo:
+ * {@link #proceed(Context)} chiamato da un'attività di un passo già superato, ad esempio per un secondo tocco
+ * prima della chiusura, viene ignorato, così la sessione non salta uno strumento né viene salvata due volte.
+ *
+ * La sessione è conservata in memoria ed è usata solo dal thread principale.
+ */
+public final class VitalsSession {
+
+    private static final String TAG = "VITALS_SESSION";
+
+    //Extra con il numero del passo della sessione a cui appartiene lo strumento aperto.
+    static final String EXTRA_STEP = "sessionStep";
+
+    //Sessione in corso, oppure null.
+    private static VitalsSession current;
+
+    private final String userId;
+    private final String requestId;
+    private final Queue<String> instruments;
+
+    //Percorsi e valori da scrivere, accumulati misurazione per misurazione.
+    private final Map<String, Object> updates = new HashMap<>();
+    private final List<String> readingKeys = new ArrayList<>();
+
+    //Numero di strumenti aperti finora: il passo corrente.
+    private int step;
+
+    private VitalsSession(String userId, List<String> instruments, String requestId) {
+        this.userId = userId;
+        this.requestId = requestId;
+        this.instruments = new ArrayDeque<>(instruments);
+    }
+
+    /**
+     * Avvia una nuova sessione e apre il primo strumento. Una sessione precedente non salvata viene scartata.
+     *
+     * @param context     Il contesto da cui aprire il primo strumento.
+     * @param userId      L'ID dell'utente.
+     * @param instruments I nomi degli strumenti, nell'ordine in cui usarli.
+     * @param requestId   L'ID della richiesta a cui risponde la sessione.
+     * @return true se è stato aperto uno strumento, false se nessuno degli strumenti è gestito.
+     */
+    @MainThread
+    public static boolean start(@NonNull Context context, @NonNull String userId, @NonNull List<String> instruments,
+                                @NonNull String requestId) {
+        if (current != null) Log.w(TAG, "Discarding unsaved session of " + current.userId);
+        current = new VitalsSession(userId, instruments, requestId);
+        current.proceed(context);
+        return current != null;
+    }
+
+    /**
+     * @param userId L'ID dell'utente.
+     * @return La sessione in corso per l'utente, oppure null se lo strumento è stato aperto da solo.
+     */
+    @MainThread
+    @Nullable
+    public static VitalsSession currentFor(@Nullable String userId) {
+        return current != null && current.userId.equals(userId) ? current : null;
+    }
+
+    /**
+     * Salva le misurazioni già raccolte di una sessione interrotta, ad esempio se l'utente ha chiuso
+     * uno strumento senza misurare, e la termina pubblicando la richiesta come interrotta.
+     *
+     * @param context Un contesto qualsiasi dell'applicazione.
+     */
+    @MainThread
+    public static void finishInterrupted(@NonNull Context context) {
+        if (current == null) return;
+        VitalsSession session = current;
+        current = null;
+        session.instruments.clear();
+        session.commit(context, null, session.readingKeys.isEmpty() ? RequestResponse.CANCELLED : RequestResponse.INTERRUPTED);
+    }
+
+    /**
+     * Aggiunge la misurazione di uno strumento alla sessione.
+     *
+     * @param strumento Il nome dello strumento.
+     * @param key       L'ID della misurazione.
+     * @param reading   I dati della misurazione.
+     */
+    public void addReading(@NonNull String strumento, @NonNull String key, @NonNull Map<String, String> reading) {
+        if (readingKeys.contains(key)) return;
+        updates.put("AsilApp/" + userId + "/misurazioni/" + key, reading);
+        updates.put("AsilApp/" + userId + "/misurazioni-strumento/" + strumento + "/" + key, reading);
+        RequestResponse.putReading(updates, requestId, strumento, key);
+        readingKeys.add(key);
+    }
+
+    /**
+     * Apre lo strumento successivo o, se non ce ne sono altri, salva la sessione. In entrambi i casi
+     * l'attività dello strumento corrente viene chiusa: subito se si passa a un altro strumento, dopo il salvataggio altrimenti.
+     *
+     * @param context L'attività dello strumento corrente, oppure il servizio che apre il primo strumento.
+     */
+    @MainThread
+    public void proceed(@NonNull Context context) {
+        Activity activity = context instanceof Activity ? (Activity) context : null;
+        if (activity != null && activity.getIntent().getIntExtra(EXTRA_STEP, -1) != step) {
+            Log.w(TAG, "Ignoring proceed from a step already completed");
+            return;
+        }
+        while (!instruments.isEmpty()) {
+            String next = instruments.poll();
+            Class<?> target = activityFor(next);
+            if (target == null) {
+                Log.w(TAG, "Unknown instrument: " + next);
+                continue;
+            }
+            Intent intent = new Intent(context, target);
+            if (activity == null) intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+            intent.putExtra("userId", userId);
+            intent.putExtra("requestId", requestId);
+            intent.putExtra(EXTRA_STEP, ++step);
+            InstrumentWarmup.warm(context, intent, next, userId);
+            context.startActivity(intent);
+            if (activity != null) activity.finish();
+            return;
+        }
+        if (current == this) current = null;
+        commit(context, activity, readingKeys.isEmpty() ? RequestResponse.CANCELLED : RequestResponse.COMPLETED);
+    }
+
+    /**
+     * Registra tutte le misurazioni della sessione come un'unica scrittura nel giornale locale, che le invia
+     * a Firebase in background con una sola chiamata a updateChildren.
+     *
+     * @param context  Un contesto qualsiasi dell'applicazione.
+     * @param toFinish L'attività da chiudere dopo la registrazione, oppure null.
+     * @param stato    L'esito della richiesta.
+     */
+    private void commit(@NonNull Context context, @Nullable Activity toFinish, @NonNull String stato) {
+        Log.d(TAG, "Saving " + readingKeys.size() + " readings in one update, " + stato);
+        RequestResponse.putOutcome(updates, requestId, stato);
+        JournalSyncer.submit(context, MeasurementJournal.requestId(requestId), updates);
+        if (toFinish != null) toFinish.finish();
+    }
+
+    /**
+     * @param strumento Il nome dello strumento.
+     * @return L'attività corrispondente allo strumento, oppure null se lo strumento non è gestito.
+     */
+    @Nullable
+    public static Class<?> activityFor(@Nullable String strumento) {
+        if ("cardifrequenzimetro".equals(strumento)) return HeartRateMonitorActivity.class;
+        if ("sfigmomanometro".equals(strumento)) return BloodPressureActivity.class;
+        if ("termometro".equals(strumento)) return ThermometerActivity.class;
+        return null;
+    }
+}
@@ -0,0 +1,268 @@
+package it.uniba.berluxoding.medboxapp.controller.devices;
+
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.util.Log;
+import android.util.Range;
+import android.util.Size;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Sceglie la configurazione della fotocamera più adatta alla misurazione PPG leggendo una sola volta
+ * le {@link CameraCharacteristics} dei dispositivi disponibili.
+ *
+ * La configurazione scelta prevede: la fotocamera posteriore dotata di flash (usato come torcia),
+ * la più piccola risoluzione YUV_420_888 supportata a quella frequenza, il più alto intervallo fisso
+ * di {@link CaptureRequest#CONTROL_AE_TARGET_FPS_RANGE} fino a {@value #MAX_FRAME_RATE} fps e,
+ * se disponibili, il blocco di esposizione e bilanciamento del bianco una volta raggiunta la convergenza.
+ * Il risultato non cambia durante la vita del processo e viene quindi conservato in memoria.
+ */
+public class CameraNegotiator {
+
+    private static final String TAG = "CameraNegotiator";
+
+    //Frequenza massima richiesta: oltre i 30 fps il tempo di esposizione si riduce e il segnale diventa più rumoroso.
+    static final int MAX_FRAME_RATE = 30;
+
+    //Numero massimo di frame da attendere per la convergenza di esposizione e bilanciamento del bianco.
+    static final int MAX_CONVERGENCE_FRAMES = 30;
+
+    //Configurazione scelta, condivisa tra le istanze dell'attività.
+    private static Configuration cachedConfiguration;
+
+    private final CameraManager cameraManager;
+
+    public CameraNegotiator(@NonNull CameraManager cameraManager) {
+        this.cameraManager = cameraManager;
+    }
+
+    /**
+     * Restituisce la configurazione migliore, calcolandola alla prima chiamata.
+     *
+     * @return La configurazione della fotocamera da usare per la misurazione.
+     * @throws CameraAccessException Se non è possibile leggere le caratteristiche delle fotocamere.
+     */
+    @NonNull
+    public Configuration negotiate() throws CameraAccessException {
+        synchronized (CameraNegotiator.class) {
+            if (cachedConfiguration == null) {
+                cachedConfiguration = choose();
+                Log.d(TAG, "Selected " + cachedConfiguration);
+            }
+            return cachedConfiguration;
+        }
+    }
+
+    private Configuration choose() throws CameraAccessException {
+        String[] cameraIds = cameraManager.getCameraIdList();
+        if (cameraIds.length == 0) throw new CameraAccessException(CameraAccessException.CAMERA_ERROR, "no camera");
+
+        // Preferenza: posteriore con flash, poi qualunque fotocamera con flash, poi posteriore, infine la prima
+        String bestId = cameraIds[0];
+        CameraCharacteristics best = cameraManager.getCameraCharacteristics(bestId);
+        int bestRank = rank(best);
+        for (int i = 1; i < cameraIds.length && bestRank < 3; i++) {
+            CameraCharacteristics characteristics = cameraManager.getCameraCharacteristics(cameraIds[i]);
+            int rank = rank(characteristics);
+            if (rank > bestRank) {
+                bestId = cameraIds[i];
+                best = characteristics;
+                bestRank = rank;
+            }
+        }
+
+        Range<Integer> fpsRange = chooseFpsRange(best.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES));
+        Size size = chooseYuvSize(best.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP),
+                fpsRange != null ? fpsRange.getUpper() : MAX_FRAME_RATE);
+        return new Configuration(bestId, size, fpsRange,
+                hasFlash(best),
+                Boolean.TRUE.equals(best.get(CameraCharacteristics.CONTROL_AE_LOCK_AVAILABLE)),
+                Boolean.TRUE.equals(best.get(CameraCharacteristics.CONTROL_AWB_LOCK_AVAILABLE)),
+                supportsAutofocusOff(best.get(CameraCharacteristics.CONTROL_AF_AVAILABLE_MODES)),
+                Integer.valueOf(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME)
+                        .equals(best.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE)));
+    }
+
+    private static int rank(CameraCharacteristics characteristics) {
+        Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
+        boolean back = facing != null && facing == CameraCharacteristics.LENS_FACING_BACK;
+        boolean flash = hasFlash(characteristics);
+        if (back && flash) return 3;
+        if (flash) return 2;
+        return back ? 1 : 0;
+    }
+
+    private static boolean hasFlash(CameraCharacteristics characteristics) {
+        return Boolean.TRUE.equals(characteristics.get(CameraCharacteristics.FLASH_INFO_AVAILABLE));
+    }
+
+    /**
+     * Sceglie l'intervallo fisso (minimo uguale al massimo) più alto non superiore a {@link #MAX_FRAME_RATE};
+     * in mancanza di intervalli fissi, quello con il minimo più alto e, a parità, il più stretto.
+     */
+    static Range<Integer> chooseFpsRange(Range<Integer>[] ranges) {
+        if (ranges == null) return null;
+        Range<Integer> best = null;
+        for (Range<Integer> range : ranges) {
+            if (range.getUpper() > MAX_FRAME_RATE) continue;
+            if (best == null || compareStability(range, best) > 0) best = range;
+        }
+        return best;
+    }
+
+    private static int compareStability(Range<Integer> a, Range<Integer> b) {
+        boolean aFixed = a.getLower().equals(a.getUpper());
+        boolean bFixed = b.getLower().equals(b.getUpper());
+        if (aFixed != bFixed) return aFixed ? 1 : -1;
+        if (!a.getLower().equals(b.getLower())) return Integer.compare(a.getLower(), b.getLower());
+        return Integer.compare(b.getUpper(), a.getUpper());
+    }
+
+    /**
+     * Sceglie la risoluzione YUV_420_888 con meno pixel che supporta la frequenza richiesta.
+     */
+    private static Size chooseYuvSize(StreamConfigurationMap map, int frameRate) {
+        Size best = null;
+        Size smallest = null;
+        Size[] sizes = map != null ? map.getOutputSizes(ImageFormat.YUV_420_888) : null;
+        if (sizes != null) {
+            long maxFrameDuration = 1_000_000_000L / frameRate;
+            for (Size size : sizes) {
+                if (smallest == null || area(size) < area(smallest)) smallest = size;
+                if (map.getOutputMinFrameDuration(ImageFormat.YUV_420_888, size) > maxFrameDuration) continue;
+                if (best == null || area(size) < area(best)) best = size;
+            }
+        }
+        if (best != null) return best;
+        return smallest != null ? smallest : new Size(640, 480);
+    }
+
+    private static long area(Size size) {
+        return (long) size.getWidth() * size.getHeight();
+    }
+
+    private static boolean supportsAutofocusOff(int[] modes) {
+        if (modes == null) return false;
+        for (int mode : modes) {
+            if (mode == CaptureRequest.CONTROL_AF_MODE_OFF) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Configurazione della fotocamera scelta per la misurazione. La classe è immutabile.
+     */
+    public static final class Configuration {
+
+        private final String cameraId;
+        private final Size yuvSize;
+        private final Range<Integer> fpsRange;
+        private final boolean torch;
+        private final boolean aeLockAvailable;
+        private final boolean awbLockAvailable;
+        private final boolean autofocusOff;
+        private final boolean realtimeTimestamps;
+
+        Configuration(String cameraId, Size yuvSize, Range<Integer> fpsRange, boolean torch,
+                      boolean aeLockAvailable, boolean awbLockAvailable, boolean autofocusOff,
+                      boolean realtimeTimestamps) {
+            this.cameraId = cameraId;
+            this.yuvSize = yuvSize;
+            this.fpsRange = fpsRange;
+            this.torch = torch;
+            this.aeLockAvailable = aeLockAvailable;
+            this.awbLockAvailable = awbLockAvailable;
+            this.autofocusOff = autofocusOff;
+            this.realtimeTimestamps = realtimeTimestamps;
+        }
+
+        public String getCameraId() {
+            return cameraId;
+        }
+
+        public Size getYuvSize() {
+            return yuvSize;
+        }
+
+        public Range<Integer> getFpsRange() {
+            return fpsRange;
+        }
+
+        /**
+         * @return true se i timestamp dei frame usano lo stesso orologio di
+         * {@link android.os.SystemClock#elapsedRealtimeNanos()}, e sono quindi confrontabili con l'istante di consegna.
+         */
+        public boolean hasRealtimeTimestamps() {
+            return realtimeTimestamps;
+        }
+
+        /**
+         * Imposta nella richiesta torcia, frequenza dei frame e messa a fuoco fissa,
+         * sbloccando esposizione e bilanciamento del bianco.
+         *
+         * @param builder Il costruttore della richiesta ripetitiva.
+         * @param torchOn true per accendere la torcia, se la fotocamera ha il flash.
+         */
+        public void applyTo(@NonNull CaptureRequest.Builder builder, boolean torchOn) {
+            if (torch) {
+                builder.set(CaptureRequest.FLASH_MODE,
+                        torchOn ? CaptureRequest.FLASH_MODE_TORCH : CaptureRequest.FLASH_MODE_OFF);
+            }
+            if (fpsRange != null) {
+                builder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, fpsRange);
+            }
+            // Con il dito appoggiato sull'obiettivo l'autofocus continuo cerca senza sosta il fuoco
+            builder.set(CaptureRequest.CONTROL_AF_MODE,
+                    autofocusOff ? CaptureRequest.CONTROL_AF_MODE_OFF : CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_VIDEO);
+            builder.set(CaptureRequest.CONTROL_AE_LOCK, false);
+            builder.set(CaptureRequest.CONTROL_AWB_LOCK, false);
+        }
+
+        /**
+         * @return true se esposizione o bilanciamento del bianco possono essere bloccati.
+         */
+        public boolean canLock() {
+            return aeLockAvailable || awbLockAvailable;
+        }
+
+        /**
+         * Verifica se esposizione e bilanciamento del bianco hanno raggiunto la convergenza.
+         *
+         * @param result Il risultato di un'acquisizione completata.
+         * @return true se entrambi gli algoritmi sono convergenti (o non riportano il proprio stato).
+         */
+        public boolean isConverged(@NonNull CaptureResult result) {
+            Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
+            Integer awbState = result.get(CaptureResult.CONTROL_AWB_STATE);
+            boolean aeConverged = aeState == null
+                    || aeState == CaptureResult.CONTROL_AE_STATE_CONVERGED
+                    || aeState == CaptureResult.CONTROL_AE_STATE_FLASH_REQUIRED;
+            boolean awbConverged = awbState == null || awbState == CaptureResult.CONTROL_AWB_STATE_CONVERGED;
+            return aeConverged && awbConverged;
+        }
+
+        /**
+         * Imposta nella richiesta il blocco di esposizione e bilanciamento del bianco, dove supportato.
+         *
+         * @param builder Il costruttore della richiesta ripetitiva.
+         */
+        public void applyLocks(@NonNull CaptureRequest.Builder builder) {
+            if (aeLockAvailable) builder.set(CaptureRequest.CONTROL_AE_LOCK, true);
+            if (awbLockAvailable) builder.set(CaptureRequest.CONTROL_AWB_LOCK, true);
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "Configuration{camera=" + cameraId + ", size=" + yuvSize + ", fps=" + fpsRange
+                    + ", torch=" + torch + ", aeLock=" + aeLockAvailable + ", awbLock=" + awbLockAvailable
+                    + ", afOff=" + autofocusOff + ", realtime=" + realtimeTimestamps + "}";
+        }
+    }
+}
@@ -0,0 +1,518 @@
+package it.uniba.berluxoding.medboxapp.controller.devices;
+
+import android.Manifest;
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.TotalCaptureResult;
+import android.hardware.camera2.params.OutputConfiguration;
+import android.hardware.camera2.params.SessionConfiguration;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.Size;
+import android.view.Surface;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.core.content.ContextCompat;
+
+import it.uniba.berluxoding.medboxapp.ppg.PipelineMetrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gestisce una sessione della fotocamera che resta aperta tra una misurazione e l'altra.
+ *
+ * La sessione viene aperta quando l'attività torna in primo piano ({@link #open(Surface)}) e chiusa quando
+ * passa in secondo piano ({@link #close()}): fotocamera, {@link ImageReader}, sessione di acquisizione
+ * e thread della fotocamera sono creati una sola volta. Una misurazione accende solo la torcia
+ * ({@link #setTorch(boolean)}) e collega il destinatario dei frame ({@link #setFrameSink(FrameSink)}),
+ * quindi il primo frame arriva senza attendere l'apertura della fotocamera.
+ *
+ * La sessione può anche essere aperta in anticipo, prima che l'attività esista ({@link #prewarm(Context)}):
+ * fotocamera e sessione vengono aperte con il solo ImageReader e la torcia accesa, e l'attività le adotta
+ * con {@link #adoptPrewarmed(ErrorListener)}, aggiungendo poi l'anteprima con {@link #attachPreview(Surface)}.
+ *
+ * Tutti gli oggetti della fotocamera sono usati solo dal suo thread; i metodi pubblici vanno chiamati
+ * dal thread principale, tranne {@link #awaitIdle()}.
+ */
+public class CameraSessionManager {
+
+    private static final String TAG = "CameraSessionManager";
+
+    //Attesa massima di awaitIdle(), in millisecondi.
+    private static final long IDLE_TIMEOUT_MS = 1000;
+
+    //Tempo dopo il quale una sessione aperta in anticipo e non adottata viene chiusa, in millisecondi.
+    static final long PREWARM_TIMEOUT_MS = 10000;
+
+    //Sessione aperta in anticipo, in attesa dell'attività che la adotterà, oppure null.
+    private static CameraSessionManager prewarmed;
+
+    /**
+     * Destinatario dei frame, chiamato nel thread della fotocamera. L'immagine viene chiusa al ritorno
+     * e non va conservata.
+     */
+    public interface FrameSink {
+        void onFrame(@NonNull Image image);
+    }
+
+    /**
+     * Notifica degli errori della fotocamera, chiamata nel thread della fotocamera.
+     */
+    public interface ErrorListener {
+        void onCameraError(@NonNull String message);
+    }
+
+    private final CameraManager cameraManager;
+    private volatile ErrorListener errorListener;
+
+    //Thread della fotocamera e relativo Handler, creati all'apertura della sessione.
+    private HandlerThread cameraThread;
+    private volatile Handler cameraHandler;
+
+    //Thread dell'ultima sessione chiusa, che può essere ancora in esecuzione.
+    private volatile HandlerThread closingThread;
+
+    //Oggetti della fotocamera, usati solo nel thread della fotocamera.
+    private CameraNegotiator.Configuration configuration;
+    private Surface previewSurface;
+    private boolean opening;
+
+    //true se la sessione è stata chiusa mentre la fotocamera si apriva: il thread termina dopo averla chiusa.
+    private boolean quitWhenOpened;
+    private CameraDevice cameraDevice;
+    private CameraCaptureSession captureSession;
+    private ImageReader imageReader;
+    private CaptureRequest.Builder captureRequestBuilder;
+    private CameraCaptureSession.CaptureCallback captureCallback;
+
+    //Stato richiesto della torcia e frame attesi prima del blocco di esposizione e bilanciamento del bianco (-1 se bloccati).
+    private boolean torch;
+    private int framesBeforeLock = -1;
+
+    //Destinatario dei frame, oppure null se nessuna misurazione è in corso.
+    private volatile FrameSink frameSink;
+
+    //Istante (elapsedRealtime) in cui è stato collegato il destinatario, finché non arriva il primo frame; 0 altrimenti.
+    private volatile long sinkAttachedAt;
+
+    //Strumentazione in cui registrare l'acquisizione e i frame persi mentre è collegato un destinatario, oppure null.
+    private volatile PipelineMetrics metrics;
+
+    public CameraSessionManager(@NonNull CameraManager cameraManager, @NonNull ErrorListener errorListener) {
+        this.cameraManager = cameraManager;
+        this.errorListener = errorListener;
+    }
+
+    /**
+     * Apre in anticipo fotocamera e sessione, senza anteprima e con la torcia accesa, per l'attività del
+     * cardiofrequenzimetro che sta per essere avviata. Se entro {@value #PREWARM_TIMEOUT_MS} ms nessuna attività
+     * la adotta, la sessione viene chiusa. Non fa nulla senza il permesso di usare la fotocamera.
+     *
+     * @param context Un contesto qualsiasi dell'applicazione.
+     */
+    @MainThread
+    public static void prewarm(@NonNull Context context) {
+        if (prewarmed != null) return;
+        if (ContextCompat.checkSelfPermission(context, Manifest.permission.CAMERA) != PackageManager.PERMISSION_GRANTED) return;
+        CameraManager manager = (CameraManager) context.getApplicationContext().getSystemService(Context.CAMERA_SERVICE);
+        CameraSessionManager session = new CameraSessionManager(manager,
+                message -> Log.w(TAG, "Prewarmed session failed: " + message));
+        session.open(null);
+        session.setTorch(true);
+        prewarmed = session;
+        Log.d(TAG, "Prewarming camera session");
+        new Handler(Looper.getMainLooper()).postDelayed(() -> {
+            if (prewarmed != session) return;
+            Log.d(TAG, "Prewarmed session not adopted, closing it");
+            prewarmed = null;
+            session.close();
+        }, PREWARM_TIMEOUT_MS);
+    }
+
+    /**
+     * Adotta la sessione aperta in anticipo, se presente.
+     *
+     * @param errorListener La notifica degli errori della fotocamera da usare d'ora in poi.
+     * @return La sessione aperta in anticipo, oppure null.
+     */
+    @MainThread
+    @Nullable
+    public static CameraSessionManager adoptPrewarmed(@NonNull ErrorListener errorListener) {
+        CameraSessionManager session = prewarmed;
+        prewarmed = null;
+        if (session != null) session.errorListener = errorListener;
+        return session;
+    }
+
+    /**
+     * @return true se la sessione è stata aperta e non ancora chiusa.
+     */
+    public boolean isOpen() {
+        return cameraThread != null;
+    }
+
+    /**
+     * Avvia il thread della fotocamera e apre in esso fotocamera e sessione di acquisizione, con la torcia spenta.
+     * Il permesso di usare la fotocamera deve essere già stato concesso. Se la sessione è già aperta non fa nulla.
+     *
+     * @param previewSurface La superficie dell'anteprima, oppure null per acquisire i soli frame.
+     */
+    public void open(@Nullable Surface previewSurface) {
+        if (cameraThread != null) return;
+        cameraThread = new HandlerThread("CameraBackground");
+        cameraThread.start();
+        cameraHandler = new Handler(cameraThread.getLooper());
+        cameraHandler.post(() -> {
+            torch = false;
+            this.previewSurface = previewSurface;
+            openCamera();
+        });
+    }
+
+    /**
+     * Aggiunge l'anteprima a una sessione già aperta, ad esempio in anticipo: la fotocamera resta aperta e
+     * viene ricreata solo la sessione di acquisizione. Se la fotocamera è stata chiusa per un errore, viene riaperta.
+     *
+     * @param surface La superficie dell'anteprima.
+     */
+    public void attachPreview(@NonNull Surface surface) {
+        Handler handler = cameraHandler;
+        if (handler == null) return;
+        handler.post(() -> {
+            if (surface == previewSurface && (cameraDevice != null || opening)) return;
+            previewSurface = surface;
+            if (cameraDevice != null) {
+                if (captureSession != null) {
+                    captureSession.close();
+                    captureSession = null;
+                }
+                startCaptureSession();
+            } else if (!opening) {
+                openCamera();
+            }
+        });
+    }
+
+    /**
+     * Accende o spegne la torcia. Dopo l'accensione esposizione e bilanciamento del bianco vengono
+     * sbloccati e bloccati di nuovo alla convergenza.
+     *
+     * @param on true per accendere la torcia.
+     */
+    public void setTorch(boolean on) {
+        Handler handler = cameraHandler;
+        if (handler == null) return;
+        handler.post(() -> {
+            torch = on;
+            if (captureSession != null) updateRepeatingRequest();
+        });
+    }
+
+    /**
+     * Collega o scollega il destinatario dei frame. Senza destinatario i frame vengono restituiti subito
+     * alla fotocamera.
+     *
+     * @param sink Il destinatario, oppure null.
+     */
+    public void setFrameSink(FrameSink sink) {
+        sinkAttachedAt = sink != null ? SystemClock.elapsedRealtime() : 0;
+        frameSink = sink;
+    }
+
+    /**
+     * Imposta la strumentazione in cui registrare, mentre è collegato un destinatario, la fase
+     * {@link PipelineMetrics.Stage#ACQUIRE} e i frame persi prima della consegna
+     * ({@link PipelineMetrics.Counter#DROPPED}).
+     *
+     * @param metrics La strumentazione, oppure null.
+     */
+    public void setMetrics(PipelineMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Attende che il thread della fotocamera abbia completato le operazioni già accodate: al ritorno
+     * nessun frame è in consegna al destinatario precedente a {@link #setFrameSink(FrameSink)}.
+     * Non va chiamato dal thread principale; se la sessione è stata chiusa attende la fine del suo thread.
+     */
+    public void awaitIdle() {
+        Handler handler = cameraHandler;
+        if (handler == null) {
+            HandlerThread thread = closingThread;
+            if (thread == null) return;
+            try {
+                thread.join(IDLE_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+        CountDownLatch idle = new CountDownLatch(1);
+        if (!handler.post(idle::countDown)) return;
+        try {
+            idle.await(IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Scollega il destinatario, chiude nel thread della fotocamera sessione, fotocamera e ImageReader
+     * e termina il thread senza attenderlo. Se la fotocamera si sta ancora aprendo, il thread termina solo
+     * dopo averla ricevuta e chiusa: altrimenti il callback di apertura non verrebbe mai consegnato e la
+     * fotocamera resterebbe occupata.
+     */
+    public void close() {
+        frameSink = null;
+        if (cameraThread == null) return;
+        final HandlerThread thread = cameraThread;
+        cameraHandler.post(() -> {
+            closeCamera();
+            if (opening) {
+                quitWhenOpened = true;
+            } else {
+                thread.quitSafely();
+            }
+        });
+        closingThread = cameraThread;
+        cameraThread = null;
+        cameraHandler = null;
+    }
+
+    @SuppressLint("MissingPermission")
+    private void openCamera() {
+        try {
+            if (configuration == null) {
+                configuration = new CameraNegotiator(cameraManager).negotiate();
+            }
+            Size size = configuration.getYuvSize();
+            // Ogni immagine viene restituita subito dopo la copia, quindi tre immagini bastano a non bloccare la fotocamera
+            imageReader = ImageReader.newInstance(size.getWidth(), size.getHeight(), ImageFormat.YUV_420_888, 3);
+            imageReader.setOnImageAvailableListener(imageListener, cameraHandler);
+
+            opening = true;
+            cameraManager.openCamera(configuration.getCameraId(), new CameraDevice.StateCallback() {
+                @Override
+                public void onOpened(@NonNull CameraDevice camera) {
+                    opening = false;
+                    // La sessione può essere stata chiusa mentre la fotocamera si apriva
+                    if (quitIfClosed(camera)) return;
+                    cameraDevice = camera;
+                    startCaptureSession();
+                }
+
+                @Override
+                public void onDisconnected(@NonNull CameraDevice camera) {
+                    opening = false;
+                    if (quitIfClosed(camera)) return;
+                    camera.close();
+                    closeCamera();
+                }
+
+                @Override
+                public void onError(@NonNull CameraDevice camera, int error) {
+                    opening = false;
+                    if (quitIfClosed(camera)) return;
+                    camera.close();
+                    closeCamera();
+                    errorListener.onCameraError("Camera error " + error + ". Please try again.");
+                }
+            }, cameraHandler);
+            Log.d(TAG, "Opening " + configuration);
+        } catch (CameraAccessException | SecurityException e) {
+            Log.e(TAG, "Error opening camera", e);
+            opening = false;
+            closeCamera();
+            errorListener.onCameraError("Camera not available. Please try again.");
+        }
+    }
+
+    /**
+     * Crea la sessione di acquisizione con l'anteprima, se presente, e l'ImageReader come destinazioni.
+     * Su API level 28 e successivi usa {@link SessionConfiguration}, con i callback nel thread della fotocamera.
+     */
+    private void startCaptureSession() {
+        try {
+            Surface readerSurface = imageReader.getSurface();
+            CameraCaptureSession.StateCallback stateCallback = new CameraCaptureSession.StateCallback() {
+                @Override
+                public void onConfigured(@NonNull CameraCaptureSession session) {
+                    if (cameraDevice == null) {
+                        session.close();
+                        return;
+                    }
+                    captureSession = session;
+                    updateRepeatingRequest();
+                }
+
+                @Override
+                public void onConfigureFailed(@NonNull CameraCaptureSession session) {
+                    Log.e(TAG, "Capture session configuration failed.");
+                    closeCamera();
+                    errorListener.onCameraError("Camera configuration failed. Please try again.");
+                }
+            };
+
+            // Il modello per la registrazione privilegia una frequenza dei frame costante rispetto alla reattività dell'anteprima
+            captureRequestBuilder = cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
+            if (previewSurface != null) captureRequestBuilder.addTarget(previewSurface);
+            captureRequestBuilder.addTarget(readerSurface);
+
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+                List<OutputConfiguration> outputConfigs = new ArrayList<>();
+                if (previewSurface != null) outputConfigs.add(new OutputConfiguration(previewSurface));
+                outputConfigs.add(new OutputConfiguration(readerSurface));
+                Handler handler = cameraHandler;
+                Executor cameraExecutor = handler::post;
+                cameraDevice.createCaptureSession(new SessionConfiguration(
+                        SessionConfiguration.SESSION_REGULAR, outputConfigs, cameraExecutor, stateCallback));
+            } else {
+                List<Surface> outputSurfaces = new ArrayList<>();
+                if (previewSurface != null) outputSurfaces.add(previewSurface);
+                outputSurfaces.add(readerSurface);
+                cameraDevice.createCaptureSession(outputSurfaces, stateCallback, cameraHandler);
+            }
+        } catch (CameraAccessException | IllegalStateException e) {
+            Log.e(TAG, "Error creating capture session", e);
+            closeCamera();
+            errorListener.onCameraError("Camera configuration failed. Please try again.");
+        }
+    }
+
+    /**
+     * Sostituisce la richiesta ripetitiva con lo stato corrente della torcia. Con la torcia accesa
+     * esposizione e bilanciamento del bianco vengono bloccati alla convergenza, o dopo al più
+     * {@link CameraNegotiator#MAX_CONVERGENCE_FRAMES} frame, perché non contrastino il segnale PPG.
+     */
+    private void updateRepeatingRequest() {
+        configuration.applyTo(captureRequestBuilder, torch);
+        framesBeforeLock = torch && configuration.canLock() ? 0 : -1;
+        if (captureCallback == null) {
+            captureCallback = new CameraCaptureSession.CaptureCallback() {
+                @Override
+                public void onCaptureCompleted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull TotalCaptureResult result) {
+                    if (framesBeforeLock < 0) return;
+                    framesBeforeLock++;
+                    if (configuration.isConverged(result) || framesBeforeLock >= CameraNegotiator.MAX_CONVERGENCE_FRAMES) {
+                        Log.d(TAG, "Locking AE/AWB after " + framesBeforeLock + " frames");
+                        framesBeforeLock = -1;
+                        configuration.applyLocks(captureRequestBuilder);
+                        setRepeatingRequest();
+                    }
+                }
+
+                @Override
+                public void onCaptureBufferLost(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull Surface target, long frameNumber) {
+                    // Il frame non arriverà all'ImageReader, ad esempio perché tutte le sue immagini erano ancora in uso
+                    if (imageReader != null && target == imageReader.getSurface()) countDropped();
+                }
+            };
+        }
+        setRepeatingRequest();
+    }
+
+    private void setRepeatingRequest() {
+        try {
+            captureSession.setRepeatingRequest(captureRequestBuilder.build(), captureCallback, cameraHandler);
+        } catch (CameraAccessException | IllegalStateException e) {
+            // La sessione può essere stata chiusa nel frattempo
+            Log.w(TAG, "Unable to update the repeating request", e);
+        }
+    }
+
+    /**
+     * Acquisisce ogni immagine nell'ordine di consegna e la passa al destinatario, se collegato,
+     * registrando la latenza dall'esposizione del sensore fino all'acquisizione.
+     */
+    private final ImageReader.OnImageAvailableListener imageListener = reader -> {
+        long start = System.nanoTime();
+        try (Image image = reader.acquireNextImage()) {
+            if (image == null) {
+                countDropped();
+                return;
+            }
+            FrameSink sink = frameSink;
+            if (sink == null) return;
+            PipelineMetrics sinkMetrics = metrics;
+            if (sinkMetrics != null) {
+                if (configuration.hasRealtimeTimestamps()) {
+                    sinkMetrics.record(PipelineMetrics.Stage.ACQUIRE, SystemClock.elapsedRealtimeNanos() - image.getTimestamp());
+                } else {
+                    sinkMetrics.recordSince(PipelineMetrics.Stage.ACQUIRE, start);
+                }
+            }
+            long attachedAt = sinkAttachedAt;
+            if (attachedAt != 0) {
+                sinkAttachedAt = 0;
+                Log.d(TAG, "Time to first frame: " + (SystemClock.elapsedRealtime() - attachedAt) + " ms");
+            }
+            sink.onFrame(image);
+        } catch (Exception e) {
+            Log.e(TAG, "Error acquiring image", e);
+            countDropped();
+        }
+    };
+
+    /**
+     * Conta un frame perso prima della consegna, se è collegato un destinatario.
+     */
+    private void countDropped() {
+        PipelineMetrics sinkMetrics = metrics;
+        if (sinkMetrics != null && frameSink != null) sinkMetrics.increment(PipelineMetrics.Counter.DROPPED);
+    }
+
+    /**
+     * Chiude sessione di acquisizione, fotocamera e ImageReader. Viene eseguito nel thread della fotocamera.
+     */
+    private void closeCamera() {
+        if (captureSession != null) {
+            captureSession.close();
+            captureSession = null;
+        }
+        if (cameraDevice != null) {
+            cameraDevice.close();
+            cameraDevice = null;
+        }
+        if (imageReader != null) {
+            imageReader.close();
+            imageReader = null;
+        }
+        captureCallback = null;
+        framesBeforeLock = -1;
+        previewSurface = null;
+    }
+
+    /**
+     * Se la sessione è stata chiusa mentre la fotocamera si apriva, chiude la fotocamera appena consegnata
+     * e termina il thread. Viene eseguito nel thread della fotocamera.
+     *
+     * @return true se la sessione era stata chiusa.
+     */
+    private boolean quitIfClosed(CameraDevice camera) {
+        if (!quitWhenOpened) return false;
+        quitWhenOpened = false;
+        camera.close();
+        Looper looper = Looper.myLooper();
+        if (looper != null) looper.quitSafely();
+        return true;
+    }
+}
@@ -2,28 +2,16 @@ package it.uniba.berluxoding.medboxapp.controller.devices;
 
 import android.Manifest;
 import android.content.pm.PackageManager;
-import android.graphics.ImageFormat;
-import android.hardware.camera2.CameraAccessException;
-import android.hardware.camera2.CameraCaptureSession;
-import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
-import android.hardware.camera2.CaptureRequest;
-import android.hardware.camera2.CaptureResult;
-import android.hardware.camera2.TotalCaptureResult;
-import android.hardware.camera2.params.OutputConfiguration;
-import android.hardware.camera2.params.SessionConfiguration;
 import android.media.Image;
-import android.media.ImageReader;
-import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.HandlerThread;
 import androidx.annotation.NonNull;
 
 import android.os.Looper;
-import android.view.Surface;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
+import android.view.View;
 import android.widget.Button;
 import android.widget.TextView;
 
@@ -31,12 +19,12 @@ import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 
-import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.io.File;
+import java.io.IOException;
 import java.util.HashMap;
-import java.util.LinkedHashSet;
-import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import android.util.Log;
 import android.widget.Toast;
@@ -45,6 +33,24 @@ import com.google.firebase.database.DatabaseReference;
 import com.google.firebase.database.FirebaseDatabase;
 
 import it.uniba.berluxoding.medboxapp.R;
+import it.uniba.berluxoding.medboxapp.controller.InstrumentWarmup;
+import it.uniba.berluxoding.medboxapp.controller.RequestResponse;
+import it.uniba.berluxoding.medboxapp.controller.VitalsSession;
+import it.uniba.berluxoding.medboxapp.sync.JournalSyncer;
+import it.uniba.berluxoding.medboxapp.sync.MeasurementJournal;
+import it.uniba.berluxoding.medboxapp.ppg.ConvergenceMonitor;
+import it.uniba.berluxoding.medboxapp.ppg.EstimatorEngine;
+import it.uniba.berluxoding.medboxapp.ppg.FingerDetector;
+import it.uniba.berluxoding.medboxapp.ppg.FrameAcquisition;
+import it.uniba.berluxoding.medboxapp.ppg.FrameBuffer;
+import it.uniba.berluxoding.medboxapp.ppg.HeartRateEstimate;
+import it.uniba.berluxoding.medboxapp.ppg.HeartRateEstimator;
+import it.uniba.berluxoding.medboxapp.ppg.PipelineMetrics;
+import it.uniba.berluxoding.medboxapp.ppg.PpgPipeline;
+import it.uniba.berluxoding.medboxapp.ppg.RegionSelector;
+import it.uniba.berluxoding.medboxapp.ppg.SessionRecorder;
+import it.uniba.berluxoding.medboxapp.ppg.StripedFrameDecoder;
+import it.uniba.berluxoding.medboxapp.ppg.TimeSeries;
 
 /**
  * Attività principale per la misurazione della frequenza cardiaca utilizzando la fotocamera del dispositivo.
@@ -53,14 +59,11 @@ import it.uniba.berluxoding.medboxapp.R;
  */
 public class HeartRateMonitorActivity extends AppCompatActivity {
 
-    //Dispositivo della fotocamera utilizzato per acquisire le immagini.
-    private CameraDevice cameraDevice;
+    //Sessione della fotocamera, aperta mentre l'attività è in primo piano e condivisa tra le misurazioni.
+    private CameraSessionManager cameraSession;
 
-    //Sessione di acquisizione della fotocamera, responsabile della cattura delle immagini.
-    private CameraCaptureSession captureSession;
-
-    //Lettore di immagini per ottenere le immagini catturate dalla fotocamera.
-    private ImageReader imageReader;
+    //true tra onResume() e onPause().
+    private boolean resumed;
 
     //Vista per visualizzare l'anteprima della fotocamera.
     private SurfaceView cameraPreview;
@@ -77,35 +80,96 @@ public class HeartRateMonitorActivity extends AppCompatActivity {
     //Pulsante per avviare e fermare la misurazione della frequenza cardiaca.
     private Button startMeasurementButton, closeButton;
 
-    //Flag per indicare se la misurazione della frequenza cardiaca è in corso.
-    private boolean measuring = false;
+    //Flag per indicare se la misurazione della frequenza cardiaca è in corso, letto anche dai thread della fotocamera.
+    private volatile boolean measuring = false;
+
+    //Esecutore dell'analisi di fine misurazione, che chiude la fotocamera e calcola la stima finale fuori dal thread principale.
+    private final ExecutorService analysisExecutor = Executors.newSingleThreadExecutor();
+
+    //Analisi della misurazione appena terminata, oppure null se non ce n'è una in corso.
+    private MeasurementAnalysis analysis;
+
+    //Analisi affidate all'esecutore e non ancora terminate, comprese quelle annullate; usato dal thread principale.
+    private int runningAnalyses;
+
+    //Pipeline di elaborazione del segnale PPG, alimentata a ogni frame dal thread di elaborazione.
+    private final PpgPipeline ppgPipeline = new PpgPipeline();
+
+    //Decodificatore parallelo del canale rosso, creato solo se la misurazione usa il canale rosso.
+    private StripedFrameDecoder frameDecoder;
+
+    //Acquisizione dei frame della misurazione in corso: copia i piani e li elabora in un thread dedicato.
+    //Letta dal thread della fotocamera: diventa null quando passa all'analisi.
+    private volatile FrameAcquisition frameAcquisition;
+
+    //Monitor della convergenza delle stime parziali, oppure null se la misurazione ha durata fissa.
+    private ConvergenceMonitor convergenceMonitor;
+
+    //Margine oltre la durata massima dopo il quale la misurazione adattiva viene comunque fermata, anche senza frame.
+    private static final long ADAPTIVE_TIMEOUT_MARGIN_MS = 5000;
+
+    //Controllo della presenza del dito e della qualità del segnale, eseguito nel thread della fotocamera prima della copia dei frame.
+    private final FingerDetector fingerDetector = new FingerDetector();
+
+    //Esito del controllo dell'ultimo frame, usato nel thread della fotocamera per aggiornare le istruzioni solo quando cambia.
+    private FingerDetector.Status lastFingerStatus;
+
+    //true dopo il primo frame con il dito presente: da quel momento decorre la durata della misurazione.
+    private volatile boolean signalAcquired;
+
+    //Tempo massimo di attesa del dito, dopo il quale la misurazione viene fermata.
+    private static final long FINGER_TIMEOUT_MS = 30000;
 
-    //Collezione di coppie di luminosità e timestamp di tutte le immagini acquisite per l'elaborazione.
-    private LinkedHashSet<BrightnessPlusTimeStamp> brightnessesPlusTimeStamps = new LinkedHashSet<>();
+    //Istante dell'ultimo aggiornamento della stima parziale mostrata all'utente.
+    private long lastLiveUpdateTime;
+
+    //Intervallo minimo, in millisecondi, tra due aggiornamenti della stima parziale.
+    private static final long LIVE_UPDATE_INTERVAL_MS = 250;
 
     //Handler per eseguire operazioni nel thread principale.
     private Handler handler = new Handler(Looper.getMainLooper());
 
-    //Handler per eseguire operazioni nel thread di background.
-    private Handler backgroundHandler;
+    //Task pianificato per terminare la misurazione allo scadere dei 10 secondi.
+    private final Runnable stopMeasurementTask = this::stopMeasurement;
 
-    //Thread di background per le operazioni della fotocamera.
-    private HandlerThread backgroundThread;
+    //Durate delle fasi dell'elaborazione e contatori dei frame della misurazione in corso.
+    private final PipelineMetrics metrics = new PipelineMetrics();
 
-    //Costruttore della richiesta di acquisizione della fotocamera.
-    private CaptureRequest.Builder captureRequestBuilder;
+    //Sovrimpressione di debug con la strumentazione, oppure null se disattivata.
+    private TextView debugOverlay;
 
-    //Richiesta di acquisizione della fotocamera.
-    private CaptureRequest captureRequest;
+    //Intervallo di aggiornamento della sovrimpressione di debug, in millisecondi.
+    private static final long DEBUG_OVERLAY_INTERVAL_MS = 500;
 
-    //Callback per la cattura delle immagini dalla fotocamera.
-    private CameraCaptureSession.CaptureCallback captureCallback;
+    //Aggiorna la sovrimpressione di debug finché la misurazione è in corso.
+    private final Runnable debugOverlayTask = new Runnable() {
+        @Override
+        public void run() {
+            debugOverlay.setText(metrics.format());
+            if (measuring) handler.postDelayed(this, DEBUG_OVERLAY_INTERVAL_MS);
+        }
+    };
+
+    //Registrazione della misurazione in corso, oppure null se disattivata; passata al thread di elaborazione all'avvio.
+    private SessionRecorder sessionRecorder;
+
+    //Passo di sottocampionamento del piano Y nella registrazione (0 per non registrarlo).
+    private static final int RECORDING_LUMA_STEP = 8;
 
     //Riferimento al database
     private DatabaseReference mDatabase;
 
+    //Identificativo dell'utente che sta effettuando la misurazione
+    private String userId;
+
+    //Identificativo della richiesta a cui risponde la misurazione
+    private String requestId;
+
     //Identificativo della misurazione, e percorsi in cui salvare la misurazione
-    private String key, savePath, savePath2, savePath3;
+    private String key, savePath, savePath2;
+
+    //true dopo il primo salvataggio: una misurazione successiva prima della chiusura non viene salvata di nuovo
+    private boolean saved;
 
     private final String TAG = "HEART_RATE_MONITOR_ACTIVITY";
 
@@ -115,11 +179,68 @@ public class HeartRateMonitorActivity extends AppCompatActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_heart_rate_monitor);
 
-        String userId = getIntent().getStringExtra("userId");
+        userId = getIntent().getStringExtra("userId");
+        requestId = getIntent().getStringExtra("requestId");
         setReferences(userId);
 
+        // La regione del frame da campionare viene scelta automaticamente nei primi secondi di ogni misurazione
+        ppgPipeline.setCandidateRegions(RegionSelector.defaultCandidates(), RegionSelector.DEFAULT_CALIBRATION_MS);
+
+        // Metodo di stima della frequenza cardiaca, selezionabile con l'extra "estimator" (predefinito: conteggio dei picchi)
+        String estimator = getIntent().getStringExtra("estimator");
+        if (estimator != null) {
+            try {
+                ppgPipeline.setEstimator(EstimatorEngine.valueOf(estimator).create());
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Unknown estimator: " + estimator, e);
+            }
+        }
+
+        // Con l'extra "redChannel" il segnale è la media del canale rosso, decodificata in parallelo su tutti i core
+        if (getIntent().getBooleanExtra("redChannel", false)) {
+            frameDecoder = new StripedFrameDecoder();
+            ppgPipeline.setFrameDecoder(frameDecoder);
+        }
+
+        // Con l'extra "adaptiveDuration" la misurazione termina appena la stima è stabile, o si prolunga se il segnale è rumoroso
+        if (getIntent().getBooleanExtra("adaptiveDuration", false)) {
+            convergenceMonitor = new ConvergenceMonitor();
+        }
+
+        // Le durate delle fasi vengono sempre registrate; con l'extra "debugOverlay" sono anche mostrate durante la misurazione
+        ppgPipeline.setMetrics(metrics);
+        if (getIntent().getBooleanExtra("debugOverlay", false)) {
+            debugOverlay = findViewById(R.id.debug_overlay);
+            debugOverlay.setVisibility(View.VISIBLE);
+        }
+
         cameraPreview = findViewById(R.id.camera_preview);
         previewHolder = cameraPreview.getHolder(); // Ottiene il SurfaceHolder della preview della fotocamera
+
+        // La sessione della fotocamera viene aperta appena l'attività è in primo piano e la superficie dell'anteprima è pronta,
+        // a meno che il servizio di smistamento non l'abbia già aperta in anticipo
+        cameraSession = CameraSessionManager.adoptPrewarmed(this::onCameraError);
+        if (cameraSession == null) {
+            cameraSession = new CameraSessionManager((CameraManager) getSystemService(CAMERA_SERVICE), this::onCameraError);
+        }
+        // La sessione registra l'acquisizione e i frame persi prima della consegna
+        cameraSession.setMetrics(metrics);
+        previewHolder.addCallback(new SurfaceHolder.Callback() {
+            @Override
+            public void surfaceCreated(@NonNull SurfaceHolder holder) {
+                openCameraSession();
+            }
+
+            @Override
+            public void surfaceChanged(@NonNull SurfaceHolder holder, int format, int width, int height) {
+            }
+
+            @Override
+            public void surfaceDestroyed(@NonNull SurfaceHolder holder) {
+                abortMeasurement();
+                cameraSession.close();
+            }
+        });
         instructionsText = findViewById(R.id.instructions_text);
         heartRateText = findViewById(R.id.heart_rate_text);
         startMeasurementButton = findViewById(R.id.start_measurement_button);
@@ -138,559 +259,543 @@ public class HeartRateMonitorActivity extends AppCompatActivity {
         });
     }
 
+    /**
+     * Apre la sessione della fotocamera, che resta disponibile per tutte le misurazioni fino a {@link #onPause()}.
+     */
+    @Override
+    protected void onResume() {
+        super.onResume();
+        resumed = true;
+        openCameraSession();
+    }
+
+    /**
+     * Interrompe senza salvarla la misurazione eventualmente in corso e rilascia la fotocamera.
+     */
+    @Override
+    protected void onPause() {
+        resumed = false;
+        abortMeasurement();
+        cameraSession.close();
+        super.onPause();
+    }
+
+    /**
+     * Chiude il pool del decodificatore parallelo e l'esecutore dell'analisi.
+     */
+    @Override
+    protected void onDestroy() {
+        abortMeasurement();
+        if (frameDecoder != null) {
+            // Il decodificatore può essere in uso dall'analisi: viene chiuso dopo di essa
+            analysisExecutor.execute(frameDecoder::close);
+            frameDecoder = null;
+        }
+        analysisExecutor.shutdown();
+        super.onDestroy();
+    }
+
+    @Override
+    public void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions, @NonNull int[] grantResults) {
+        super.onRequestPermissionsResult(requestCode, permissions, grantResults);
+        if (grantResults.length > 0 && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
+            openCameraSession();
+        }
+    }
+
+    /**
+     * Apre la sessione della fotocamera se l'attività è in primo piano, la superficie dell'anteprima è pronta
+     * e il permesso di usare la fotocamera è stato concesso; altrimenti richiede il permesso all'utente.
+     * A una sessione già aperta, ad esempio in anticipo, viene solo aggiunta l'anteprima.
+     */
+    private void openCameraSession() {
+        if (!resumed || !previewHolder.getSurface().isValid()) return;
+        if (cameraSession.isOpen()) {
+            cameraSession.attachPreview(previewHolder.getSurface());
+            return;
+        }
+
+        // Controlla i permessi per l'uso della fotocamera
+        if (ContextCompat.checkSelfPermission(this, Manifest.permission.CAMERA) != PackageManager.PERMISSION_GRANTED) {
+            // Richiede i permessi per l'uso della fotocamera se non sono stati concessi
+            ActivityCompat.requestPermissions(this, new String[]{Manifest.permission.CAMERA}, 1);
+            return;
+        }
+        cameraSession.open(previewHolder.getSurface());
+    }
+
+    /**
+     * Notifica all'utente un errore della fotocamera e termina la misurazione eventualmente in corso.
+     * Può essere chiamato dal thread della fotocamera.
+     *
+     * @param message Il messaggio da mostrare.
+     */
+    private void onCameraError(@NonNull String message) {
+        runOnUiThread(() -> {
+            Toast.makeText(HeartRateMonitorActivity.this, message, Toast.LENGTH_LONG).show();
+            stopMeasurement();
+            cameraSession.close();
+        });
+    }
+
     /**
      * Avvia la misurazione della frequenza cardiaca.
      * Modifica il testo del pulsante per indicare che la misurazione può essere fermata e aggiorna le istruzioni per l'utente.
-     * Inizia un thread di background per gestire l'acquisizione delle immagini dalla fotocamera,
-     * configura l'ImageReader e apre la fotocamera per iniziare a acquisire le immagini.
-     * Pianifica la chiamata a {@link #stopMeasurement()} dopo 10 secondi per terminare la misurazione.
+     * La fotocamera è già aperta: vengono solo accesa la torcia e collegato il destinatario dei frame.
+     * La durata della misurazione decorre da {@link #startMeasurementClock()}, quando viene rilevato il dito.
      */
     private void startMeasurement() {
+        // L'analisi di una misurazione precedente, anche annullata, usa ancora la pipeline
+        if (runningAnalyses > 0) return;
+
+        // Senza la sessione della fotocamera (ad esempio se il permesso è stato negato) ne richiede l'apertura
+        if (!cameraSession.isOpen()) {
+            openCameraSession();
+            if (!cameraSession.isOpen()) return;
+        }
+
         // Cambia il testo del pulsante per indicare che la misurazione può essere fermata
         startMeasurementButton.setText("Ferma Misurazione");
 
-        // Aggiorna il testo delle istruzioni per l'utente, informandolo che deve attendere 15 secondi
-        instructionsText.setText("Attendi 10 sec ...");
+        // Aggiorna il testo delle istruzioni per l'utente: la durata decorre solo quando il dito viene rilevato
+        instructionsText.setText(fingerInstructions(FingerDetector.Status.NO_FINGER));
 
         // Imposta il flag di misurazione a true per indicare che la misurazione è in corso
         measuring = true;
 
-        // Libera la lista dei dati di luminosità e timestamp se non è vuota
+        // Riporta lo stimatore allo stato iniziale
         // Questo è necessario per evitare la raccolta di dati obsoleti
-        if (!brightnessesPlusTimeStamps.isEmpty()) brightnessesPlusTimeStamps.clear();
-
-        // Avvia un thread di background per eseguire operazioni della fotocamera senza bloccare il thread principale
-        startBackgroundThread();
-
-        // Configura l'ImageReader per l'acquisizione delle immagini dalla fotocamera
-        setupImageReader();
+        ppgPipeline.reset();
+        if (convergenceMonitor != null) convergenceMonitor.reset();
+        fingerDetector.reset();
+        lastFingerStatus = null;
+        signalAcquired = false;
+        lastLiveUpdateTime = 0;
+        metrics.reset();
+        heartRateText.setText("Heart Rate: ...");
+
+        // Avvia il thread di elaborazione dei frame, separato da quello che li riceve dalla fotocamera.
+        // Il thread usa la registrazione della propria misurazione, non quella eventualmente creata dopo
+        final SessionRecorder recorder = getIntent().getBooleanExtra("recordSession", false) ? openSessionRecorder() : null;
+        sessionRecorder = recorder;
+        frameAcquisition = new FrameAcquisition(frame -> processFrameData(frame, recorder));
+
+        // Collega il destinatario dei frame e accende la torcia nella sessione già aperta
+        cameraSession.setFrameSink(this::onCameraFrame);
+        cameraSession.setTorch(true);
+
+        // Se il dito non viene posizionato la misurazione termina comunque dopo FINGER_TIMEOUT_MS
+        handler.postDelayed(stopMeasurementTask, FINGER_TIMEOUT_MS);
+
+        if (debugOverlay != null) {
+            handler.removeCallbacks(debugOverlayTask);
+            handler.post(debugOverlayTask);
+        }
+    }
 
-        // Apre la fotocamera e avvia la sessione di acquisizione
-        openCamera();
+    /**
+     * Avvia il conteggio della durata della misurazione, al primo frame con il dito presente.
+     * Pianifica la chiamata a {@link #stopMeasurement()} dopo 10 secondi o, nella misurazione adattiva,
+     * dopo la durata massima come protezione nel caso i frame smettano di arrivare.
+     */
+    private void startMeasurementClock() {
+        if (!measuring) return;
+        handler.removeCallbacks(stopMeasurementTask);
+        instructionsText.setText(fingerInstructions(FingerDetector.Status.PRESENT));
 
-        // Pianifica la chiamata a stopMeasurement() dopo 10 secondi
-        // Questo assicura che la misurazione duri 10 secondi
-        handler.postDelayed(() -> stopMeasurement(), 10000); // 10000 millisecondi = 10 secondi
+        if (convergenceMonitor != null) {
+            // La misurazione adattiva viene fermata da processFrameData(); il timer interviene solo se i frame smettono di arrivare
+            handler.postDelayed(stopMeasurementTask, convergenceMonitor.getMaxDuration() + ADAPTIVE_TIMEOUT_MARGIN_MS);
+        } else {
+            // Pianifica la chiamata a stopMeasurement() dopo 10 secondi
+            // Questo assicura che la misurazione duri 10 secondi
+            handler.postDelayed(stopMeasurementTask, 10000); // 10000 millisecondi = 10 secondi
+        }
     }
 
     /**
      * Termina la misurazione della frequenza cardiaca.
-     * Imposta il flag di misurazione a false, chiude la fotocamera e la sessione di acquisizione (mantenendo l'ImageReader aperto),
-     * calcola la frequenza cardiaca utilizzando i dati acquisiti, e aggiorna l'interfaccia utente con i risultati.
-     * Ferma il thread di background e ripristina il testo del pulsante e delle istruzioni per l'utente.
+     * Imposta il flag di misurazione a false, scollega il destinatario dei frame, spegne la torcia
+     * e avvia in un thread dedicato la {@link MeasurementAnalysis}, che calcola la stima finale
+     * senza bloccare il thread principale. La sessione della fotocamera resta aperta per la misurazione successiva.
+     * Fino all'arrivo del risultato il pulsante di avvio resta disabilitato.
      */
     private void stopMeasurement() {
+        // Evita che il timer dei 10 secondi fermi una misurazione già terminata manualmente
+        handler.removeCallbacks(stopMeasurementTask);
+        if (!measuring) return;
+
         // Imposta il flag di misurazione a false per indicare che la misurazione è terminata
         measuring = false;
-
-        // Chiude la fotocamera e la sessione di acquisizione, mantenendo l'ImageReader aperto per l'elaborazione delle immagini
-        closeCameraExceptImageReader();
-
-        // Aggiorna il testo delle istruzioni per informare l'utente che il calcolo della frequenza cardiaca è in corso
-        instructionsText.setText("Calcolando la frequenza cardiaca... Attendi");
-
-        // Elabora i frame acquisiti per calcolare la frequenza cardiaca
-        processFrames();
-
-        // Chiude l'ImageReader ora che l'acquisizione delle immagini è completa
-        closeImageReader();
-
-        // Ferma il thread di background che eseguiva operazioni della fotocamera
-        stopBackgroundThread();
+        cameraSession.setFrameSink(null);
+        cameraSession.setTorch(false);
 
         // Ripristina il testo del pulsante e le istruzioni dell'interfaccia utente
         startMeasurementButton.setText("Inizia Misurazione");
-        instructionsText.setText("Posiziona il dito indice sulla fotocamera, con la parte posteriore sul flas");
+        startMeasurementButton.setEnabled(false);
+        instructionsText.setText("Elaborazione in corso ...");
+
+        // Completa la stima con gli ultimi campioni nel thread dell'analisi
+        analysis = startAnalysis();
     }
 
     /**
-     * Avvia un thread di background per eseguire operazioni della fotocamera.
-     * Questo thread viene utilizzato per gestire la fotocamera e l'acquisizione delle immagini senza bloccare il thread principale.
-     * Se il thread di background è già in esecuzione, non viene avviato nuovamente.
+     * Interrompe senza salvarla la misurazione eventualmente in corso e annulla l'analisi non ancora mostrata.
+     * Il pulsante di avvio resta disabilitato finché l'analisi annullata non ha chiuso acquisizione e registrazione.
      */
-    private void startBackgroundThread() {
-        // Verifica se il thread di background è già in esecuzione
-        if (backgroundThread == null) {
-            // Crea e avvia un nuovo thread di background con il nome "CameraBackground"
-            backgroundThread = new HandlerThread("CameraBackground");
-            backgroundThread.start();
-
-            // Crea un Handler associato al thread di background per gestire i task in background
-            backgroundHandler = new Handler(backgroundThread.getLooper());
+    private void abortMeasurement() {
+        handler.removeCallbacks(stopMeasurementTask);
+        if (measuring) {
+            measuring = false;
+            cameraSession.setFrameSink(null);
+            cameraSession.setTorch(false);
+            startMeasurementButton.setText("Inizia Misurazione");
+            startMeasurementButton.setEnabled(false);
+            analysis = startAnalysis();
+        }
+        if (analysis != null) {
+            analysis.cancel();
+            analysis = null;
         }
     }
 
     /**
-     * Ferma e libera le risorse associate al thread di background.
-     * Questo metodo chiude il thread di background in modo sicuro e attende la sua terminazione completa.
-     * Se il thread di background non esiste, non viene eseguita alcuna operazione.
+     * Affida all'esecutore dell'analisi acquisizione e registrazione della misurazione appena terminata,
+     * che da qui non sono più raggiungibili dai campi dell'attività.
+     *
+     * @return L'analisi avviata.
      */
-    private void stopBackgroundThread() {
-        // Verifica se il thread di background esiste e deve essere fermato
-        if (backgroundThread != null) {
-            // Ferma il thread di background in modo sicuro
-            backgroundThread.quitSafely();
-
-            try {
-                // Attende la terminazione del thread di background
-                backgroundThread.join();
-
-                // Libera le risorse associate al thread e al suo Handler
-                backgroundHandler = null;
-                backgroundThread = null;
-            } catch (InterruptedException e) {
-                // Registra un errore se il thread viene interrotto durante la terminazione
-                Log.e("HeartRateMonitorActivity", "Errore durante l'arresto del thread di background", e);
-                e.printStackTrace();
-            }
-        }
+    private MeasurementAnalysis startAnalysis() {
+        MeasurementAnalysis started = new MeasurementAnalysis(frameAcquisition, sessionRecorder);
+        frameAcquisition = null;
+        sessionRecorder = null;
+        runningAnalyses++;
+        analysisExecutor.execute(started);
+        return started;
     }
 
     /**
-     * Configura un'istanza di {@link ImageReader} per acquisire immagini dalla fotocamera.
-     * Imposta la risoluzione dell'immagine a 640x480 pixel e utilizza il formato di immagine YUV_420_888.
-     * Registra un listener per gestire le immagini disponibili tramite {@link ImageReader.OnImageAvailableListener}.
-     * I dati acquisiti saranno gestiti dal thread di background.
+     * Chiamato nel thread principale al termine di un'analisi, completata o annullata: riabilita il pulsante
+     * di avvio quando non ne restano altre in corso.
      */
-    private void setupImageReader() {
-        // Crea un'istanza di ImageReader con risoluzione 640x480 e formato YUV_420_888
-        imageReader = ImageReader.newInstance(640, 480, ImageFormat.YUV_420_888, 2);
-
-        // Imposta un listener per gestire le immagini disponibili tramite il thread di background
-        imageReader.setOnImageAvailableListener(imageReaderListener, backgroundHandler);
-
-        // Registra un messaggio di debug per confermare che l'ImageReader è stato configurato
-        Log.d("HeartRateMonitor", "ImageReader setup complete");
+    private void onAnalysisFinished() {
+        runningAnalyses--;
+        if (runningAnalyses > 0 || measuring) return;
+        startMeasurementButton.setEnabled(true);
+        instructionsText.setText("Posiziona il dito indice sulla fotocamera, con la parte posteriore sul flas");
     }
 
     /**
-     * Listener per gestire le immagini disponibili da {@link ImageReader}.
-     * Acquisisce l'ultima immagine disponibile e la elabora se la misurazione è in corso.
-     * In caso di errore durante l'acquisizione o l'elaborazione dell'immagine, viene registrato un errore.
+     * Analisi di fine misurazione, eseguita da {@link #analysisExecutor}.
+     * Attende che il thread della fotocamera abbia consegnato l'ultimo frame, elabora i frame ancora in coda
+     * e calcola la stima finale, che viene mostrata nel thread principale.
+     * Se l'analisi viene annullata il thread di elaborazione viene comunque fermato, ma il risultato
+     * non viene né mostrato né salvato.
+     * Acquisizione e registrazione sono quelle della misurazione per cui l'analisi è stata creata.
      */
-    private ImageReader.OnImageAvailableListener imageReaderListener = reader -> {
-        // Controlla se la misurazione è in corso. Se non lo è, esce dal metodo
-        if (!measuring) return;
+    private final class MeasurementAnalysis implements Runnable {
 
-        try (Image image = reader.acquireLatestImage()) {
-            // Acquisisce l'ultima immagine disponibile e la elabora
-            if (image != null) {
-                // Passa l'immagine e il timestamp corrente per l'elaborazione dei dati
-                processFrameData(image, System.currentTimeMillis());
-            } else {
-                // Registra un messaggio di debug se l'immagine è null
-                Log.d("HeartRateMonitor", "Image is null");
-            }
-        } catch (Exception e) {
-            // Registra un errore in caso di eccezione durante l'elaborazione dell'immagine
-            Log.e("HeartRateMonitor", "Error processing image", e);
+        private final FrameAcquisition acquisition;
+        private final SessionRecorder recorder;
+        private volatile boolean cancelled;
+
+        MeasurementAnalysis(FrameAcquisition acquisition, SessionRecorder recorder) {
+            this.acquisition = acquisition;
+            this.recorder = recorder;
         }
-    };
 
-    /**
-     * Apre la fotocamera e avvia una sessione di acquisizione delle immagini.
-     * Ottiene l'istanza di {@link CameraManager} e verifica i permessi per l'uso della fotocamera.
-     * Se i permessi sono concessi, apre la fotocamera utilizzando il primo ID della fotocamera disponibile.
-     * Se i permessi non sono stati concessi, richiede all'utente di concedere i permessi.
-     */
-    private void openCamera() {
-        // Ottiene l'istanza di CameraManager per accedere alla fotocamera
-        CameraManager manager = (CameraManager) getSystemService(CAMERA_SERVICE);
-        try {
-            // Ottiene l'ID della prima fotocamera disponibile
-            String cameraId = manager.getCameraIdList()[0];
+        void cancel() {
+            cancelled = true;
+        }
 
-            // Controlla i permessi per l'uso della fotocamera
-            if (ContextCompat.checkSelfPermission(this, Manifest.permission.CAMERA) != PackageManager.PERMISSION_GRANTED) {
-                // Richiede i permessi per l'uso della fotocamera se non sono stati concessi
-                ActivityCompat.requestPermissions(this, new String[]{Manifest.permission.CAMERA}, 1);
+        @Override
+        public void run() {
+            // Il destinatario è già scollegato: dopo l'attesa nessun altro frame viene consegnato
+            cameraSession.awaitIdle();
+
+            // Elabora i frame ancora in coda e ferma il thread di elaborazione: da qui lo stimatore non riceve altri campioni
+            closeFrameAcquisition(acquisition);
+            closeSessionRecorder(recorder);
+            if (cancelled) {
+                handler.post(HeartRateMonitorActivity.this::onAnalysisFinished);
                 return;
             }
 
-            // Apre la fotocamera utilizzando il primo ID della fotocamera disponibile e il callback di stato
-            manager.openCamera(cameraId, stateCallback, backgroundHandler);
-        } catch (CameraAccessException e) {
-            // Registra un errore in caso di eccezione durante l'accesso alla fotocamera
-            e.printStackTrace();
+            // Completa la stima con gli ultimi campioni e mostra il risultato nel thread principale
+            final HeartRateEstimate estimate = ppgPipeline.finish();
+            dumpMetrics();
+            handler.post(() -> {
+                onAnalysisFinished();
+                if (cancelled) return;
+                analysis = null;
+                if (debugOverlay != null) debugOverlay.setText(metrics.format());
+                showResult(estimate);
+            });
         }
     }
 
     /**
-     * Callback per gestire lo stato della fotocamera.
-     * Gestisce l'apertura della fotocamera, la disconnessione e gli errori.
+     * Chiude l'acquisizione dei frame della misurazione, attendendo l'elaborazione di quelli in coda,
+     * e registra i frame consegnati, elaborati e scartati.
      */
-    private CameraDevice.StateCallback stateCallback = new CameraDevice.StateCallback() {
-        @Override
-        public void onOpened(@NonNull CameraDevice camera) {
-            // Imposta il dispositivo della fotocamera e avvia la sessione di acquisizione
-            cameraDevice = camera;
-            startCaptureSession();
-        }
-
-        @Override
-        public void onDisconnected(@NonNull CameraDevice camera) {
-            // Chiude la fotocamera in caso di disconnessione
-            closeCamera();
-        }
-
-        @Override
-        public void onError(@NonNull CameraDevice camera, int error) {
-            // Chiude la fotocamera in caso di errore
-            closeCamera();
+    private static void closeFrameAcquisition(FrameAcquisition acquisition) {
+        if (acquisition == null) return;
+        acquisition.close();
+        Log.d("HeartRateMonitor", "Frames delivered: " + acquisition.getDeliveredFrames()
+                + ", processed: " + acquisition.getProcessedFrames()
+                + ", dropped: " + acquisition.getDroppedFrames());
+        if (acquisition.getFailure() != null) {
+            Log.e("HeartRateMonitor", "Error processing frames", acquisition.getFailure());
         }
-    };
+    }
 
     /**
-     * Avvia una sessione di acquisizione dell'immagine della fotocamera.
-     * Prepara le superfici di destinazione per il flusso video della fotocamera e per l'ImageReader.
-     * Configura la richiesta di acquisizione e avvia la sessione di acquisizione dell'immagine.
-     * Utilizza metodi differenti a seconda della versione API di Android:
-     * - API level 28 e successivi: Usa {@link SessionConfiguration} per configurare la sessione.
-     * - API level precedenti: Usa il metodo deprecato {@link CameraDevice#createCaptureSession(List, CameraCaptureSession.StateCallback, Handler)}.
+     * Crea la registrazione della misurazione nella cartella "recordings" dei file dell'applicazione,
+     * con il piano Y sottocampionato se è presente l'extra "recordLuma". Se il file non può essere creato
+     * la misurazione prosegue senza registrazione.
+     *
+     * @return La registrazione, oppure null.
      */
-    private void startCaptureSession() {
+    private SessionRecorder openSessionRecorder() {
+        File directory = new File(getFilesDir(), "recordings");
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.w("HeartRateMonitor", "Unable to create " + directory);
+            return null;
+        }
+        File target = new File(directory, "session-" + System.currentTimeMillis() + ".rec");
+        int lumaStep = getIntent().getBooleanExtra("recordLuma", false) ? RECORDING_LUMA_STEP : 0;
         try {
-            // Prepara la superficie per l'anteprima della fotocamera
-            SurfaceHolder holder = cameraPreview.getHolder();
-            Surface previewSurface = holder.getSurface();
-
-            // Configura l'ImageReader come target per la sessione di acquisizione
-            List<Surface> outputSurfaces = new ArrayList<>();
-            outputSurfaces.add(previewSurface);
-            outputSurfaces.add(imageReader.getSurface());
-
-            // Configura la richiesta di acquisizione
-            captureRequestBuilder = cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
-            captureRequestBuilder.addTarget(previewSurface);
-            captureRequestBuilder.addTarget(imageReader.getSurface());
-
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {  // API level 28 e successivi
-                // Per API level 28 e successivi, usa il nuovo metodo createCaptureSession
-                List<OutputConfiguration> outputConfigs = new ArrayList<>();
-                outputConfigs.add(new OutputConfiguration(previewSurface));
-                outputConfigs.add(new OutputConfiguration(imageReader.getSurface()));
-
-                // Configura la sessione di acquisizione
-                SessionConfiguration sessionConfig = new SessionConfiguration(
-                        SessionConfiguration.SESSION_REGULAR,
-                        outputConfigs,
-                        getMainExecutor(),  // Executor per gestire i callback
-                        new CameraCaptureSession.StateCallback() {
-                            @Override
-                            public void onConfigured(@NonNull CameraCaptureSession session) {
-                                configureCaptureSession(session);
-                            }
-
-                            @Override
-                            public void onConfigureFailed(@NonNull CameraCaptureSession session) {
-                                handleConfigurationFailed();
-                            }
-                        }
-                );
-
-                cameraDevice.createCaptureSession(sessionConfig);
-
-            } else {  // Per API level precedenti
-                // Per dispositivi più vecchi, usa il metodo deprecato createCaptureSession
-                cameraDevice.createCaptureSession(outputSurfaces, new CameraCaptureSession.StateCallback() {
-                    @Override
-                    public void onConfigured(@NonNull CameraCaptureSession session) {
-                        configureCaptureSession(session);
-                    }
-
-                    @Override
-                    public void onConfigureFailed(@NonNull CameraCaptureSession session) {
-                        handleConfigurationFailed();
-                    }
-                }, backgroundHandler);
-            }
-
-        } catch (CameraAccessException e) {
-            // Registra un errore in caso di eccezione durante l'accesso alla fotocamera
-            Log.e("HeartRateMonitor", "Error accessing camera", e);
+            SessionRecorder recorder = new SessionRecorder(target, lumaStep);
+            Log.d("HeartRateMonitor", "Recording session to " + target);
+            return recorder;
+        } catch (IOException e) {
+            Log.w("HeartRateMonitor", "Unable to record session to " + target, e);
+            return null;
         }
     }
 
     /**
-     * Configura la sessione di acquisizione dell'immagine della fotocamera.
-     * Imposta le modalità di autofocus e flash nella richiesta di acquisizione e avvia la cattura ripetitiva.
-     * Registra un callback per monitorare i progressi e il completamento delle acquisizioni.
+     * Chiude la registrazione della misurazione. Va chiamato dopo la chiusura dell'acquisizione dei frame.
      *
-     * @param session La sessione di acquisizione da configurare.
+     * @param recorder La registrazione, oppure null.
      */
-    private void configureCaptureSession(CameraCaptureSession session) {
-        captureSession = session;
+    private static void closeSessionRecorder(SessionRecorder recorder) {
+        if (recorder == null || recorder.isClosed()) return;
         try {
-            // Imposta la modalità di autofocus continuo per le immagini
-            captureRequestBuilder.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
-            // Imposta la modalità flash su torch (illuminazione continua)
-            captureRequestBuilder.set(CaptureRequest.FLASH_MODE, CaptureRequest.FLASH_MODE_TORCH);
-
-            // Costruisce la richiesta di acquisizione
-            captureRequest = captureRequestBuilder.build();
-
-            // Configura un callback per monitorare i progressi e il completamento delle acquisizioni
-            captureCallback = new CameraCaptureSession.CaptureCallback() {
-                @Override
-                public void onCaptureProgressed(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull CaptureResult partialResult) {
-                    super.onCaptureProgressed(session, request, partialResult);
-                }
-
-                @Override
-                public void onCaptureCompleted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull TotalCaptureResult result) {
-                    super.onCaptureCompleted(session, request, result);
-                }
-            };
-
-            // Avvia la cattura ripetitiva delle immagini con la richiesta di acquisizione e il callback
-            captureSession.setRepeatingRequest(captureRequest, captureCallback, backgroundHandler);
-
-        } catch (CameraAccessException e) {
-            // Registra un errore in caso di eccezione durante la configurazione della sessione di acquisizione
-            Log.e("HeartRateMonitor", "Error configuring capture session", e);
+            long length = recorder.getLength();
+            recorder.close();
+            Log.d("HeartRateMonitor", "Recorded frames: " + recorder.getFrameCount() + ", bytes: " + length);
+        } catch (IOException e) {
+            Log.w("HeartRateMonitor", "Error closing session recording", e);
         }
     }
 
     /**
-     * Gestisce il fallimento della configurazione della sessione di acquisizione della fotocamera.
-     * Registra un messaggio di errore e mostra un toast all'utente per informarlo del problema.
-     * Chiude la fotocamera in caso di errore di configurazione.
+     * Registra nel log le durate delle fasi (p50, p99 e massimo) e i contatori dei frame della misurazione.
      */
-    private void handleConfigurationFailed() {
-        // Registra un errore in caso di fallimento della configurazione della sessione
-        Log.e("HeartRateMonitor", "Capture session configuration failed.");
-        // Mostra un messaggio di errore all'utente
-        runOnUiThread(() -> {
-            Toast.makeText(HeartRateMonitorActivity.this, "Camera configuration failed. Please try again.", Toast.LENGTH_LONG).show();
-        });
-        // Chiude la fotocamera
-        closeCamera();
+    private void dumpMetrics() {
+        for (String line : metrics.format().split("\n")) {
+            Log.i("HeartRateMonitor", "Metrics: " + line);
+        }
     }
 
     /**
-     * Chiude tutti i componenti della fotocamera, inclusi la sessione di acquisizione, il dispositivo della fotocamera e l'ImageReader.
-     * Questo metodo deve essere chiamato quando si desidera liberare tutte le risorse della fotocamera e interrompere la sua operazione.
+     * Riceve un frame dalla sessione della fotocamera durante la misurazione: se il dito è presente
+     * lo copia per il thread di elaborazione. Viene eseguito nel thread della fotocamera.
+     *
+     * @param image L'immagine catturata dalla fotocamera, in formato YUV_420_888.
      */
-    private void closeCamera() {
-        // Chiude la sessione di acquisizione se non è null e la imposta a null
-        if (captureSession != null) {
-            captureSession.close();
-            captureSession = null;
-        }
-        // Chiude il dispositivo della fotocamera se non è null e lo imposta a null
-        if (cameraDevice != null) {
-            cameraDevice.close();
-            cameraDevice = null;
-        }
-        // Chiude l'ImageReader se non è null e lo imposta a null
-        if (imageReader != null) {
-            imageReader.close();
-            imageReader = null;
+    private void onCameraFrame(@NonNull Image image) {
+        if (!measuring) return;
+        metrics.increment(PipelineMetrics.Counter.RECEIVED);
+        long start = System.nanoTime();
+        boolean present = checkFinger(image);
+        metrics.recordSince(PipelineMetrics.Stage.GATE, start);
+        if (!present) {
+            metrics.increment(PipelineMetrics.Counter.REJECTED);
+            return;
         }
+
+        // Timestamp del sensore, in millisecondi
+        start = System.nanoTime();
+        boolean queued = submitFrame(image, TimeUnit.NANOSECONDS.toMillis(image.getTimestamp()));
+        metrics.recordSince(PipelineMetrics.Stage.PLANE_COPY, start);
+        if (!queued) metrics.increment(PipelineMetrics.Counter.DROPPED);
     }
 
     /**
-     * Chiude tutti i componenti della fotocamera tranne l'ImageReader.
-     * Utilizzato quando è necessario chiudere la sessione di acquisizione e il dispositivo della fotocamera senza influenzare l'ImageReader.
+     * Controlla con {@link FingerDetector} la presenza del dito e la qualità del frame, aggiornando
+     * le istruzioni per l'utente quando l'esito cambia. Al primo frame valido avvia la durata della misurazione.
+     * Viene eseguito nel thread della fotocamera.
+     *
+     * @param image L'immagine catturata dalla fotocamera, in formato YUV_420_888.
+     * @return true se il frame va elaborato.
      */
-    private void closeCameraExceptImageReader() {
-        // Chiude la sessione di acquisizione se non è null e la imposta a null
-        if (captureSession != null) {
-            captureSession.close();
-            captureSession = null;
-        }
-        // Chiude il dispositivo della fotocamera se non è null e lo imposta a null
-        if (cameraDevice != null) {
-            cameraDevice.close();
-            cameraDevice = null;
-        }
-        // Non chiude l'ImageReader
+    private boolean checkFinger(@NonNull Image image) {
+        Image.Plane[] planes = image.getPlanes();
+        FingerDetector.Status status = fingerDetector.check(planes[0].getBuffer(), planes[0].getRowStride(),
+                planes[0].getPixelStride(), planes[1].getBuffer(), planes[2].getBuffer(),
+                planes[1].getRowStride(), planes[1].getPixelStride(), image.getWidth(), image.getHeight());
+        if (status != lastFingerStatus) {
+            lastFingerStatus = status;
+            final String text = fingerInstructions(status);
+            handler.post(() -> {
+                if (measuring) instructionsText.setText(text);
+            });
+        }
+        if (status != FingerDetector.Status.PRESENT) return false;
+        if (!signalAcquired) {
+            signalAcquired = true;
+            handler.post(this::startMeasurementClock);
+        }
+        return true;
     }
 
     /**
-     * Chiude solo l'ImageReader e libera le risorse associate.
-     * Questo metodo deve essere utilizzato quando è necessario chiudere solo l'ImageReader senza influenzare gli altri componenti della fotocamera.
+     * Restituisce le istruzioni per l'utente corrispondenti all'esito del controllo del dito.
+     *
+     * @param status L'esito del controllo dell'ultimo frame.
+     * @return Il testo da mostrare.
      */
-    private void closeImageReader() {
-        // Chiude l'ImageReader se non è null e lo imposta a null
-        if (imageReader != null) {
-            imageReader.close();
-            imageReader = null;
+    private String fingerInstructions(@NonNull FingerDetector.Status status) {
+        switch (status) {
+            case TOO_DARK:
+                return "Immagine troppo scura: verifica che il flash illumini il dito";
+            case SATURATED:
+                return "Copri completamente la fotocamera con il dito";
+            case MOTION:
+                return "Tieni fermo il dito ...";
+            case SETTLING:
+                return "Dito rilevato, non muoverlo ...";
+            case PRESENT:
+                if (convergenceMonitor != null) {
+                    return "Attendi, al massimo " + convergenceMonitor.getMaxDuration() / 1000 + " sec ...";
+                }
+                return "Attendi 10 sec ...";
+            default:
+                return "Posiziona il dito indice sulla fotocamera, con la parte posteriore sul flash";
         }
     }
 
     /**
-     * Elabora i dati del frame catturato dalla fotocamera, convertendoli dal formato YUV a RGB,
-     * calcola la luminanza del frame e la registra insieme al timestamp corrente.
-     * Questo metodo è essenziale per estrarre l'informazione necessaria per il monitoraggio della frequenza cardiaca.
+     * Copia i piani del frame catturato dalla fotocamera in un buffer del pool, così che l'immagine
+     * possa essere restituita subito. Il piano Y viene copiato così com'è, con rowStride e pixelStride;
+     * i piani U e V solo se la misurazione usa il canale rosso.
      *
      * @param image L'immagine catturata dalla fotocamera, in formato YUV_420_888.
-     * @param currentTime Il timestamp corrente in millisecondi che indica quando l'immagine è stata catturata.
+     * @param currentTime Il timestamp del sensore in millisecondi che indica quando l'immagine è stata catturata.
+     * @return false se il frame è stato scartato perché l'elaborazione è rimasta indietro.
      */
-    private void processFrameData(@NonNull Image image, long currentTime) {
-        // Ottiene i buffer YUV dai piani dell'immagine
-        ByteBuffer yBuffer = image.getPlanes()[0].getBuffer();
-        ByteBuffer uBuffer = image.getPlanes()[1].getBuffer();
-        ByteBuffer vBuffer = image.getPlanes()[2].getBuffer();
-
-        // Conversione da YUV a RGB
-        int[] rgb = decodeYUV420SP(yBuffer, uBuffer, vBuffer, imageReader.getWidth(), imageReader.getHeight());
-
-        // Calcola l'intensità luminosa basata sul canale rosso
-        double brightness = calculateLuminance(normalizeImage(rgb));
-
-        // Aggiunge la luminanza e il timestamp alla lista di campioni
-        brightnessesPlusTimeStamps.add(new BrightnessPlusTimeStamp(brightness, currentTime));
+    private boolean submitFrame(@NonNull Image image, long currentTime) {
+        FrameAcquisition acquisition = frameAcquisition;
+        if (acquisition == null) return false;
+        Image.Plane yPlane = image.getPlanes()[0];
+        if (frameDecoder != null) {
+            Image.Plane uPlane = image.getPlanes()[1];
+            Image.Plane vPlane = image.getPlanes()[2];
+            return acquisition.submitColor(yPlane.getBuffer(), yPlane.getRowStride(), yPlane.getPixelStride(),
+                    uPlane.getBuffer(), vPlane.getBuffer(), uPlane.getRowStride(), uPlane.getPixelStride(),
+                    image.getWidth(), image.getHeight(), currentTime);
+        }
+        return acquisition.submit(yPlane.getBuffer(), yPlane.getRowStride(), yPlane.getPixelStride(),
+                image.getWidth(), image.getHeight(), currentTime);
     }
 
     /**
-     * Normalizza i valori RGB mappando l'intervallo di colori originale
-     * in un intervallo standard 0-255. Questo aiuta a standardizzare l'intensità
-     * luminosa indipendentemente dalle variazioni di luminosità originali nel frame.
+     * Elabora i dati del frame copiato, calcolando in un'unica passata le statistiche del frame,
+     * e registra la luminosità media insieme all'istante di acquisizione.
+     * Questo metodo è essenziale per estrarre l'informazione necessaria per il monitoraggio della frequenza cardiaca.
+     * Viene eseguito nel thread di elaborazione di {@link FrameAcquisition}.
      *
-     * @param rgb Array di valori RGB rappresentanti l'immagine.
-     * @return Un array normalizzato di valori RGB.
+     * @param frame    Il frame copiato dall'immagine della fotocamera.
+     * @param recorder La registrazione della misurazione a cui appartiene il frame, oppure null.
      */
-    private int[] normalizeImage(@NonNull int[] rgb) {
-        // Trova il massimo e il minimo valore nell'array RGB
-        int max = Arrays.stream(rgb).max().orElse(255);
-        int min = Arrays.stream(rgb).min().orElse(0);
-
-        // Normalizza ogni valore RGB
-        return Arrays.stream(rgb)
-                .map(color -> (color - min) * 255 / (max - min))
-                .toArray();
+    private void processFrameData(@NonNull FrameBuffer frame, SessionRecorder recorder) {
+        // Fornisce la luminosità media (o la media del canale rosso) allo stimatore incrementale
+        double value = ppgPipeline.processFrame(frame);
+        if (recorder != null && !recorder.isClosed()) recordFrame(recorder, frame, value);
+        metrics.increment(PipelineMetrics.Counter.PROCESSED);
+        long currentTime = frame.getTime();
+
+        // Pubblica la stima parziale alcune volte al secondo
+        if (currentTime - lastLiveUpdateTime >= LIVE_UPDATE_INTERVAL_MS) {
+            lastLiveUpdateTime = currentTime;
+            HeartRateEstimate estimate = ppgPipeline.getEstimate();
+            publishLiveEstimate(estimate);
+
+            // Nella misurazione adattiva termina appena la stima è stabile o allo scadere della durata massima
+            if (convergenceMonitor != null) {
+                ConvergenceMonitor.Decision decision = convergenceMonitor.update(estimate, currentTime);
+                if (decision != ConvergenceMonitor.Decision.CONTINUE) {
+                    Log.d("HeartRateMonitor", "Adaptive stop: " + decision + " after " + convergenceMonitor.getElapsed() + " ms");
+                    handler.post(stopMeasurementTask);
+                }
+            }
+        }
     }
 
     /**
-     * Calcola la luminanza media di un'immagine in formato RGB. La luminanza rappresenta la percezione della luminosità
-     * e viene calcolata usando i coefficienti standard per i canali rosso, verde e blu, secondo la formula standard per la luminanza percettiva.
+     * Aggiunge il frame elaborato alla registrazione della misurazione, seguito dal riallineamento dello
+     * stimatore se il frame ha concluso la calibrazione delle regioni candidate. In caso di errore la registrazione
+     * viene interrotta, senza interrompere la misurazione.
+     * Viene eseguito nel thread di elaborazione di {@link FrameAcquisition}.
      *
-     * @param rgb Array di valori RGB rappresentanti l'immagine.
-     * @return La luminanza media dell'immagine.
+     * @param recorder La registrazione della misurazione.
+     * @param frame    Il frame elaborato.
+     * @param value    Il valore fornito allo stimatore.
      */
-    private double calculateLuminance(@NonNull int[] rgb) {
-        double luminanceSum = 0.0;
-
-        // Calcola la luminanza per ciascun pixel
-        for (int color : rgb) {
-            int r = (color >> 16) & 0xff;// Estrae il valore del canale rosso
-            int g = (color >> 8) & 0xff;// Estrae il valore del canale verde
-            int b = color & 0xff;// Estrae il valore del canale blu
-            // Calcola la luminanza utilizzando i coefficienti di ponderazione standard
-            double luminance = 0.299 * r + 0.587 * g + 0.114 * b;
-            luminanceSum += luminance;
+    private void recordFrame(@NonNull SessionRecorder recorder, @NonNull FrameBuffer frame, double value) {
+        try {
+            recorder.record(frame, value, ppgPipeline.getFrameStatistics());
+            TimeSeries realignment = ppgPipeline.getRealignment();
+            if (realignment != null) recorder.recordRealignment(realignment);
+        } catch (IOException e) {
+            Log.w("HeartRateMonitor", "Session recording stopped", e);
+            closeSessionRecorder(recorder);
         }
-
-        // Ritorna la luminanza media
-        return luminanceSum / rgb.length;
     }
 
     /**
-     * Decodifica un'immagine in formato YUV420SP in un array RGB. Questo è un passaggio critico nella conversione
-     * dei dati della fotocamera in un formato che può essere utilizzato per ulteriori elaborazioni, come il calcolo
-     * della luminanza o altre analisi basate sul colore.
+     * Mostra all'utente la stima parziale della frequenza cardiaca e la sua affidabilità.
+     * Può essere chiamato dal thread di background: l'aggiornamento della vista avviene nel thread principale.
      *
-     * @param yBuffer Il buffer contenente i dati Y (luminanza).
-     * @param uBuffer Il buffer contenente i dati U (crominanza blu).
-     * @param vBuffer Il buffer contenente i dati V (crominanza rossa).
-     * @param width La larghezza dell'immagine.
-     * @param height L'altezza dell'immagine.
-     * @return Un array di valori RGB rappresentanti l'immagine decodificata.
+     * @param estimate La stima parziale corrente.
      */
-    @NonNull
-    private int[] decodeYUV420SP(@NonNull ByteBuffer yBuffer, @NonNull ByteBuffer uBuffer, @NonNull ByteBuffer vBuffer, int width, int height) {
-        final int ySize = width * height;  // Dimensione del canale Y
-        final int uvSize = ySize / 4;      // Dimensione dei canali U e V
-        int[] rgb = new int[ySize];        // Array RGB da riempire, la dimensione dell'array RGB deve corrispondere a quella di Y
-        byte[] y = new byte[ySize];        // Array per i dati Y
-        byte[] u = new byte[uvSize];       // Array per i dati U
-        byte[] v = new byte[uvSize];       // Array per i dati V
-
-        // Legge i dati dai buffer nelle rispettive array
-        yBuffer.get(y);
-        uBuffer.get(u);
-        vBuffer.get(v);
-
-        // Conversione YUV a RGB
-        for (int j = 0, yp = 0; j < height; j++) {
-            int uvp = (j >> 1) * width / 2;
-            for (int i = 0; i < width; i++, yp++) {
-                int yVal = (0xff & y[yp]) - 16;
-                if (yVal < 0) yVal = 0;
-
-                int uOffset = (0xff & u[uvp]) - 128;
-                int vOffset = (0xff & v[uvp]) - 128;
-
-                if ((i & 1) == 1) uvp++; // Incrementa la posizione UV solo sugli indici pari
-
-                int y1192 = 1192 * yVal;
-                int r = (y1192 + 1634 * vOffset);
-                int g = (y1192 - 833 * vOffset - 400 * uOffset);
-                int b = (y1192 + 2066 * uOffset);
-
-                // Limita i valori RGB nel range accettabile
-                r = Math.max(0, Math.min(262143, r));
-                g = Math.max(0, Math.min(262143, g));
-                b = Math.max(0, Math.min(262143, b));
-
-                // Combina i canali RGB in un singolo valore e lo memorizza nell'array
-                rgb[yp] = 0xff000000 | ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00) | ((b >> 10) & 0xff);
-            }
-        }
-        return rgb;
+    private void publishLiveEstimate(@NonNull HeartRateEstimate estimate) {
+        if (!estimate.isValid()) return;
+        final String text = "Heart Rate: " + estimate.getBpm()
+                + " (affidabilità " + Math.round(estimate.getConfidence() * 100) + "%)";
+        handler.post(() -> {
+            // La stima parziale non deve sovrascrivere il risultato finale
+            if (measuring) heartRateText.setText(text);
+        });
     }
 
     /**
-     * Elabora i frame acquisiti per calcolare la frequenza cardiaca (BPM).
-     * Verifica che ci siano dati sufficienti, applica una media mobile per lisciare i dati,
-     * rileva i picchi di luminosità, e calcola il BPM sulla base dell'intervallo medio tra i picchi.
-     * Visualizza il BPM calcolato o un messaggio di errore se il calcolo fallisce.
+     * Mostra il risultato finale della misurazione della frequenza cardiaca (BPM) e lo salva.
+     * Visualizza un messaggio di errore se i campioni acquisiti non sono sufficienti
+     * o se non è stato possibile rilevare almeno due picchi di luminosità.
+     *
+     * @param estimate La stima finale prodotta dallo stimatore incrementale.
      */
-    private void processFrames() {
-        // Verifica che la lista con timeStamps e redIntensities contenga dati sufficienti per calcolare il BPM
-        Log.d("HeartRateMonitor", "Brightnesses plus times stamps list size: " + brightnessesPlusTimeStamps.size());
-
-        if (brightnessesPlusTimeStamps.size() >= 30) {
-            // Parametri per la media mobile
-            final int numeroApplicazioniDellaMediaMobile = 9;
-            final int windowSize = 3;
-
-            List<BrightnessPlusTimeStamp> smoothBrightnessesPlusTimeStamps = new ArrayList<>(brightnessesPlusTimeStamps);
-
-            // Applica la media mobile 9 volte per lisciare i dati
-            for (int i = numeroApplicazioniDellaMediaMobile; i > 0; i--) {
-                smoothBrightnessesPlusTimeStamps = smoothData(smoothBrightnessesPlusTimeStamps, windowSize);
-            }
-
-            // Rilevamento dei picchi
-            List<BrightnessPlusTimeStamp> peakIndices = new ArrayList<>();
-            for (int i = 1; i < smoothBrightnessesPlusTimeStamps.size() - 1; i++) {
-                if (smoothBrightnessesPlusTimeStamps.get(i).getBrightness() > smoothBrightnessesPlusTimeStamps.get(i - 1).getBrightness() &&
-                        smoothBrightnessesPlusTimeStamps.get(i).getBrightness() > smoothBrightnessesPlusTimeStamps.get(i + 1).getBrightness()) {
-                    peakIndices.add(smoothBrightnessesPlusTimeStamps.get(i));
-                }
-            }
-
-            Log.d("HeartRateMonitor", "Peak indices size: " + peakIndices.size());
-
-            // Calcolo della Frequenza Cardiaca
-            if (peakIndices.size() >= 2) {
-                long totalInterval = peakIndices.get(peakIndices.size()-1).getCurrentTime() - peakIndices.get(0).getCurrentTime();
-                Log.d("HeartRateMonitor", "Total interval: " + totalInterval);
-                long averageInterval = totalInterval / (peakIndices.size() - 1);
-                int bpm = (int) (60000 / averageInterval);
-
-                Log.d("HeartRateMonitor", "Heart rate calculated: " + bpm);
-
-                runOnUiThread(() -> heartRateText.setText("Heart Rate: " + bpm));
-                dataStructure(String.valueOf(bpm));
+    private void showResult(@NonNull HeartRateEstimate estimate) {
+        Log.d("HeartRateMonitor", "Brightnesses plus times stamps count: " + estimate.getSampleCount());
+        Log.d("HeartRateMonitor", "Peak indices size: " + estimate.getPeakCount());
+        Log.d("HeartRateMonitor", "Measured frame rate: " + ppgPipeline.getFrameRate());
+
+        if (estimate.getSampleCount() < HeartRateEstimator.MIN_SAMPLES) {
+            instructionsText.setText("Acquisizione immagini fallita! Riprova");
+        } else if (!estimate.isValid()) {
+            instructionsText.setText("Calcolo frequenza cardiaca fallito! Riprova");
+        } else {
+            int bpm = estimate.getBpm();
+            Log.d("HeartRateMonitor", "Heart rate calculated: " + bpm);
 
-            } else {
-                runOnUiThread(() -> instructionsText.setText("Calcolo frequenza cardiaca fallito! Riprova"));
+            heartRateText.setText("Heart Rate: " + bpm);
+            if (estimate.hasHrv()) {
+                Log.d("HeartRateMonitor", "HRV: SDNN " + estimate.getSdnn() + " ms, RMSSD " + estimate.getRmssd() + " ms");
             }
-        } else {
-            runOnUiThread(() -> instructionsText.setText("Acquisizione immagini fallita! Riprova"));
+            dataStructure(String.valueOf(bpm), estimate);
         }
     }
 
@@ -702,21 +807,26 @@ public class HeartRateMonitorActivity extends AppCompatActivity {
     private void setReferences (String userId) {
         mDatabase = FirebaseDatabase.getInstance().getReference();
         DatabaseReference userRef = mDatabase.child("AsilApp").child(userId);
-        key = userRef.child("misurazioni").push().getKey();
+        key = InstrumentWarmup.measurementKey(getIntent(), userRef);
         savePath = "AsilApp/" + userId + "/misurazioni/" + key;
         savePath2 = "AsilApp/" + userId + "/misurazioni-strumento/cardifrequenzimetro/" + key;
-        savePath3 = "medbox/risposta/misurazioneId";
     }
 
     /**
      * Metodo che crea una mappa dei dati da salvare, necessita del valore della misurazione da salvare.
+     * Se disponibili, salva anche gli indici di variabilità della frequenza cardiaca (SDNN e RMSSD, in millisecondi).
      * @param valore Risultato della misurazione.
+     * @param estimate Stima finale da cui leggere gli indici di variabilità.
      */
-    private void dataStructure(String valore) {
+    private void dataStructure(String valore, HeartRateEstimate estimate) {
         HashMap<String, String> map = new HashMap<>();
         map.put("id", key);
         map.put("strumento", "cardifrequenzimetro");
         map.put("valore", valore);
+        if (estimate.hasHrv()) {
+            map.put("sdnn", String.valueOf(Math.round(estimate.getSdnn())));
+            map.put("rmssd", String.valueOf(Math.round(estimate.getRmssd())));
+        }
         //ToDo gestione della data e dell'ora
         map.put("data", "1994/12/02");
         map.put("orario", "12:00");
@@ -729,84 +839,26 @@ public class HeartRateMonitorActivity extends AppCompatActivity {
      * @param map Struttura dati da salvare.
      */
     private void save (HashMap<String, String> map) {
+        if (saved) return;
+        saved = true;
         Log.d(TAG, "savingData!");
-        HashMap<String, Object> saveMap = new HashMap<>();
-        saveMap.put(savePath, map);
-        saveMap.put(savePath2, map);
-        saveMap.put(savePath3, key);
-        mDatabase.updateChildren(saveMap)
-                .addOnSuccessListener(aVoid -> {
-                    // Successo
-                    Log.d("Firebase", "Dati salvati correttamente in più percorsi.");
-                    finish();
-                })
-                .addOnFailureListener(e -> {
-                    // Fallimento
-                    Log.e("Firebase", "Errore durante il salvataggio dei dati: " + e.getMessage());
-                    finish();
-                });
 
-    }
-
-    /**
-     * Applica una media mobile ai dati di luminosità per lisciarli, riducendo le fluttuazioni
-     * e facilitando il rilevamento dei picchi.
-     *
-     * @param data La lista di oggetti BrightnessPlusTimeStamp contenente i dati di luminosità e i relativi timestamp.
-     * @param windowSize La dimensione della finestra per la media mobile.
-     * @return Una lista di BrightnessPlusTimeStamp lisciata con i valori di luminosità mediati.
-     */
-    @NonNull
-    private List<BrightnessPlusTimeStamp> smoothData(@NonNull List<BrightnessPlusTimeStamp> data, int windowSize) {
-        List<BrightnessPlusTimeStamp> smoothedData = new ArrayList<>();
-        for (int i = 0; i < data.size(); i++) {
-            int windowStart = Math.max(0, i - windowSize / 2);
-            int windowEnd = Math.min(data.size(), i + windowSize / 2 + 1);
-            double sum = 0;
-            for (int j = windowStart; j < windowEnd; j++) {
-                sum += data.get(j).getBrightness();
-            }
-            smoothedData.add(new BrightnessPlusTimeStamp(sum / (windowEnd - windowStart), data.get(i).getCurrentTime()));
+        // In una sessione combinata la misurazione viene salvata insieme a quelle degli altri strumenti
+        VitalsSession session = VitalsSession.currentFor(userId);
+        if (session != null) {
+            session.addReading("cardifrequenzimetro", key, map);
+            session.proceed(this);
+            return;
         }
-        data.clear();
-        return smoothedData;
-    }
 
+        HashMap<String, Object> saveMap = new HashMap<>();
+        saveMap.put(savePath, map);
+        saveMap.put(savePath2, map);
+        RequestResponse.putReading(saveMap, requestId, "cardifrequenzimetro", key);
+        RequestResponse.putOutcome(saveMap, requestId, RequestResponse.COMPLETED);
+        // La misurazione viene registrata nel giornale locale e inviata in background
+        JournalSyncer.submit(this, MeasurementJournal.measurementId(key), saveMap);
+        finish();
 
-}
-
-
-/**
- * La classe `BrightnessPlusTimeStamp` rappresenta una coppia di valori composta dalla luminosità di un'immagine
- * e dal timestamp associato a quando l'immagine è stata acquisita.
- *
- * Questa classe viene utilizzata per memorizzare e gestire i dati necessari per calcolare la frequenza cardiaca (BPM)
- * basata sulle variazioni di luminosità nel tempo.
- */
-class BrightnessPlusTimeStamp {
-
-    private double brightness;
-    private long currentTime;
-
-    BrightnessPlusTimeStamp(double brightness, long currentTime) {
-        super();
-        this.brightness = brightness;
-        this.currentTime = currentTime;
-    }
-
-    public double getBrightness() {
-        return brightness;
-    }
-
-    public void setBrightness(double brightness) {
-        this.brightness = brightness;
-    }
-
-    public long getCurrentTime() {
-        return currentTime;
-    }
-
-    public void setCurrentTime(long currentTime) {
-        this.currentTime = currentTime;
     }
 }
@@ -16,6 +16,11 @@ import com.google.firebase.database.FirebaseDatabase;
 import java.util.HashMap;
 
 import it.uniba.berluxoding.medboxapp.R;
+import it.uniba.berluxoding.medboxapp.controller.InstrumentWarmup;
+import it.uniba.berluxoding.medboxapp.controller.RequestResponse;
+import it.uniba.berluxoding.medboxapp.controller.VitalsSession;
+import it.uniba.berluxoding.medboxapp.sync.JournalSyncer;
+import it.uniba.berluxoding.medboxapp.sync.MeasurementJournal;
 
 /**
  * Activity per la registrazione e il salvataggio delle misurazioni della temperatura corporea di un utente.
@@ -25,7 +30,10 @@ import it.uniba.berluxoding.medboxapp.R;
 public class ThermometerActivity extends AppCompatActivity {
 
     private DatabaseReference mDatabase; // Riferimento al database Firebase
-    private String key, savePath, savePath2, savePath3; // Percorsi di salvataggio nel database
+    private String key, savePath, savePath2; // Percorsi di salvataggio nel database
+    private String userId; // ID dell'utente che sta effettuando la misurazione
+    private String requestId; // ID della richiesta a cui risponde la misurazione
+    private boolean saved; // true dopo il primo salvataggio: un secondo tocco prima della chiusura viene ignorato
     private final String TAG = "THERMOMETER_ACTIVITY"; // Tag per i log
 
     @Override
@@ -44,7 +52,8 @@ public class ThermometerActivity extends AppCompatActivity {
         });
 
         // Ottieni l'ID utente dalla Intent
-        String userId = getIntent().getStringExtra("userId");
+        userId = getIntent().getStringExtra("userId");
+        requestId = getIntent().getStringExtra("requestId");
         setReferences(userId);
 
         // Configura i listener dei pulsanti
@@ -59,10 +68,9 @@ public class ThermometerActivity extends AppCompatActivity {
     private void setReferences(String userId) {
         mDatabase = FirebaseDatabase.getInstance().getReference();
         DatabaseReference userRef = mDatabase.child("AsilApp").child(userId);
-        key = userRef.child("misurazioni").push().getKey();
+        key = InstrumentWarmup.measurementKey(getIntent(), userRef);
         savePath = "AsilApp/" + userId + "/misurazioni/" + key;
         savePath2 = "AsilApp/" + userId + "/misurazioni-strumento/termometro/" + key;
-        savePath3 = "medbox/risposta/misurazioneId";
     }
 
     /**
@@ -112,21 +120,25 @@ public class ThermometerActivity extends AppCompatActivity {
      * @param map La mappa contenente i dati della misurazione
      */
     private void save(HashMap<String, String> map) {
+        if (saved) return;
+        saved = true;
         Log.d(TAG, "savingData!");
+
+        // In una sessione combinata la misurazione viene salvata insieme a quelle degli altri strumenti
+        VitalsSession session = VitalsSession.currentFor(userId);
+        if (session != null) {
+            session.addReading("termometro", key, map);
+            session.proceed(this);
+            return;
+        }
+
         HashMap<String, Object> saveMap = new HashMap<>();
         saveMap.put(savePath, map);
         saveMap.put(savePath2, map);
-        saveMap.put(savePath3, key);
-        mDatabase.updateChildren(saveMap)
-                .addOnSuccessListener(aVoid -> {
-                    // Salvataggio riuscito
-                    Log.d("Firebase", "Dati salvati correttamente in più percorsi.");
-                    finish();
-                })
-                .addOnFailureListener(e -> {
-                    // Fallimento nel salvataggio
-                    Log.e("Firebase", "Errore durante il salvataggio dei dati: " + e.getMessage());
-                    finish();
-                });
+        RequestResponse.putReading(saveMap, requestId, "termometro", key);
+        RequestResponse.putOutcome(saveMap, requestId, RequestResponse.COMPLETED);
+        // La misurazione viene registrata nel giornale locale e inviata in background
+        JournalSyncer.submit(this, MeasurementJournal.measurementId(key), saveMap);
+        finish();
     }
 }
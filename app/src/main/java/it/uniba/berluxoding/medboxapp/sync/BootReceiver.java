@@ -0,0 +1,19 @@
+package it.uniba.berluxoding.medboxapp.sync;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+/**
+ * Riprende l'invio delle misurazioni rimaste nel giornale dopo il riavvio del dispositivo.
+ */
+public class BootReceiver extends BroadcastReceiver {
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (!Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction())) return;
+        Log.d("JOURNAL_SYNCER", "Boot completed, resuming sync");
+        JournalSyncer.get(context).requestSync();
+    }
+}
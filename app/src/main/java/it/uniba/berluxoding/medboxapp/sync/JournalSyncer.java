@@ -0,0 +1,171 @@
+package it.uniba.berluxoding.medboxapp.sync;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.google.firebase.database.DatabaseException;
+import com.google.firebase.database.FirebaseDatabase;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Invia a Firebase, una alla volta e in ordine, le scritture registrate nel {@link MeasurementJournal}.
+ *
+ * Le misurazioni vengono prima registrate nel giornale con {@link #submit}, che restituisce subito il controllo:
+ * l'attività può chiudersi senza attendere il server. Ogni scrittura resta nel giornale finché updateChildren
+ * non viene confermato; in caso di errore viene ritentata con un ritardo esponenziale, da
+ * {@value #INITIAL_BACKOFF_MS} ms fino a {@value #MAX_BACKOFF_MS} ms, con una variazione casuale.
+ * Le scritture sono idempotenti: i percorsi contengono la chiave della misurazione, quindi un reinvio dopo
+ * una conferma persa riscrive gli stessi valori.
+ * Firebase non fa fallire le scritture per la mancanza di rete, ma le trattiene finché non si riconnette: un errore
+ * segnalato come {@link DatabaseException}, ad esempio un percorso non valido o un permesso negato, si ripeterebbe
+ * a ogni tentativo. Queste scritture vengono spostate tra gli scarti del giornale
+ * ({@link MeasurementJournal#markFailed}) e l'invio prosegue con la successiva.
+ *
+ * L'invio riprende all'avvio dell'applicazione e dopo il riavvio del dispositivo ({@link BootReceiver}).
+ * Tutto lo stato è gestito sul thread "JournalSync".
+ */
+public final class JournalSyncer {
+
+    private static final String TAG = "JOURNAL_SYNCER";
+
+    //Primo ritardo prima di ritentare una scrittura fallita, in millisecondi.
+    static final long INITIAL_BACKOFF_MS = 1000;
+
+    //Ritardo massimo tra due tentativi, in millisecondi.
+    static final long MAX_BACKOFF_MS = 5 * 60 * 1000;
+
+    private static JournalSyncer instance;
+
+    private final MeasurementJournal journal;
+    private final Handler handler;
+    private final Random random = new Random();
+
+    //Scrittura in attesa di conferma, oppure null.
+    private String inFlight;
+    private boolean retryScheduled;
+    private long backoff = INITIAL_BACKOFF_MS;
+
+    /**
+     * @param context Un contesto qualsiasi dell'applicazione.
+     * @return L'istanza dell'applicazione, creata al primo utilizzo.
+     */
+    @NonNull
+    public static synchronized JournalSyncer get(@NonNull Context context) {
+        if (instance == null) {
+            instance = new JournalSyncer(MeasurementJournal.get(context));
+        }
+        return instance;
+    }
+
+    private JournalSyncer(MeasurementJournal journal) {
+        this.journal = journal;
+        HandlerThread thread = new HandlerThread("JournalSync");
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Registra una scrittura nel giornale e ne avvia l'invio in background. Se il giornale non è scrivibile,
+     * la scrittura viene inviata direttamente, senza garanzie di consegna.
+     *
+     * @param context Un contesto qualsiasi dell'applicazione.
+     * @param id      L'identificativo della scrittura, ottenuto da {@link MeasurementJournal#measurementId(String)}
+     *                o {@link MeasurementJournal#requestId(String)}.
+     * @param updates La mappa percorso → valore da passare a updateChildren.
+     */
+    public static void submit(@NonNull Context context, @NonNull String id, @NonNull Map<String, Object> updates) {
+        JournalSyncer syncer = get(context);
+        try {
+            syncer.journal.append(id, updates);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to journal " + id + ", sending it directly", e);
+            FirebaseDatabase.getInstance().getReference().updateChildren(updates)
+                    .addOnFailureListener(failure -> Log.e("Firebase", "Errore durante il salvataggio dei dati: "
+                            + failure.getMessage()));
+            return;
+        }
+        syncer.requestSync();
+    }
+
+    /**
+     * Avvia l'invio delle scritture in sospeso, se non è già in corso o in attesa di un nuovo tentativo.
+     */
+    public void requestSync() {
+        handler.post(this::drain);
+    }
+
+    private void drain() {
+        if (inFlight != null || retryScheduled) return;
+        Map.Entry<String, Map<String, Object>> entry = journal.first();
+        if (entry == null) {
+            backoff = INITIAL_BACKOFF_MS;
+            return;
+        }
+        final String id = entry.getKey();
+        final Map<String, Object> sent = entry.getValue();
+        inFlight = id;
+        Log.d(TAG, "Sending " + id + ", " + journal.size() + " pending");
+        try {
+            FirebaseDatabase.getInstance().getReference().updateChildren(sent)
+                    .addOnCompleteListener(task -> {
+                        final boolean successful = task.isSuccessful();
+                        final Exception exception = task.getException();
+                        handler.post(() -> onComplete(id, sent, successful, exception));
+                    });
+        } catch (DatabaseException e) {
+            // La mappa contiene percorsi o valori che Firebase non accetta
+            onComplete(id, sent, false, e);
+        }
+    }
+
+    private void onComplete(String id, Map<String, Object> sent, boolean successful, Exception exception) {
+        inFlight = null;
+        if (successful) {
+            Log.d("Firebase", "Dati salvati correttamente in più percorsi: " + id);
+            journal.markSynced(id, sent);
+            backoff = INITIAL_BACKOFF_MS;
+            drain();
+            return;
+        }
+
+        if (exception instanceof DatabaseException) {
+            Log.e("Firebase", "Salvataggio rifiutato, scrittura scartata: " + id + ", " + exception.getMessage());
+            journal.markFailed(id, sent);
+            drain();
+            return;
+        }
+
+        long delay = retryDelay(backoff, random.nextDouble());
+        Log.e("Firebase", "Errore durante il salvataggio dei dati: "
+                + (exception != null ? exception.getMessage() : "") + ", nuovo tentativo tra " + delay + " ms");
+        backoff = nextBackoff(backoff);
+        retryScheduled = true;
+        handler.postDelayed(() -> {
+            retryScheduled = false;
+            drain();
+        }, delay);
+    }
+
+    /**
+     * @param backoff Il ritardo base del tentativo, in millisecondi.
+     * @param jitter  Un valore casuale tra 0 (compreso) e 1 (escluso).
+     * @return Il ritardo prima del tentativo, tra metà e una volta e mezza il ritardo base.
+     */
+    static long retryDelay(long backoff, double jitter) {
+        return backoff / 2 + (long) (jitter * backoff);
+    }
+
+    /**
+     * @return Il ritardo base del tentativo successivo: il doppio, fino a {@value #MAX_BACKOFF_MS} ms.
+     */
+    static long nextBackoff(long backoff) {
+        return Math.min(backoff * 2, MAX_BACKOFF_MS);
+    }
+}
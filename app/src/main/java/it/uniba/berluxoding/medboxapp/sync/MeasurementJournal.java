@@ -0,0 +1,389 @@
+package it.uniba.berluxoding.medboxapp.sync;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Giornale locale delle scritture multi-percorso ancora da inviare a Firebase.
+ *
+ * Il giornale è un file di testo in sola aggiunta, nella cartella privata dell'applicazione, con una riga per evento:
+ * - "A &lt;id&gt; &lt;json&gt;" registra una scrittura, cioè la mappa percorso → valore passata a updateChildren;
+ * - "D &lt;id&gt;" segna la scrittura come confermata dal server;
+ * - "X &lt;id&gt;" sposta la scrittura tra gli scarti, perché il server l'ha rifiutata in modo definitivo.
+ * Gli scarti non vengono più inviati ma restano nel file, per poter essere esaminati.
+ * Gli identificativi hanno un prefisso che ne indica il tipo ({@link #measurementId(String)},
+ * {@link #requestId(String)}), così la chiave di una misurazione non può coincidere con l'ID di una richiesta.
+ * Una scrittura registrata con l'ID di una scrittura ancora in sospeso viene unita a quest'ultima: la riga
+ * aggiunta contiene la mappa unita e sostituisce la precedente alla rilettura.
+ * Ogni riga viene forzata su disco prima di restituire il controllo, così una misurazione registrata sopravvive
+ * alla chiusura del processo e al riavvio del dispositivo. All'apertura le righe vengono rilette in ordine;
+ * un'ultima riga incompleta, interrotta da un arresto improvviso, viene scartata.
+ *
+ * Quando tutte le scritture sono confermate e non ci sono scarti il file viene svuotato; se le conferme accumulate
+ * superano {@value #COMPACT_THRESHOLD} righe, le scritture in sospeso e gli scarti vengono riscritti in un nuovo
+ * file che sostituisce il precedente con una rinomina atomica.
+ *
+ * I metodi sono sincronizzati: il giornale è scritto dal thread principale e letto dal thread di sincronizzazione.
+ */
+public final class MeasurementJournal {
+
+    private static final String TAG = "MEASUREMENT_JOURNAL";
+
+    //Nome del file del giornale nella cartella privata dell'applicazione.
+    static final String FILE_NAME = "measurements.journal";
+
+    //Righe di conferma oltre le quali il giornale viene compattato.
+    static final int COMPACT_THRESHOLD = 64;
+
+    //Prefissi degli identificativi delle scritture.
+    private static final String MEASUREMENT_PREFIX = "misurazione/";
+    private static final String REQUEST_PREFIX = "richiesta/";
+
+    private static MeasurementJournal instance;
+
+    private final File file;
+
+    //Scritture non ancora confermate, nell'ordine di registrazione.
+    private final Map<String, Map<String, Object>> pending = new LinkedHashMap<>();
+
+    //Scritture rifiutate in modo definitivo dal server, nell'ordine in cui sono state scartate.
+    private final Map<String, Map<String, Object>> deadLetters = new LinkedHashMap<>();
+
+    //Righe di conferma presenti nel file.
+    private int syncedLines;
+
+    private FileOutputStream out;
+
+    /**
+     * @param context Un contesto qualsiasi dell'applicazione.
+     * @return Il giornale dell'applicazione, aperto al primo utilizzo.
+     */
+    @NonNull
+    public static synchronized MeasurementJournal get(@NonNull Context context) {
+        if (instance == null) {
+            instance = new MeasurementJournal(new File(context.getApplicationContext().getFilesDir(), FILE_NAME));
+        }
+        return instance;
+    }
+
+    MeasurementJournal(File file) {
+        this.file = file;
+        load();
+    }
+
+    /**
+     * @param key La chiave della misurazione.
+     * @return L'identificativo della scrittura che salva la misurazione.
+     */
+    @NonNull
+    public static String measurementId(@NonNull String key) {
+        return MEASUREMENT_PREFIX + key;
+    }
+
+    /**
+     * @param requestId L'ID della richiesta.
+     * @return L'identificativo della scrittura che conclude la richiesta.
+     */
+    @NonNull
+    public static String requestId(@NonNull String requestId) {
+        return REQUEST_PREFIX + requestId;
+    }
+
+    /**
+     * Registra una scrittura e la forza su disco. Se una scrittura con lo stesso identificativo è ancora
+     * in sospeso, i nuovi percorsi vengono uniti ai suoi, sostituendo i valori dei percorsi già presenti.
+     *
+     * @param id      L'identificativo della scrittura, ottenuto da {@link #measurementId(String)} o {@link #requestId(String)}.
+     * @param updates La mappa percorso → valore da passare a updateChildren. I valori possono essere solo
+     *                stringhe, numeri, booleani, null, mappe con chiavi stringa e liste degli stessi tipi.
+     * @throws IOException              Se la scrittura sul disco non riesce.
+     * @throws IllegalArgumentException Se l'identificativo contiene spazi o un valore non è rappresentabile in JSON.
+     */
+    public synchronized void append(@NonNull String id, @NonNull Map<String, Object> updates) throws IOException {
+        if (id.isEmpty() || id.indexOf(' ') >= 0 || id.indexOf('\n') >= 0) {
+            throw new IllegalArgumentException("Invalid journal id: " + id);
+        }
+        for (Object value : updates.values()) checkValue(value);
+
+        Map<String, Object> merged = new HashMap<>();
+        Map<String, Object> previous = pending.get(id);
+        if (previous != null) {
+            Log.d(TAG, "Merging into pending " + id);
+            merged.putAll(previous);
+        }
+        merged.putAll(updates);
+        write(record(id, merged));
+        pending.put(id, merged);
+    }
+
+    /**
+     * @return La scrittura in sospeso più vecchia, oppure null se il giornale è vuoto.
+     */
+    @Nullable
+    public synchronized Map.Entry<String, Map<String, Object>> first() {
+        Iterator<Map.Entry<String, Map<String, Object>>> iterator = pending.entrySet().iterator();
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+
+    /**
+     * Segna una scrittura come confermata dal server, svuotando o compattando il file quando possibile.
+     * Se nel frattempo alla scrittura sono stati uniti altri percorsi, resta in sospeso per essere inviata di nuovo.
+     *
+     * @param id   L'identificativo della scrittura.
+     * @param sent La mappa inviata, restituita da {@link #first()}.
+     */
+    public synchronized void markSynced(@NonNull String id, @NonNull Map<String, Object> sent) {
+        if (pending.get(id) != sent) return;
+        pending.remove(id);
+        try {
+            if (pending.isEmpty() && deadLetters.isEmpty()) {
+                truncate();
+            } else if (syncedLines + 1 >= COMPACT_THRESHOLD) {
+                compact();
+            } else {
+                write("D " + id + "\n");
+                syncedLines++;
+            }
+        } catch (IOException e) {
+            // Alla peggio la scrittura verrà reinviata, senza effetti perché i percorsi sono gli stessi
+            Log.e(TAG, "Unable to mark " + id + " as synced", e);
+        }
+    }
+
+    /**
+     * Sposta tra gli scarti una scrittura che il server ha rifiutato e rifiuterebbe di nuovo, ad esempio
+     * per un percorso non valido o per i permessi: la scrittura successiva può essere inviata.
+     *
+     * @param id   L'identificativo della scrittura.
+     * @param sent La mappa inviata, restituita da {@link #first()}.
+     */
+    public synchronized void markFailed(@NonNull String id, @NonNull Map<String, Object> sent) {
+        if (pending.get(id) != sent) return;
+        pending.remove(id);
+        deadLetters.put(id, sent);
+        try {
+            write("X " + id + "\n");
+        } catch (IOException e) {
+            // Alla riapertura la scrittura tornerà in sospeso e verrà scartata di nuovo
+            Log.e(TAG, "Unable to mark " + id + " as failed", e);
+        }
+    }
+
+    /**
+     * @return Il numero di scritture in sospeso.
+     */
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * @return Il numero di scritture scartate.
+     */
+    public synchronized int deadLetterCount() {
+        return deadLetters.size();
+    }
+
+    /**
+     * Rilegge il file, ricostruendo le scritture in sospeso e scartando un'eventuale riga incompleta.
+     */
+    private void load() {
+        if (!file.exists()) return;
+        byte[] content;
+        try (FileInputStream in = new FileInputStream(file)) {
+            content = new byte[(int) file.length()];
+            int read = 0;
+            while (read < content.length) {
+                int n = in.read(content, read, content.length - read);
+                if (n < 0) break;
+                read += n;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read the journal", e);
+            return;
+        }
+
+        int start = 0;
+        for (int i = 0; i < content.length; i++) {
+            if (content[i] != '\n') continue;
+            parse(new String(content, start, i - start, StandardCharsets.UTF_8));
+            start = i + 1;
+        }
+        if (start < content.length) {
+            Log.w(TAG, "Discarding a torn record of " + (content.length - start) + " bytes");
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(start);
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to truncate the journal", e);
+            }
+        }
+        Log.d(TAG, "Loaded " + pending.size() + " pending writes, " + deadLetters.size() + " dead letters");
+    }
+
+    private void parse(String line) {
+        if (line.startsWith("D ")) {
+            if (pending.remove(line.substring(2)) != null) syncedLines++;
+            return;
+        }
+        if (line.startsWith("X ")) {
+            String id = line.substring(2);
+            Map<String, Object> failed = pending.remove(id);
+            if (failed != null) deadLetters.put(id, failed);
+            return;
+        }
+        int separator = line.indexOf(' ', 2);
+        if (!line.startsWith("A ") || separator < 0) {
+            Log.w(TAG, "Skipping malformed record");
+            return;
+        }
+        try {
+            pending.put(line.substring(2, separator), toMap(new JSONObject(line.substring(separator + 1))));
+        } catch (JSONException e) {
+            Log.w(TAG, "Skipping unreadable record", e);
+        }
+    }
+
+    /**
+     * Verifica che un valore sia rappresentabile in JSON e riletto senza perdite.
+     */
+    private static void checkValue(Object value) {
+        if (value instanceof Double || value instanceof Float) {
+            double number = ((Number) value).doubleValue();
+            if (Double.isNaN(number) || Double.isInfinite(number)) {
+                throw new IllegalArgumentException("Non-finite journal value: " + value);
+            }
+        }
+        if (value == null || value instanceof String || value instanceof Number || value instanceof Boolean) return;
+        if (value instanceof Map) {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (!(entry.getKey() instanceof String)) {
+                    throw new IllegalArgumentException("Map keys must be strings: " + entry.getKey());
+                }
+                checkValue(entry.getValue());
+            }
+            return;
+        }
+        if (value instanceof List) {
+            for (Object element : (List<?>) value) checkValue(element);
+            return;
+        }
+        throw new IllegalArgumentException("Unsupported journal value: " + value.getClass().getName());
+    }
+
+    /**
+     * @return La riga che registra la scrittura.
+     */
+    private static String record(String id, Map<String, Object> updates) {
+        try {
+            return "A " + id + " " + toJson(updates) + "\n";
+        } catch (JSONException e) {
+            // I valori sono già stati verificati da checkValue()
+            throw new IllegalArgumentException("Unable to serialize " + id, e);
+        }
+    }
+
+    /**
+     * Converte mappe annidate in un oggetto JSON, scrivendo esplicitamente i valori null: cancellano il percorso
+     * e devono essere conservati.
+     */
+    private static JSONObject toJson(Map<?, ?> map) throws JSONException {
+        JSONObject json = new JSONObject();
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            json.put((String) entry.getKey(), toJsonValue(entry.getValue()));
+        }
+        return json;
+    }
+
+    private static Object toJsonValue(Object value) throws JSONException {
+        if (value == null) return JSONObject.NULL;
+        if (value instanceof Map) return toJson((Map<?, ?>) value);
+        if (value instanceof List) {
+            JSONArray array = new JSONArray();
+            for (Object element : (List<?>) value) array.put(toJsonValue(element));
+            return array;
+        }
+        return value;
+    }
+
+    /**
+     * Converte un oggetto JSON in mappe annidate, nella forma accettata da updateChildren.
+     */
+    private static Map<String, Object> toMap(JSONObject json) throws JSONException {
+        Map<String, Object> map = new HashMap<>();
+        Iterator<String> keys = json.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            map.put(key, toValue(json.get(key)));
+        }
+        return map;
+    }
+
+    /**
+     * Converte un valore JSON: oggetti in mappe, array in liste e JSONObject.NULL in null, che cancella il percorso.
+     */
+    private static Object toValue(Object value) throws JSONException {
+        if (value instanceof JSONObject) return toMap((JSONObject) value);
+        if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            List<Object> list = new ArrayList<>(array.length());
+            for (int i = 0; i < array.length(); i++) list.add(toValue(array.get(i)));
+            return list;
+        }
+        return value == JSONObject.NULL ? null : value;
+    }
+
+    private void write(String line) throws IOException {
+        if (out == null) out = new FileOutputStream(file, true);
+        out.write(line.getBytes(StandardCharsets.UTF_8));
+        out.getFD().sync();
+    }
+
+    private void truncate() throws IOException {
+        closeStream();
+        new FileOutputStream(file, false).close();
+        syncedLines = 0;
+    }
+
+    private void compact() throws IOException {
+        closeStream();
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream compacted = new FileOutputStream(temp, false)) {
+            for (Map.Entry<String, Map<String, Object>> entry : deadLetters.entrySet()) {
+                compacted.write((record(entry.getKey(), entry.getValue()) + "X " + entry.getKey() + "\n")
+                        .getBytes(StandardCharsets.UTF_8));
+            }
+            for (Map.Entry<String, Map<String, Object>> entry : pending.entrySet()) {
+                compacted.write(record(entry.getKey(), entry.getValue()).getBytes(StandardCharsets.UTF_8));
+            }
+            compacted.getFD().sync();
+        }
+        if (!temp.renameTo(file)) throw new IOException("Unable to replace " + file);
+        syncedLines = 0;
+    }
+
+    private void closeStream() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+}
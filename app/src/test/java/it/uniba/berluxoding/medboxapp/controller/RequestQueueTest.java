@@ -0,0 +1,32 @@
+package it.uniba.berluxoding.medboxapp.controller;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Verifica la scadenza delle prenotazioni della {@link RequestQueue}.
+ */
+public class RequestQueueTest {
+
+    @Test
+    public void claimExpiry_isZeroForAnUnclaimedRequest() {
+        assertEquals(0, RequestQueue.claimExpiry(null, null));
+        assertEquals(0, RequestQueue.claimExpiry(null, 1000L));
+    }
+
+    @Test
+    public void claimExpiry_followsTheClaimTimeout() {
+        long claimedAt = 1_700_000_000_000L;
+        assertEquals(claimedAt + RequestQueue.CLAIM_TIMEOUT_MS, RequestQueue.claimExpiry("medbox", claimedAt));
+
+        // La prenotazione viene rinnovata più volte prima di scadere
+        assertTrue(RequestQueue.RENEW_INTERVAL_MS * 2 < RequestQueue.CLAIM_TIMEOUT_MS);
+    }
+
+    @Test
+    public void claimExpiry_neverExpiresWithoutTheClaimTime() {
+        assertEquals(Long.MAX_VALUE, RequestQueue.claimExpiry("medbox", null));
+    }
+}
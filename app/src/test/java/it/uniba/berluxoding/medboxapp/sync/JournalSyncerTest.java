@@ -0,0 +1,32 @@
+package it.uniba.berluxoding.medboxapp.sync;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Verifica il ritardo esponenziale con variazione casuale tra i tentativi di invio del {@link JournalSyncer}.
+ */
+public class JournalSyncerTest {
+
+    @Test
+    public void retryDelay_staysWithinHalfAndOneAndAHalfTheBackoff() {
+        assertEquals(500, JournalSyncer.retryDelay(1000, 0));
+        assertEquals(1000, JournalSyncer.retryDelay(1000, 0.5));
+        assertEquals(1499, JournalSyncer.retryDelay(1000, 0.9999));
+    }
+
+    @Test
+    public void nextBackoff_doublesUpToTheMaximum() {
+        long backoff = JournalSyncer.INITIAL_BACKOFF_MS;
+        int attempts = 0;
+        while (backoff < JournalSyncer.MAX_BACKOFF_MS) {
+            long next = JournalSyncer.nextBackoff(backoff);
+            assertEquals(Math.min(backoff * 2, JournalSyncer.MAX_BACKOFF_MS), next);
+            backoff = next;
+            attempts++;
+        }
+        assertEquals(9, attempts);
+        assertEquals(JournalSyncer.MAX_BACKOFF_MS, JournalSyncer.nextBackoff(backoff));
+    }
+}
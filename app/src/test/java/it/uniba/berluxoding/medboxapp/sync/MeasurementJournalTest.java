@@ -0,0 +1,191 @@
+package it.uniba.berluxoding.medboxapp.sync;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Verifica che il {@link MeasurementJournal} ricostruisca alla riapertura le scritture in sospeso, nell'ordine
+ * e con i valori originali, scartando una riga incompleta; che venga compattato dopo
+ * {@value MeasurementJournal#COMPACT_THRESHOLD} conferme; che le scritture con lo stesso identificativo vengano
+ * unite e che le scritture rifiutate passino tra gli scarti.
+ */
+public class MeasurementJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void reopen_replaysThePendingWritesInOrder() throws IOException {
+        File file = new File(folder.getRoot(), MeasurementJournal.FILE_NAME);
+        MeasurementJournal journal = new MeasurementJournal(file);
+        Map<String, Object> reading = new HashMap<>();
+        reading.put("bpm", "72");
+        reading.put("tags", Arrays.asList("a", Collections.singletonMap("b", 1)));
+        Map<String, Object> updates = new HashMap<>();
+        updates.put("AsilApp/u/misurazioni/k2", reading);
+        updates.put("medbox/richieste/r2", null);
+        journal.append(MeasurementJournal.measurementId("k1"), Collections.singletonMap("p", (Object) 1));
+        journal.append(MeasurementJournal.measurementId("k2"), updates);
+        journal.append(MeasurementJournal.measurementId("k3"), Collections.singletonMap("p", (Object) 3));
+        Map.Entry<String, Map<String, Object>> synced = journal.first();
+        journal.markSynced(synced.getKey(), synced.getValue());
+
+        MeasurementJournal reopened = new MeasurementJournal(file);
+        assertEquals(2, reopened.size());
+        Map.Entry<String, Map<String, Object>> first = reopened.first();
+        assertEquals(MeasurementJournal.measurementId("k2"), first.getKey());
+
+        // Le cancellazioni e le liste annidate vengono rilette come erano state registrate
+        assertTrue(first.getValue().containsKey("medbox/richieste/r2"));
+        assertNull(first.getValue().get("medbox/richieste/r2"));
+        @SuppressWarnings("unchecked")
+        Map<String, Object> replayed = (Map<String, Object>) first.getValue().get("AsilApp/u/misurazioni/k2");
+        assertEquals("72", replayed.get("bpm"));
+        List<?> tags = (List<?>) replayed.get("tags");
+        assertEquals("a", tags.get(0));
+        assertEquals(Collections.singletonMap("b", 1), tags.get(1));
+
+        reopened.markSynced(first.getKey(), first.getValue());
+        assertEquals(MeasurementJournal.measurementId("k3"), reopened.first().getKey());
+    }
+
+    @Test
+    public void reopen_discardsATornRecord() throws IOException {
+        File file = new File(folder.getRoot(), MeasurementJournal.FILE_NAME);
+        MeasurementJournal journal = new MeasurementJournal(file);
+        journal.append(MeasurementJournal.measurementId("k1"), Collections.singletonMap("p", (Object) 1));
+        long length = file.length();
+
+        // Arresto durante la scrittura della riga successiva
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write("A misurazione/k2 {\"p\":".getBytes(StandardCharsets.UTF_8));
+        }
+
+        MeasurementJournal reopened = new MeasurementJournal(file);
+        assertEquals(1, reopened.size());
+        assertEquals(MeasurementJournal.measurementId("k1"), reopened.first().getKey());
+        assertEquals(length, file.length());
+
+        // Le righe successive vengono aggiunte dopo l'ultima completa
+        reopened.append(MeasurementJournal.measurementId("k3"), Collections.singletonMap("p", (Object) 3));
+        assertEquals(2, new MeasurementJournal(file).size());
+    }
+
+    @Test
+    public void markSynced_compactsAfterTheThreshold() throws IOException {
+        File file = new File(folder.getRoot(), MeasurementJournal.FILE_NAME);
+        MeasurementJournal journal = new MeasurementJournal(file);
+        int count = MeasurementJournal.COMPACT_THRESHOLD + 2;
+        for (int i = 0; i < count; i++) {
+            journal.append(MeasurementJournal.measurementId("k" + i), Collections.singletonMap("p", (Object) i));
+        }
+        for (int i = 0; i < MeasurementJournal.COMPACT_THRESHOLD - 1; i++) {
+            Map.Entry<String, Map<String, Object>> entry = journal.first();
+            journal.markSynced(entry.getKey(), entry.getValue());
+        }
+        assertEquals(count + MeasurementJournal.COMPACT_THRESHOLD - 1, lines(file).size());
+
+        Map.Entry<String, Map<String, Object>> entry = journal.first();
+        journal.markSynced(entry.getKey(), entry.getValue());
+        List<String> lines = lines(file);
+        assertEquals(2, lines.size());
+        assertTrue(lines.get(0).startsWith("A " + MeasurementJournal.measurementId("k" + (count - 2)) + " "));
+
+        MeasurementJournal reopened = new MeasurementJournal(file);
+        assertEquals(2, reopened.size());
+        assertEquals(MeasurementJournal.measurementId("k" + (count - 2)), reopened.first().getKey());
+    }
+
+    @Test
+    public void append_mergesWritesWithTheSameId() throws IOException {
+        File file = new File(folder.getRoot(), MeasurementJournal.FILE_NAME);
+        MeasurementJournal journal = new MeasurementJournal(file);
+        String id = MeasurementJournal.requestId("r1");
+        journal.append(id, Collections.singletonMap("medbox/risposte/r1/stato", (Object) "presa"));
+        Map<String, Object> sent = journal.first().getValue();
+
+        Map<String, Object> outcome = new HashMap<>();
+        outcome.put("medbox/risposte/r1/stato", "annullata");
+        outcome.put("medbox/risposte/r1/conclusaIl", 1000L);
+        journal.append(id, outcome);
+        assertEquals(1, journal.size());
+
+        // La conferma della prima versione non conclude quella unita
+        journal.markSynced(id, sent);
+        assertEquals(1, journal.size());
+
+        Map<String, Object> merged = new MeasurementJournal(file).first().getValue();
+        assertEquals("annullata", merged.get("medbox/risposte/r1/stato"));
+        assertEquals(1000, ((Number) merged.get("medbox/risposte/r1/conclusaIl")).longValue());
+
+        journal.markSynced(id, journal.first().getValue());
+        assertEquals(0, journal.size());
+        assertEquals(0, file.length());
+    }
+
+    @Test
+    public void ids_areNamespacedByType() {
+        assertNotEquals(MeasurementJournal.measurementId("k"), MeasurementJournal.requestId("k"));
+    }
+
+    @Test
+    public void markFailed_keepsTheWriteAsADeadLetter() throws IOException {
+        File file = new File(folder.getRoot(), MeasurementJournal.FILE_NAME);
+        MeasurementJournal journal = new MeasurementJournal(file);
+        journal.append(MeasurementJournal.measurementId("k1"), Collections.singletonMap("p", (Object) 1));
+        journal.append(MeasurementJournal.measurementId("k2"), Collections.singletonMap("p", (Object) 2));
+        Map.Entry<String, Map<String, Object>> entry = journal.first();
+        journal.markFailed(entry.getKey(), entry.getValue());
+        assertEquals(MeasurementJournal.measurementId("k2"), journal.first().getKey());
+
+        // Con uno scarto il file non viene svuotato anche se non ci sono scritture in sospeso
+        entry = journal.first();
+        journal.markSynced(entry.getKey(), entry.getValue());
+        MeasurementJournal reopened = new MeasurementJournal(file);
+        assertEquals(0, reopened.size());
+        assertEquals(1, reopened.deadLetterCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void append_rejectsValuesThatDoNotRoundTrip() throws IOException {
+        MeasurementJournal journal = new MeasurementJournal(new File(folder.getRoot(), MeasurementJournal.FILE_NAME));
+        journal.append(MeasurementJournal.measurementId("k1"), Collections.singletonMap("p", new Object()));
+    }
+
+    @Test
+    public void append_rejectedValueLeavesTheJournalUnchanged() throws IOException {
+        File file = new File(folder.getRoot(), MeasurementJournal.FILE_NAME);
+        MeasurementJournal journal = new MeasurementJournal(file);
+        boolean rejected = false;
+        try {
+            journal.append(MeasurementJournal.measurementId("k1"), Collections.singletonMap("p", (Object) Double.NaN));
+        } catch (IllegalArgumentException e) {
+            rejected = true;
+        }
+        assertTrue(rejected);
+        assertEquals(0, journal.size());
+        assertFalse(file.exists());
+    }
+
+    private static List<String> lines(File file) throws IOException {
+        return Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,144 @@
+package it.uniba.berluxoding.medboxapp.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import it.uniba.berluxoding.medboxapp.ppg.AutocorrelationHeartRateEstimator;
+import it.uniba.berluxoding.medboxapp.ppg.HeartRateEstimate;
+import it.uniba.berluxoding.medboxapp.ppg.HeartRateEstimator;
+import it.uniba.berluxoding.medboxapp.ppg.SmoothingFilter;
+import it.uniba.berluxoding.medboxapp.ppg.SyntheticPpgSignal;
+import it.uniba.berluxoding.medboxapp.ppg.TimeSeries;
+import it.uniba.berluxoding.medboxapp.ppg.WelchHeartRateEstimator;
+
+/**
+ * Costo dell'analisi di un'intera misurazione: memorizzazione dei campioni, lisciatura e rilevamento
+ * dei picchi originali, confrontati con la serie circolare, il filtro a cascata e lo stimatore incrementale,
+ * e costo degli stimatori spettrale (Welch) e ad autocorrelazione sulla stessa serie.
+ * Ogni operazione elabora {@code sampleCount} campioni: 300 corrispondono a 10 secondi a 30 fps.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AnalysisBenchmark {
+
+    @Param({"300", "1800"})
+    public int sampleCount;
+
+    private double[] values;
+    private long[] times;
+    private double[] work;
+    private List<LegacyFrameProcessing.BrightnessPlusTimeStamp> legacySamples;
+    private List<LegacyFrameProcessing.BrightnessPlusTimeStamp> legacySmoothed;
+
+    private final SmoothingFilter smoothingFilter = new SmoothingFilter(9);
+    private HeartRateEstimator estimator;
+    private WelchHeartRateEstimator welchEstimator;
+    private AutocorrelationHeartRateEstimator autocorrelationEstimator;
+    private TimeSeries series;
+
+    @Setup
+    public void setup() {
+        SyntheticPpgSignal signal = new SyntheticPpgSignal(80, 42).setNoise(0.3).setFrameJitter(0.1);
+        values = new double[sampleCount];
+        times = new long[sampleCount];
+        legacySamples = new ArrayList<>(sampleCount);
+        for (int i = 0; i < sampleCount; i++) {
+            signal.next();
+            values[i] = signal.getValue();
+            times[i] = signal.getTime();
+            legacySamples.add(new LegacyFrameProcessing.BrightnessPlusTimeStamp(values[i], times[i]));
+        }
+        legacySmoothed = LegacyFrameProcessing.smoothNineTimes(legacySamples);
+        work = new double[sampleCount];
+        estimator = new HeartRateEstimator(sampleCount);
+        welchEstimator = new WelchHeartRateEstimator(sampleCount);
+        autocorrelationEstimator = new AutocorrelationHeartRateEstimator(sampleCount);
+        series = new TimeSeries(sampleCount);
+    }
+
+    @Benchmark
+    public Object legacySampleStore() {
+        LinkedHashSet<LegacyFrameProcessing.BrightnessPlusTimeStamp> set = new LinkedHashSet<>();
+        for (int i = 0; i < sampleCount; i++) {
+            set.add(new LegacyFrameProcessing.BrightnessPlusTimeStamp(values[i], times[i]));
+        }
+        return set;
+    }
+
+    @Benchmark
+    public Object legacySmoothing() {
+        return LegacyFrameProcessing.smoothNineTimes(legacySamples);
+    }
+
+    @Benchmark
+    public Object legacyPeakDetection() {
+        return LegacyFrameProcessing.detectPeaks(legacySmoothed);
+    }
+
+    @Benchmark
+    public int legacyProcessFrames() {
+        return LegacyFrameProcessing.processFrames(legacySamples);
+    }
+
+    @Benchmark
+    public TimeSeries timeSeriesStore() {
+        series.clear();
+        for (int i = 0; i < sampleCount; i++) {
+            series.append(values[i], times[i]);
+        }
+        return series;
+    }
+
+    @Benchmark
+    public double[] fusedSmoothing() {
+        System.arraycopy(values, 0, work, 0, sampleCount);
+        smoothingFilter.smoothInPlace(work, sampleCount);
+        return work;
+    }
+
+    @Benchmark
+    public int streamingEstimator() {
+        estimator.reset();
+        for (int i = 0; i < sampleCount; i++) {
+            estimator.addSample(values[i], times[i]);
+        }
+        HeartRateEstimate estimate = estimator.finish();
+        return estimate.getBpm();
+    }
+
+    @Benchmark
+    public int welchEstimator() {
+        welchEstimator.reset();
+        for (int i = 0; i < sampleCount; i++) {
+            welchEstimator.addSample(values[i], times[i]);
+        }
+        return welchEstimator.finish().getBpm();
+    }
+
+    @Benchmark
+    public int autocorrelationEstimator() {
+        autocorrelationEstimator.reset();
+        for (int i = 0; i < sampleCount; i++) {
+            autocorrelationEstimator.addSample(values[i], times[i]);
+        }
+        return autocorrelationEstimator.finish().getBpm();
+    }
+}
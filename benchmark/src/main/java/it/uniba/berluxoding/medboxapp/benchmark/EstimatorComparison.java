@@ -0,0 +1,102 @@
+package it.uniba.berluxoding.medboxapp.benchmark;
+
+import java.util.Locale;
+
+import it.uniba.berluxoding.medboxapp.ppg.BpmEstimator;
+import it.uniba.berluxoding.medboxapp.ppg.EstimatorEngine;
+import it.uniba.berluxoding.medboxapp.ppg.HeartRateEstimate;
+import it.uniba.berluxoding.medboxapp.ppg.PpgPipeline;
+import it.uniba.berluxoding.medboxapp.ppg.SyntheticPpgSignal;
+
+/**
+ * Confronto tra i metodi di stima della frequenza cardiaca su misurazioni sintetiche di 10 secondi,
+ * da 50 a 180 BPM, con due livelli di rumore. Per ogni metodo riporta l'errore medio della stima finale,
+ * il numero di stime finali fuori tolleranza, il tempo dopo il quale la stima parziale resta entro
+ * la tolleranza fino alla fine della misurazione e il tempo di CPU per stima parziale e finale.
+ *
+ * Esecuzione: ./gradlew :benchmark:estimatorComparison
+ */
+public final class EstimatorComparison {
+
+    private static final long MEASUREMENT_MS = 10000;
+    private static final long LIVE_UPDATE_INTERVAL_MS = 250;
+    private static final int TOLERANCE_BPM = 3;
+    private static final int[] RATES = {50, 60, 75, 90, 120, 150, 180};
+    private static final double[] NOISE_LEVELS = {0.3, 2};
+    private static final int SEEDS = 5;
+
+    private EstimatorComparison() {
+    }
+
+    public static void main(String[] args) {
+        System.out.println(String.format(Locale.ROOT, "%-16s %6s %10s %8s %12s %14s %14s",
+                "metodo", "rumore", "errore BPM", "fuori", "stabile dopo", "ns/st. parz.", "ns/st. finale"));
+        for (int warmup = 0; warmup < 2; warmup++) {
+            for (EstimatorEngine engine : EstimatorEngine.values()) {
+                for (double noise : NOISE_LEVELS) {
+                    String report = run(engine, noise);
+                    if (warmup == 1) System.out.println(report);
+                }
+            }
+        }
+    }
+
+    private static String run(EstimatorEngine engine, double noise) {
+        double error = 0;
+        int valid = 0;
+        int outside = 0;
+        long stableAfter = 0;
+        int runs = 0;
+        long liveNanos = 0;
+        int liveCount = 0;
+        long finalNanos = 0;
+
+        for (int bpm : RATES) {
+            for (long seed = 1; seed <= SEEDS; seed++) {
+                SyntheticPpgSignal signal = new SyntheticPpgSignal(bpm, seed)
+                        .setNoise(noise)
+                        .setDrift(1)
+                        .setFrameJitter(0.1);
+                BpmEstimator estimator = engine.create();
+                PpgPipeline pipeline = new PpgPipeline(estimator);
+
+                long lastOutside = 0;
+                long lastUpdate = -LIVE_UPDATE_INTERVAL_MS;
+                while (true) {
+                    signal.next();
+                    if (signal.getTime() > MEASUREMENT_MS) break;
+                    pipeline.addSample(signal.getValue(), signal.getTime());
+                    if (signal.getTime() - lastUpdate < LIVE_UPDATE_INTERVAL_MS) continue;
+
+                    // Stima parziale con la stessa cadenza dell'aggiornamento a schermo
+                    lastUpdate = signal.getTime();
+                    long start = System.nanoTime();
+                    HeartRateEstimate live = pipeline.getEstimate();
+                    liveNanos += System.nanoTime() - start;
+                    liveCount++;
+                    if (!live.isValid() || Math.abs(live.getBpm() - bpm) > TOLERANCE_BPM) {
+                        lastOutside = signal.getTime();
+                    }
+                }
+
+                long start = System.nanoTime();
+                HeartRateEstimate estimate = pipeline.finish();
+                finalNanos += System.nanoTime() - start;
+                if (estimate.isValid()) {
+                    int difference = Math.abs(estimate.getBpm() - bpm);
+                    error += difference;
+                    valid++;
+                    if (difference > TOLERANCE_BPM) outside++;
+                } else {
+                    outside++;
+                }
+                stableAfter += lastOutside;
+                runs++;
+            }
+        }
+
+        return String.format(Locale.ROOT, "%-16s %6.1f %10.2f %8d %11.1fs %14d %14d",
+                engine, noise, valid > 0 ? error / valid : Double.NaN, outside,
+                stableAfter / 1000.0 / runs, liveNanos / Math.max(liveCount, 1), finalNanos / runs);
+    }
+}
@@ -0,0 +1,142 @@
+package it.uniba.berluxoding.medboxapp.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import it.uniba.berluxoding.medboxapp.ppg.FingerDetector;
+import it.uniba.berluxoding.medboxapp.ppg.FrameStatistics;
+import it.uniba.berluxoding.medboxapp.ppg.FrameStatisticsKernel;
+import it.uniba.berluxoding.medboxapp.ppg.PipelineMetrics;
+import it.uniba.berluxoding.medboxapp.ppg.SamplingRegion;
+import it.uniba.berluxoding.medboxapp.ppg.StripedFrameDecoder;
+
+/**
+ * Costo per frame dell'elaborazione di un'immagine: conversione, normalizzazione e luminanza originali,
+ * singolarmente e in sequenza, confrontate con il kernel a passata singola sull'intero frame
+ * e su una regione di interesse campionata con passo 1 e 4, e decodifica del canale rosso
+ * in un solo thread o a strisce su tutti i core disponibili, e controllo della presenza del dito.
+ * Misura anche il costo della registrazione della durata di una fase, indipendente dalla risoluzione.
+ * Il budget di riferimento è di 33 ms per frame (30 fps).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameBenchmark {
+
+    @Param({"320x240", "640x480", "1280x720"})
+    public String resolution;
+
+    private YuvFrame frame;
+    private int[] rgb;
+    private int[] normalizedRgb;
+    private final FrameStatistics statistics = new FrameStatistics();
+    private final SamplingRegion centerRegion = SamplingRegion.centered(0.5, 1);
+    private final SamplingRegion centerGrid = SamplingRegion.centered(0.5, 4);
+    private StripedFrameDecoder stripedDecoder;
+    private final FingerDetector fingerDetector = new FingerDetector();
+    private final PipelineMetrics metrics = new PipelineMetrics();
+
+    @Setup
+    public void setup() {
+        frame = new YuvFrame(resolution, 42);
+        rgb = LegacyFrameProcessing.decodeYUV420SP(frame.yBuffer, frame.uBuffer, frame.vBuffer, frame.width, frame.height);
+        normalizedRgb = LegacyFrameProcessing.normalizeImage(rgb);
+        frame.rewind();
+        stripedDecoder = new StripedFrameDecoder();
+    }
+
+    @TearDown
+    public void tearDown() {
+        stripedDecoder.close();
+    }
+
+    @Benchmark
+    public int[] legacyDecode() {
+        frame.rewind();
+        return LegacyFrameProcessing.decodeYUV420SP(frame.yBuffer, frame.uBuffer, frame.vBuffer, frame.width, frame.height);
+    }
+
+    @Benchmark
+    public int[] legacyNormalize() {
+        return LegacyFrameProcessing.normalizeImage(rgb);
+    }
+
+    @Benchmark
+    public double legacyLuminance() {
+        return LegacyFrameProcessing.calculateLuminance(normalizedRgb);
+    }
+
+    @Benchmark
+    public double legacyFrame() {
+        frame.rewind();
+        int[] decoded = LegacyFrameProcessing.decodeYUV420SP(frame.yBuffer, frame.uBuffer, frame.vBuffer, frame.width, frame.height);
+        return LegacyFrameProcessing.calculateLuminance(LegacyFrameProcessing.normalizeImage(decoded));
+    }
+
+    @Benchmark
+    public double fusedLuma() {
+        FrameStatisticsKernel.compute(frame.yBuffer, frame.rowStride, 1, frame.width, frame.height, statistics);
+        return statistics.getNormalizedMean();
+    }
+
+    @Benchmark
+    public double fusedLumaChroma() {
+        FrameStatisticsKernel.compute(frame.yBuffer, frame.rowStride, 1, frame.uBuffer, frame.vBuffer,
+                frame.uvRowStride, frame.uvPixelStride, frame.width, frame.height, statistics);
+        return statistics.getMeanRed();
+    }
+
+    @Benchmark
+    public double regionLuma() {
+        FrameStatisticsKernel.compute(frame.yBuffer, frame.rowStride, 1, null, null, 0, 0,
+                frame.width, frame.height, centerRegion, statistics);
+        return statistics.getMean();
+    }
+
+    @Benchmark
+    public double regionGridLuma() {
+        FrameStatisticsKernel.compute(frame.yBuffer, frame.rowStride, 1, null, null, 0, 0,
+                frame.width, frame.height, centerGrid, statistics);
+        return statistics.getMean();
+    }
+
+    @Benchmark
+    public double fusedRed() {
+        FrameStatisticsKernel.computeRed(frame.yBuffer, frame.rowStride, 1, frame.uBuffer, frame.vBuffer,
+                frame.uvRowStride, frame.uvPixelStride, frame.width, frame.height, statistics);
+        return statistics.getMeanRed();
+    }
+
+    @Benchmark
+    public double stripedRed() {
+        stripedDecoder.decode(frame.yBuffer, frame.rowStride, 1, frame.uBuffer, frame.vBuffer,
+                frame.uvRowStride, frame.uvPixelStride, frame.width, frame.height, statistics);
+        return statistics.getMeanRed();
+    }
+
+    @Benchmark
+    public FingerDetector.Status fingerGate() {
+        return fingerDetector.check(frame.yBuffer, frame.rowStride, 1, frame.uBuffer, frame.vBuffer,
+                frame.uvRowStride, frame.uvPixelStride, frame.width, frame.height);
+    }
+
+    @Benchmark
+    public void stageTimer() {
+        metrics.recordSince(PipelineMetrics.Stage.STATISTICS, System.nanoTime());
+    }
+}
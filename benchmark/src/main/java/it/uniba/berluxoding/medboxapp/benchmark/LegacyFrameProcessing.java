@@ -0,0 +1,145 @@
+package it.uniba.berluxoding.medboxapp.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Copia dell'elaborazione originale di {@code HeartRateMonitorActivity}, prima della pipeline PPG:
+ * conversione YUV -> RGB, normalizzazione, luminanza, nove medie mobili su liste di oggetti
+ * e rilevamento dei picchi. Serve solo come riferimento per i benchmark e non va modificata.
+ */
+final class LegacyFrameProcessing {
+
+    private LegacyFrameProcessing() {
+    }
+
+    /**
+     * Coppia luminosità/timestamp usata dall'elaborazione originale.
+     */
+    static class BrightnessPlusTimeStamp {
+
+        private final double brightness;
+        private final long currentTime;
+
+        BrightnessPlusTimeStamp(double brightness, long currentTime) {
+            this.brightness = brightness;
+            this.currentTime = currentTime;
+        }
+
+        double getBrightness() {
+            return brightness;
+        }
+
+        long getCurrentTime() {
+            return currentTime;
+        }
+    }
+
+    static int[] decodeYUV420SP(ByteBuffer yBuffer, ByteBuffer uBuffer, ByteBuffer vBuffer, int width, int height) {
+        final int ySize = width * height;
+        final int uvSize = ySize / 4;
+        int[] rgb = new int[ySize];
+        byte[] y = new byte[ySize];
+        byte[] u = new byte[uvSize];
+        byte[] v = new byte[uvSize];
+
+        yBuffer.get(y);
+        uBuffer.get(u);
+        vBuffer.get(v);
+
+        for (int j = 0, yp = 0; j < height; j++) {
+            int uvp = (j >> 1) * width / 2;
+            for (int i = 0; i < width; i++, yp++) {
+                int yVal = (0xff & y[yp]) - 16;
+                if (yVal < 0) yVal = 0;
+
+                int uOffset = (0xff & u[uvp]) - 128;
+                int vOffset = (0xff & v[uvp]) - 128;
+
+                if ((i & 1) == 1) uvp++;
+
+                int y1192 = 1192 * yVal;
+                int r = (y1192 + 1634 * vOffset);
+                int g = (y1192 - 833 * vOffset - 400 * uOffset);
+                int b = (y1192 + 2066 * uOffset);
+
+                r = Math.max(0, Math.min(262143, r));
+                g = Math.max(0, Math.min(262143, g));
+                b = Math.max(0, Math.min(262143, b));
+
+                rgb[yp] = 0xff000000 | ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00) | ((b >> 10) & 0xff);
+            }
+        }
+        return rgb;
+    }
+
+    static int[] normalizeImage(int[] rgb) {
+        int max = Arrays.stream(rgb).max().orElse(255);
+        int min = Arrays.stream(rgb).min().orElse(0);
+
+        return Arrays.stream(rgb)
+                .map(color -> (color - min) * 255 / (max - min))
+                .toArray();
+    }
+
+    static double calculateLuminance(int[] rgb) {
+        double luminanceSum = 0.0;
+        for (int color : rgb) {
+            int r = (color >> 16) & 0xff;
+            int g = (color >> 8) & 0xff;
+            int b = color & 0xff;
+            double luminance = 0.299 * r + 0.587 * g + 0.114 * b;
+            luminanceSum += luminance;
+        }
+        return luminanceSum / rgb.length;
+    }
+
+    static List<BrightnessPlusTimeStamp> smoothData(List<BrightnessPlusTimeStamp> data, int windowSize) {
+        List<BrightnessPlusTimeStamp> smoothedData = new ArrayList<>();
+        for (int i = 0; i < data.size(); i++) {
+            int windowStart = Math.max(0, i - windowSize / 2);
+            int windowEnd = Math.min(data.size(), i + windowSize / 2 + 1);
+            double sum = 0;
+            for (int j = windowStart; j < windowEnd; j++) {
+                sum += data.get(j).getBrightness();
+            }
+            smoothedData.add(new BrightnessPlusTimeStamp(sum / (windowEnd - windowStart), data.get(i).getCurrentTime()));
+        }
+        data.clear();
+        return smoothedData;
+    }
+
+    static List<BrightnessPlusTimeStamp> smoothNineTimes(Collection<BrightnessPlusTimeStamp> samples) {
+        List<BrightnessPlusTimeStamp> smoothed = new ArrayList<>(samples);
+        for (int i = 9; i > 0; i--) {
+            smoothed = smoothData(smoothed, 3);
+        }
+        return smoothed;
+    }
+
+    static List<BrightnessPlusTimeStamp> detectPeaks(List<BrightnessPlusTimeStamp> smoothed) {
+        List<BrightnessPlusTimeStamp> peakIndices = new ArrayList<>();
+        for (int i = 1; i < smoothed.size() - 1; i++) {
+            if (smoothed.get(i).getBrightness() > smoothed.get(i - 1).getBrightness() &&
+                    smoothed.get(i).getBrightness() > smoothed.get(i + 1).getBrightness()) {
+                peakIndices.add(smoothed.get(i));
+            }
+        }
+        return peakIndices;
+    }
+
+    /**
+     * Equivalente di {@code processFrames()}: restituisce il BPM, oppure 0 se il calcolo fallisce.
+     */
+    static int processFrames(Collection<BrightnessPlusTimeStamp> samples) {
+        if (samples.size() < 30) return 0;
+        List<BrightnessPlusTimeStamp> peakIndices = detectPeaks(smoothNineTimes(samples));
+        if (peakIndices.size() < 2) return 0;
+        long totalInterval = peakIndices.get(peakIndices.size() - 1).getCurrentTime() - peakIndices.get(0).getCurrentTime();
+        long averageInterval = totalInterval / (peakIndices.size() - 1);
+        return (int) (60000 / averageInterval);
+    }
+}
@@ -0,0 +1,47 @@
+package it.uniba.berluxoding.medboxapp.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+import it.uniba.berluxoding.medboxapp.ppg.EstimatorEngine;
+import it.uniba.berluxoding.medboxapp.ppg.HeartRateEstimate;
+import it.uniba.berluxoding.medboxapp.ppg.PpgPipeline;
+import it.uniba.berluxoding.medboxapp.ppg.SessionReplay;
+
+/**
+ * Riproduce con ogni metodo di stima le sessioni registrate sul dispositivo con l'extra "recordSession"
+ * (cartella files/recordings dell'applicazione) e ne riporta stima finale, affidabilità e tempo di riproduzione.
+ *
+ * Esecuzione: ./gradlew :benchmark:recordingReplay -Precordings=sessione1.rec,sessione2.rec
+ */
+public final class RecordingReplay {
+
+    private RecordingReplay() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Uso: RecordingReplay <registrazione>...");
+            System.exit(1);
+        }
+        System.out.println(String.format(Locale.ROOT, "%-32s %-16s %6s %10s %8s %10s",
+                "registrazione", "metodo", "frame", "BPM", "affid.", "ms"));
+        for (String path : args) {
+            File file = new File(path);
+            try (SessionReplay replay = new SessionReplay(file)) {
+                int frames = 0;
+                while (replay.next()) frames++;
+                for (EstimatorEngine engine : EstimatorEngine.values()) {
+                    PpgPipeline pipeline = new PpgPipeline(engine.create());
+                    long start = System.nanoTime();
+                    HeartRateEstimate estimate = replay.replay(pipeline);
+                    double millis = (System.nanoTime() - start) / 1e6;
+                    System.out.println(String.format(Locale.ROOT, "%-32s %-16s %6d %10s %8.2f %10.2f",
+                            file.getName(), engine, frames, estimate.isValid() ? estimate.getBpm() : "-",
+                            estimate.getConfidence(), millis));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package it.uniba.berluxoding.medboxapp.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import it.uniba.berluxoding.medboxapp.ppg.HeartRateEstimate;
+import it.uniba.berluxoding.medboxapp.ppg.PpgPipeline;
+import it.uniba.berluxoding.medboxapp.ppg.RegionSelector;
+import it.uniba.berluxoding.medboxapp.ppg.SamplingRegion;
+import it.uniba.berluxoding.medboxapp.ppg.SyntheticPpgSignal;
+
+/**
+ * Confronto tra accuratezza e costo delle modalità di campionamento della luminosità.
+ * Per ogni modalità elabora misurazioni sintetiche di 10 secondi a 640x480, con il polpastrello
+ * al centro del frame e spostato verso l'alto, e riporta pixel letti, tempo medio per frame
+ * e errore medio sul BPM.
+ *
+ * Esecuzione: ./gradlew :benchmark:samplingTradeoff
+ */
+public final class SamplingTradeoff {
+
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+    private static final long MEASUREMENT_MS = 10000;
+    private static final int[] RATES = {72, 96, 120};
+    private static final double[][] FINGER_CENTERS = {{0.5, 0.5}, {0.5, 0.25}, {0.5, 0.1}};
+
+    private SamplingTradeoff() {
+    }
+
+    public static void main(String[] args) {
+        List<String> names = new ArrayList<>();
+        List<SamplingRegion> regions = new ArrayList<>();
+        names.add("intero frame, passo 1");
+        regions.add(SamplingRegion.full());
+        for (int stride : new int[]{1, 2, 4, 8}) {
+            names.add("centro 50%, passo " + stride);
+            regions.add(SamplingRegion.centered(0.5, stride));
+        }
+
+        System.out.println(String.format(Locale.ROOT, "%-28s %12s %12s %12s %10s",
+                "modalità", "pixel/frame", "ns/frame", "errore BPM", "falliti"));
+        for (int i = 0; i < regions.size(); i++) {
+            final SamplingRegion region = regions.get(i);
+            report(names.get(i), region.sampledPixelCount(WIDTH, HEIGHT), pipeline -> pipeline.setSamplingRegion(region));
+        }
+
+        int autoPixels = 0;
+        for (SamplingRegion candidate : RegionSelector.defaultCandidates()) {
+            autoPixels = Math.max(autoPixels, candidate.sampledPixelCount(WIDTH, HEIGHT));
+        }
+        report("automatica (5 candidate)", autoPixels, pipeline ->
+                pipeline.setCandidateRegions(RegionSelector.defaultCandidates(), RegionSelector.DEFAULT_CALIBRATION_MS));
+    }
+
+    private interface Configuration {
+        void apply(PpgPipeline pipeline);
+    }
+
+    private static void report(String name, int pixels, Configuration configuration) {
+        ByteBuffer yPlane = ByteBuffer.allocateDirect(WIDTH * HEIGHT);
+        long elapsed = 0;
+        int frames = 0;
+        double error = 0;
+        int runs = 0;
+        int failures = 0;
+
+        for (double[] center : FINGER_CENTERS) {
+            for (int bpm : RATES) {
+                SyntheticPpgSignal signal = new SyntheticPpgSignal(bpm, bpm)
+                        .setNoise(0.3)
+                        .setPixelNoise(24)
+                        .setFrameJitter(0.1)
+                        .setFingerCenter(center[0], center[1]);
+                PpgPipeline pipeline = new PpgPipeline();
+                configuration.apply(pipeline);
+
+                while (true) {
+                    signal.next();
+                    if (signal.getTime() > MEASUREMENT_MS) break;
+                    signal.renderFingerFrame(yPlane, WIDTH, HEIGHT, WIDTH, 1);
+                    long start = System.nanoTime();
+                    pipeline.processFrame(yPlane, WIDTH, 1, WIDTH, HEIGHT, signal.getTime());
+                    elapsed += System.nanoTime() - start;
+                    frames++;
+                }
+
+                HeartRateEstimate estimate = pipeline.finish();
+                if (estimate.isValid()) {
+                    error += Math.abs(estimate.getBpm() - bpm);
+                    runs++;
+                } else {
+                    failures++;
+                }
+            }
+        }
+
+        System.out.println(String.format(Locale.ROOT, "%-28s %12d %12d %12.1f %10d",
+                name, pixels, elapsed / Math.max(frames, 1), runs > 0 ? error / runs : Double.NaN, failures));
+    }
+}
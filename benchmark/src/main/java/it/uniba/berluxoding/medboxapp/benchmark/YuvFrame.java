@@ -0,0 +1,65 @@
+package it.uniba.berluxoding.medboxapp.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Frame YUV_420_888 sintetico con la disposizione in memoria tipica delle fotocamere Android:
+ * piano Y con righe allineate a {@value #ROW_ALIGNMENT} byte e piani U/V semi-planari (NV21),
+ * cioè due viste sfalsate di un byte sullo stesso buffer con {@code pixelStride} pari a 2.
+ */
+final class YuvFrame {
+
+    //Allineamento delle righe dei piani, come nei buffer restituiti da molti driver.
+    static final int ROW_ALIGNMENT = 128;
+
+    final int width;
+    final int height;
+    final int rowStride;
+    final int uvRowStride;
+    final int uvPixelStride = 2;
+
+    final ByteBuffer yBuffer;
+    final ByteBuffer uBuffer;
+    final ByteBuffer vBuffer;
+
+    /**
+     * @param resolution La risoluzione nel formato "larghezzaxaltezza", ad esempio "640x480".
+     * @param seed       Il seme usato per generare il contenuto del frame.
+     */
+    YuvFrame(String resolution, long seed) {
+        String[] size = resolution.split("x");
+        width = Integer.parseInt(size[0]);
+        height = Integer.parseInt(size[1]);
+        rowStride = (width + ROW_ALIGNMENT - 1) / ROW_ALIGNMENT * ROW_ALIGNMENT;
+        uvRowStride = rowStride;
+
+        Random random = new Random(seed);
+        yBuffer = ByteBuffer.allocateDirect(rowStride * height);
+        for (int i = 0; i < yBuffer.capacity(); i++) {
+            // Luminanza di un dito illuminato dal flash: valori alti con rumore
+            yBuffer.put(i, (byte) (150 + random.nextGaussian() * 20));
+        }
+
+        // Piano VU interleaved: V sui byte pari, U sui byte dispari
+        int chromaSize = uvRowStride * (height / 2);
+        ByteBuffer vu = ByteBuffer.allocateDirect(chromaSize);
+        for (int i = 0; i < chromaSize; i++) {
+            vu.put(i, (byte) ((i & 1) == 0 ? 190 + random.nextInt(8) : 100 + random.nextInt(8)));
+        }
+        int planeSize = uvRowStride * (height / 2 - 1) + (width / 2 - 1) * uvPixelStride + 1;
+        vu.position(0).limit(planeSize);
+        vBuffer = vu.slice();
+        vu.position(1).limit(planeSize + 1);
+        uBuffer = vu.slice();
+    }
+
+    /**
+     * Riporta i buffer alla posizione iniziale, necessario prima di ogni lettura relativa.
+     */
+    void rewind() {
+        yBuffer.rewind();
+        uBuffer.rewind();
+        vBuffer.rewind();
+    }
+}
@@ -0,0 +1,100 @@
+package it.uniba.berluxoding.medboxapp.ppg;
+
+/**
+ * Stimatore della frequenza cardiaca basato sulla funzione di autocorrelazione.
+ *
+ * La finestra di campioni, privata della tendenza lineare, viene confrontata con sé stessa a ritardi
+ * compresi tra il periodo di un battito a 200 BPM e quello a 40 BPM. Il periodo cardiaco corrisponde al
+ * primo ritardo la cui correlazione normalizzata è vicina alla massima, raffinato per interpolazione parabolica.
+ * A differenza del conteggio dei picchi usa tutti i campioni di ogni battito, e a differenza dello spettro
+ * non dipende dalla risoluzione in frequenza della finestra.
+ *
+ * L'affidabilità è il coefficiente di correlazione al ritardo scelto.
+ * I buffer sono allocati solo quando cambia la frequenza dei campioni o cresce la finestra.
+ */
+public class AutocorrelationHeartRateEstimator extends WindowedHeartRateEstimator {
+
+    //Frazione del massimo più alto che un massimo a ritardo minore deve raggiungere per essere preferito.
+    private static final double MULTIPLE_TOLERANCE = 0.8;
+
+    //Ritardi minimo e massimo analizzati, in campioni.
+    private int minLag;
+    private int maxLag;
+
+    //Finestra senza tendenza e correlazione normalizzata per ciascun ritardo.
+    private double[] detrended;
+    private double[] correlation;
+
+    public AutocorrelationHeartRateEstimator() {
+        this(HeartRateEstimator.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity Il numero massimo di campioni conservati.
+     */
+    public AutocorrelationHeartRateEstimator(int capacity) {
+        super(capacity);
+        detrended = new double[capacity];
+        onFrameRateChanged(getFrameRate());
+    }
+
+    @Override
+    void onFrameRateChanged(double frameRate) {
+        minLag = Math.max(2, (int) Math.floor(frameRate * 60 / MAX_BPM));
+        maxLag = (int) Math.ceil(frameRate * 60 / MIN_BPM);
+        correlation = new double[maxLag + 2];
+    }
+
+    @Override
+    HeartRateEstimate estimate(TimeSeries.View window) {
+        int n = window.size();
+        // Servono almeno un periodo completo alla frequenza analizzata più bassa e qualche campione in più
+        int highestLag = Math.min(maxLag, n - MIN_SAMPLES / 2);
+        if (n < MIN_SAMPLES || highestLag <= minLag) return invalid();
+
+        if (detrended.length < n) detrended = new double[n];
+        detrend(window, 0, n, detrended);
+
+        for (int lag = minLag - 1; lag <= highestLag + 1 && lag < n; lag++) {
+            correlation[lag] = correlation(n, lag);
+        }
+
+        // Un segnale periodico è correlato anche a ritardi multipli del periodo: viene scelto il primo
+        // massimo locale che raggiunge almeno una frazione del massimo più alto
+        double highest = 0;
+        for (int lag = minLag; lag <= highestLag; lag++) {
+            if (isLocalMaximum(lag)) highest = Math.max(highest, correlation[lag]);
+        }
+        if (highest <= 0) return invalid();
+        int best = minLag;
+        while (!isLocalMaximum(best) || correlation[best] < MULTIPLE_TOLERANCE * highest) {
+            best++;
+        }
+
+        double offset = parabolicOffset(correlation[best - 1], correlation[best], correlation[best + 1]);
+        int bpm = (int) Math.round(getFrameRate() * 60 / (best + offset));
+        return new HeartRateEstimate(bpm, Math.min(1, correlation[best]), getSampleCount(), 0);
+    }
+
+    private boolean isLocalMaximum(int lag) {
+        return correlation[lag] > correlation[lag - 1] && correlation[lag] >= correlation[lag + 1];
+    }
+
+    /**
+     * Coefficiente di correlazione tra la finestra e la sua copia ritardata di {@code lag} campioni.
+     */
+    private double correlation(int n, int lag) {
+        double product = 0;
+        double leading = 0;
+        double trailing = 0;
+        for (int i = 0; i + lag < n; i++) {
+            double a = detrended[i];
+            double b = detrended[i + lag];
+            product += a * b;
+            leading += a * a;
+            trailing += b * b;
+        }
+        double norm = Math.sqrt(leading * trailing);
+        return norm > 0 ? product / norm : 0;
+    }
+}
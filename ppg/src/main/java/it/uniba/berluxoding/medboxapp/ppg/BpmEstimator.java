@@ -0,0 +1,52 @@
+package it.uniba.berluxoding.medboxapp.ppg;
+
+/**
+ * Metodo di stima della frequenza cardiaca a partire dalla serie equispaziata delle luminosità.
+ * Le implementazioni ricevono un campione alla volta, forniscono una stima parziale durante l'acquisizione
+ * e una stima finale alla chiusura della serie.
+ *
+ * @see EstimatorEngine
+ */
+public interface BpmEstimator {
+
+    //Numero minimo di campioni per considerare valida un'acquisizione.
+    int MIN_SAMPLES = 30;
+
+    /**
+     * Comunica la frequenza dei campioni. Deve essere chiamato prima del primo campione della misurazione.
+     *
+     * @param frameRate La frequenza dei campioni, in campioni al secondo.
+     */
+    void setFrameRate(double frameRate);
+
+    /**
+     * Fornisce un nuovo campione allo stimatore.
+     *
+     * @param brightness La luminosità del frame.
+     * @param time       L'istante del campione, in millisecondi.
+     */
+    void addSample(double brightness, long time);
+
+    /**
+     * @return La stima parziale corrente.
+     */
+    HeartRateEstimate getEstimate();
+
+    /**
+     * Chiude la serie e restituisce la stima finale.
+     * Dopo questa chiamata lo stimatore va riportato allo stato iniziale con {@link #reset()}.
+     *
+     * @return La stima finale della frequenza cardiaca.
+     */
+    HeartRateEstimate finish();
+
+    /**
+     * @return Il numero di campioni ricevuti dall'ultimo azzeramento.
+     */
+    int getSampleCount();
+
+    /**
+     * Riporta lo stimatore allo stato iniziale, pronto per una nuova misurazione.
+     */
+    void reset();
+}
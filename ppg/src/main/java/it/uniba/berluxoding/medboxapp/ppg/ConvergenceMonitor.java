@@ -0,0 +1,137 @@
+package it.uniba.berluxoding.medboxapp.ppg;
+
+/**
+ * Decide la durata di una misurazione in base alla convergenza delle stime parziali.
+ *
+ * La misurazione termina non appena, dopo una durata minima, le stime parziali dell'ultima finestra
+ * di stabilità sono tutte valide, con affidabilità sufficiente e comprese in un intervallo non più ampio
+ * della tolleranza. Se il segnale è rumoroso la misurazione prosegue fino alla durata massima.
+ * Le durate sono misurate sugli istanti di acquisizione dei frame, non sull'orologio di sistema.
+ *
+ * La classe non alloca oggetti dopo la creazione e non è thread-safe.
+ */
+public class ConvergenceMonitor {
+
+    //Valori predefiniti: durata minima e massima, finestra di stabilità e tolleranza.
+    public static final long DEFAULT_MIN_DURATION_MS = 5000;
+    public static final long DEFAULT_MAX_DURATION_MS = 20000;
+    public static final long DEFAULT_STABLE_WINDOW_MS = 3000;
+    public static final int DEFAULT_TOLERANCE_BPM = 2;
+    public static final double DEFAULT_MIN_CONFIDENCE = 0.5;
+
+    //Numero di stime parziali conservate: a 4 aggiornamenti al secondo coprono 32 secondi.
+    private static final int CAPACITY = 128;
+
+    /**
+     * Esito della valutazione di una stima parziale.
+     */
+    public enum Decision {
+        //La misurazione deve proseguire.
+        CONTINUE,
+        //Le stime sono stabili: la misurazione può terminare.
+        STABLE,
+        //È stata raggiunta la durata massima senza stabilizzarsi.
+        TIMEOUT
+    }
+
+    private final long minDurationMs;
+    private final long maxDurationMs;
+    private final long stableWindowMs;
+    private final int toleranceBpm;
+    private final double minConfidence;
+
+    //Istanti e valori delle ultime stime parziali (0 se non valide o poco affidabili), in un buffer circolare.
+    private final long[] times = new long[CAPACITY];
+    private final int[] bpms = new int[CAPACITY];
+    private int count;
+    private int next;
+
+    //Istante della prima stima della misurazione.
+    private long startTime;
+
+    public ConvergenceMonitor() {
+        this(DEFAULT_MIN_DURATION_MS, DEFAULT_MAX_DURATION_MS, DEFAULT_STABLE_WINDOW_MS,
+                DEFAULT_TOLERANCE_BPM, DEFAULT_MIN_CONFIDENCE);
+    }
+
+    /**
+     * @param minDurationMs  La durata minima della misurazione, in millisecondi.
+     * @param maxDurationMs  La durata massima della misurazione, in millisecondi.
+     * @param stableWindowMs La durata per la quale le stime devono restare entro la tolleranza.
+     * @param toleranceBpm   La massima differenza tra le stime della finestra, in battiti al minuto.
+     * @param minConfidence  L'affidabilità minima di ciascuna stima della finestra.
+     */
+    public ConvergenceMonitor(long minDurationMs, long maxDurationMs, long stableWindowMs,
+                              int toleranceBpm, double minConfidence) {
+        if (minDurationMs > maxDurationMs) {
+            throw new IllegalArgumentException("minDurationMs > maxDurationMs: " + minDurationMs + " > " + maxDurationMs);
+        }
+        this.minDurationMs = minDurationMs;
+        this.maxDurationMs = maxDurationMs;
+        this.stableWindowMs = stableWindowMs;
+        this.toleranceBpm = toleranceBpm;
+        this.minConfidence = minConfidence;
+    }
+
+    /**
+     * Registra una stima parziale e decide se la misurazione può terminare.
+     *
+     * @param estimate La stima parziale corrente.
+     * @param time     L'istante di acquisizione dell'ultimo frame, in millisecondi.
+     * @return L'esito della valutazione.
+     */
+    public Decision update(HeartRateEstimate estimate, long time) {
+        if (count == 0) startTime = time;
+        boolean usable = estimate.isValid() && estimate.getConfidence() >= minConfidence;
+        times[next] = time;
+        bpms[next] = usable ? estimate.getBpm() : 0;
+        next = (next + 1) % CAPACITY;
+        if (count < CAPACITY) count++;
+
+        long elapsed = time - startTime;
+        if (elapsed >= minDurationMs && isStable(time)) return Decision.STABLE;
+        if (elapsed >= maxDurationMs) return Decision.TIMEOUT;
+        return Decision.CONTINUE;
+    }
+
+    /**
+     * Verifica che le stime dell'ultima finestra di stabilità, compresa la prima che la precede o ne segna
+     * l'inizio, siano utilizzabili ed entro la tolleranza.
+     */
+    private boolean isStable(long now) {
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (int i = 1; i <= count; i++) {
+            int index = (next - i + CAPACITY) % CAPACITY;
+            int bpm = bpms[index];
+            if (bpm == 0) return false;
+            min = Math.min(min, bpm);
+            max = Math.max(max, bpm);
+            if (max - min > toleranceBpm) return false;
+            if (times[index] <= now - stableWindowMs) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return Il tempo trascorso tra la prima e l'ultima stima registrata, in millisecondi.
+     */
+    public long getElapsed() {
+        return count == 0 ? 0 : times[(next - 1 + CAPACITY) % CAPACITY] - startTime;
+    }
+
+    /**
+     * @return La durata massima della misurazione, in millisecondi.
+     */
+    public long getMaxDuration() {
+        return maxDurationMs;
+    }
+
+    /**
+     * Riporta il monitor allo stato iniziale, pronto per una nuova misurazione.
+     */
+    public void reset() {
+        count = 0;
+        next = 0;
+    }
+}
@@ -0,0 +1,32 @@
+package it.uniba.berluxoding.medboxapp.ppg;
+
+/**
+ * Metodi di stima della frequenza cardiaca disponibili, selezionabili a runtime
+ * (ad esempio a partire dal nome con {@link #valueOf(String)}).
+ */
+public enum EstimatorEngine {
+
+    //Conteggio dei battiti del segnale lisciato, con soglia adattiva e periodo refrattario; fornisce anche SDNN e RMSSD.
+    PEAKS,
+
+    //Massimo dello spettro di potenza stimato con il metodo di Welch.
+    WELCH,
+
+    //Massimo della funzione di autocorrelazione.
+    AUTOCORRELATION;
+
+    /**
+     * @return Un nuovo stimatore del tipo corrispondente.
+     */
+    public BpmEstimator create() {
+        switch (this) {
+            case WELCH:
+                return new WelchHeartRateEstimator();
+            case AUTOCORRELATION:
+                return new AutocorrelationHeartRateEstimator();
+            case PEAKS:
+            default:
+                return new HeartRateEstimator();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package it.uniba.berluxoding.medboxapp.ppg;
+
+/**
+ * Trasformata di Fourier veloce (radix-2, in place) di dimensione fissa.
+ * Fattori di rotazione e permutazione a bit invertiti sono calcolati una sola volta alla creazione:
+ * la trasformata non alloca memoria e non chiama funzioni trigonometriche.
+ *
+ * La classe è immutabile e può essere condivisa, ma gli array trasformati appartengono al chiamante.
+ */
+public final class Fft {
+
+    private final int size;
+
+    //Fattori di rotazione: cos(2πk/n) e sin(2πk/n) per k < n/2.
+    private final double[] cos;
+    private final double[] sin;
+
+    //Indice a bit invertiti di ciascuna posizione.
+    private final int[] bitReversed;
+
+    /**
+     * @param size La dimensione della trasformata, potenza di due.
+     */
+    public Fft(int size) {
+        if (size < 2 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("size must be a power of two: " + size);
+        }
+        this.size = size;
+        cos = new double[size / 2];
+        sin = new double[size / 2];
+        for (int k = 0; k < size / 2; k++) {
+            double angle = 2 * Math.PI * k / size;
+            cos[k] = Math.cos(angle);
+            sin[k] = Math.sin(angle);
+        }
+        int bits = Integer.numberOfTrailingZeros(size);
+        bitReversed = new int[size];
+        for (int i = 0; i < size; i++) {
+            bitReversed[i] = Integer.reverse(i) >>> (32 - bits);
+        }
+    }
+
+    /**
+     * @return La più piccola potenza di due maggiore o uguale al valore indicato.
+     */
+    public static int nextPowerOfTwo(int value) {
+        return value <= 1 ? 1 : Integer.highestOneBit(value - 1) << 1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Calcola in place la trasformata diretta X[k] = Σ x[j]·e^(-2πijk/n).
+     *
+     * @param real      Parte reale dei dati, sostituita da quella della trasformata.
+     * @param imaginary Parte immaginaria dei dati, sostituita da quella della trasformata.
+     */
+    public void transform(double[] real, double[] imaginary) {
+        for (int i = 0; i < size; i++) {
+            int j = bitReversed[i];
+            if (i < j) {
+                double t = real[i];
+                real[i] = real[j];
+                real[j] = t;
+                t = imaginary[i];
+                imaginary[i] = imaginary[j];
+                imaginary[j] = t;
+            }
+        }
+
+        for (int length = 2; length <= size; length <<= 1) {
+            int half = length >> 1;
+            int step = size / length;
+            for (int start = 0; start < size; start += length) {
+                for (int k = 0, twiddle = 0; k < half; k++, twiddle += step) {
+                    int a = start + k;
+                    int b = a + half;
+                    double wr = cos[twiddle];
+                    double wi = -sin[twiddle];
+                    double tr = wr * real[b] - wi * imaginary[b];
+                    double ti = wr * imaginary[b] + wi * real[b];
+                    real[b] = real[a] - tr;
+                    imaginary[b] = imaginary[a] - ti;
+                    real[a] += tr;
+                    imaginary[a] += ti;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package it.uniba.berluxoding.medboxapp.ppg;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Controllo economico, frame per frame, della presenza del dito sull'obiettivo e della qualità del segnale,
+ * da eseguire prima della pipeline per non elaborare frame inutilizzabili.
+ *
+ * Il frame viene letto su una griglia rada ({@value #GRID_STRIDE} pixel di passo, circa 5000 pixel a 640x480)
+ * e classificato in base a:
+ * - luminosità media, troppo bassa (obiettivo coperto senza torcia) o vicina alla saturazione;
+ * - dominanza del rosso, come differenza tra le medie di V (Cr) e U (Cb): la luce della torcia
+ *   che attraversa il dito è quasi solo rossa;
+ * - varianza temporale della luminosità media, stimata con una media mobile esponenziale delle differenze
+ *   tra frame consecutivi: il battito produce variazioni piccole, il movimento del dito variazioni ampie.
+ * Il dito è considerato presente dopo {@value #MIN_VALID_FRAMES} frame validi consecutivi.
+ *
+ * La classe non alloca oggetti per frame e non è thread-safe.
+ */
+public class FingerDetector {
+
+    //Passo della griglia di campionamento, in pixel.
+    static final int GRID_STRIDE = 8;
+
+    //Luminosità media minima e massima di un frame valido.
+    static final double MIN_MEAN = 25;
+    static final double MAX_MEAN = 235;
+
+    //Differenza minima tra le medie di V e U perché il frame sia considerato rosso.
+    static final double MIN_RED_DOMINANCE = 24;
+
+    //Deviazione standard massima della differenza di luminosità media tra frame consecutivi.
+    static final double MAX_TEMPORAL_STD = 6;
+
+    //Peso di ogni nuova differenza nella media mobile della varianza temporale.
+    private static final double TEMPORAL_ALPHA = 0.2;
+
+    //Numero di frame validi consecutivi oltre il quale il dito è considerato presente.
+    public static final int MIN_VALID_FRAMES = 10;
+
+    /**
+     * Esito del controllo di un frame.
+     */
+    public enum Status {
+        //Il frame è troppo scuro: l'obiettivo è coperto ma la torcia non lo illumina.
+        TOO_DARK,
+        //Il frame è quasi saturo: il dito non copre l'obiettivo o lo preme troppo poco.
+        SATURATED,
+        //Il frame non è dominato dal rosso: il dito non copre l'obiettivo.
+        NO_FINGER,
+        //La luminosità varia troppo tra un frame e l'altro: il dito si sta muovendo.
+        MOTION,
+        //Il frame è valido, ma non da abbastanza frame consecutivi.
+        SETTLING,
+        //Il dito è presente e il segnale utilizzabile.
+        PRESENT
+    }
+
+    private final SamplingRegion grid = SamplingRegion.of(0, 0, 1, 1, GRID_STRIDE);
+    private final FrameStatistics statistics = new FrameStatistics();
+
+    private double previousMean = Double.NaN;
+    private double temporalVariance;
+    private int validFrames;
+    private Status status = Status.NO_FINGER;
+
+    /**
+     * Controlla un frame YUV_420_888. I parametri hanno lo stesso significato di quelli di
+     * {@link FrameStatisticsKernel#computeRed}.
+     *
+     * @return L'esito del controllo.
+     */
+    public Status check(ByteBuffer yBuffer, int yRowStride, int yPixelStride,
+                        ByteBuffer uBuffer, ByteBuffer vBuffer, int uvRowStride, int uvPixelStride,
+                        int width, int height) {
+        FrameStatisticsKernel.compute(yBuffer, yRowStride, yPixelStride, uBuffer, vBuffer, uvRowStride, uvPixelStride,
+                width, height, grid, statistics);
+        return update(statistics);
+    }
+
+    /**
+     * Classifica un frame a partire dalle sue statistiche, che devono comprendere la crominanza.
+     *
+     * @param frame Le statistiche del frame.
+     * @return L'esito del controllo.
+     */
+    public Status update(FrameStatistics frame) {
+        double mean = frame.getMean();
+        if (!Double.isNaN(previousMean)) {
+            double difference = mean - previousMean;
+            temporalVariance += TEMPORAL_ALPHA * (difference * difference - temporalVariance);
+        }
+        previousMean = mean;
+
+        if (mean < MIN_MEAN) {
+            status = Status.TOO_DARK;
+        } else if (mean > MAX_MEAN) {
+            status = Status.SATURATED;
+        } else if (!frame.hasChroma() || frame.getMeanV() - frame.getMeanU() < MIN_RED_DOMINANCE) {
+            status = Status.NO_FINGER;
+        } else if (temporalVariance > MAX_TEMPORAL_STD * MAX_TEMPORAL_STD) {
+            status = Status.MOTION;
+        } else {
+            validFrames++;
+            status = validFrames >= MIN_VALID_FRAMES ? Status.PRESENT : Status.SETTLING;
+            return status;
+        }
+        validFrames = 0;
+        return status;
+    }
+
+    /**
+     * @return L'esito del controllo dell'ultimo frame.
+     */
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * @return true se il dito è presente e il segnale utilizzabile.
+     */
+    public boolean isPresent() {
+        return status == Status.PRESENT;
+    }
+
+    /**
+     * Riporta il controllo allo stato iniziale, pronto per una nuova misurazione.
+     */
+    public void reset() {
+        previousMean = Double.NaN;
+        temporalVariance = 0;
+        validFrames = 0;
+        status = Status.NO_FINGER;
+    }
+}
@@ -0,0 +1,192 @@
+package it.uniba.berluxoding.medboxapp.ppg;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Separa l'acquisizione dei frame dalla loro elaborazione.
+ *
+ * Il thread che riceve i frame dalla fotocamera ne copia i piani in un {@link FrameBuffer} preso da un pool
+ * di dimensione fissa e lo accoda; un thread di elaborazione dedicato preleva i frame in ordine, li passa
+ * al {@link Handler} e restituisce il buffer al pool. Le due code tra i thread sono {@link SpscRing}
+ * limitate e senza lock, quindi a regime non vengono allocati oggetti.
+ *
+ * Se l'elaborazione resta indietro e il pool è esaurito, il frame appena consegnato viene scartato
+ * (quelli già accodati restano validi e in ordine) e contato: per ogni sessione sono disponibili
+ * i frame consegnati, elaborati e scartati. Ogni contatore è scritto da un solo thread.
+ *
+ * I frame vanno forniti da un solo thread. Un'istanza corrisponde a una sessione di misurazione:
+ * {@link #close()} elabora i frame ancora in coda e attende la fine del thread di elaborazione,
+ * dopodiché il {@link Handler} non viene più chiamato.
+ */
+public class FrameAcquisition implements Closeable {
+
+    //Numero predefinito di buffer nel pool: circa 130 ms di ritardo tollerato a 30 fps.
+    public static final int DEFAULT_POOL_SIZE = 4;
+
+    /**
+     * Elaborazione di un frame, eseguita nel thread di elaborazione.
+     */
+    public interface Handler {
+
+        /**
+         * @param frame Il frame da elaborare; il buffer torna nel pool al termine della chiamata
+         *              e non va conservato.
+         */
+        void onFrame(FrameBuffer frame);
+    }
+
+    private final Handler handler;
+
+    //Buffer liberi (dal thread di elaborazione a quello di acquisizione) e frame da elaborare (in senso opposto).
+    private final SpscRing<FrameBuffer> free;
+    private final SpscRing<FrameBuffer> ready;
+
+    private final Thread worker;
+    private volatile boolean closed;
+
+    //Contatori della sessione: i primi due scritti dal thread di acquisizione, il terzo da quello di elaborazione.
+    private volatile long delivered;
+    private volatile long dropped;
+    private volatile long processed;
+
+    //Ultimo errore sollevato dal Handler; il frame che lo ha causato non è conteggiato tra gli elaborati.
+    private volatile RuntimeException failure;
+
+    public FrameAcquisition(Handler handler) {
+        this(handler, DEFAULT_POOL_SIZE);
+    }
+
+    /**
+     * Crea il pool di buffer e avvia il thread di elaborazione.
+     *
+     * @param handler  L'elaborazione da eseguire su ogni frame.
+     * @param poolSize Il numero di frame che possono attendere l'elaborazione (almeno 1).
+     */
+    public FrameAcquisition(Handler handler, int poolSize) {
+        if (poolSize <= 0) throw new IllegalArgumentException("poolSize must be positive: " + poolSize);
+        this.handler = handler;
+        free = new SpscRing<>(poolSize);
+        ready = new SpscRing<>(poolSize);
+        for (int i = 0; i < poolSize; i++) {
+            free.offer(new FrameBuffer());
+        }
+        worker = new Thread(this::drain, "FrameWorker");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Accoda il piano Y di un frame. I parametri hanno lo stesso significato di quelli di
+     * {@link PpgPipeline#processFrame(ByteBuffer, int, int, int, int, long)}.
+     *
+     * @return false se il frame è stato scartato.
+     */
+    public boolean submit(ByteBuffer yBuffer, int rowStride, int pixelStride, int width, int height, long time) {
+        FrameBuffer frame = obtain();
+        if (frame == null) return false;
+        frame.copyLuma(yBuffer, rowStride, pixelStride, width, height, time);
+        publish(frame);
+        return true;
+    }
+
+    /**
+     * Accoda i tre piani di un frame. I parametri hanno lo stesso significato di quelli di
+     * {@link PpgPipeline#processColorFrame}.
+     *
+     * @return false se il frame è stato scartato.
+     */
+    public boolean submitColor(ByteBuffer yBuffer, int yRowStride, int yPixelStride,
+                               ByteBuffer uBuffer, ByteBuffer vBuffer, int uvRowStride, int uvPixelStride,
+                               int width, int height, long time) {
+        FrameBuffer frame = obtain();
+        if (frame == null) return false;
+        frame.copyColor(yBuffer, yRowStride, yPixelStride, uBuffer, vBuffer, uvRowStride, uvPixelStride,
+                width, height, time);
+        publish(frame);
+        return true;
+    }
+
+    private FrameBuffer obtain() {
+        delivered++;
+        FrameBuffer frame = closed ? null : free.poll();
+        if (frame == null) dropped++;
+        return frame;
+    }
+
+    private void publish(FrameBuffer frame) {
+        ready.offer(frame);
+        LockSupport.unpark(worker);
+    }
+
+    /**
+     * Ciclo del thread di elaborazione: termina quando l'acquisizione è chiusa e la coda è vuota.
+     */
+    private void drain() {
+        while (true) {
+            FrameBuffer frame = ready.poll();
+            if (frame == null) {
+                if (closed && ready.isEmpty()) return;
+                LockSupport.park(this);
+                continue;
+            }
+            try {
+                handler.onFrame(frame);
+                processed++;
+            } catch (RuntimeException e) {
+                failure = e;
+            } finally {
+                free.offer(frame);
+            }
+        }
+    }
+
+    /**
+     * @return Il numero di frame consegnati dalla fotocamera in questa sessione.
+     */
+    public long getDeliveredFrames() {
+        return delivered;
+    }
+
+    /**
+     * @return Il numero di frame elaborati in questa sessione.
+     */
+    public long getProcessedFrames() {
+        return processed;
+    }
+
+    /**
+     * @return Il numero di frame scartati perché il pool era esaurito o l'acquisizione chiusa.
+     */
+    public long getDroppedFrames() {
+        return dropped;
+    }
+
+    /**
+     * @return L'ultimo errore sollevato durante l'elaborazione di un frame, oppure null.
+     */
+    public RuntimeException getFailure() {
+        return failure;
+    }
+
+    /**
+     * Rifiuta i frame successivi, elabora quelli ancora in coda e attende la fine del thread di elaborazione.
+     * Va chiamato dopo l'ultimo frame fornito; al ritorno i risultati dell'elaborazione sono visibili
+     * al thread chiamante.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(worker);
+        boolean interrupted = false;
+        while (worker.isAlive()) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+}
@@ -0,0 +1,120 @@
+package it.uniba.berluxoding.medboxapp.ppg;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Copia riutilizzabile dei piani di un frame YUV_420_888, usata da {@link FrameAcquisition}
+ * per restituire subito l'immagine alla fotocamera ed elaborarla in un altro thread.
+ *
+ * I piani vengono copiati così come sono, con i rispettivi stride, senza riordinarne i pixel:
+ * la copia è una sola operazione di blocco per piano. I buffer crescono solo se il frame è più grande
+ * di quelli copiati in precedenza, quindi a regime non vengono allocati oggetti.
+ */
+public final class FrameBuffer {
+
+    //Copie dei piani Y, U e V, con posizione 0 e limite pari ai byte copiati.
+    private ByteBuffer yBuffer = ByteBuffer.allocate(0);
+    private ByteBuffer uBuffer = ByteBuffer.allocate(0);
+    private ByteBuffer vBuffer = ByteBuffer.allocate(0);
+
+    private int yRowStride, yPixelStride, uvRowStride, uvPixelStride;
+    private int width, height;
+    private long time;
+
+    //true se il frame comprende anche i piani di crominanza.
+    private boolean color;
+
+    FrameBuffer() {
+    }
+
+    /**
+     * Copia il piano Y di un frame. I parametri hanno lo stesso significato di quelli di
+     * {@link PpgPipeline#processFrame(ByteBuffer, int, int, int, int, long)}; la posizione del buffer
+     * sorgente non viene modificata.
+     */
+    void copyLuma(ByteBuffer y, int yRowStride, int yPixelStride, int width, int height, long time) {
+        yBuffer = copy(y, yBuffer);
+        this.yRowStride = yRowStride;
+        this.yPixelStride = yPixelStride;
+        this.width = width;
+        this.height = height;
+        this.time = time;
+        color = false;
+    }
+
+    /**
+     * Copia i tre piani di un frame. I parametri hanno lo stesso significato di quelli di
+     * {@link PpgPipeline#processColorFrame}.
+     */
+    void copyColor(ByteBuffer y, int yRowStride, int yPixelStride,
+                   ByteBuffer u, ByteBuffer v, int uvRowStride, int uvPixelStride,
+                   int width, int height, long time) {
+        copyLuma(y, yRowStride, yPixelStride, width, height, time);
+        uBuffer = copy(u, uBuffer);
+        vBuffer = copy(v, vBuffer);
+        this.uvRowStride = uvRowStride;
+        this.uvPixelStride = uvPixelStride;
+        color = true;
+    }
+
+    private static ByteBuffer copy(ByteBuffer source, ByteBuffer target) {
+        int length = source.remaining();
+        if (target.capacity() < length) {
+            target = ByteBuffer.allocate(length);
+        }
+        target.clear();
+        target.put(source.duplicate());
+        target.flip();
+        return target;
+    }
+
+    public ByteBuffer getYBuffer() {
+        return yBuffer;
+    }
+
+    public ByteBuffer getUBuffer() {
+        return uBuffer;
+    }
+
+    public ByteBuffer getVBuffer() {
+        return vBuffer;
+    }
+
+    public int getYRowStride() {
+        return yRowStride;
+    }
+
+    public int getYPixelStride() {
+        return yPixelStride;
+    }
+
+    public int getUvRowStride() {
+        return uvRowStride;
+    }
+
+    public int getUvPixelStride() {
+        return uvPixelStride;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return L'istante di acquisizione del frame, in millisecondi.
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * @return true se sono stati copiati anche i piani U e V.
+     */
+    public boolean isColor() {
+        return color;
+    }
+}
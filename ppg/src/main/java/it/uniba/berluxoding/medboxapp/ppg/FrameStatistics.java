@@ -0,0 +1,139 @@
+package it.uniba.berluxoding.medboxapp.ppg;
+
+/**
+ * Contenitore riutilizzabile delle statistiche di un singolo frame YUV_420_888.
+ * Viene riempito da {@link FrameStatisticsKernel} a ogni frame, senza allocare nuovi oggetti:
+ * la stessa istanza può essere riusata per tutta la durata della misurazione.
+ *
+ * I valori sono espressi nella scala originale del sensore (0-255).
+ */
+public class FrameStatistics {
+
+    //Numero di pixel del piano Y considerati nel calcolo.
+    int count;
+
+    //Media, minimo, massimo e varianza della luminanza (piano Y).
+    double mean;
+    int min;
+    int max;
+    double variance;
+
+    //Medie dei piani di crominanza; valgono NaN se i piani U/V non sono stati letti.
+    double meanU = Double.NaN;
+    double meanV = Double.NaN;
+
+    //Media del canale rosso calcolata pixel per pixel; vale NaN se il canale rosso non è stato decodificato.
+    double meanRed = Double.NaN;
+
+    //Somme di appoggio riutilizzate dai calcoli che decodificano il canale rosso.
+    final FrameStatisticsKernel.PartialSums partialSums = new FrameStatisticsKernel.PartialSums();
+
+    public int getCount() {
+        return count;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public int getMin() {
+        return min;
+    }
+
+    public int getMax() {
+        return max;
+    }
+
+    public double getVariance() {
+        return variance;
+    }
+
+    public double getMeanU() {
+        return meanU;
+    }
+
+    public double getMeanV() {
+        return meanV;
+    }
+
+    /**
+     * Indica se durante l'ultimo calcolo sono stati letti anche i piani di crominanza.
+     *
+     * @return true se le medie U/V (e quindi R/G/B) sono disponibili.
+     */
+    public boolean hasChroma() {
+        return !Double.isNaN(meanU);
+    }
+
+    /**
+     * Luminanza media rimappata sull'intervallo [min, max] della luminanza del frame e riportata nella scala 0-255.
+     * Non equivale alla vecchia normalizzazione dell'immagine, che calcolava minimo e massimo sugli interi ARGB
+     * impacchettati e li riscalava come numeri interi, mescolando i canali; la pipeline non applica alcuna
+     * normalizzazione ({@link PpgPipeline}) e il valore resta disponibile solo per confronto.
+     *
+     * @return La luminanza media normalizzata, oppure 0 se il frame è uniforme.
+     */
+    public double getNormalizedMean() {
+        if (max == min) return 0;
+        return (mean - min) * 255.0 / (max - min);
+    }
+
+    /**
+     * Media del canale rosso. Se il canale è stato decodificato pixel per pixel
+     * ({@link FrameStatisticsKernel#computeRed} o {@link StripedFrameDecoder}) tiene conto anche della
+     * saturazione dei singoli pixel; altrimenti è ricavata dalle medie YUV con i coefficienti BT.601.
+     * Poiché la conversione è lineare, le due coincidono finché nessun pixel satura.
+     *
+     * @return La media del canale rosso, oppure NaN se la crominanza non è stata letta.
+     */
+    public double getMeanRed() {
+        if (hasRed()) return meanRed;
+        return clamp(1.164 * (mean - 16) + 1.596 * (meanV - 128));
+    }
+
+    /**
+     * @return true se durante l'ultimo calcolo il canale rosso è stato decodificato pixel per pixel.
+     */
+    public boolean hasRed() {
+        return !Double.isNaN(meanRed);
+    }
+
+    /**
+     * Media del canale verde, ricavata dalle medie YUV con i coefficienti BT.601.
+     *
+     * @return La media del canale verde, oppure NaN se la crominanza non è stata letta.
+     */
+    public double getMeanGreen() {
+        return clamp(1.164 * (mean - 16) - 0.813 * (meanV - 128) - 0.391 * (meanU - 128));
+    }
+
+    /**
+     * Media del canale blu, ricavata dalle medie YUV con i coefficienti BT.601.
+     *
+     * @return La media del canale blu, oppure NaN se la crominanza non è stata letta.
+     */
+    public double getMeanBlue() {
+        return clamp(1.164 * (mean - 16) + 2.018 * (meanU - 128));
+    }
+
+    /**
+     * Azzera tutte le statistiche.
+     */
+    public void reset() {
+        count = 0;
+        mean = 0;
+        min = 0;
+        max = 0;
+        variance = 0;
+        meanU = Double.NaN;
+        meanV = Double.NaN;
+        meanRed = Double.NaN;
+    }
+
+    private static double clamp(double value) {
+        // NaN viene propagato, così da segnalare l'assenza dei piani di crominanza
+        if (value < 0) return 0;
+        if (value > 255) return 255;
+        return value;
+    }
+}
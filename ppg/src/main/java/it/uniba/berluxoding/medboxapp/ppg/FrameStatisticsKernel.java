@@ -0,0 +1,325 @@
+package it.uniba.berluxoding.medboxapp.ppg;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Kernel che calcola in un'unica passata le statistiche di un frame YUV_420_888
+ * leggendo direttamente i buffer dei piani dell'immagine.
+ *
+ * Rispetto alla conversione completa YUV -> RGB seguita da normalizzazione e calcolo della luminanza,
+ * ogni byte viene letto una sola volta, vengono rispettati {@code rowStride} e {@code pixelStride}
+ * di ciascun piano e non viene allocata memoria per frame.
+ */
+public final class FrameStatisticsKernel {
+
+    private FrameStatisticsKernel() {
+    }
+
+    /**
+     * Calcola le statistiche del solo piano Y (luminanza).
+     *
+     * @param yBuffer      Il buffer del piano Y.
+     * @param yRowStride   Distanza in byte tra l'inizio di due righe consecutive del piano Y.
+     * @param yPixelStride Distanza in byte tra due pixel consecutivi della stessa riga del piano Y.
+     * @param width        La larghezza dell'immagine.
+     * @param height       L'altezza dell'immagine.
+     * @param out          Le statistiche da riempire.
+     */
+    public static void compute(ByteBuffer yBuffer, int yRowStride, int yPixelStride,
+                               int width, int height, FrameStatistics out) {
+        compute(yBuffer, yRowStride, yPixelStride, null, null, 0, 0, width, height, out);
+    }
+
+    /**
+     * Calcola in un'unica passata media, minimo, massimo e varianza della luminanza e,
+     * se i piani di crominanza sono forniti, le medie dei canali U e V.
+     * I piani U e V sono sottocampionati di un fattore 2 in entrambe le direzioni e vengono letti
+     * durante la scansione delle righe pari del piano Y.
+     *
+     * @param yBuffer       Il buffer del piano Y.
+     * @param yRowStride    Distanza in byte tra l'inizio di due righe consecutive del piano Y.
+     * @param yPixelStride  Distanza in byte tra due pixel consecutivi del piano Y.
+     * @param uBuffer       Il buffer del piano U, oppure null per ignorare la crominanza.
+     * @param vBuffer       Il buffer del piano V, oppure null per ignorare la crominanza.
+     * @param uvRowStride   Distanza in byte tra l'inizio di due righe consecutive dei piani U e V.
+     * @param uvPixelStride Distanza in byte tra due campioni consecutivi dei piani U e V.
+     * @param width         La larghezza dell'immagine.
+     * @param height        L'altezza dell'immagine.
+     * @param out           Le statistiche da riempire.
+     */
+    public static void compute(ByteBuffer yBuffer, int yRowStride, int yPixelStride,
+                               ByteBuffer uBuffer, ByteBuffer vBuffer, int uvRowStride, int uvPixelStride,
+                               int width, int height, FrameStatistics out) {
+        final boolean chroma = uBuffer != null && vBuffer != null;
+        final int yBase = yBuffer.position();
+        final int uBase = chroma ? uBuffer.position() : 0;
+        final int vBase = chroma ? vBuffer.position() : 0;
+        final int chromaWidth = width >> 1;
+
+        long sum = 0;
+        long sumOfSquares = 0;
+        int min = 255;
+        int max = 0;
+        long uSum = 0;
+        long vSum = 0;
+        int chromaCount = 0;
+
+        for (int j = 0; j < height; j++) {
+            int yp = yBase + j * yRowStride;
+            for (int i = 0; i < width; i++, yp += yPixelStride) {
+                int y = yBuffer.get(yp) & 0xff;
+                sum += y;
+                sumOfSquares += y * y;
+                if (y < min) min = y;
+                if (y > max) max = y;
+            }
+
+            // Le righe di crominanza sono la metà di quelle di luminanza: si leggono solo sulle righe pari
+            if (chroma && (j & 1) == 0) {
+                int rowOffset = (j >> 1) * uvRowStride;
+                int up = uBase + rowOffset;
+                int vp = vBase + rowOffset;
+                for (int i = 0; i < chromaWidth; i++, up += uvPixelStride, vp += uvPixelStride) {
+                    uSum += uBuffer.get(up) & 0xff;
+                    vSum += vBuffer.get(vp) & 0xff;
+                }
+                chromaCount += chromaWidth;
+            }
+        }
+
+        final int count = width * height;
+        out.count = count;
+        if (count == 0) {
+            out.reset();
+            return;
+        }
+        double mean = (double) sum / count;
+        out.mean = mean;
+        out.min = min;
+        out.max = max;
+        out.variance = Math.max(0, (double) sumOfSquares / count - mean * mean);
+        out.meanU = chroma && chromaCount > 0 ? (double) uSum / chromaCount : Double.NaN;
+        out.meanV = chroma && chromaCount > 0 ? (double) vSum / chromaCount : Double.NaN;
+        out.meanRed = Double.NaN;
+    }
+
+    /**
+     * Calcola le statistiche leggendo solo i pixel della regione indicata, su una griglia con il passo
+     * della regione. Se i piani di crominanza sono forniti, per ogni pixel letto viene letto anche
+     * il campione U/V che lo copre. Con la regione {@link SamplingRegion#full()} equivale a
+     * {@link #compute(ByteBuffer, int, int, ByteBuffer, ByteBuffer, int, int, int, int, FrameStatistics)}.
+     *
+     * @param yBuffer       Il buffer del piano Y.
+     * @param yRowStride    Distanza in byte tra l'inizio di due righe consecutive del piano Y.
+     * @param yPixelStride  Distanza in byte tra due pixel consecutivi del piano Y.
+     * @param uBuffer       Il buffer del piano U, oppure null per ignorare la crominanza.
+     * @param vBuffer       Il buffer del piano V, oppure null per ignorare la crominanza.
+     * @param uvRowStride   Distanza in byte tra l'inizio di due righe consecutive dei piani U e V.
+     * @param uvPixelStride Distanza in byte tra due campioni consecutivi dei piani U e V.
+     * @param width         La larghezza dell'immagine.
+     * @param height        L'altezza dell'immagine.
+     * @param region        La regione da campionare.
+     * @param out           Le statistiche da riempire.
+     */
+    public static void compute(ByteBuffer yBuffer, int yRowStride, int yPixelStride,
+                               ByteBuffer uBuffer, ByteBuffer vBuffer, int uvRowStride, int uvPixelStride,
+                               int width, int height, SamplingRegion region, FrameStatistics out) {
+        if (region.isFullFrame()) {
+            compute(yBuffer, yRowStride, yPixelStride, uBuffer, vBuffer, uvRowStride, uvPixelStride, width, height, out);
+            return;
+        }
+
+        final boolean chroma = uBuffer != null && vBuffer != null;
+        final int yBase = yBuffer.position();
+        final int uBase = chroma ? uBuffer.position() : 0;
+        final int vBase = chroma ? vBuffer.position() : 0;
+        final int stride = region.getStride();
+        final int firstColumn = region.firstColumn(width);
+        final int endColumn = region.endColumn(width);
+        final int endRow = region.endRow(height);
+
+        long sum = 0;
+        long sumOfSquares = 0;
+        int min = 255;
+        int max = 0;
+        long uSum = 0;
+        long vSum = 0;
+        int count = 0;
+
+        for (int j = region.firstRow(height); j < endRow; j += stride) {
+            int yp = yBase + j * yRowStride + firstColumn * yPixelStride;
+            int chromaRow = (j >> 1) * uvRowStride;
+            for (int i = firstColumn; i < endColumn; i += stride, yp += stride * yPixelStride) {
+                int y = yBuffer.get(yp) & 0xff;
+                sum += y;
+                sumOfSquares += y * y;
+                if (y < min) min = y;
+                if (y > max) max = y;
+                if (chroma) {
+                    int chromaOffset = chromaRow + (i >> 1) * uvPixelStride;
+                    uSum += uBuffer.get(uBase + chromaOffset) & 0xff;
+                    vSum += vBuffer.get(vBase + chromaOffset) & 0xff;
+                }
+                count++;
+            }
+        }
+
+        if (count == 0) {
+            out.reset();
+            return;
+        }
+        double mean = (double) sum / count;
+        out.count = count;
+        out.mean = mean;
+        out.min = min;
+        out.max = max;
+        out.variance = Math.max(0, (double) sumOfSquares / count - mean * mean);
+        out.meanU = chroma ? (double) uSum / count : Double.NaN;
+        out.meanV = chroma ? (double) vSum / count : Double.NaN;
+        out.meanRed = Double.NaN;
+    }
+
+    /**
+     * Come {@link #compute(ByteBuffer, int, int, ByteBuffer, ByteBuffer, int, int, int, int, FrameStatistics)},
+     * decodificando in più il canale rosso di ogni pixel con la stessa conversione intera BT.601
+     * dell'elaborazione originale, saturazione compresa. Per suddividere il lavoro tra più thread
+     * si veda {@link StripedFrameDecoder}.
+     *
+     * @param yBuffer       Il buffer del piano Y.
+     * @param yRowStride    Distanza in byte tra l'inizio di due righe consecutive del piano Y.
+     * @param yPixelStride  Distanza in byte tra due pixel consecutivi del piano Y.
+     * @param uBuffer       Il buffer del piano U.
+     * @param vBuffer       Il buffer del piano V.
+     * @param uvRowStride   Distanza in byte tra l'inizio di due righe consecutive dei piani U e V.
+     * @param uvPixelStride Distanza in byte tra due campioni consecutivi dei piani U e V.
+     * @param width         La larghezza dell'immagine.
+     * @param height        L'altezza dell'immagine.
+     * @param out           Le statistiche da riempire.
+     */
+    public static void computeRed(ByteBuffer yBuffer, int yRowStride, int yPixelStride,
+                                  ByteBuffer uBuffer, ByteBuffer vBuffer, int uvRowStride, int uvPixelStride,
+                                  int width, int height, FrameStatistics out) {
+        PartialSums sums = out.partialSums;
+        computeRows(yBuffer, yRowStride, yPixelStride, uBuffer, vBuffer, uvRowStride, uvPixelStride,
+                width, 0, height, sums);
+        sums.store(out);
+    }
+
+    /**
+     * Accumula le somme parziali delle righe [firstRow, endRow), decodificando il canale rosso.
+     * Le righe di crominanza sono sommate sulle righe pari: perché ogni riga U/V sia contata una sola volta,
+     * {@code firstRow} deve essere pari.
+     */
+    static void computeRows(ByteBuffer yBuffer, int yRowStride, int yPixelStride,
+                            ByteBuffer uBuffer, ByteBuffer vBuffer, int uvRowStride, int uvPixelStride,
+                            int width, int firstRow, int endRow, PartialSums out) {
+        final int yBase = yBuffer.position();
+        final int uBase = uBuffer.position();
+        final int vBase = vBuffer.position();
+        final int chromaWidth = width >> 1;
+
+        long sum = 0;
+        long sumOfSquares = 0;
+        int min = 255;
+        int max = 0;
+        long uSum = 0;
+        long vSum = 0;
+        long redSum = 0;
+        int chromaCount = 0;
+
+        for (int j = firstRow; j < endRow; j++) {
+            int yp = yBase + j * yRowStride;
+            int chromaRow = (j >> 1) * uvRowStride;
+            for (int i = 0; i < width; i++, yp += yPixelStride) {
+                int y = yBuffer.get(yp) & 0xff;
+                sum += y;
+                sumOfSquares += y * y;
+                if (y < min) min = y;
+                if (y > max) max = y;
+
+                // Conversione intera BT.601 del canale rosso, come in decodeYUV420SP
+                int vOffset = (vBuffer.get(vBase + chromaRow + (i >> 1) * uvPixelStride) & 0xff) - 128;
+                int red = 1192 * Math.max(0, y - 16) + 1634 * vOffset;
+                redSum += Math.max(0, Math.min(262143, red)) >> 10;
+            }
+
+            if ((j & 1) == 0) {
+                int up = uBase + chromaRow;
+                int vp = vBase + chromaRow;
+                for (int i = 0; i < chromaWidth; i++, up += uvPixelStride, vp += uvPixelStride) {
+                    uSum += uBuffer.get(up) & 0xff;
+                    vSum += vBuffer.get(vp) & 0xff;
+                }
+                chromaCount += chromaWidth;
+            }
+        }
+
+        out.count = width * (endRow - firstRow);
+        out.sum = sum;
+        out.sumOfSquares = sumOfSquares;
+        out.min = min;
+        out.max = max;
+        out.uSum = uSum;
+        out.vSum = vSum;
+        out.redSum = redSum;
+        out.chromaCount = chromaCount;
+    }
+
+    /**
+     * Somme parziali di una porzione del frame, combinabili tra loro.
+     */
+    static final class PartialSums {
+
+        int count;
+        long sum;
+        long sumOfSquares;
+        int min;
+        int max;
+        long uSum;
+        long vSum;
+        long redSum;
+        int chromaCount;
+
+        void clear() {
+            count = 0;
+            sum = 0;
+            sumOfSquares = 0;
+            min = 255;
+            max = 0;
+            uSum = 0;
+            vSum = 0;
+            redSum = 0;
+            chromaCount = 0;
+        }
+
+        void add(PartialSums other) {
+            count += other.count;
+            sum += other.sum;
+            sumOfSquares += other.sumOfSquares;
+            if (other.count > 0) {
+                min = Math.min(min, other.min);
+                max = Math.max(max, other.max);
+            }
+            uSum += other.uSum;
+            vSum += other.vSum;
+            redSum += other.redSum;
+            chromaCount += other.chromaCount;
+        }
+
+        void store(FrameStatistics out) {
+            if (count == 0) {
+                out.reset();
+                return;
+            }
+            double mean = (double) sum / count;
+            out.count = count;
+            out.mean = mean;
+            out.min = min;
+            out.max = max;
+            out.variance = Math.max(0, (double) sumOfSquares / count - mean * mean);
+            out.meanU = chromaCount > 0 ? (double) uSum / chromaCount : Double.NaN;
+            out.meanV = chromaCount > 0 ? (double) vSum / chromaCount : Double.NaN;
+            out.meanRed = (double) redSum / count;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package it.uniba.berluxoding.medboxapp.ppg;
+
+/**
+ * Risultato (parziale o finale) della stima della frequenza cardiaca.
+ * Oltre al valore in battiti al minuto riporta un indice di affidabilità e il numero di campioni
+ * e di picchi su cui si basa la stima. Gli stimatori che rilevano i singoli battiti riportano anche
+ * gli indici di variabilità della frequenza cardiaca calcolati sugli intervalli RR.
+ */
+public class HeartRateEstimate {
+
+    private final int bpm;
+    private final double confidence;
+    private final int sampleCount;
+    private final int peakCount;
+
+    //Indici di variabilità, in millisecondi (NaN se non disponibili).
+    private final double sdnn;
+    private final double rmssd;
+
+    public HeartRateEstimate(int bpm, double confidence, int sampleCount, int peakCount) {
+        this(bpm, confidence, sampleCount, peakCount, Double.NaN, Double.NaN);
+    }
+
+    public HeartRateEstimate(int bpm, double confidence, int sampleCount, int peakCount, double sdnn, double rmssd) {
+        this.bpm = bpm;
+        this.confidence = confidence;
+        this.sampleCount = sampleCount;
+        this.peakCount = peakCount;
+        this.sdnn = sdnn;
+        this.rmssd = rmssd;
+    }
+
+    /**
+     * @return La frequenza cardiaca stimata in battiti al minuto, oppure 0 se non disponibile.
+     */
+    public int getBpm() {
+        return bpm;
+    }
+
+    /**
+     * @return L'affidabilità della stima, compresa tra 0 (nessuna) e 1 (massima).
+     */
+    public double getConfidence() {
+        return confidence;
+    }
+
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    public int getPeakCount() {
+        return peakCount;
+    }
+
+    /**
+     * @return La deviazione standard degli intervalli RR (SDNN), in millisecondi, oppure NaN se non disponibile.
+     */
+    public double getSdnn() {
+        return sdnn;
+    }
+
+    /**
+     * @return La radice della media dei quadrati delle differenze tra intervalli RR consecutivi (RMSSD),
+     * in millisecondi, oppure NaN se non disponibile.
+     */
+    public double getRmssd() {
+        return rmssd;
+    }
+
+    /**
+     * @return true se la stima comprende gli indici di variabilità della frequenza cardiaca.
+     */
+    public boolean hasHrv() {
+        return !Double.isNaN(sdnn) && !Double.isNaN(rmssd);
+    }
+
+    /**
+     * @return true se è stato possibile calcolare un valore di frequenza cardiaca.
+     */
+    public boolean isValid() {
+        return bpm > 0;
+    }
+
+    @Override
+    public String toString() {
+        return "HeartRateEstimate{bpm=" + bpm + ", confidence=" + confidence
+                + ", samples=" + sampleCount + ", peaks=" + peakCount
+                + ", sdnn=" + sdnn + ", rmssd=" + rmssd + "}";
+    }
+}
@@ -0,0 +1,252 @@
+package it.uniba.berluxoding.medboxapp.ppg;
+
+/**
+ * Stimatore incrementale della frequenza cardiaca a partire dalla serie delle luminosità dei frame,
+ * basato sul conteggio dei picchi ({@link EstimatorEngine#PEAKS}).
+ *
+ * Ogni campione viene elaborato appena prodotto: attraversa un {@link SmoothingFilter} equivalente a nove
+ * medie mobili centrate con finestra 3 e il segnale lisciato viene analizzato da un {@link PeakDetector},
+ * che riconosce i battiti con una soglia adattiva e un periodo refrattario e ne scarta gli intervalli RR anomali.
+ * Lo stato occupato è costante e non dipende dalla durata della misurazione.
+ *
+ * I campioni devono essere equispaziati (si veda {@link UniformResampler}). Le nove medie sono tarate su
+ * {@value #REFERENCE_FRAME_RATE} campioni al secondo: con {@link #setFrameRate(double)} il numero di
+ * applicazioni viene adattato alla frequenza effettiva, così che la lisciatura abbia la stessa ampiezza in secondi.
+ *
+ * Il risultato finale restituito da {@link #finish()} usa la stessa lisciatura dell'elaborazione a posteriori
+ * dell'intera serie (compresa la gestione dei bordi); il BPM è calcolato dalla media degli intervalli RR accettati
+ * e la stima comprende gli indici di variabilità SDNN e RMSSD.
+ * Durante l'acquisizione {@link #getEstimate()} fornisce invece una stima parziale basata sui picchi
+ * degli ultimi {@value #ROLLING_WINDOW_MS} ms.
+ *
+ * Campioni grezzi, campioni lisciati e picchi sono conservati in {@link TimeSeries} a capacità fissa:
+ * l'elaborazione di un campione non alloca memoria.
+ *
+ * La classe non è thread-safe: i campioni devono essere forniti da un solo thread.
+ */
+public class HeartRateEstimator implements BpmEstimator {
+
+    //Numero di applicazioni della media mobile alla frequenza di riferimento.
+    private static final int SMOOTHING_PASSES = 9;
+
+    //Frequenza dei campioni, in campioni al secondo, per cui è tarata la lisciatura.
+    public static final double REFERENCE_FRAME_RATE = 30;
+
+    //Ampiezza, in millisecondi, della finestra di picchi usata per la stima parziale.
+    public static final long ROLLING_WINDOW_MS = 6000;
+
+    //Capacità predefinita delle serie temporali: circa 30 secondi a 30 fps.
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    //Numero di intervalli necessari perché la stima parziale raggiunga la piena affidabilità.
+    private static final int INTERVALS_FOR_FULL_CONFIDENCE = 4;
+
+    //Stadio di lisciatura del segnale.
+    private SmoothingFilter smoothingFilter = new SmoothingFilter(SMOOTHING_PASSES);
+
+    //Campioni grezzi, campioni lisciati e picchi rilevati (valore lisciato e istante del picco).
+    private final TimeSeries samples;
+    private final TimeSeries smoothed;
+    private final TimeSeries peaks;
+
+    //Vista riutilizzata per la finestra dei picchi recenti.
+    private final TimeSeries.View peakWindow = new TimeSeries.View();
+
+    //Rilevatore dei battiti nel segnale lisciato.
+    private final PeakDetector peakDetector = new PeakDetector();
+
+    /**
+     * Crea uno stimatore con serie temporali di capacità {@link #DEFAULT_CAPACITY}.
+     */
+    public HeartRateEstimator() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Crea uno stimatore con serie temporali della capacità indicata.
+     *
+     * @param capacity Il numero massimo di campioni conservati per ciascuna serie.
+     */
+    public HeartRateEstimator(int capacity) {
+        samples = new TimeSeries(capacity);
+        smoothed = new TimeSeries(capacity);
+        peaks = new TimeSeries(capacity);
+    }
+
+    /**
+     * Adatta la lisciatura alla frequenza dei campioni. Una cascata di n medie mobili con finestra 3
+     * ha varianza 2n/3 campioni al quadrato: per mantenere la stessa ampiezza in secondi il numero
+     * di applicazioni cresce con il quadrato della frequenza.
+     * Deve essere chiamato prima del primo campione della misurazione.
+     *
+     * @param frameRate La frequenza dei campioni, in campioni al secondo.
+     */
+    @Override
+    public void setFrameRate(double frameRate) {
+        if (!(frameRate > 0)) throw new IllegalArgumentException("frameRate must be positive: " + frameRate);
+        if (getSampleCount() > 0) throw new IllegalStateException("frame rate must be set before the first sample");
+        int passes = smoothingPassesFor(frameRate);
+        if (passes != smoothingFilter.getDelay()) {
+            smoothingFilter = new SmoothingFilter(passes);
+        }
+    }
+
+    /**
+     * @return Il numero di applicazioni della media mobile adatto alla frequenza indicata.
+     */
+    static int smoothingPassesFor(double frameRate) {
+        double scale = frameRate / REFERENCE_FRAME_RATE;
+        return Math.max(1, (int) Math.round(SMOOTHING_PASSES * scale * scale));
+    }
+
+    /**
+     * @return Il numero di applicazioni della media mobile attualmente in uso.
+     */
+    public int getSmoothingPasses() {
+        return smoothingFilter.getDelay();
+    }
+
+    /**
+     * Fornisce un nuovo campione allo stimatore.
+     *
+     * @param brightness La luminosità del frame.
+     * @param time       L'istante di acquisizione del frame, in millisecondi.
+     */
+    @Override
+    public void addSample(double brightness, long time) {
+        samples.append(brightness, time);
+        if (smoothingFilter.push(brightness, time)) {
+            onSmoothedSample(smoothingFilter.getOutput(), smoothingFilter.getOutputTime());
+        }
+    }
+
+    /**
+     * Restituisce la stima parziale corrente, basata sui picchi degli ultimi {@link #ROLLING_WINDOW_MS} ms.
+     *
+     * @return La stima corrente; non valida se nella finestra non ci sono almeno due picchi.
+     */
+    @Override
+    public HeartRateEstimate getEstimate() {
+        int sampleCount = getSampleCount();
+        int peakCount = peakDetector.getBeatCount();
+        if (peaks.size() < 2) {
+            return new HeartRateEstimate(0, 0, sampleCount, peakCount);
+        }
+        long lastPeakTime = peaks.lastTime();
+        peaks.window(lastPeakTime - ROLLING_WINDOW_MS, lastPeakTime + 1, peakWindow);
+        long duration = peakWindow.duration();
+        if (peakWindow.size() < 2 || duration <= 0) {
+            return new HeartRateEstimate(0, 0, sampleCount, peakCount);
+        }
+        int bpm = (int) (60000L * (peakWindow.size() - 1) / duration);
+        return new HeartRateEstimate(bpm, confidence(peakWindow), sampleCount, peakCount);
+    }
+
+    /**
+     * @return Il numero di campioni ricevuti dall'ultimo azzeramento.
+     */
+    @Override
+    public int getSampleCount() {
+        return (int) samples.getAppendedCount();
+    }
+
+    /**
+     * @return La serie dei campioni grezzi più recenti.
+     */
+    public TimeSeries getSamples() {
+        return samples;
+    }
+
+    /**
+     * @return La serie dei campioni lisciati più recenti.
+     */
+    public TimeSeries getSmoothed() {
+        return smoothed;
+    }
+
+    /**
+     * Chiude la serie, completando la lisciatura degli ultimi campioni (bordo destro delle finestre),
+     * e restituisce la stima finale.
+     * Dopo questa chiamata lo stimatore va riportato allo stato iniziale con {@link #reset()}.
+     *
+     * @return La stima finale; non valida se i campioni sono meno di {@link #MIN_SAMPLES}
+     * o se sono stati rilevati meno di due picchi.
+     */
+    @Override
+    public HeartRateEstimate finish() {
+        // Completa la lisciatura degli ultimi campioni trattenuti dal filtro
+        while (smoothingFilter.flushNext()) {
+            onSmoothedSample(smoothingFilter.getOutput(), smoothingFilter.getOutputTime());
+        }
+        if (peakDetector.flush()) {
+            peaks.append(peakDetector.getBeatValue(), peakDetector.getBeatTime());
+        }
+
+        int sampleCount = getSampleCount();
+        int peakCount = peakDetector.getBeatCount();
+        double meanInterval = peakDetector.getMeanRr();
+        if (sampleCount < MIN_SAMPLES || peakDetector.getRrCount() == 0 || !(meanInterval > 0)) {
+            return new HeartRateEstimate(0, 0, sampleCount, peakCount);
+        }
+
+        int bpm = (int) (60000 / meanInterval);
+        // Gli intervalli scartati riducono l'affidabilità in proporzione
+        double accepted = peakDetector.getRrCount() / (double) (peakCount - 1);
+        double confidence = confidence(peaks.latest(peaks.size(), peakWindow)) * accepted;
+        return new HeartRateEstimate(bpm, confidence, sampleCount, peakCount,
+                peakDetector.getSdnn(), peakDetector.getRmssd());
+    }
+
+    /**
+     * Riporta lo stimatore allo stato iniziale, pronto per una nuova misurazione.
+     */
+    @Override
+    public void reset() {
+        smoothingFilter.reset();
+        samples.clear();
+        smoothed.clear();
+        peaks.clear();
+        peakDetector.reset();
+    }
+
+    /**
+     * Riceve un campione lisciato e registra nella serie dei picchi i battiti confermati dal rilevatore.
+     */
+    private void onSmoothedSample(double value, long time) {
+        smoothed.append(value, time);
+        if (peakDetector.push(value, time)) {
+            peaks.append(peakDetector.getBeatValue(), peakDetector.getBeatTime());
+        }
+    }
+
+    /**
+     * @return Il rilevatore dei battiti, con gli intervalli RR e gli indici di variabilità della misurazione.
+     */
+    public PeakDetector getPeakDetector() {
+        return peakDetector;
+    }
+
+    /**
+     * Affidabilità della stima: cresce con il numero di intervalli tra picchi osservati
+     * e diminuisce con il loro coefficiente di variazione.
+     */
+    private static double confidence(TimeSeries.View window) {
+        int intervals = window.size() - 1;
+        if (intervals < 1) return 0;
+
+        double sum = 0;
+        double sumOfSquares = 0;
+        for (int i = 1; i <= intervals; i++) {
+            double interval = window.timeAt(i) - window.timeAt(i - 1);
+            sum += interval;
+            sumOfSquares += interval * interval;
+        }
+        double mean = sum / intervals;
+        if (mean <= 0) return 0;
+        double deviation = Math.sqrt(Math.max(0, sumOfSquares / intervals - mean * mean));
+
+        double regularity = Math.max(0, 1 - deviation / mean);
+        double coverage = Math.min(1, intervals / (double) INTERVALS_FOR_FULL_CONFIDENCE);
+        return regularity * coverage;
+    }
+}
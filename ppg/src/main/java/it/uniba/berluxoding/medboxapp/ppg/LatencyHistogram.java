@@ -0,0 +1,126 @@
+package it.uniba.berluxoding.medboxapp.ppg;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Istogramma delle durate a intervalli fissi, senza lock e senza allocazioni durante la registrazione.
+ *
+ * Le durate, in nanosecondi, sono raccolte in intervalli log-lineari: ogni potenza di due è divisa
+ * in {@value #SUB_BUCKETS} intervalli uguali, quindi un percentile è approssimato per eccesso con un errore
+ * relativo massimo del 12,5%. I valori inferiori a {@value #SUB_BUCKETS} ns hanno un intervallo ciascuno.
+ *
+ * Le durate possono essere registrate da più thread contemporaneamente. La lettura durante la registrazione
+ * non è atomica: ogni contatore viene letto separatamente, quindi conteggio, totale, massimo e intervalli
+ * possono riferirsi a istanti diversi e un percentile può includere o meno le durate registrate nel frattempo.
+ * I valori sono esatti solo quando nessun thread sta registrando.
+ */
+public class LatencyHistogram {
+
+    //Bit e numero degli intervalli in cui è divisa ogni potenza di due.
+    private static final int SUB_BUCKET_BITS = 3;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    //Numero di intervalli necessario a coprire tutti i valori long positivi.
+    static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) << SUB_BUCKET_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Registra una durata. I valori negativi vengono registrati come 0.
+     *
+     * @param nanos La durata, in nanosecondi.
+     */
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        counts.incrementAndGet(bucketOf(nanos));
+        count.incrementAndGet();
+        total.addAndGet(nanos);
+        long previous = max.get();
+        while (nanos > previous && !max.compareAndSet(previous, nanos)) {
+            previous = max.get();
+        }
+    }
+
+    /**
+     * @return Il numero di durate registrate.
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return La durata media, in nanosecondi, oppure 0 se non ne sono state registrate.
+     */
+    public long getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : total.get() / n;
+    }
+
+    /**
+     * @return La durata massima registrata, in nanosecondi.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Restituisce il percentile richiesto, come estremo superiore dell'intervallo che lo contiene
+     * e comunque non oltre la durata massima registrata.
+     *
+     * @param fraction Il percentile, tra 0 e 1 (ad esempio 0.99).
+     * @return La durata, in nanosecondi, oppure 0 se non ne sono state registrate.
+     */
+    public long getPercentile(double fraction) {
+        if (fraction < 0 || fraction > 1) {
+            throw new IllegalArgumentException("fraction must be between 0 and 1: " + fraction);
+        }
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            n += counts.get(i);
+        }
+        if (n == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(fraction * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) return Math.min(upperBound(i), max.get());
+        }
+        return max.get();
+    }
+
+    /**
+     * Azzera l'istogramma. Le durate registrate durante l'azzeramento possono andare perse.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+
+    /**
+     * @return L'indice dell'intervallo che contiene il valore.
+     */
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        int shift = msb - SUB_BUCKET_BITS;
+        return ((shift + 1) << SUB_BUCKET_BITS) | (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * @return Il valore più grande contenuto nell'intervallo.
+     */
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int shift = (bucket >>> SUB_BUCKET_BITS) - 1;
+        long lower = (long) (SUB_BUCKETS | (bucket & (SUB_BUCKETS - 1))) << shift;
+        return lower + (1L << shift) - 1;
+    }
+}
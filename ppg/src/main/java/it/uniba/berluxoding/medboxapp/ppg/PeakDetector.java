@@ -0,0 +1,307 @@
+package it.uniba.berluxoding.medboxapp.ppg;
+
+/**
+ * Rilevatore in linea dei battiti in un segnale PPG lisciato ed equispaziato, con memoria costante.
+ *
+ * Ogni massimo locale è un candidato, la cui prominenza è la differenza rispetto al minimo successivo
+ * all'ultimo battito. Il candidato diventa un battito se:
+ * - la prominenza supera una soglia adattiva, pari a {@value #THRESHOLD_RATIO} volte la media mobile delle
+ *   prominenze dei battiti precedenti; la soglia si dimezza ogni {@value #THRESHOLD_HALF_LIFE_MS} ms
+ *   senza battiti, così da riprendersi dopo un artefatto di movimento. L'onda dicrota, molto meno prominente
+ *   del picco sistolico, viene scartata;
+ * - nessun candidato più alto segue entro il periodo refrattario di {@value #REFRACTORY_MS} ms
+ *   (oltre 240 battiti al minuto): il battito viene quindi confermato con questo ritardo.
+ * L'istante del battito è interpolato con una parabola sui tre campioni attorno al massimo.
+ *
+ * Gli intervalli RR tra battiti consecutivi sono accettati se si discostano meno del
+ * {@value #RR_TOLERANCE_PERCENT}% dalla media mobile degli intervalli accettati: un battito perso o un artefatto
+ * producono un intervallo scartato, che non entra nella frequenza media né negli indici di variabilità
+ * (SDNN e RMSSD), calcolati in modo incrementale. Dopo {@value #MAX_CONSECUTIVE_REJECTIONS} intervalli scartati
+ * consecutivi il riferimento viene riallineato all'ultimo, per seguire un cambio di ritmo.
+ *
+ * La classe non alloca oggetti e non è thread-safe.
+ */
+public class PeakDetector {
+
+    //Frazione della prominenza media che un candidato deve superare.
+    static final double THRESHOLD_RATIO = 0.5;
+
+    //Peso di ogni nuovo battito nella media mobile delle prominenze.
+    private static final double AMPLITUDE_ALPHA = 0.25;
+
+    //Tempo di dimezzamento della soglia in assenza di battiti, in millisecondi.
+    static final long THRESHOLD_HALF_LIFE_MS = 2000;
+
+    //Periodo refrattario dopo un battito, in millisecondi.
+    public static final long REFRACTORY_MS = 250;
+
+    //Scostamento massimo di un intervallo RR dal riferimento, in percentuale.
+    static final int RR_TOLERANCE_PERCENT = 30;
+
+    //Peso di ogni nuovo intervallo accettato nel riferimento.
+    private static final double RR_ALPHA = 0.3;
+
+    //Intervalli scartati consecutivi dopo i quali il riferimento viene riallineato.
+    static final int MAX_CONSECUTIVE_REJECTIONS = 3;
+
+    //Ultimi due campioni, per il test del massimo locale.
+    private double previousValue, lastValue;
+    private long previousTime, lastTime;
+    private int sampleCount;
+
+    //Minimo dall'ultimo battito confermato, e minimo successivo al candidato in attesa di conferma.
+    private double trough;
+    private double troughAfterPending;
+
+    //Candidato in attesa della fine del periodo refrattario.
+    private boolean pending;
+    private double pendingTime;
+    private double pendingValue;
+    private double pendingProminence;
+
+    //Media mobile delle prominenze dei battiti e istante dell'ultimo battito.
+    private double amplitude;
+    private double beatTime;
+    private double beatValue;
+    private int beatCount;
+
+    //Ultimo intervallo RR e suo esito, riferimento per l'accettazione e scarti consecutivi.
+    private long rrInterval;
+    private boolean rrAccepted;
+    private double rrReference;
+    private int consecutiveRejections;
+
+    //Statistiche incrementali degli intervalli accettati (algoritmo di Welford) e delle loro differenze successive.
+    private int rrCount;
+    private double rrMean;
+    private double rrM2;
+    private boolean previousRrAccepted;
+    private long previousRr;
+    private int differenceCount;
+    private double squaredDifferenceSum;
+
+    public PeakDetector() {
+        reset();
+    }
+
+    /**
+     * Fornisce un campione lisciato.
+     *
+     * @param value Il valore del campione.
+     * @param time  L'istante del campione, in millisecondi.
+     * @return true se è stato confermato un battito, descritto da {@link #getBeatTime()},
+     * {@link #getRrInterval()} e {@link #isRrAccepted()}.
+     */
+    public boolean push(double value, long time) {
+        boolean beat = false;
+        if (pending && time - pendingTime >= REFRACTORY_MS) {
+            beat = confirm();
+        }
+
+        if (sampleCount >= 2 && lastValue > previousValue && lastValue >= value) {
+            onCandidate(interpolatedTime(value, time), lastValue);
+        }
+
+        trough = Math.min(trough, value);
+        if (pending) troughAfterPending = Math.min(troughAfterPending, value);
+        previousValue = lastValue;
+        previousTime = lastTime;
+        lastValue = value;
+        lastTime = time;
+        sampleCount++;
+        return beat;
+    }
+
+    /**
+     * Chiude il segnale, confermando l'eventuale candidato ancora nel periodo refrattario.
+     *
+     * @return true se è stato confermato un battito.
+     */
+    public boolean flush() {
+        return pending && confirm();
+    }
+
+    /**
+     * Valuta il massimo locale appena rilevato: se cade nel periodo refrattario del candidato in attesa
+     * lo sostituisce solo se è più alto, altrimenti diventa il nuovo candidato se supera la soglia.
+     */
+    private void onCandidate(double time, double value) {
+        if (pending && time - pendingTime < REFRACTORY_MS) {
+            if (value > pendingValue) {
+                pendingTime = time;
+                pendingValue = value;
+                pendingProminence = value - trough;
+                troughAfterPending = Double.POSITIVE_INFINITY;
+            }
+            return;
+        }
+        if (beatCount > 0 && time - beatTime < REFRACTORY_MS) return;
+        double prominence = value - trough;
+        if (prominence <= 0 || prominence < threshold(time)) return;
+        pending = true;
+        pendingTime = time;
+        pendingValue = value;
+        pendingProminence = prominence;
+        troughAfterPending = Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * @return La soglia di prominenza all'istante indicato: nulla prima del primo battito.
+     */
+    private double threshold(double time) {
+        if (beatCount == 0) return 0;
+        double elapsed = Math.max(0, time - beatTime);
+        return THRESHOLD_RATIO * amplitude * Math.pow(0.5, elapsed / THRESHOLD_HALF_LIFE_MS);
+    }
+
+    /**
+     * Conferma il candidato in attesa come battito e valuta l'intervallo RR dal battito precedente.
+     */
+    private boolean confirm() {
+        pending = false;
+        amplitude = beatCount == 0 ? pendingProminence : amplitude + AMPLITUDE_ALPHA * (pendingProminence - amplitude);
+        if (beatCount > 0) {
+            onRrInterval(Math.round(pendingTime - beatTime));
+        }
+        beatTime = pendingTime;
+        beatValue = pendingValue;
+        beatCount++;
+        trough = troughAfterPending;
+        return true;
+    }
+
+    /**
+     * Accetta o scarta un intervallo RR e aggiorna le statistiche degli intervalli accettati.
+     */
+    private void onRrInterval(long interval) {
+        rrInterval = interval;
+        if (rrReference == 0 || Math.abs(interval - rrReference) * 100 <= RR_TOLERANCE_PERCENT * rrReference) {
+            rrAccepted = true;
+            rrReference = rrReference == 0 ? interval : rrReference + RR_ALPHA * (interval - rrReference);
+            consecutiveRejections = 0;
+        } else {
+            rrAccepted = false;
+            if (++consecutiveRejections >= MAX_CONSECUTIVE_REJECTIONS) {
+                rrReference = interval;
+                consecutiveRejections = 0;
+            }
+        }
+
+        if (rrAccepted) {
+            rrCount++;
+            double delta = interval - rrMean;
+            rrMean += delta / rrCount;
+            rrM2 += delta * (interval - rrMean);
+            if (previousRrAccepted) {
+                double difference = interval - previousRr;
+                squaredDifferenceSum += difference * difference;
+                differenceCount++;
+            }
+        }
+        previousRrAccepted = rrAccepted;
+        previousRr = interval;
+    }
+
+    /**
+     * Istante del massimo della parabola passante per gli ultimi tre campioni, il centrale dei quali è il massimo locale.
+     */
+    private double interpolatedTime(double next, long nextTime) {
+        double curvature = previousValue - 2 * lastValue + next;
+        if (curvature >= 0) return lastTime;
+        double offset = 0.5 * (previousValue - next) / curvature;
+        double step = offset < 0 ? lastTime - previousTime : nextTime - lastTime;
+        return lastTime + offset * step;
+    }
+
+    /**
+     * @return L'istante dell'ultimo battito confermato, in millisecondi.
+     */
+    public long getBeatTime() {
+        return Math.round(beatTime);
+    }
+
+    /**
+     * @return Il valore del segnale all'ultimo battito confermato.
+     */
+    public double getBeatValue() {
+        return beatValue;
+    }
+
+    /**
+     * @return Il numero di battiti confermati.
+     */
+    public int getBeatCount() {
+        return beatCount;
+    }
+
+    /**
+     * @return L'intervallo RR tra gli ultimi due battiti, in millisecondi, oppure 0 dopo il primo battito.
+     */
+    public long getRrInterval() {
+        return rrInterval;
+    }
+
+    /**
+     * @return true se l'ultimo intervallo RR è stato accettato.
+     */
+    public boolean isRrAccepted() {
+        return rrAccepted;
+    }
+
+    /**
+     * @return Il numero di intervalli RR accettati.
+     */
+    public int getRrCount() {
+        return rrCount;
+    }
+
+    /**
+     * @return La media degli intervalli RR accettati, in millisecondi, oppure NaN se non ce ne sono.
+     */
+    public double getMeanRr() {
+        return rrCount == 0 ? Double.NaN : rrMean;
+    }
+
+    /**
+     * @return La deviazione standard degli intervalli RR accettati (SDNN), in millisecondi,
+     * oppure NaN se sono meno di due.
+     */
+    public double getSdnn() {
+        return rrCount < 2 ? Double.NaN : Math.sqrt(rrM2 / (rrCount - 1));
+    }
+
+    /**
+     * @return La radice della media dei quadrati delle differenze tra intervalli RR accettati consecutivi (RMSSD),
+     * in millisecondi, oppure NaN se non ce ne sono.
+     */
+    public double getRmssd() {
+        return differenceCount == 0 ? Double.NaN : Math.sqrt(squaredDifferenceSum / differenceCount);
+    }
+
+    /**
+     * Riporta il rilevatore allo stato iniziale, pronto per un nuovo segnale.
+     */
+    public void reset() {
+        sampleCount = 0;
+        previousValue = lastValue = 0;
+        previousTime = lastTime = 0;
+        trough = Double.POSITIVE_INFINITY;
+        troughAfterPending = Double.POSITIVE_INFINITY;
+        pending = false;
+        amplitude = 0;
+        beatTime = 0;
+        beatValue = 0;
+        beatCount = 0;
+        rrInterval = 0;
+        rrAccepted = false;
+        rrReference = 0;
+        consecutiveRejections = 0;
+        rrCount = 0;
+        rrMean = 0;
+        rrM2 = 0;
+        previousRrAccepted = false;
+        previousRr = 0;
+        differenceCount = 0;
+        squaredDifferenceSum = 0;
+    }
+}
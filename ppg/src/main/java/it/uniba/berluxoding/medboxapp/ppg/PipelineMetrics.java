@@ -0,0 +1,143 @@
+package it.uniba.berluxoding.medboxapp.ppg;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Strumentazione della pipeline di misurazione: un {@link LatencyHistogram} per ogni fase
+ * dell'elaborazione di un frame e i contatori dei frame di una sessione.
+ *
+ * Registrazione e lettura sono senza lock e possono avvenire da thread diversi: le fasi sono registrate
+ * dal thread della fotocamera, da quello di elaborazione e da quello dell'analisi, e lette dal thread
+ * principale per la sovrimpressione di debug.
+ */
+public class PipelineMetrics {
+
+    /**
+     * Fasi dell'elaborazione di un frame, nell'ordine in cui vengono eseguite.
+     */
+    public enum Stage {
+        //Dall'esposizione del sensore all'acquisizione dell'immagine dall'ImageReader, nel thread della fotocamera
+        //(la sola acquisizione se i timestamp del sensore non sono confrontabili con l'orologio del dispositivo).
+        ACQUIRE,
+        //Controllo della presenza del dito e della qualità del frame, nel thread della fotocamera.
+        GATE,
+        //Copia dei piani dell'immagine in un buffer del pool.
+        PLANE_COPY,
+        //Calcolo delle statistiche del frame (o decodifica del canale rosso).
+        STATISTICS,
+        //Ricampionamento del valore e aggiunta allo stimatore.
+        STORE,
+        //Calcolo della stima parziale o finale.
+        ANALYSIS
+    }
+
+    /**
+     * Contatori dei frame di una sessione.
+     */
+    public enum Counter {
+        //Frame ricevuti dalla fotocamera durante la misurazione.
+        RECEIVED,
+        //Frame scartati perché il dito non è presente o il segnale non è utilizzabile.
+        REJECTED,
+        //Frame scartati perché l'elaborazione è rimasta indietro: persi dalla fotocamera o dall'ImageReader prima
+        //della consegna, oppure rifiutati dalla coda di elaborazione.
+        DROPPED,
+        //Frame elaborati.
+        PROCESSED
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+    private static final Counter[] COUNTERS = Counter.values();
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[STAGES.length];
+    private final AtomicLongArray counters = new AtomicLongArray(COUNTERS.length);
+
+    public PipelineMetrics() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Registra la durata di una fase.
+     *
+     * @param stage      La fase.
+     * @param startNanos L'istante di inizio della fase, ottenuto con {@link System#nanoTime()}.
+     */
+    public void recordSince(Stage stage, long startNanos) {
+        histograms[stage.ordinal()].record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Registra la durata di una fase misurata altrove.
+     *
+     * @param stage La fase.
+     * @param nanos La durata, in nanosecondi.
+     */
+    public void record(Stage stage, long nanos) {
+        histograms[stage.ordinal()].record(nanos);
+    }
+
+    /**
+     * @param stage La fase.
+     * @return L'istogramma delle durate della fase.
+     */
+    public LatencyHistogram getHistogram(Stage stage) {
+        return histograms[stage.ordinal()];
+    }
+
+    /**
+     * Incrementa un contatore.
+     *
+     * @param counter Il contatore.
+     */
+    public void increment(Counter counter) {
+        counters.incrementAndGet(counter.ordinal());
+    }
+
+    /**
+     * @param counter Il contatore.
+     * @return Il valore del contatore.
+     */
+    public long get(Counter counter) {
+        return counters.get(counter.ordinal());
+    }
+
+    /**
+     * Azzera istogrammi e contatori, all'inizio di una nuova sessione.
+     */
+    public void reset() {
+        for (LatencyHistogram histogram : histograms) {
+            histogram.reset();
+        }
+        for (int i = 0; i < COUNTERS.length; i++) {
+            counters.set(i, 0);
+        }
+    }
+
+    /**
+     * Restituisce un riepilogo leggibile: una riga per fase con numero di campioni, p50, p99 e massimo
+     * in millisecondi, seguita dai contatori.
+     *
+     * @return Il riepilogo, su più righe.
+     */
+    public String format() {
+        StringBuilder builder = new StringBuilder();
+        for (Stage stage : STAGES) {
+            LatencyHistogram histogram = histograms[stage.ordinal()];
+            builder.append(String.format(Locale.ROOT, "%-10s n=%-5d p50=%6.2f p99=%6.2f max=%6.2f ms\n",
+                    stage, histogram.getCount(), millis(histogram.getPercentile(0.5)),
+                    millis(histogram.getPercentile(0.99)), millis(histogram.getMax())));
+        }
+        for (int i = 0; i < COUNTERS.length; i++) {
+            if (i > 0) builder.append(' ');
+            builder.append(COUNTERS[i].name().toLowerCase(Locale.ROOT)).append('=').append(counters.get(i));
+        }
+        return builder.toString();
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+}
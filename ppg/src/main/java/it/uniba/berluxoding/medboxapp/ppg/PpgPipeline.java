@@ -0,0 +1,329 @@
+package it.uniba.berluxoding.medboxapp.ppg;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Pipeline completa per la stima della frequenza cardiaca tramite fotopletismografia (PPG):
+ * dal piano di luminanza di ciascun frame alla stima dei battiti al minuto.
+ *
+ * Per ogni frame calcola le statistiche con {@link FrameStatisticsKernel} e fornisce la luminanza media
+ * della regione campionata a un {@link BpmEstimator}, dopo averla ricampionata su una griglia
+ * a frequenza costante con un {@link UniformResampler}: la frequenza misurata dei frame determina
+ * anche l'ampiezza della lisciatura dello stimatore. Non dipende dall'SDK Android:
+ * i piani dell'immagine sono passati come {@link ByteBuffer} insieme ai rispettivi stride.
+ *
+ * Le statistiche possono essere calcolate su una regione di interesse con passo di campionamento
+ * ({@link #setSamplingRegion(SamplingRegion)}) oppure sulla migliore tra più regioni candidate,
+ * scelta automaticamente all'inizio di ogni misurazione ({@link #setCandidateRegions(List, long)}).
+ * Non viene applicata la normalizzazione min-max del frame: minimo e massimo dipendono dai singoli pixel
+ * più rumorosi e, una volta usati per riscalare la media, ne coprono la componente pulsatile.
+ *
+ * Con {@link #setMetrics(PipelineMetrics)} vengono registrate le durate del calcolo delle statistiche,
+ * del ricampionamento e delle stime.
+ *
+ * La classe non è thread-safe: i frame devono essere forniti da un solo thread.
+ */
+public class PpgPipeline {
+
+    //Statistiche dell'ultimo frame elaborato, riutilizzate a ogni frame.
+    private final FrameStatistics frameStatistics = new FrameStatistics();
+
+    //Stimatore della frequenza cardiaca, sostituibile con setEstimator().
+    private BpmEstimator estimator;
+
+    //Ricampionamento della serie delle luminosità su una griglia a frequenza costante.
+    private final UniformResampler resampler = new UniformResampler();
+
+    //Regione del frame su cui calcolare le statistiche.
+    private SamplingRegion samplingRegion = SamplingRegion.full();
+
+    //Selettore della regione migliore tra più candidate, oppure null se la regione è fissa.
+    private RegionSelector regionSelector;
+
+    //Decodificatore parallelo del canale rosso, oppure null per decodificarlo nel thread chiamante.
+    private StripedFrameDecoder frameDecoder;
+
+    //Strumentazione delle fasi, oppure null se disattivata.
+    private PipelineMetrics metrics;
+
+    //Serie rielaborata dallo stimatore all'ultimo frame, alla fine della calibrazione, oppure null.
+    private TimeSeries realignment;
+
+    public PpgPipeline() {
+        this(new HeartRateEstimator());
+    }
+
+    public PpgPipeline(BpmEstimator estimator) {
+        this.estimator = estimator;
+    }
+
+    /**
+     * Sostituisce lo stimatore della frequenza cardiaca. La misurazione in corso riparte da capo.
+     *
+     * @param estimator Il nuovo stimatore, ad esempio creato con {@link EstimatorEngine#create()}.
+     */
+    public void setEstimator(BpmEstimator estimator) {
+        this.estimator = estimator;
+        reset();
+    }
+
+    /**
+     * Elabora il piano Y di un frame e ne fornisce la luminosità allo stimatore.
+     *
+     * @param yBuffer     Il buffer del piano Y.
+     * @param rowStride   Distanza in byte tra l'inizio di due righe consecutive.
+     * @param pixelStride Distanza in byte tra due pixel consecutivi della stessa riga.
+     * @param width       La larghezza del frame.
+     * @param height      L'altezza del frame.
+     * @param time        L'istante di acquisizione del frame in millisecondi, preferibilmente il timestamp
+     *                    del sensore e non quello di consegna del frame.
+     * @return La luminanza media della regione campionata.
+     */
+    public double processFrame(ByteBuffer yBuffer, int rowStride, int pixelStride, int width, int height, long time) {
+        realignment = null;
+        if (regionSelector != null && regionSelector.isCalibrating()) {
+            return calibrate(yBuffer, rowStride, pixelStride, width, height, time);
+        }
+        long start = metrics != null ? System.nanoTime() : 0;
+        FrameStatisticsKernel.compute(yBuffer, rowStride, pixelStride, null, null, 0, 0,
+                width, height, samplingRegion, frameStatistics);
+        if (metrics != null) metrics.recordSince(PipelineMetrics.Stage.STATISTICS, start);
+        double brightness = frameStatistics.getMean();
+        resample(brightness, time);
+        return brightness;
+    }
+
+    /**
+     * Elabora un frame completo (piani Y, U e V) e fornisce allo stimatore la media del canale rosso,
+     * meno sensibile della luminanza alle variazioni di illuminazione ambientale.
+     * Il canale rosso viene decodificato sull'intero frame, in parallelo se è stato impostato un
+     * {@link StripedFrameDecoder}; regione di interesse e regioni candidate valgono solo per {@link #processFrame}.
+     *
+     * @param yBuffer       Il buffer del piano Y.
+     * @param yRowStride    Distanza in byte tra l'inizio di due righe consecutive del piano Y.
+     * @param yPixelStride  Distanza in byte tra due pixel consecutivi del piano Y.
+     * @param uBuffer       Il buffer del piano U.
+     * @param vBuffer       Il buffer del piano V.
+     * @param uvRowStride   Distanza in byte tra l'inizio di due righe consecutive dei piani U e V.
+     * @param uvPixelStride Distanza in byte tra due campioni consecutivi dei piani U e V.
+     * @param width         La larghezza del frame.
+     * @param height        L'altezza del frame.
+     * @param time          L'istante di acquisizione del frame, in millisecondi.
+     * @return La media del canale rosso.
+     */
+    public double processColorFrame(ByteBuffer yBuffer, int yRowStride, int yPixelStride,
+                                    ByteBuffer uBuffer, ByteBuffer vBuffer, int uvRowStride, int uvPixelStride,
+                                    int width, int height, long time) {
+        realignment = null;
+        long start = metrics != null ? System.nanoTime() : 0;
+        if (frameDecoder != null) {
+            frameDecoder.decode(yBuffer, yRowStride, yPixelStride, uBuffer, vBuffer, uvRowStride, uvPixelStride,
+                    width, height, frameStatistics);
+        } else {
+            FrameStatisticsKernel.computeRed(yBuffer, yRowStride, yPixelStride, uBuffer, vBuffer,
+                    uvRowStride, uvPixelStride, width, height, frameStatistics);
+        }
+        if (metrics != null) metrics.recordSince(PipelineMetrics.Stage.STATISTICS, start);
+        double red = frameStatistics.getMeanRed();
+        resample(red, time);
+        return red;
+    }
+
+    /**
+     * Elabora un frame copiato da {@link FrameAcquisition}, con {@link #processColorFrame} se comprende
+     * i piani di crominanza e con {@link #processFrame} altrimenti.
+     *
+     * @param frame Il frame da elaborare.
+     * @return La luminosità fornita allo stimatore.
+     */
+    public double processFrame(FrameBuffer frame) {
+        if (frame.isColor()) {
+            return processColorFrame(frame.getYBuffer(), frame.getYRowStride(), frame.getYPixelStride(),
+                    frame.getUBuffer(), frame.getVBuffer(), frame.getUvRowStride(), frame.getUvPixelStride(),
+                    frame.getWidth(), frame.getHeight(), frame.getTime());
+        }
+        return processFrame(frame.getYBuffer(), frame.getYRowStride(), frame.getYPixelStride(),
+                frame.getWidth(), frame.getHeight(), frame.getTime());
+    }
+
+    /**
+     * Imposta il decodificatore parallelo usato da {@link #processColorFrame}. La pipeline non ne gestisce
+     * il ciclo di vita: va chiuso dal chiamante quando non serve più.
+     *
+     * @param frameDecoder Il decodificatore, oppure null per decodificare nel thread chiamante.
+     */
+    public void setFrameDecoder(StripedFrameDecoder frameDecoder) {
+        this.frameDecoder = frameDecoder;
+    }
+
+    /**
+     * Imposta la strumentazione in cui registrare le durate delle fasi della pipeline.
+     *
+     * @param metrics La strumentazione, oppure null per disattivarla.
+     */
+    public void setMetrics(PipelineMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Elabora un frame durante la calibrazione delle regioni candidate: lo stimatore riceve la luminosità
+     * della prima candidata e, se al termine viene scelta un'altra regione, viene riallineato rielaborando
+     * la serie registrata per la regione scelta, che resta disponibile con {@link #getRealignment()}.
+     */
+    private double calibrate(ByteBuffer yBuffer, int rowStride, int pixelStride, int width, int height, long time) {
+        long start = metrics != null ? System.nanoTime() : 0;
+        regionSelector.processFrame(yBuffer, rowStride, pixelStride, width, height, time, frameStatistics);
+        if (metrics != null) metrics.recordSince(PipelineMetrics.Stage.STATISTICS, start);
+        double brightness = frameStatistics.getMean();
+        resample(brightness, time);
+
+        if (!regionSelector.isCalibrating()) {
+            samplingRegion = regionSelector.getSelected();
+            int selected = regionSelector.getSelectedIndex();
+            if (selected != 0) {
+                TimeSeries history = regionSelector.getHistory(selected);
+                resampler.reset();
+                estimator.reset();
+                for (int i = 0; i < history.size(); i++) {
+                    resample(history.valueAt(i), history.timeAt(i));
+                }
+                brightness = history.lastValue();
+                realignment = history;
+            }
+        }
+        return brightness;
+    }
+
+    /**
+     * Ricampiona un valore di luminosità e fornisce allo stimatore i campioni prodotti sulla griglia.
+     * Il primo campione di ogni misurazione adatta lo stimatore alla frequenza misurata.
+     */
+    private void resample(double brightness, long time) {
+        long start = metrics != null ? System.nanoTime() : 0;
+        resampler.push(brightness, time);
+        while (resampler.next()) {
+            if (estimator.getSampleCount() == 0) {
+                estimator.setFrameRate(resampler.getFrameRate());
+            }
+            estimator.addSample(resampler.getValue(), resampler.getTime());
+        }
+        if (metrics != null) metrics.recordSince(PipelineMetrics.Stage.STORE, start);
+    }
+
+    /**
+     * Imposta una regione di interesse fissa, disattivando la scelta automatica.
+     *
+     * @param region La regione su cui calcolare le statistiche di ogni frame.
+     */
+    public void setSamplingRegion(SamplingRegion region) {
+        samplingRegion = region;
+        regionSelector = null;
+    }
+
+    /**
+     * Attiva la scelta automatica della regione di interesse tra quelle indicate.
+     * La scelta avviene all'inizio di ogni misurazione, dopo {@code calibrationMs} millisecondi.
+     *
+     * @param candidates    Le regioni candidate.
+     * @param calibrationMs La durata in millisecondi su cui confrontare le regioni.
+     */
+    public void setCandidateRegions(List<SamplingRegion> candidates, long calibrationMs) {
+        regionSelector = new RegionSelector(candidates, calibrationMs);
+        samplingRegion = regionSelector.getSelected();
+    }
+
+    /**
+     * @return La regione usata per l'ultimo frame, oppure quella scelta al termine della calibrazione.
+     */
+    public SamplingRegion getSamplingRegion() {
+        return samplingRegion;
+    }
+
+    /**
+     * Indica se l'ultimo frame ha concluso la calibrazione scegliendo una regione diversa dalla prima:
+     * in quel caso lo stimatore è ripartito da capo e ha ricevuto la serie della regione scelta al posto
+     * dei valori restituiti durante la calibrazione. Chi registra i valori forniti allo stimatore
+     * deve registrare anche questa serie ({@link SessionRecorder#recordRealignment(TimeSeries)}).
+     *
+     * @return La serie fornita allo stimatore dopo il riallineamento, valida fino al frame successivo,
+     * oppure null se l'ultimo frame non ha riallineato lo stimatore.
+     */
+    public TimeSeries getRealignment() {
+        return realignment;
+    }
+
+    /**
+     * @return Il selettore delle regioni candidate, oppure null se la regione è fissa.
+     */
+    public RegionSelector getRegionSelector() {
+        return regionSelector;
+    }
+
+    /**
+     * Fornisce allo stimatore un campione di luminosità già calcolato, ad esempio durante la riproduzione
+     * di una serie registrata.
+     *
+     * @param brightness La luminosità del frame.
+     * @param time       L'istante di acquisizione del frame, in millisecondi.
+     */
+    public void addSample(double brightness, long time) {
+        resample(brightness, time);
+    }
+
+    /**
+     * @return La frequenza dei frame misurata all'inizio della misurazione, oppure NaN se non ancora disponibile.
+     */
+    public double getFrameRate() {
+        return resampler.getFrameRate();
+    }
+
+    /**
+     * @return Le statistiche dell'ultimo frame elaborato con {@link #processFrame}.
+     */
+    public FrameStatistics getFrameStatistics() {
+        return frameStatistics;
+    }
+
+    /**
+     * @return La stima parziale corrente della frequenza cardiaca.
+     */
+    public HeartRateEstimate getEstimate() {
+        if (metrics == null) return estimator.getEstimate();
+        long start = System.nanoTime();
+        HeartRateEstimate estimate = estimator.getEstimate();
+        metrics.recordSince(PipelineMetrics.Stage.ANALYSIS, start);
+        return estimate;
+    }
+
+    /**
+     * Chiude la serie dei campioni e restituisce la stima finale.
+     *
+     * @return La stima finale della frequenza cardiaca.
+     */
+    public HeartRateEstimate finish() {
+        if (metrics == null) return estimator.finish();
+        long start = System.nanoTime();
+        HeartRateEstimate estimate = estimator.finish();
+        metrics.recordSince(PipelineMetrics.Stage.ANALYSIS, start);
+        return estimate;
+    }
+
+    /**
+     * Riporta la pipeline allo stato iniziale, pronta per una nuova misurazione.
+     */
+    public void reset() {
+        realignment = null;
+        resampler.reset();
+        estimator.reset();
+        frameStatistics.reset();
+        if (regionSelector != null) {
+            regionSelector.reset();
+            samplingRegion = regionSelector.getSelected();
+        }
+    }
+
+    public BpmEstimator getEstimator() {
+        return estimator;
+    }
+}
@@ -0,0 +1,237 @@
+package it.uniba.berluxoding.medboxapp.ppg;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Selezione automatica della regione di interesse con il miglior rapporto segnale/rumore.
+ *
+ * Durante una breve fase di calibrazione la luminosità media di ogni regione candidata viene
+ * registrata in una {@link TimeSeries}. Al termine ogni serie riceve un punteggio pari al rapporto tra
+ * la potenza della componente pulsatile (media mobile breve meno media mobile lunga, che rimuove la deriva)
+ * e la potenza del rumore (segnale meno media mobile breve); la regione con il punteggio più alto viene
+ * scelta e usata per il resto della misurazione.
+ *
+ * Durata della calibrazione e finestre delle medie mobili sono espresse in millisecondi: le finestre vengono
+ * convertite in campioni con la frequenza misurata sulla serie registrata, così che la scelta richieda lo stesso
+ * tempo e separi le stesse componenti qualunque sia la frequenza dei frame negoziata con la fotocamera.
+ *
+ * La calibrazione costa quanto la lettura di tutte le regioni candidate; dopo la scelta viene letta
+ * una sola regione. La classe non è thread-safe.
+ */
+public class RegionSelector {
+
+    //Durata predefinita della calibrazione, in millisecondi.
+    public static final long DEFAULT_CALIBRATION_MS = 4000;
+
+    //Frequenza massima dei frame per cui vengono dimensionate le serie di calibrazione: oltre, la calibrazione
+    //termina quando le serie sono piene.
+    public static final int MAX_FRAME_RATE = 60;
+
+    //Finestre delle medie mobili usate per separare componente pulsatile, deriva e rumore (in millisecondi):
+    //3 e 45 campioni a 30 fps.
+    private static final long SHORT_WINDOW_MS = 100;
+    private static final long LONG_WINDOW_MS = 1500;
+
+    //Numero minimo di campioni di una finestra.
+    private static final int MIN_WINDOW = 3;
+
+    private final SamplingRegion[] candidates;
+    private final long calibrationMs;
+    private final int maxCalibrationFrames;
+    private final TimeSeries[] histories;
+    private final double[] scores;
+
+    //Statistiche riutilizzate per le regioni candidate e array di appoggio per il calcolo del punteggio.
+    private final FrameStatistics statistics = new FrameStatistics();
+    private final double[] values;
+    private final double[] prefixSums;
+
+    private int frameCount;
+    private long firstTime;
+    private int selected = -1;
+
+    /**
+     * @param candidates    Le regioni candidate; la prima è usata durante la calibrazione.
+     * @param calibrationMs La durata in millisecondi su cui confrontare le regioni.
+     */
+    public RegionSelector(List<SamplingRegion> candidates, long calibrationMs) {
+        if (candidates.isEmpty()) throw new IllegalArgumentException("no candidate regions");
+        if (calibrationMs <= 0) throw new IllegalArgumentException("calibrationMs must be positive: " + calibrationMs);
+        this.candidates = candidates.toArray(new SamplingRegion[0]);
+        this.calibrationMs = calibrationMs;
+        maxCalibrationFrames = (int) (calibrationMs * MAX_FRAME_RATE / 1000) + 1;
+        histories = new TimeSeries[this.candidates.length];
+        for (int i = 0; i < histories.length; i++) {
+            histories[i] = new TimeSeries(maxCalibrationFrames);
+        }
+        scores = new double[this.candidates.length];
+        values = new double[maxCalibrationFrames];
+        prefixSums = new double[maxCalibrationFrames + 1];
+    }
+
+    /**
+     * Regioni candidate predefinite: il riquadro centrale pari al 50% del frame e quattro riquadri
+     * del 40% spostati verso i bordi, tutti campionati con passo 4.
+     *
+     * @return La lista delle regioni candidate.
+     */
+    public static List<SamplingRegion> defaultCandidates() {
+        List<SamplingRegion> candidates = new ArrayList<>();
+        candidates.add(SamplingRegion.centered(0.5, 4));
+        candidates.add(SamplingRegion.of(0.3, 0.05, 0.4, 0.4, 4));
+        candidates.add(SamplingRegion.of(0.3, 0.55, 0.4, 0.4, 4));
+        candidates.add(SamplingRegion.of(0.05, 0.3, 0.4, 0.4, 4));
+        candidates.add(SamplingRegion.of(0.55, 0.3, 0.4, 0.4, 4));
+        return Collections.unmodifiableList(candidates);
+    }
+
+    /**
+     * @return true finché la regione non è stata scelta.
+     */
+    public boolean isCalibrating() {
+        return selected < 0;
+    }
+
+    /**
+     * Elabora un frame di calibrazione, registrando la luminosità media di ogni regione candidata.
+     * Dopo {@code calibrationMs} millisecondi dal primo frame sceglie la regione migliore.
+     *
+     * @param yBuffer     Il buffer del piano Y.
+     * @param rowStride   Distanza in byte tra l'inizio di due righe consecutive.
+     * @param pixelStride Distanza in byte tra due pixel consecutivi della stessa riga.
+     * @param width       La larghezza del frame.
+     * @param height      L'altezza del frame.
+     * @param time        L'istante di acquisizione del frame.
+     * @param out         Statistiche da riempire con quelle della prima regione candidata.
+     */
+    public void processFrame(ByteBuffer yBuffer, int rowStride, int pixelStride, int width, int height,
+                             long time, FrameStatistics out) {
+        if (!isCalibrating()) return;
+
+        for (int i = 0; i < candidates.length; i++) {
+            FrameStatistics target = i == 0 ? out : statistics;
+            FrameStatisticsKernel.compute(yBuffer, rowStride, pixelStride, null, null, 0, 0,
+                    width, height, candidates[i], target);
+            histories[i].append(target.getMean(), time);
+        }
+
+        if (frameCount++ == 0) firstTime = time;
+        if (time - firstTime >= calibrationMs || frameCount >= maxCalibrationFrames) {
+            select();
+        }
+    }
+
+    /**
+     * @return L'indice della regione scelta, oppure -1 durante la calibrazione.
+     */
+    public int getSelectedIndex() {
+        return selected;
+    }
+
+    /**
+     * @return La regione scelta, oppure la prima candidata durante la calibrazione.
+     */
+    public SamplingRegion getSelected() {
+        return candidates[Math.max(selected, 0)];
+    }
+
+    public int getCandidateCount() {
+        return candidates.length;
+    }
+
+    public SamplingRegion getCandidate(int index) {
+        return candidates[index];
+    }
+
+    /**
+     * @return Il rapporto segnale/rumore della regione indicata, disponibile al termine della calibrazione.
+     */
+    public double getScore(int index) {
+        return scores[index];
+    }
+
+    /**
+     * @return La serie delle luminosità registrate per la regione indicata durante la calibrazione.
+     */
+    public TimeSeries getHistory(int index) {
+        return histories[index];
+    }
+
+    /**
+     * Ricomincia la calibrazione.
+     */
+    public void reset() {
+        for (TimeSeries history : histories) {
+            history.clear();
+        }
+        for (int i = 0; i < scores.length; i++) {
+            scores[i] = 0;
+        }
+        frameCount = 0;
+        firstTime = 0;
+        selected = -1;
+    }
+
+    private void select() {
+        int best = 0;
+        for (int i = 0; i < candidates.length; i++) {
+            scores[i] = signalToNoise(histories[i]);
+            if (scores[i] > scores[best]) best = i;
+        }
+        selected = best;
+    }
+
+    /**
+     * Rapporto tra la varianza della componente pulsatile e quella del rumore ad alta frequenza.
+     */
+    private double signalToNoise(TimeSeries series) {
+        int n = series.size();
+        if (n < 3) return 0;
+        series.copyTo(0, n, values, null);
+
+        // Frequenza media dei frame registrati, per convertire le finestre in campioni
+        long duration = series.timeAt(n - 1) - series.timeAt(0);
+        double frameRate = duration > 0 ? (n - 1) * 1000.0 / duration : HeartRateEstimator.REFERENCE_FRAME_RATE;
+        int shortWindow = windowFor(SHORT_WINDOW_MS, frameRate);
+        int longWindow = windowFor(LONG_WINDOW_MS, frameRate);
+
+        prefixSums[0] = 0;
+        for (int i = 0; i < n; i++) {
+            prefixSums[i + 1] = prefixSums[i] + values[i];
+        }
+
+        double pulseSum = 0, pulseSumOfSquares = 0;
+        double noiseSum = 0, noiseSumOfSquares = 0;
+        for (int i = 0; i < n; i++) {
+            double shortAverage = centeredAverage(i, shortWindow, n);
+            double pulse = shortAverage - centeredAverage(i, longWindow, n);
+            double noise = values[i] - shortAverage;
+            pulseSum += pulse;
+            pulseSumOfSquares += pulse * pulse;
+            noiseSum += noise;
+            noiseSumOfSquares += noise * noise;
+        }
+        double pulseVariance = pulseSumOfSquares / n - (pulseSum / n) * (pulseSum / n);
+        double noiseVariance = noiseSumOfSquares / n - (noiseSum / n) * (noiseSum / n);
+        return Math.max(0, pulseVariance) / (Math.max(0, noiseVariance) + 1e-9);
+    }
+
+    /**
+     * @return Il numero di campioni di una finestra della durata indicata alla frequenza indicata.
+     */
+    static int windowFor(long windowMs, double frameRate) {
+        return Math.max(MIN_WINDOW, (int) Math.round(windowMs * frameRate / 1000));
+    }
+
+    /**
+     * Media dei valori nella finestra centrata sull'indice indicato, troncata ai bordi della serie.
+     */
+    private double centeredAverage(int index, int window, int n) {
+        int start = Math.max(0, index - window / 2);
+        int end = Math.min(n, index + window / 2 + 1);
+        return (prefixSums[end] - prefixSums[start]) / (end - start);
+    }
+}
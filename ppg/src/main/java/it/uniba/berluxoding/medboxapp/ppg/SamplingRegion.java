@@ -0,0 +1,118 @@
+package it.uniba.berluxoding.medboxapp.ppg;
+
+/**
+ * Regione di interesse (ROI) su cui calcolare le statistiche di un frame, con passo di campionamento.
+ * I bordi sono espressi come frazioni della larghezza e dell'altezza del frame, così che la stessa regione
+ * possa essere usata con qualunque risoluzione. Con un passo maggiore di 1 viene letto un pixel ogni
+ * {@code stride} in entrambe le direzioni, su una griglia regolare.
+ *
+ * La classe è immutabile.
+ */
+public final class SamplingRegion {
+
+    private static final SamplingRegion FULL = new SamplingRegion(0, 0, 1, 1, 1);
+
+    private final double left;
+    private final double top;
+    private final double right;
+    private final double bottom;
+    private final int stride;
+
+    private SamplingRegion(double left, double top, double right, double bottom, int stride) {
+        if (left < 0 || top < 0 || right > 1 || bottom > 1 || left >= right || top >= bottom) {
+            throw new IllegalArgumentException("invalid region: " + left + ", " + top + ", " + right + ", " + bottom);
+        }
+        if (stride <= 0) throw new IllegalArgumentException("stride must be positive: " + stride);
+        this.left = left;
+        this.top = top;
+        this.right = right;
+        this.bottom = bottom;
+        this.stride = stride;
+    }
+
+    /**
+     * @return La regione che copre l'intero frame, letto pixel per pixel.
+     */
+    public static SamplingRegion full() {
+        return FULL;
+    }
+
+    /**
+     * Crea una regione centrata nel frame.
+     *
+     * @param fraction La frazione di larghezza e altezza coperta dalla regione, ad esempio 0.5.
+     * @param stride   Il passo di campionamento in pixel.
+     * @return La regione centrata.
+     */
+    public static SamplingRegion centered(double fraction, int stride) {
+        double margin = (1 - fraction) / 2;
+        return new SamplingRegion(margin, margin, 1 - margin, 1 - margin, stride);
+    }
+
+    /**
+     * Crea una regione rettangolare.
+     *
+     * @param left   Il bordo sinistro, come frazione della larghezza.
+     * @param top    Il bordo superiore, come frazione dell'altezza.
+     * @param width  La larghezza, come frazione della larghezza del frame.
+     * @param height L'altezza, come frazione dell'altezza del frame.
+     * @param stride Il passo di campionamento in pixel.
+     * @return La regione.
+     */
+    public static SamplingRegion of(double left, double top, double width, double height, int stride) {
+        return new SamplingRegion(left, top, left + width, top + height, stride);
+    }
+
+    /**
+     * @return true se la regione copre l'intero frame con passo 1.
+     */
+    public boolean isFullFrame() {
+        return left == 0 && top == 0 && right == 1 && bottom == 1 && stride == 1;
+    }
+
+    public int getStride() {
+        return stride;
+    }
+
+    /**
+     * @return La prima colonna della regione per un frame della larghezza indicata.
+     */
+    public int firstColumn(int width) {
+        return (int) (left * width);
+    }
+
+    /**
+     * @return La colonna successiva all'ultima della regione per un frame della larghezza indicata.
+     */
+    public int endColumn(int width) {
+        return Math.max(firstColumn(width) + 1, (int) Math.ceil(right * width));
+    }
+
+    /**
+     * @return La prima riga della regione per un frame dell'altezza indicata.
+     */
+    public int firstRow(int height) {
+        return (int) (top * height);
+    }
+
+    /**
+     * @return La riga successiva all'ultima della regione per un frame dell'altezza indicata.
+     */
+    public int endRow(int height) {
+        return Math.max(firstRow(height) + 1, (int) Math.ceil(bottom * height));
+    }
+
+    /**
+     * @return Il numero di pixel letti per un frame delle dimensioni indicate.
+     */
+    public int sampledPixelCount(int width, int height) {
+        int columns = (endColumn(width) - firstColumn(width) + stride - 1) / stride;
+        int rows = (endRow(height) - firstRow(height) + stride - 1) / stride;
+        return columns * rows;
+    }
+
+    @Override
+    public String toString() {
+        return "SamplingRegion{" + left + ", " + top + ", " + right + ", " + bottom + ", stride=" + stride + "}";
+    }
+}
@@ -0,0 +1,209 @@
+package it.uniba.berluxoding.medboxapp.ppg;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Registra una sessione di misurazione in un file mappato in memoria, in sola aggiunta, per poterla
+ * riprodurre con {@link SessionReplay}.
+ *
+ * Per ogni frame vengono registrati l'istante di acquisizione, il valore fornito allo stimatore,
+ * le statistiche del frame e, se richiesto, il piano Y sottocampionato. La scrittura di un frame è una copia
+ * in memoria, senza chiamate di sistema: il file viene esteso a blocchi di {@value #REGION_SIZE} byte
+ * e le pagine scritte restano nel file anche se l'applicazione termina senza chiudere il registratore.
+ * Ogni record viene scritto prima del proprio campo di lunghezza, che lo rende visibile in lettura:
+ * un record interrotto a metà viene ignorato, come il resto del blocco ancora a zero.
+ *
+ * Se al termine della calibrazione delle regioni candidate la pipeline riallinea lo stimatore sulla regione
+ * scelta ({@link PpgPipeline#getRealignment()}), va registrato anche un record di riallineamento con
+ * {@link #recordRealignment(TimeSeries)}: i valori registrati fino a quel momento sono quelli della prima
+ * candidata, e la riproduzione deve ripartire dalla serie della regione scelta come ha fatto lo stimatore.
+ *
+ * Formato (big-endian): intestazione {@link #MAGIC}, {@link #VERSION}; per ogni frame la lunghezza
+ * del resto del record, l'istante in millisecondi, il valore, la luminanza media, la media del canale rosso
+ * e quelle di U e V (NaN se non calcolate), larghezza e altezza del piano Y sottocampionato
+ * (0 se assente) e i suoi byte. Un record di riallineamento ha larghezza {@link #REALIGNMENT}, altezza 0,
+ * l'istante e il valore dell'ultimo campione, statistiche NaN e, al posto del piano Y, le coppie
+ * istante-valore della serie fornita allo stimatore.
+ *
+ * La classe non è thread-safe: i frame devono essere registrati da un solo thread.
+ */
+public class SessionRecorder implements Closeable {
+
+    //Intestazione del file: "PPGR" e versione del formato.
+    static final int MAGIC = 0x50504752;
+    static final int VERSION = 2;
+    static final int HEADER_SIZE = 8;
+
+    //Byte di un record senza il piano Y: lunghezza, istante, cinque valori, dimensioni del piano.
+    static final int RECORD_SIZE = 4 + 8 + 5 * 8 + 2 + 2;
+
+    //Larghezza del piano Y che contraddistingue un record di riallineamento.
+    static final short REALIGNMENT = -1;
+
+    //Byte di un campione della serie di riallineamento: istante e valore.
+    static final int SAMPLE_SIZE = 8 + 8;
+
+    //Dimensione dei blocchi mappati in memoria.
+    static final int REGION_SIZE = 1 << 20;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final int lumaStep;
+
+    //Blocco mappato corrente e posizione del suo inizio nel file.
+    private MappedByteBuffer region;
+    private long regionStart;
+
+    private int frameCount;
+
+    //true dopo close(); letto anche da thread diversi da quello che registra.
+    private volatile boolean closed;
+
+    /**
+     * Crea il file, sovrascrivendolo se esiste, e ne scrive l'intestazione.
+     *
+     * @param target   Il file della registrazione.
+     * @param lumaStep Il passo di sottocampionamento del piano Y (ad esempio 8: un pixel ogni 8 in entrambe
+     *                 le direzioni), oppure 0 per non registrarlo.
+     * @throws IOException Se il file non può essere creato.
+     */
+    public SessionRecorder(File target, int lumaStep) throws IOException {
+        if (lumaStep < 0) throw new IllegalArgumentException("lumaStep must not be negative: " + lumaStep);
+        this.lumaStep = lumaStep;
+        file = new RandomAccessFile(target, "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+        region = channel.map(FileChannel.MapMode.READ_WRITE, 0, REGION_SIZE);
+        region.putInt(MAGIC);
+        region.putInt(VERSION);
+    }
+
+    /**
+     * Registra un frame elaborato dalla pipeline.
+     *
+     * @param frame      Il frame, da cui viene sottocampionato il piano Y.
+     * @param value      Il valore fornito allo stimatore, restituito da {@link PpgPipeline#processFrame(FrameBuffer)}.
+     * @param statistics Le statistiche del frame.
+     * @throws IOException Se non è possibile estendere il file.
+     */
+    public void record(FrameBuffer frame, double value, FrameStatistics statistics) throws IOException {
+        record(frame.getYBuffer(), frame.getYRowStride(), frame.getYPixelStride(), frame.getWidth(), frame.getHeight(),
+                frame.getTime(), value, statistics);
+    }
+
+    /**
+     * Registra un frame. I parametri del piano Y hanno lo stesso significato di quelli di
+     * {@link PpgPipeline#processFrame(ByteBuffer, int, int, int, int, long)}; la posizione del buffer
+     * non viene modificata.
+     *
+     * @param value      Il valore fornito allo stimatore.
+     * @param statistics Le statistiche del frame.
+     * @throws IOException Se non è possibile estendere il file.
+     */
+    public void record(ByteBuffer yBuffer, int rowStride, int pixelStride, int width, int height, long time,
+                       double value, FrameStatistics statistics) throws IOException {
+        int lumaWidth = lumaStep == 0 ? 0 : Math.min((width + lumaStep - 1) / lumaStep, Short.MAX_VALUE);
+        int lumaHeight = lumaStep == 0 ? 0 : Math.min((height + lumaStep - 1) / lumaStep, Short.MAX_VALUE);
+        int size = RECORD_SIZE + lumaWidth * lumaHeight;
+        ensureCapacity(size);
+
+        // Il contenuto viene scritto prima della lunghezza, che rende il record visibile in lettura
+        int start = region.position();
+        region.position(start + 4);
+        region.putLong(time);
+        region.putDouble(value);
+        region.putDouble(statistics.getMean());
+        region.putDouble(statistics.hasRed() ? statistics.getMeanRed() : Double.NaN);
+        region.putDouble(statistics.hasChroma() ? statistics.getMeanU() : Double.NaN);
+        region.putDouble(statistics.hasChroma() ? statistics.getMeanV() : Double.NaN);
+        region.putShort((short) lumaWidth);
+        region.putShort((short) lumaHeight);
+        for (int y = 0; y < lumaHeight; y++) {
+            int row = y * lumaStep * rowStride;
+            for (int x = 0; x < lumaWidth; x++) {
+                region.put(yBuffer.get(row + x * lumaStep * pixelStride));
+            }
+        }
+        region.putInt(start, size - 4);
+        frameCount++;
+    }
+
+    /**
+     * Registra il riallineamento dello stimatore sulla regione scelta al termine della calibrazione,
+     * dopo il record del frame che l'ha concluso.
+     *
+     * @param history La serie fornita allo stimatore, restituita da {@link PpgPipeline#getRealignment()}.
+     * @throws IOException Se non è possibile estendere il file.
+     */
+    public void recordRealignment(TimeSeries history) throws IOException {
+        if (history.isEmpty()) return;
+        int size = RECORD_SIZE + history.size() * SAMPLE_SIZE;
+        ensureCapacity(size);
+
+        int start = region.position();
+        region.position(start + 4);
+        region.putLong(history.lastTime());
+        region.putDouble(history.lastValue());
+        for (int i = 0; i < 4; i++) {
+            region.putDouble(Double.NaN);
+        }
+        region.putShort(REALIGNMENT);
+        region.putShort((short) 0);
+        for (int i = 0; i < history.size(); i++) {
+            region.putLong(history.timeAt(i));
+            region.putDouble(history.valueAt(i));
+        }
+        region.putInt(start, size - 4);
+    }
+
+    /**
+     * Mappa un nuovo blocco a partire dalla posizione corrente se in quello corrente non c'è spazio
+     * per il record e per la lunghezza a zero che lo segue.
+     */
+    private void ensureCapacity(int size) throws IOException {
+        if (region.remaining() >= size + 4) return;
+        regionStart += region.position();
+        region = channel.map(FileChannel.MapMode.READ_WRITE, regionStart, Math.max(REGION_SIZE, size + 4));
+    }
+
+    /**
+     * @return Il numero di frame registrati.
+     */
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * @return I byte registrati, intestazione compresa.
+     */
+    public long getLength() {
+        return regionStart + region.position();
+    }
+
+    /**
+     * @return true se la registrazione è stata chiusa.
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Tronca il file ai byte registrati e lo chiude. Le chiamate successive non hanno effetto.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            channel.truncate(getLength());
+        } finally {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package it.uniba.berluxoding.medboxapp.ppg;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Legge una sessione registrata con {@link SessionRecorder} e la riproduce nella pipeline di analisi,
+ * senza attendere gli intervalli tra i frame: una misurazione di 20 secondi viene riprodotta in pochi millisecondi.
+ *
+ * I record si scorrono con {@link #next()}; i getter si riferiscono al record corrente, che può essere un frame
+ * oppure il riallineamento dello stimatore sulla regione scelta al termine della calibrazione ({@link #isRealignment()}).
+ * La lettura si ferma al primo record incompleto, ad esempio se la registrazione è stata interrotta.
+ * Sono lette anche le registrazioni della versione 1 del formato, che non hanno record di riallineamento.
+ *
+ * La classe non è thread-safe.
+ */
+public class SessionReplay implements Closeable {
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+
+    //Posizione del record successivo.
+    private int nextRecord = SessionRecorder.HEADER_SIZE;
+
+    private long time;
+    private double value, mean, meanRed, meanU, meanV;
+    private int lumaWidth, lumaHeight;
+    private int lumaOffset;
+
+    //Numero di campioni del record di riallineamento corrente, 0 per un frame.
+    private int realignedSize;
+
+    /**
+     * Apre una registrazione.
+     *
+     * @param source Il file della registrazione.
+     * @throws IOException Se il file non può essere letto o non è una registrazione.
+     */
+    public SessionReplay(File source) throws IOException {
+        file = new RandomAccessFile(source, "r");
+        try {
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            if (buffer.limit() < SessionRecorder.HEADER_SIZE || buffer.getInt(0) != SessionRecorder.MAGIC) {
+                throw new IOException("Not a session recording: " + source);
+            }
+            int version = buffer.getInt(4);
+            if (version < 1 || version > SessionRecorder.VERSION) {
+                throw new IOException("Unsupported recording version " + version + ": " + source);
+            }
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Passa al record successivo.
+     *
+     * @return false se i record sono terminati.
+     */
+    public boolean next() {
+        if (buffer.limit() - nextRecord < 4) return false;
+        int length = buffer.getInt(nextRecord);
+        if (length < SessionRecorder.RECORD_SIZE - 4 || buffer.limit() - nextRecord - 4 < length) return false;
+
+        int position = nextRecord + 4;
+        time = buffer.getLong(position);
+        value = buffer.getDouble(position + 8);
+        mean = buffer.getDouble(position + 16);
+        meanRed = buffer.getDouble(position + 24);
+        meanU = buffer.getDouble(position + 32);
+        meanV = buffer.getDouble(position + 40);
+        lumaWidth = buffer.getShort(position + 48);
+        lumaHeight = buffer.getShort(position + 50);
+        lumaOffset = position + 52;
+        realignedSize = lumaWidth == SessionRecorder.REALIGNMENT
+                ? (length - (SessionRecorder.RECORD_SIZE - 4)) / SessionRecorder.SAMPLE_SIZE : 0;
+        nextRecord = position + length;
+        return true;
+    }
+
+    /**
+     * Torna all'inizio della registrazione.
+     */
+    public void rewind() {
+        nextRecord = SessionRecorder.HEADER_SIZE;
+    }
+
+    /**
+     * @return L'istante di acquisizione del frame, in millisecondi.
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * @return Il valore fornito allo stimatore durante la registrazione.
+     */
+    public double getValue() {
+        return value;
+    }
+
+    /**
+     * @return La luminanza media del frame.
+     */
+    public double getMean() {
+        return mean;
+    }
+
+    /**
+     * @return La media del canale rosso decodificato pixel per pixel, oppure NaN se non calcolata.
+     */
+    public double getMeanRed() {
+        return meanRed;
+    }
+
+    /**
+     * @return La media del piano U, oppure NaN se la crominanza non è stata letta.
+     */
+    public double getMeanU() {
+        return meanU;
+    }
+
+    /**
+     * @return La media del piano V, oppure NaN se la crominanza non è stata letta.
+     */
+    public double getMeanV() {
+        return meanV;
+    }
+
+    /**
+     * @return true se il record corrente è un riallineamento: lo stimatore è ripartito da capo
+     * e ha ricevuto la serie della regione scelta, letta con {@link #getRealignedTime(int)} e {@link #getRealignedValue(int)}.
+     */
+    public boolean isRealignment() {
+        return lumaWidth == SessionRecorder.REALIGNMENT;
+    }
+
+    /**
+     * @return Il numero di campioni della serie di riallineamento, 0 se il record corrente è un frame.
+     */
+    public int getRealignedSize() {
+        return realignedSize;
+    }
+
+    /**
+     * @param index Indice del campione, 0 per il più vecchio.
+     * @return L'istante del campione della serie di riallineamento, in millisecondi.
+     */
+    public long getRealignedTime(int index) {
+        return buffer.getLong(lumaOffset + index * SessionRecorder.SAMPLE_SIZE);
+    }
+
+    /**
+     * @param index Indice del campione, 0 per il più vecchio.
+     * @return Il valore del campione della serie di riallineamento.
+     */
+    public double getRealignedValue(int index) {
+        return buffer.getDouble(lumaOffset + index * SessionRecorder.SAMPLE_SIZE + 8);
+    }
+
+    /**
+     * @return true se il record comprende il piano Y sottocampionato.
+     */
+    public boolean hasLuma() {
+        return lumaWidth > 0 && lumaHeight > 0;
+    }
+
+    public int getLumaWidth() {
+        return lumaWidth;
+    }
+
+    public int getLumaHeight() {
+        return lumaHeight;
+    }
+
+    /**
+     * @return Il piano Y sottocampionato, in sola lettura, con rowStride pari alla larghezza e pixelStride 1.
+     */
+    public ByteBuffer getLuma() {
+        ByteBuffer luma = buffer.duplicate();
+        luma.limit(lumaOffset + lumaWidth * lumaHeight);
+        luma.position(lumaOffset);
+        return luma.slice();
+    }
+
+    /**
+     * Riproduce dall'inizio i valori registrati nella pipeline, che riceve gli stessi campioni
+     * della misurazione originale, e restituisce la stima finale. A un riallineamento lo stimatore
+     * riparte da capo e riceve la serie della regione scelta, come durante la misurazione.
+     *
+     * @param pipeline La pipeline, riportata allo stato iniziale prima della riproduzione.
+     * @return La stima finale.
+     */
+    public HeartRateEstimate replay(PpgPipeline pipeline) {
+        rewind();
+        pipeline.reset();
+        while (next()) {
+            if (isRealignment()) {
+                pipeline.reset();
+                for (int i = 0; i < realignedSize; i++) {
+                    pipeline.addSample(getRealignedValue(i), getRealignedTime(i));
+                }
+            } else {
+                pipeline.addSample(value, time);
+            }
+        }
+        return pipeline.finish();
+    }
+
+    /**
+     * Riproduce dall'inizio i piani Y sottocampionati nella pipeline, che ne ricalcola le statistiche
+     * (ad esempio per provare una diversa regione di interesse), e restituisce la stima finale.
+     * I record senza piano Y, compresi i riallineamenti, vengono ignorati: la pipeline calibra di nuovo
+     * le proprie regioni candidate, se ne ha.
+     *
+     * @param pipeline La pipeline, riportata allo stato iniziale prima della riproduzione.
+     * @return La stima finale.
+     */
+    public HeartRateEstimate replayLuma(PpgPipeline pipeline) {
+        rewind();
+        pipeline.reset();
+        while (next()) {
+            if (!hasLuma()) continue;
+            pipeline.processFrame(getLuma(), lumaWidth, 1, lumaWidth, lumaHeight, time);
+        }
+        return pipeline.finish();
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
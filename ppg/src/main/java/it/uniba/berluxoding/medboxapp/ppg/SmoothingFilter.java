@@ -0,0 +1,169 @@
+package it.uniba.berluxoding.medboxapp.ppg;
+
+/**
+ * Stadio di lisciatura equivalente a più applicazioni consecutive di una media mobile centrata con finestra 3.
+ *
+ * Invece di ricalcolare l'intera serie a ogni applicazione, le medie sono organizzate a cascata e attraversate
+ * in un'unica passata: ogni livello trattiene solo gli ultimi due campioni ricevuti e introduce un ritardo
+ * di un campione. Somme e divisioni sono eseguite nello stesso ordine della media mobile applicata all'intera
+ * serie, compresa la finestra troncata ai bordi, per cui il risultato è identico bit per bit.
+ *
+ * Il filtro può essere usato in streaming ({@link #push(double, long)} e {@link #flushNext()})
+ * oppure su un array di valori, sovrascrivendolo ({@link #smoothInPlace(double[], int)}).
+ * In entrambi i casi il costo è lineare nel numero di campioni e non viene allocata memoria.
+ *
+ * La classe non è thread-safe.
+ */
+public class SmoothingFilter {
+
+    private final int passes;
+
+    //Stato di ciascun livello: penultimo e ultimo campione ricevuti e numero di campioni visti.
+    private final double[] previous;
+    private final double[] current;
+    private final long[] currentTime;
+    private final int[] seen;
+
+    //Livello da svuotare alla prossima chiamata di flushNext().
+    private int flushStage;
+
+    //Ultimo campione lisciato prodotto.
+    private double output;
+    private long outputTime;
+
+    /**
+     * Crea un filtro equivalente al numero indicato di applicazioni della media mobile con finestra 3.
+     *
+     * @param passes Il numero di applicazioni della media mobile.
+     */
+    public SmoothingFilter(int passes) {
+        if (passes <= 0) throw new IllegalArgumentException("passes must be positive: " + passes);
+        this.passes = passes;
+        previous = new double[passes];
+        current = new double[passes];
+        currentTime = new long[passes];
+        seen = new int[passes];
+    }
+
+    /**
+     * @return Il ritardo introdotto dal filtro, in campioni.
+     */
+    public int getDelay() {
+        return passes;
+    }
+
+    /**
+     * Fornisce un campione al filtro.
+     *
+     * @param value Il valore del campione.
+     * @param time  Il timestamp del campione, restituito insieme al corrispondente valore lisciato.
+     * @return true se è disponibile un nuovo campione lisciato, leggibile con {@link #getOutput()}.
+     */
+    public boolean push(double value, long time) {
+        return push(0, value, time);
+    }
+
+    /**
+     * Completa la lisciatura di uno degli ultimi campioni, mediandolo sulla finestra troncata al bordo destro.
+     * Va chiamato ripetutamente al termine della serie finché restituisce false.
+     *
+     * @return true se è disponibile un nuovo campione lisciato, leggibile con {@link #getOutput()}.
+     */
+    public boolean flushNext() {
+        while (flushStage < passes) {
+            int stage = flushStage++;
+            int n = seen[stage];
+            if (n == 0) continue;
+
+            double sum = 0;
+            if (n > 1) sum += previous[stage];
+            sum += current[stage];
+            if (push(stage + 1, sum / (n > 1 ? 2 : 1), currentTime[stage])) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return L'ultimo campione lisciato prodotto.
+     */
+    public double getOutput() {
+        return output;
+    }
+
+    /**
+     * @return Il timestamp dell'ultimo campione lisciato prodotto.
+     */
+    public long getOutputTime() {
+        return outputTime;
+    }
+
+    /**
+     * Riporta il filtro allo stato iniziale.
+     */
+    public void reset() {
+        for (int stage = 0; stage < passes; stage++) {
+            previous[stage] = 0;
+            current[stage] = 0;
+            currentTime[stage] = 0;
+            seen[stage] = 0;
+        }
+        flushStage = 0;
+        output = 0;
+        outputTime = 0;
+    }
+
+    /**
+     * Liscia i primi {@code length} valori dell'array sovrascrivendoli.
+     * Poiché ogni campione lisciato è prodotto dopo aver letto il corrispondente valore originale,
+     * la scrittura non interferisce con la lettura. Il filtro viene azzerato prima e dopo l'uso.
+     *
+     * @param values L'array da lisciare.
+     * @param length Il numero di valori da considerare.
+     */
+    public void smoothInPlace(double[] values, int length) {
+        reset();
+        int written = 0;
+        for (int i = 0; i < length; i++) {
+            if (push(values[i], 0)) values[written++] = output;
+        }
+        while (flushNext()) {
+            values[written++] = output;
+        }
+        reset();
+    }
+
+    /**
+     * Inserisce un campione nel livello indicato e propaga l'uscita nei livelli successivi.
+     * Un livello emette il campione centrale della finestra quando riceve quello successivo:
+     * la media è calcolata su tre campioni, oppure su due per il primo campione della serie.
+     */
+    private boolean push(int stage, double value, long time) {
+        while (stage < passes) {
+            int n = seen[stage]++;
+            if (n == 0) {
+                current[stage] = value;
+                currentTime[stage] = time;
+                return false;
+            }
+
+            // Stesso ordine di somma della media mobile calcolata sull'intera serie
+            double sum = 0;
+            if (n > 1) sum += previous[stage];
+            sum += current[stage];
+            sum += value;
+            double stageOutput = sum / (n > 1 ? 3 : 2);
+            long stageOutputTime = currentTime[stage];
+
+            previous[stage] = current[stage];
+            current[stage] = value;
+            currentTime[stage] = time;
+
+            value = stageOutput;
+            time = stageOutputTime;
+            stage++;
+        }
+        output = value;
+        outputTime = time;
+        return true;
+    }
+}
@@ -0,0 +1,68 @@
+package it.uniba.berluxoding.medboxapp.ppg;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coda circolare limitata per un solo produttore e un solo consumatore, senza lock.
+ *
+ * Ciascun indice è scritto da un solo thread: la scrittura ordinata ({@code lazySet}) dell'indice
+ * pubblica l'elemento all'altro thread, che lo legge con una lettura volatile. Inserimento e prelievo
+ * non allocano oggetti.
+ *
+ * @param <T> Il tipo degli elementi.
+ */
+final class SpscRing<T> {
+
+    private final Object[] slots;
+    private final int mask;
+
+    //Prossima posizione da leggere (scritta dal consumatore) e da scrivere (scritta dal produttore).
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * @param capacity Il numero minimo di elementi contenuti, arrotondato alla potenza di 2 successiva.
+     */
+    SpscRing(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        slots = new Object[Fft.nextPowerOfTwo(capacity)];
+        mask = slots.length - 1;
+    }
+
+    int capacity() {
+        return slots.length;
+    }
+
+    /**
+     * Inserisce un elemento; va chiamato solo dal thread produttore.
+     *
+     * @return false se la coda è piena.
+     */
+    boolean offer(T element) {
+        long t = tail.get();
+        if (t - head.get() == slots.length) return false;
+        slots[(int) t & mask] = element;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * Preleva l'elemento più vecchio; va chiamato solo dal thread consumatore.
+     *
+     * @return L'elemento, oppure null se la coda è vuota.
+     */
+    @SuppressWarnings("unchecked")
+    T poll() {
+        long h = head.get();
+        if (h == tail.get()) return null;
+        int index = (int) h & mask;
+        T element = (T) slots[index];
+        slots[index] = null;
+        head.lazySet(h + 1);
+        return element;
+    }
+
+    boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+}
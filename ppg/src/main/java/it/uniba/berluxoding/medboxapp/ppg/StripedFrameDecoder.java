@@ -0,0 +1,185 @@
+package it.uniba.berluxoding.medboxapp.ppg;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Decodifica parallela di un frame YUV_420_888: luminanza e canale rosso vengono calcolati
+ * su strisce di righe distribuite tra i thread di un pool di dimensione fissa.
+ *
+ * Ogni striscia accumula le proprie somme parziali in un oggetto riservato, preallocato alla creazione:
+ * i thread non condividono dati modificabili e non usano lock. Il thread chiamante elabora la prima
+ * striscia, attende le altre tramite un contatore atomico (il cui decremento rende visibili le somme
+ * parziali) e le combina. Per ogni frame non vengono allocati oggetti oltre ai nodi della coda del pool.
+ *
+ * Il risultato coincide con quello di {@link FrameStatisticsKernel#computeRed}.
+ * La decodifica di un frame alla volta è prevista da un solo thread chiamante; al termine
+ * il pool va chiuso con {@link #close()}.
+ */
+public class StripedFrameDecoder implements Closeable {
+
+    //Numero minimo di righe per striscia, sotto il quale il parallelismo non ripaga il coordinamento.
+    private static final int MIN_ROWS_PER_STRIPE = 32;
+
+    private final ExecutorService executor;
+    private final Stripe[] stripes;
+
+    //Strisce non ancora completate e thread in attesa del loro completamento.
+    private final AtomicInteger pending = new AtomicInteger();
+    private volatile Thread waiter;
+
+    //Eventuale errore di una striscia elaborata dal pool, rilanciato al thread chiamante.
+    private volatile RuntimeException failure;
+
+    //Somme complessive del frame.
+    private final FrameStatisticsKernel.PartialSums total = new FrameStatisticsKernel.PartialSums();
+
+    //Parametri del frame in corso, letti dalle strisce dopo la pubblicazione tramite il pool.
+    private ByteBuffer yBuffer, uBuffer, vBuffer;
+    private int yRowStride, yPixelStride, uvRowStride, uvPixelStride, width;
+
+    /**
+     * Crea un decodificatore con un pool dimensionato sul numero di core disponibili.
+     */
+    public StripedFrameDecoder() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param parallelism Il numero di strisce in cui dividere il frame (almeno 1); il pool usa un thread
+     *                    in meno, perché la prima striscia è elaborata dal thread chiamante.
+     */
+    public StripedFrameDecoder(int parallelism) {
+        if (parallelism <= 0) throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+        stripes = new Stripe[parallelism];
+        for (int i = 0; i < parallelism; i++) {
+            stripes[i] = new Stripe();
+        }
+        executor = parallelism > 1
+                ? new ThreadPoolExecutor(parallelism - 1, parallelism - 1, 0, TimeUnit.MILLISECONDS,
+                        new LinkedBlockingQueue<Runnable>(), new DecoderThreadFactory())
+                : null;
+    }
+
+    /**
+     * @return Il numero massimo di strisce elaborate in parallelo.
+     */
+    public int getParallelism() {
+        return stripes.length;
+    }
+
+    /**
+     * Calcola le statistiche del frame, compresa la media del canale rosso.
+     * I parametri hanno lo stesso significato di quelli di {@link FrameStatisticsKernel#computeRed}.
+     */
+    public void decode(ByteBuffer yBuffer, int yRowStride, int yPixelStride,
+                       ByteBuffer uBuffer, ByteBuffer vBuffer, int uvRowStride, int uvPixelStride,
+                       int width, int height, FrameStatistics out) {
+        // Le strisce iniziano su righe pari, così che ogni riga di crominanza appartenga a una sola striscia
+        int count = Math.max(1, Math.min(stripes.length, height / MIN_ROWS_PER_STRIPE));
+        int rowsPerStripe = ((height + count - 1) / count + 1) & ~1;
+        count = Math.max(1, (height + rowsPerStripe - 1) / rowsPerStripe);
+        if (count == 1 || executor == null) {
+            FrameStatisticsKernel.computeRed(yBuffer, yRowStride, yPixelStride, uBuffer, vBuffer,
+                    uvRowStride, uvPixelStride, width, height, out);
+            return;
+        }
+
+        this.yBuffer = yBuffer;
+        this.uBuffer = uBuffer;
+        this.vBuffer = vBuffer;
+        this.yRowStride = yRowStride;
+        this.yPixelStride = yPixelStride;
+        this.uvRowStride = uvRowStride;
+        this.uvPixelStride = uvPixelStride;
+        this.width = width;
+        for (int i = 0; i < count; i++) {
+            stripes[i].firstRow = i * rowsPerStripe;
+            stripes[i].endRow = Math.min(height, (i + 1) * rowsPerStripe);
+        }
+
+        waiter = Thread.currentThread();
+        pending.set(count - 1);
+        for (int i = 1; i < count; i++) {
+            executor.execute(stripes[i]);
+        }
+        try {
+            stripes[0].decode();
+        } finally {
+            // Anche in caso di errore si attendono le altre strisce, che leggono i buffer del frame
+            while (pending.get() > 0) {
+                LockSupport.park(this);
+            }
+            waiter = null;
+        }
+        RuntimeException error = failure;
+        if (error != null) {
+            failure = null;
+            throw error;
+        }
+
+        total.clear();
+        for (int i = 0; i < count; i++) {
+            total.add(stripes[i].sums);
+        }
+        total.store(out);
+    }
+
+    /**
+     * Termina i thread del pool.
+     */
+    @Override
+    public void close() {
+        if (executor != null) executor.shutdownNow();
+    }
+
+    /**
+     * Porzione di righe del frame con le proprie somme parziali.
+     */
+    private final class Stripe implements Runnable {
+
+        private final FrameStatisticsKernel.PartialSums sums = new FrameStatisticsKernel.PartialSums();
+        private int firstRow;
+        private int endRow;
+
+        @Override
+        public void run() {
+            try {
+                decode();
+            } catch (RuntimeException e) {
+                failure = e;
+            } finally {
+                if (pending.decrementAndGet() == 0) {
+                    LockSupport.unpark(waiter);
+                }
+            }
+        }
+
+        void decode() {
+            FrameStatisticsKernel.computeRows(yBuffer, yRowStride, yPixelStride, uBuffer, vBuffer,
+                    uvRowStride, uvPixelStride, width, firstRow, endRow, sums);
+        }
+    }
+
+    /**
+     * Thread daemon con priorità normale e nome riconoscibile nei profili.
+     */
+    private static final class DecoderThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger created = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "FrameDecoder-" + created.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
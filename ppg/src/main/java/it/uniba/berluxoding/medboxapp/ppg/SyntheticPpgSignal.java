@@ -0,0 +1,284 @@
+package it.uniba.berluxoding.medboxapp.ppg;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Generatore di un segnale PPG sintetico, riproducibile a partire da un seme.
+ * Simula la luminosità dei frame acquisiti con il dito appoggiato sulla fotocamera: un'onda pulsatile
+ * (picco sistolico seguito dall'onda dicrota) alla frequenza cardiaca indicata, a cui si sommano
+ * rumore gaussiano, una deriva lineare della luminosità e un'irregolarità nell'intervallo tra i frame.
+ *
+ * Il generatore può produrre i soli valori di luminosità oppure interi piani Y con il valore medio
+ * desiderato, così da esercitare l'intera pipeline come se i frame provenissero dalla fotocamera.
+ * Con {@link #renderFingerFrame} il piano Y riproduce anche la distribuzione spaziale del segnale:
+ * illuminazione decrescente verso i bordi, componente pulsatile concentrata attorno al polpastrello
+ * e rumore indipendente per pixel.
+ */
+public class SyntheticPpgSignal {
+
+    private final double bpm;
+    private final Random random;
+
+    //Parametri della simulazione.
+    private double frameRate = 30;
+    private double baseline = 120;
+    private double amplitude = 8;
+    private double noise = 0;
+    private double drift = 0;
+    private double frameJitter = 0;
+    private double fingerCenterX = 0.5;
+    private double fingerCenterY = 0.5;
+    private double pixelNoise = 0;
+
+    //Tabella di rumore gaussiano per pixel, letta da una posizione casuale a ogni frame.
+    private static final int NOISE_TABLE_SIZE = 1 << 14;
+    private double[] noiseTable;
+
+    //Mappe di illuminazione e di guadagno della componente pulsatile, calcolate per le dimensioni dell'ultimo frame.
+    private double[] illuminationMap;
+    private double[] gainMap;
+    private int mapWidth, mapHeight;
+
+    //Stato del generatore: istante e valore del frame corrente, numero di frame prodotti.
+    private double exactTime;
+    private long time;
+    private double value;
+    private int frameCount;
+
+    /**
+     * Crea un generatore alla frequenza cardiaca indicata, senza rumore, deriva o irregolarità.
+     *
+     * @param bpm  La frequenza cardiaca simulata, in battiti al minuto.
+     * @param seed Il seme del generatore di numeri casuali.
+     */
+    public SyntheticPpgSignal(double bpm, long seed) {
+        if (bpm <= 0) throw new IllegalArgumentException("bpm must be positive: " + bpm);
+        this.bpm = bpm;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * @param frameRate Frequenza nominale dei frame, in frame al secondo (predefinita 30).
+     */
+    public SyntheticPpgSignal setFrameRate(double frameRate) {
+        this.frameRate = frameRate;
+        return this;
+    }
+
+    /**
+     * @param baseline  Luminosità media del segnale (predefinita 120).
+     * @param amplitude Ampiezza della componente pulsatile (predefinita 8).
+     */
+    public SyntheticPpgSignal setLevels(double baseline, double amplitude) {
+        this.baseline = baseline;
+        this.amplitude = amplitude;
+        return this;
+    }
+
+    /**
+     * @param noise Deviazione standard del rumore gaussiano sommato a ogni frame.
+     */
+    public SyntheticPpgSignal setNoise(double noise) {
+        this.noise = noise;
+        return this;
+    }
+
+    /**
+     * @param drift Variazione lineare della luminosità media, in unità al secondo.
+     */
+    public SyntheticPpgSignal setDrift(double drift) {
+        this.drift = drift;
+        return this;
+    }
+
+    /**
+     * @param frameJitter Irregolarità massima dell'intervallo tra frame, come frazione del periodo nominale
+     *                    (ad esempio 0.2 per intervalli distribuiti uniformemente in ±20%).
+     */
+    public SyntheticPpgSignal setFrameJitter(double frameJitter) {
+        this.frameJitter = frameJitter;
+        return this;
+    }
+
+    /**
+     * @param x Ascissa del centro del polpastrello, come frazione della larghezza (predefinita 0.5).
+     * @param y Ordinata del centro del polpastrello, come frazione dell'altezza (predefinita 0.5).
+     */
+    public SyntheticPpgSignal setFingerCenter(double x, double y) {
+        this.fingerCenterX = x;
+        this.fingerCenterY = y;
+        this.illuminationMap = null;
+        return this;
+    }
+
+    /**
+     * @param pixelNoise Deviazione standard del rumore indipendente di ciascun pixel in {@link #renderFingerFrame}.
+     */
+    public SyntheticPpgSignal setPixelNoise(double pixelNoise) {
+        this.pixelNoise = pixelNoise;
+        return this;
+    }
+
+    public double getBpm() {
+        return bpm;
+    }
+
+    /**
+     * Avanza al frame successivo.
+     */
+    public void next() {
+        if (frameCount > 0) {
+            double period = 1000.0 / frameRate;
+            exactTime += period * (1 + frameJitter * (2 * random.nextDouble() - 1));
+        }
+        time = Math.round(exactTime);
+        value = valueAt(exactTime) + noise * random.nextGaussian();
+        frameCount++;
+    }
+
+    /**
+     * @return L'istante del frame corrente, in millisecondi dall'inizio della simulazione.
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * @return La luminosità del frame corrente, comprensiva di rumore.
+     */
+    public double getValue() {
+        return value;
+    }
+
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Disegna nel piano Y un frame la cui luminanza media, normalizzata o meno, corrisponde al valore corrente.
+     * Il primo pixel è nero e l'ultimo saturo, come gli angoli in ombra e il centro illuminato
+     * di un dito appoggiato sul flash, così che la normalizzazione min-max non alteri il segnale.
+     * I byte di riempimento previsti da {@code rowStride} e {@code pixelStride} non vengono scritti.
+     *
+     * @param yBuffer     Il buffer del piano Y da riempire.
+     * @param width       La larghezza del frame.
+     * @param height      L'altezza del frame.
+     * @param rowStride   Distanza in byte tra l'inizio di due righe consecutive.
+     * @param pixelStride Distanza in byte tra due pixel consecutivi della stessa riga.
+     */
+    public void renderFrame(ByteBuffer yBuffer, int width, int height, int rowStride, int pixelStride) {
+        int count = width * height;
+        // Valore dei pixel interni tale che la media dell'intero frame sia pari al valore corrente
+        double target = (value * count - 255) / (count - 2);
+        int low = clamp((int) Math.floor(target));
+        double fraction = target - low;
+
+        // Distribuzione ordinata dei pixel "alti", così che la media sia corretta anche per valori non interi
+        double accumulator = 0;
+        for (int j = 0; j < height; j++) {
+            int position = j * rowStride;
+            for (int i = 0; i < width; i++, position += pixelStride) {
+                int pixel;
+                int index = j * width + i;
+                if (index == 0) {
+                    pixel = 0;
+                } else if (index == count - 1) {
+                    pixel = 255;
+                } else {
+                    accumulator += fraction;
+                    if (accumulator >= 1) {
+                        accumulator -= 1;
+                        pixel = clamp(low + 1);
+                    } else {
+                        pixel = low;
+                    }
+                }
+                yBuffer.put(position, (byte) pixel);
+            }
+        }
+    }
+
+    /**
+     * Disegna nel piano Y un frame con la distribuzione spaziale tipica di un dito appoggiato sul flash.
+     * L'illuminazione cala dal centro del frame verso gli angoli; la componente pulsatile del valore
+     * corrente è massima al centro del polpastrello e si attenua allontanandosene; a ogni pixel si somma
+     * rumore indipendente. I byte di riempimento previsti dagli stride non vengono scritti.
+     *
+     * @param yBuffer     Il buffer del piano Y da riempire.
+     * @param width       La larghezza del frame.
+     * @param height      L'altezza del frame.
+     * @param rowStride   Distanza in byte tra l'inizio di due righe consecutive.
+     * @param pixelStride Distanza in byte tra due pixel consecutivi della stessa riga.
+     */
+    public void renderFingerFrame(ByteBuffer yBuffer, int width, int height, int rowStride, int pixelStride) {
+        if (noiseTable == null) {
+            noiseTable = new double[NOISE_TABLE_SIZE];
+            for (int i = 0; i < NOISE_TABLE_SIZE; i++) {
+                noiseTable[i] = random.nextGaussian();
+            }
+        }
+        if (illuminationMap == null || mapWidth != width || mapHeight != height) {
+            buildMaps(width, height);
+        }
+        int noiseIndex = random.nextInt(NOISE_TABLE_SIZE);
+
+        double level = baseline + drift * exactTime / 1000.0;
+        double pulse = value - level;
+        int index = 0;
+        for (int j = 0; j < height; j++) {
+            int position = j * rowStride;
+            for (int i = 0; i < width; i++, position += pixelStride, index++) {
+                double pixel = level * illuminationMap[index] + pulse * gainMap[index]
+                        + pixelNoise * noiseTable[noiseIndex];
+                noiseIndex = (noiseIndex + 1) & (NOISE_TABLE_SIZE - 1);
+                yBuffer.put(position, (byte) clamp((int) Math.round(pixel)));
+            }
+        }
+    }
+
+    private void buildMaps(int width, int height) {
+        illuminationMap = new double[width * height];
+        gainMap = new double[width * height];
+        mapWidth = width;
+        mapHeight = height;
+
+        double halfWidth = width / 2.0;
+        double halfHeight = height / 2.0;
+        double fingerX = fingerCenterX * width;
+        double fingerY = fingerCenterY * height;
+        int index = 0;
+        for (int j = 0; j < height; j++) {
+            double dy = (j - halfHeight) / halfHeight;
+            double fy = (j - fingerY) / halfHeight;
+            for (int i = 0; i < width; i++, index++) {
+                double dx = (i - halfWidth) / halfWidth;
+                double fx = (i - fingerX) / halfWidth;
+                illuminationMap[index] = Math.max(0.1, 1 - 0.3 * (dx * dx + dy * dy));
+                gainMap[index] = Math.exp(-4 * (fx * fx + fy * fy));
+            }
+        }
+    }
+
+    /**
+     * Valore del segnale privo di rumore all'istante indicato.
+     */
+    private double valueAt(double timeMs) {
+        double phase = (timeMs * bpm / 60000.0) % 1.0;
+        return baseline + drift * timeMs / 1000.0 + amplitude * pulse(phase);
+    }
+
+    /**
+     * Forma d'onda di un battito, normalizzata nell'intervallo [0, 1] circa:
+     * picco sistolico seguito da un'onda dicrota più bassa e più larga.
+     */
+    private static double pulse(double phase) {
+        double systolic = (phase - 0.2) / 0.08;
+        double dicrotic = (phase - 0.5) / 0.12;
+        return Math.exp(-systolic * systolic) + 0.35 * Math.exp(-dicrotic * dicrotic);
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+}
@@ -0,0 +1,235 @@
+package it.uniba.berluxoding.medboxapp.ppg;
+
+/**
+ * Serie temporale a capacità fissa basata su un buffer circolare.
+ * Valori e timestamp sono memorizzati in due array primitivi paralleli: l'inserimento non alloca memoria
+ * e, una volta raggiunta la capacità, sovrascrive il campione più vecchio.
+ *
+ * Gli indici logici vanno da 0 (campione più vecchio ancora presente) a {@link #size()} - 1 (più recente).
+ * I timestamp devono essere inseriti in ordine non decrescente.
+ *
+ * La classe non è thread-safe.
+ */
+public class TimeSeries {
+
+    private final double[] values;
+    private final long[] times;
+
+    //Posizione fisica del campione più vecchio e numero di campioni presenti.
+    private int head;
+    private int size;
+
+    //Numero totale di campioni inseriti dall'ultimo azzeramento, compresi quelli sovrascritti.
+    private long appended;
+
+    /**
+     * Crea una serie temporale vuota.
+     *
+     * @param capacity Il numero massimo di campioni memorizzati.
+     */
+    public TimeSeries(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        values = new double[capacity];
+        times = new long[capacity];
+    }
+
+    /**
+     * Aggiunge un campione in coda, sovrascrivendo il più vecchio se la serie è piena.
+     *
+     * @param value Il valore del campione.
+     * @param time  Il timestamp del campione.
+     */
+    public void append(double value, long time) {
+        int tail = head + size;
+        if (tail >= values.length) tail -= values.length;
+        values[tail] = value;
+        times[tail] = time;
+        if (size < values.length) {
+            size++;
+        } else if (++head == values.length) {
+            head = 0;
+        }
+        appended++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return values.length;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return Il numero di campioni inseriti dall'ultimo azzeramento, compresi quelli già sovrascritti.
+     */
+    public long getAppendedCount() {
+        return appended;
+    }
+
+    /**
+     * @param index Indice logico, 0 per il campione più vecchio.
+     * @return Il valore del campione.
+     */
+    public double valueAt(int index) {
+        return values[physicalIndex(index)];
+    }
+
+    /**
+     * @param index Indice logico, 0 per il campione più vecchio.
+     * @return Il timestamp del campione.
+     */
+    public long timeAt(int index) {
+        return times[physicalIndex(index)];
+    }
+
+    /**
+     * @return Il valore del campione più recente.
+     */
+    public double lastValue() {
+        return valueAt(size - 1);
+    }
+
+    /**
+     * @return Il timestamp del campione più recente.
+     */
+    public long lastTime() {
+        return timeAt(size - 1);
+    }
+
+    /**
+     * Cerca, con una ricerca binaria, il primo campione con timestamp maggiore o uguale a quello indicato.
+     *
+     * @param time Il timestamp cercato.
+     * @return L'indice logico del primo campione non precedente a {@code time}, oppure {@link #size()} se non esiste.
+     */
+    public int indexAtOrAfter(long time) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (timeAt(mid) < time) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Imposta una vista sui campioni con timestamp compreso nell'intervallo [from, to).
+     * La vista non copia i dati e resta valida finché la serie non viene modificata.
+     *
+     * @param from Timestamp iniziale (incluso).
+     * @param to   Timestamp finale (escluso).
+     * @param view La vista da impostare, riutilizzabile tra più chiamate.
+     * @return La vista passata come parametro.
+     */
+    public View window(long from, long to, View view) {
+        int start = indexAtOrAfter(from);
+        int end = indexAtOrAfter(to);
+        view.set(this, start, Math.max(0, end - start));
+        return view;
+    }
+
+    /**
+     * Imposta una vista sugli ultimi {@code count} campioni (o su tutti, se sono meno).
+     *
+     * @param count Il numero di campioni più recenti da includere.
+     * @param view  La vista da impostare, riutilizzabile tra più chiamate.
+     * @return La vista passata come parametro.
+     */
+    public View latest(int count, View view) {
+        int length = Math.min(Math.max(count, 0), size);
+        view.set(this, size - length, length);
+        return view;
+    }
+
+    /**
+     * Copia i valori e i timestamp di un intervallo di campioni in array primitivi forniti dal chiamante.
+     *
+     * @param from     Indice logico del primo campione da copiare.
+     * @param length   Numero di campioni da copiare.
+     * @param valueOut Array di destinazione dei valori, oppure null.
+     * @param timeOut  Array di destinazione dei timestamp, oppure null.
+     */
+    public void copyTo(int from, int length, double[] valueOut, long[] timeOut) {
+        if (from < 0 || length < 0 || from + length > size) {
+            throw new IndexOutOfBoundsException("from=" + from + ", length=" + length + ", size=" + size);
+        }
+        // Al massimo due copie contigue: dalla posizione iniziale alla fine dell'array e dall'inizio dell'array
+        int start = physicalIndex(from);
+        int first = Math.min(length, values.length - start);
+        if (valueOut != null) {
+            System.arraycopy(values, start, valueOut, 0, first);
+            System.arraycopy(values, 0, valueOut, first, length - first);
+        }
+        if (timeOut != null) {
+            System.arraycopy(times, start, timeOut, 0, first);
+            System.arraycopy(times, 0, timeOut, first, length - first);
+        }
+    }
+
+    /**
+     * Svuota la serie senza rilasciare la memoria allocata.
+     */
+    public void clear() {
+        head = 0;
+        size = 0;
+        appended = 0;
+    }
+
+    private int physicalIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index=" + index + ", size=" + size);
+        }
+        int physical = head + index;
+        return physical >= values.length ? physical - values.length : physical;
+    }
+
+    /**
+     * Vista riutilizzabile su un intervallo contiguo di campioni di una {@link TimeSeries}.
+     * Gli indici della vista partono da 0 per il campione più vecchio dell'intervallo.
+     */
+    public static class View {
+
+        private TimeSeries series;
+        private int offset;
+        private int length;
+
+        void set(TimeSeries series, int offset, int length) {
+            this.series = series;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public int size() {
+            return length;
+        }
+
+        public double valueAt(int index) {
+            checkIndex(index);
+            return series.valueAt(offset + index);
+        }
+
+        public long timeAt(int index) {
+            checkIndex(index);
+            return series.timeAt(offset + index);
+        }
+
+        /**
+         * @return La durata coperta dalla vista, cioè la differenza tra l'ultimo e il primo timestamp.
+         */
+        public long duration() {
+            return length < 2 ? 0 : timeAt(length - 1) - timeAt(0);
+        }
+
+        private void checkIndex(int index) {
+            if (index < 0 || index >= length) {
+                throw new IndexOutOfBoundsException("index=" + index + ", length=" + length);
+            }
+        }
+    }
+}
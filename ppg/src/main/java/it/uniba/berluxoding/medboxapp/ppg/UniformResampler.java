@@ -0,0 +1,212 @@
+package it.uniba.berluxoding.medboxapp.ppg;
+
+import java.util.Arrays;
+
+/**
+ * Stadio di ricampionamento della serie delle luminosità su una griglia a frequenza costante.
+ *
+ * La frequenza reale dei frame viene misurata sui primi {@code warmupFrames} frame come mediana degli
+ * intervalli tra timestamp consecutivi, così che un frame perso o ritardato non la alteri. Da quel momento
+ * la griglia ha passo fisso e ogni suo istante riceve il valore interpolato linearmente tra i due frame
+ * che lo racchiudono: gli stadi successivi (lisciatura, rilevamento dei picchi, analisi spettrale)
+ * possono quindi assumere campioni equispaziati indipendentemente dal ritmo con cui arrivano i frame.
+ *
+ * Le interruzioni più lunghe di {@value #MAX_GAP_PERIODS} periodi non vengono interpolate:
+ * la griglia riparte dal primo frame successivo.
+ *
+ * Uso: dopo ogni {@link #push(double, long)} i campioni prodotti si leggono con {@link #next()},
+ * {@link #getValue()} e {@link #getTime()}. Il ricampionamento non alloca memoria.
+ * La classe non è thread-safe.
+ */
+public class UniformResampler {
+
+    //Numero predefinito di frame su cui misurare la frequenza: mezzo secondo a 30 fps.
+    public static final int DEFAULT_WARMUP_FRAMES = 15;
+
+    //Numero massimo di periodi della griglia interpolati tra due frame consecutivi.
+    public static final int MAX_GAP_PERIODS = 30;
+
+    private final int warmupFrames;
+
+    //Frame ricevuti durante la misura della frequenza e array di appoggio per la mediana degli intervalli.
+    private final double[] warmupValues;
+    private final long[] warmupTimes;
+    private final long[] intervals;
+    private int warmupCount;
+
+    //Passo della griglia in millisecondi (NaN finché la frequenza non è stata misurata),
+    //origine della griglia e indice del prossimo istante da produrre.
+    private double period = Double.NaN;
+    private double gridOrigin;
+    private long gridIndex;
+
+    //Ultimo frame ricevuto.
+    private boolean hasPrevious;
+    private double previousValue;
+    private long previousTime;
+
+    //Campioni prodotti e non ancora letti, in coda circolare.
+    private final double[] pendingValues;
+    private final long[] pendingTimes;
+    private int pendingHead;
+    private int pendingCount;
+
+    //Ultimo campione letto con next().
+    private double value;
+    private long time;
+
+    public UniformResampler() {
+        this(DEFAULT_WARMUP_FRAMES);
+    }
+
+    /**
+     * @param warmupFrames Il numero di frame su cui misurare la frequenza reale (almeno 2).
+     */
+    public UniformResampler(int warmupFrames) {
+        if (warmupFrames < 2) throw new IllegalArgumentException("warmupFrames must be at least 2: " + warmupFrames);
+        this.warmupFrames = warmupFrames;
+        warmupValues = new double[warmupFrames];
+        warmupTimes = new long[warmupFrames];
+        intervals = new long[warmupFrames - 1];
+        // Al termine della misura vengono ricampionati tutti i frame trattenuti
+        int capacity = warmupFrames * MAX_GAP_PERIODS + 1;
+        pendingValues = new double[capacity];
+        pendingTimes = new long[capacity];
+    }
+
+    /**
+     * Fornisce un frame al ricampionatore. I frame con timestamp non successivo al precedente vengono ignorati.
+     *
+     * @param value Il valore del frame.
+     * @param time  L'istante di acquisizione del frame, in millisecondi.
+     */
+    public void push(double value, long time) {
+        if (hasPrevious && time <= previousTime) return;
+
+        if (isLocked()) {
+            interpolate(value, time);
+            return;
+        }
+        if (warmupCount > 0 && time <= warmupTimes[warmupCount - 1]) return;
+        warmupValues[warmupCount] = value;
+        warmupTimes[warmupCount] = time;
+        if (++warmupCount == warmupFrames) {
+            lock();
+        }
+    }
+
+    /**
+     * Avanza al prossimo campione ricampionato, se disponibile.
+     *
+     * @return true se è disponibile un campione, leggibile con {@link #getValue()} e {@link #getTime()}.
+     */
+    public boolean next() {
+        if (pendingCount == 0) return false;
+        value = pendingValues[pendingHead];
+        time = pendingTimes[pendingHead];
+        if (++pendingHead == pendingValues.length) pendingHead = 0;
+        pendingCount--;
+        return true;
+    }
+
+    public double getValue() {
+        return value;
+    }
+
+    /**
+     * @return L'istante del campione corrente sulla griglia, arrotondato al millisecondo.
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * @return true se la frequenza dei frame è stata misurata e la griglia è stata fissata.
+     */
+    public boolean isLocked() {
+        return !Double.isNaN(period);
+    }
+
+    /**
+     * @return La frequenza misurata dei frame, in frame al secondo, oppure NaN durante la misura.
+     */
+    public double getFrameRate() {
+        return 1000.0 / period;
+    }
+
+    /**
+     * @return Il passo della griglia in millisecondi, oppure NaN durante la misura.
+     */
+    public double getPeriod() {
+        return period;
+    }
+
+    /**
+     * Riporta il ricampionatore allo stato iniziale: la frequenza verrà misurata di nuovo.
+     */
+    public void reset() {
+        warmupCount = 0;
+        period = Double.NaN;
+        gridOrigin = 0;
+        gridIndex = 0;
+        hasPrevious = false;
+        pendingHead = 0;
+        pendingCount = 0;
+    }
+
+    /**
+     * Fissa il passo della griglia alla mediana degli intervalli tra i frame trattenuti
+     * e ricampiona i frame stessi.
+     */
+    private void lock() {
+        for (int i = 1; i < warmupFrames; i++) {
+            intervals[i - 1] = warmupTimes[i] - warmupTimes[i - 1];
+        }
+        Arrays.sort(intervals);
+        int middle = intervals.length / 2;
+        period = intervals.length % 2 == 1
+                ? intervals[middle]
+                : (intervals[middle - 1] + intervals[middle]) / 2.0;
+
+        for (int i = 0; i < warmupFrames; i++) {
+            interpolate(warmupValues[i], warmupTimes[i]);
+        }
+    }
+
+    /**
+     * Produce i campioni della griglia compresi tra il frame precedente e quello indicato.
+     */
+    private void interpolate(double value, long time) {
+        if (!hasPrevious || time - previousTime > MAX_GAP_PERIODS * period) {
+            // Primo frame o interruzione troppo lunga: la griglia parte da questo frame
+            gridOrigin = time;
+            gridIndex = 0;
+        }
+        double gridTime = gridOrigin + gridIndex * period;
+        while (gridTime <= time) {
+            double sample = value;
+            if (gridTime < time) {
+                double fraction = (gridTime - previousTime) / (time - previousTime);
+                sample = previousValue + fraction * (value - previousValue);
+            }
+            emit(sample, Math.round(gridTime));
+            gridTime = gridOrigin + ++gridIndex * period;
+        }
+        hasPrevious = true;
+        previousValue = value;
+        previousTime = time;
+    }
+
+    private void emit(double sample, long sampleTime) {
+        int tail = pendingHead + pendingCount;
+        if (tail >= pendingValues.length) tail -= pendingValues.length;
+        pendingValues[tail] = sample;
+        pendingTimes[tail] = sampleTime;
+        if (pendingCount < pendingValues.length) {
+            pendingCount++;
+        } else if (++pendingHead == pendingValues.length) {
+            // Campioni non letti: viene scartato il più vecchio
+            pendingHead = 0;
+        }
+    }
+}
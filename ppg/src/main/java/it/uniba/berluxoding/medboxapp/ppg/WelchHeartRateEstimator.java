@@ -0,0 +1,121 @@
+package it.uniba.berluxoding.medboxapp.ppg;
+
+/**
+ * Stimatore della frequenza cardiaca basato sullo spettro di potenza, calcolato con il metodo di Welch.
+ *
+ * La finestra di campioni viene divisa in segmenti di circa 4 secondi sovrapposti
+ * per metà, allineati alla fine della finestra. Ogni segmento viene privato della tendenza lineare,
+ * pesato con una finestra di Hann, completato con zeri fino a 4 volte la sua lunghezza
+ * e trasformato; gli spettri di potenza vengono mediati. La frequenza cardiaca corrisponde al massimo
+ * dello spettro tra 40 e 200 BPM, raffinato per interpolazione parabolica.
+ * Se la finestra è più corta di un segmento viene analizzata per intero come segmento unico.
+ *
+ * L'affidabilità è la frazione della potenza della banda concentrata attorno al massimo.
+ * Trasformata, finestra di Hann e buffer sono allocati solo quando cambia la frequenza dei campioni.
+ */
+public class WelchHeartRateEstimator extends WindowedHeartRateEstimator {
+
+    //Durata nominale di un segmento, in secondi.
+    private static final double SEGMENT_SECONDS = 4;
+
+    //Fattore di completamento con zeri di ciascun segmento.
+    private static final int ZERO_PADDING = 4;
+
+    private int segmentLength;
+    private Fft fft;
+    private double[] hann;
+    private double[] segment;
+    private double[] real;
+    private double[] imaginary;
+    private double[] power;
+
+    public WelchHeartRateEstimator() {
+        this(HeartRateEstimator.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity Il numero massimo di campioni conservati.
+     */
+    public WelchHeartRateEstimator(int capacity) {
+        super(capacity);
+        onFrameRateChanged(getFrameRate());
+    }
+
+    @Override
+    void onFrameRateChanged(double frameRate) {
+        segmentLength = Fft.nextPowerOfTwo((int) Math.round(SEGMENT_SECONDS * frameRate));
+        fft = new Fft(segmentLength * ZERO_PADDING);
+        hann = new double[segmentLength];
+        fillHann(hann, segmentLength);
+        segment = new double[segmentLength];
+        real = new double[fft.size()];
+        imaginary = new double[fft.size()];
+        power = new double[fft.size() / 2 + 1];
+    }
+
+    @Override
+    HeartRateEstimate estimate(TimeSeries.View window) {
+        int n = window.size();
+        if (n < MIN_SAMPLES) return invalid();
+
+        int length = Math.min(segmentLength, n);
+        double[] weights = hann;
+        if (length < segmentLength) {
+            // Finestra più corta di un segmento: finestra di Hann calcolata per la lunghezza effettiva
+            fillHann(segment, length);
+            weights = segment;
+        }
+        int size = fft.size();
+        int bins = size / 2 + 1;
+        for (int k = 0; k < bins; k++) {
+            power[k] = 0;
+        }
+
+        int hop = Math.max(1, length / 2);
+        for (int start = n - length; start >= 0; start -= hop) {
+            detrend(window, start, length, real);
+            for (int i = 0; i < length; i++) {
+                real[i] *= weights[i];
+                imaginary[i] = 0;
+            }
+            for (int i = length; i < size; i++) {
+                real[i] = 0;
+                imaginary[i] = 0;
+            }
+            fft.transform(real, imaginary);
+            for (int k = 0; k < bins; k++) {
+                power[k] += real[k] * real[k] + imaginary[k] * imaginary[k];
+            }
+        }
+
+        double frameRate = getFrameRate();
+        int lowBin = Math.max(1, (int) Math.ceil(MIN_BPM / 60.0 * size / frameRate));
+        int highBin = Math.min(bins - 2, (int) Math.floor(MAX_BPM / 60.0 * size / frameRate));
+        if (lowBin >= highBin) return invalid();
+
+        int best = lowBin;
+        double bandPower = 0;
+        for (int k = lowBin; k <= highBin; k++) {
+            bandPower += power[k];
+            if (power[k] > power[best]) best = k;
+        }
+        if (bandPower <= 0) return invalid();
+
+        double offset = parabolicOffset(power[best - 1], power[best], power[best + 1]);
+        int bpm = (int) Math.round((best + offset) * frameRate / size * 60);
+
+        // Potenza nel lobo principale della finestra di Hann (due bin del segmento per lato)
+        int lobe = 2 * size / length;
+        double peakPower = 0;
+        for (int k = Math.max(lowBin, best - lobe); k <= Math.min(highBin, best + lobe); k++) {
+            peakPower += power[k];
+        }
+        return new HeartRateEstimate(bpm, peakPower / bandPower, getSampleCount(), 0);
+    }
+
+    private static void fillHann(double[] out, int length) {
+        for (int i = 0; i < length; i++) {
+            out[i] = 0.5 - 0.5 * Math.cos(2 * Math.PI * i / (length - 1));
+        }
+    }
+}
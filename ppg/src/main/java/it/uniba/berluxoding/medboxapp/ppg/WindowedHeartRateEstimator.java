@@ -0,0 +1,119 @@
+package it.uniba.berluxoding.medboxapp.ppg;
+
+/**
+ * Base comune degli stimatori che analizzano una finestra di campioni in blocco (spettro, autocorrelazione).
+ * I campioni sono conservati in una {@link TimeSeries}: la stima parziale analizza gli ultimi
+ * {@value #LIVE_WINDOW_MS} ms, quella finale tutti i campioni conservati.
+ */
+abstract class WindowedHeartRateEstimator implements BpmEstimator {
+
+    //Intervallo di frequenze cardiache ammesse, in battiti al minuto.
+    static final int MIN_BPM = 40;
+    static final int MAX_BPM = 200;
+
+    //Ampiezza, in millisecondi, della finestra usata per la stima parziale.
+    static final long LIVE_WINDOW_MS = 6000;
+
+    //Campioni ricevuti e vista riutilizzata sulla finestra da analizzare.
+    private final TimeSeries samples;
+    private final TimeSeries.View window = new TimeSeries.View();
+
+    //Frequenza dei campioni, in campioni al secondo.
+    private double frameRate = HeartRateEstimator.REFERENCE_FRAME_RATE;
+
+    WindowedHeartRateEstimator(int capacity) {
+        samples = new TimeSeries(capacity);
+    }
+
+    @Override
+    public void setFrameRate(double frameRate) {
+        if (!(frameRate > 0)) throw new IllegalArgumentException("frameRate must be positive: " + frameRate);
+        if (getSampleCount() > 0) throw new IllegalStateException("frame rate must be set before the first sample");
+        if (frameRate != this.frameRate) {
+            this.frameRate = frameRate;
+            onFrameRateChanged(frameRate);
+        }
+    }
+
+    double getFrameRate() {
+        return frameRate;
+    }
+
+    @Override
+    public void addSample(double brightness, long time) {
+        samples.append(brightness, time);
+    }
+
+    @Override
+    public HeartRateEstimate getEstimate() {
+        if (samples.isEmpty()) return invalid();
+        long last = samples.lastTime();
+        return estimate(samples.window(last - LIVE_WINDOW_MS, last + 1, window));
+    }
+
+    @Override
+    public HeartRateEstimate finish() {
+        return estimate(samples.latest(samples.size(), window));
+    }
+
+    @Override
+    public int getSampleCount() {
+        return (int) samples.getAppendedCount();
+    }
+
+    @Override
+    public void reset() {
+        samples.clear();
+    }
+
+    /**
+     * Stima non valida, con il numero di campioni ricevuti.
+     */
+    HeartRateEstimate invalid() {
+        return new HeartRateEstimate(0, 0, getSampleCount(), 0);
+    }
+
+    /**
+     * Chiamato quando cambia la frequenza dei campioni, per ridimensionare le strutture di appoggio.
+     */
+    abstract void onFrameRateChanged(double frameRate);
+
+    /**
+     * Stima la frequenza cardiaca dai campioni della finestra indicata.
+     */
+    abstract HeartRateEstimate estimate(TimeSeries.View window);
+
+    /**
+     * Rimuove media e tendenza lineare (minimi quadrati) da {@code length} campioni della finestra,
+     * a partire da {@code from}, scrivendo il risultato in {@code out}.
+     */
+    static void detrend(TimeSeries.View window, int from, int length, double[] out) {
+        double meanIndex = (length - 1) / 2.0;
+        double sum = 0;
+        for (int i = 0; i < length; i++) {
+            sum += window.valueAt(from + i);
+        }
+        double mean = sum / length;
+        double covariance = 0;
+        double variance = 0;
+        for (int i = 0; i < length; i++) {
+            double d = i - meanIndex;
+            covariance += d * (window.valueAt(from + i) - mean);
+            variance += d * d;
+        }
+        double slope = variance > 0 ? covariance / variance : 0;
+        for (int i = 0; i < length; i++) {
+            out[i] = window.valueAt(from + i) - mean - slope * (i - meanIndex);
+        }
+    }
+
+    /**
+     * Spostamento, compreso tra -0.5 e 0.5, del vertice della parabola passante per tre punti equispaziati
+     * rispetto al punto centrale.
+     */
+    static double parabolicOffset(double left, double center, double right) {
+        double denominator = left - 2 * center + right;
+        if (denominator >= 0) return 0;
+        return Math.max(-0.5, Math.min(0.5, 0.5 * (left - right) / denominator));
+    }
+}
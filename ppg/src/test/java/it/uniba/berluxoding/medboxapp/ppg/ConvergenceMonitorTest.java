@@ -0,0 +1,69 @@
+package it.uniba.berluxoding.medboxapp.ppg;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Verifica che la misurazione adattiva termini prima dei 10 secondi su un segnale pulito,
+ * con una stima finale corretta, e che su un segnale senza battito prosegua fino alla durata massima.
+ */
+public class ConvergenceMonitorTest {
+
+    private static final long LIVE_UPDATE_INTERVAL_MS = 250;
+    private static final int TOLERANCE_BPM = 3;
+
+    @Test
+    public void cleanSignal_stopsEarlyWithAnAccurateEstimate() {
+        int[] rates = {60, 90, 120, 150};
+        for (int bpm : rates) {
+            SyntheticPpgSignal signal = new SyntheticPpgSignal(bpm, 1)
+                    .setNoise(0.3)
+                    .setDrift(1)
+                    .setFrameJitter(0.1);
+            PpgPipeline pipeline = new PpgPipeline(EstimatorEngine.WELCH.create());
+
+            long stoppedAt = run(signal, pipeline, ConvergenceMonitor.Decision.STABLE);
+            HeartRateEstimate estimate = pipeline.finish();
+
+            assertTrue("bpm " + bpm + " stopped at " + stoppedAt, stoppedAt < 10000);
+            assertEquals("bpm " + bpm, bpm, estimate.getBpm(), TOLERANCE_BPM);
+        }
+    }
+
+    @Test
+    public void signalWithoutPulse_runsUntilTheMaximumDuration() {
+        SyntheticPpgSignal signal = new SyntheticPpgSignal(90, 1)
+                .setLevels(100, 0)
+                .setNoise(3);
+        PpgPipeline pipeline = new PpgPipeline(EstimatorEngine.WELCH.create());
+
+        long stoppedAt = run(signal, pipeline, ConvergenceMonitor.Decision.TIMEOUT);
+
+        assertEquals(ConvergenceMonitor.DEFAULT_MAX_DURATION_MS, stoppedAt, LIVE_UPDATE_INTERVAL_MS);
+    }
+
+    /**
+     * Fornisce i campioni alla pipeline e consulta il monitor con la cadenza dell'aggiornamento a schermo,
+     * fino alla prima decisione diversa da CONTINUE, che deve coincidere con quella attesa.
+     *
+     * @return Il tempo trascorso dall'inizio della misurazione alla decisione.
+     */
+    private static long run(SyntheticPpgSignal signal, PpgPipeline pipeline, ConvergenceMonitor.Decision expected) {
+        ConvergenceMonitor monitor = new ConvergenceMonitor();
+        long lastUpdate = -LIVE_UPDATE_INTERVAL_MS;
+        while (true) {
+            signal.next();
+            pipeline.addSample(signal.getValue(), signal.getTime());
+            if (signal.getTime() - lastUpdate < LIVE_UPDATE_INTERVAL_MS) continue;
+            lastUpdate = signal.getTime();
+
+            ConvergenceMonitor.Decision decision = monitor.update(pipeline.getEstimate(), signal.getTime());
+            if (decision != ConvergenceMonitor.Decision.CONTINUE) {
+                assertEquals(expected, decision);
+                return monitor.getElapsed();
+            }
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package it.uniba.berluxoding.medboxapp.ppg;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Verifica {@link Fft} rispetto alla definizione della trasformata discreta di Fourier.
+ */
+public class FftTest {
+
+    @Test
+    public void transform_matchesDirectDft() {
+        Random random = new Random(1);
+        for (int size = 2; size <= 256; size <<= 1) {
+            double[] real = new double[size];
+            double[] imaginary = new double[size];
+            for (int i = 0; i < size; i++) {
+                real[i] = random.nextGaussian();
+                imaginary[i] = random.nextGaussian();
+            }
+            double[] expectedReal = new double[size];
+            double[] expectedImaginary = new double[size];
+            for (int k = 0; k < size; k++) {
+                for (int j = 0; j < size; j++) {
+                    double angle = -2 * Math.PI * j * k / size;
+                    expectedReal[k] += real[j] * Math.cos(angle) - imaginary[j] * Math.sin(angle);
+                    expectedImaginary[k] += real[j] * Math.sin(angle) + imaginary[j] * Math.cos(angle);
+                }
+            }
+
+            new Fft(size).transform(real, imaginary);
+
+            for (int k = 0; k < size; k++) {
+                assertEquals("size " + size + " bin " + k, expectedReal[k], real[k], 1e-9);
+                assertEquals("size " + size + " bin " + k, expectedImaginary[k], imaginary[k], 1e-9);
+            }
+        }
+    }
+}
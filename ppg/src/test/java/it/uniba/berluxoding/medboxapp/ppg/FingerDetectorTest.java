@@ -0,0 +1,67 @@
+package it.uniba.berluxoding.medboxapp.ppg;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Verifica la classificazione dei frame di {@link FingerDetector} su frame uniformi YUV_420_888
+ * con piani U e V separati: dito illuminato dalla torcia, scena senza dito, frame scuri, saturi e in movimento.
+ */
+public class FingerDetectorTest {
+
+    private static final int WIDTH = 160;
+    private static final int HEIGHT = 120;
+
+    @Test
+    public void litFinger_isPresentAfterTheSettlingFrames() {
+        FingerDetector detector = new FingerDetector();
+        for (int i = 1; i < FingerDetector.MIN_VALID_FRAMES; i++) {
+            assertEquals(FingerDetector.Status.SETTLING, check(detector, 120 + pulse(i), 100, 190));
+        }
+        for (int i = 0; i < 60; i++) {
+            assertEquals(FingerDetector.Status.PRESENT, check(detector, 120 + pulse(i), 100, 190));
+        }
+        assertTrue(detector.isPresent());
+
+        // Un frame senza dito interrompe la serie dei frame validi
+        assertEquals(FingerDetector.Status.NO_FINGER, check(detector, 120, 128, 128));
+        assertEquals(FingerDetector.Status.SETTLING, check(detector, 120, 100, 190));
+        assertFalse(detector.isPresent());
+    }
+
+    @Test
+    public void invalidFrames_areClassifiedByCause() {
+        assertEquals(FingerDetector.Status.TOO_DARK, check(new FingerDetector(), 10, 120, 140));
+        assertEquals(FingerDetector.Status.SATURATED, check(new FingerDetector(), 250, 120, 140));
+        assertEquals(FingerDetector.Status.NO_FINGER, check(new FingerDetector(), 120, 128, 130));
+
+        FingerDetector moving = new FingerDetector();
+        FingerDetector.Status status = null;
+        for (int i = 0; i < 10; i++) {
+            status = check(moving, i % 2 == 0 ? 80 : 160, 100, 190);
+        }
+        assertEquals(FingerDetector.Status.MOTION, status);
+    }
+
+    private static int pulse(int frame) {
+        return (int) Math.round(2 * Math.sin(2 * Math.PI * frame / 30.0));
+    }
+
+    private static FingerDetector.Status check(FingerDetector detector, int y, int u, int v) {
+        return detector.check(plane(WIDTH * HEIGHT, y), WIDTH, 1,
+                plane(WIDTH * HEIGHT / 4, u), plane(WIDTH * HEIGHT / 4, v), WIDTH / 2, 1, WIDTH, HEIGHT);
+    }
+
+    private static ByteBuffer plane(int size, int value) {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (int i = 0; i < size; i++) {
+            buffer.put(i, (byte) value);
+        }
+        return buffer;
+    }
+}
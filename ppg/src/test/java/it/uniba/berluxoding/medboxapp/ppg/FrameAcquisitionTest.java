@@ -0,0 +1,88 @@
+package it.uniba.berluxoding.medboxapp.ppg;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Verifica che i frame accodati siano elaborati in ordine con il contenuto originale e che,
+ * a pool esaurito, i frame in eccesso siano scartati e conteggiati.
+ */
+public class FrameAcquisitionTest {
+
+    private static final int WIDTH = 16;
+    private static final int HEIGHT = 8;
+    private static final int ROW_STRIDE = 20;
+
+    @Test
+    public void frames_areProcessedInOrderWithTheirContent() {
+        List<Long> times = new ArrayList<>();
+        List<Integer> firstPixels = new ArrayList<>();
+        FrameAcquisition acquisition = new FrameAcquisition(frame -> {
+            times.add(frame.getTime());
+            firstPixels.add(frame.getYBuffer().get(0) & 0xff);
+            assertEquals(ROW_STRIDE * HEIGHT, frame.getYBuffer().remaining());
+        }, 2);
+
+        ByteBuffer plane = ByteBuffer.allocateDirect(ROW_STRIDE * HEIGHT);
+        long submitted = 0;
+        for (int i = 0; i < 200; i++) {
+            plane.put(0, (byte) i);
+            if (acquisition.submit(plane, ROW_STRIDE, 1, WIDTH, HEIGHT, i)) {
+                submitted++;
+            } else {
+                Thread.yield();
+            }
+        }
+        acquisition.close();
+
+        assertEquals(200, acquisition.getDeliveredFrames());
+        assertEquals(submitted, acquisition.getProcessedFrames());
+        assertEquals(200 - submitted, acquisition.getDroppedFrames());
+        assertEquals(submitted, times.size());
+        for (int i = 0; i < times.size(); i++) {
+            assertEquals((long) times.get(i), (long) firstPixels.get(i));
+            if (i > 0) assertTrue(times.get(i) > times.get(i - 1));
+        }
+        assertEquals(0, plane.position());
+    }
+
+    @Test
+    public void exhaustedPool_dropsAndCountsTheNewestFrames() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        List<Long> times = new ArrayList<>();
+        FrameAcquisition acquisition = new FrameAcquisition(frame -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            times.add(frame.getTime());
+        }, 4);
+
+        ByteBuffer plane = ByteBuffer.allocate(ROW_STRIDE * HEIGHT);
+        for (int i = 0; i < 10; i++) {
+            boolean accepted = acquisition.submit(plane, ROW_STRIDE, 1, WIDTH, HEIGHT, i);
+            assertEquals(i < 4, accepted);
+        }
+        assertEquals(10, acquisition.getDeliveredFrames());
+        assertEquals(6, acquisition.getDroppedFrames());
+
+        release.countDown();
+        acquisition.close();
+        assertEquals(4, acquisition.getProcessedFrames());
+        assertEquals(4, times.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i, (long) times.get(i));
+        }
+        assertFalse(acquisition.submit(plane, ROW_STRIDE, 1, WIDTH, HEIGHT, 10));
+        assertEquals(7, acquisition.getDroppedFrames());
+    }
+}
@@ -0,0 +1,61 @@
+package it.uniba.berluxoding.medboxapp.ppg;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Verifica che i percentili di {@link LatencyHistogram} approssimino per eccesso quelli esatti entro
+ * l'errore degli intervalli e che la registrazione da più thread non perda durate.
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void percentiles_areWithinTheBucketError() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        // Durate da 1 µs a 10 ms: il percentile p corrisponde a p * 10 ms
+        for (int i = 1; i <= 10000; i++) {
+            histogram.record(i * 1000L);
+        }
+
+        assertEquals(10000, histogram.getCount());
+        assertEquals(10_000_000, histogram.getMax());
+        assertEquals(5_000_500, histogram.getMean());
+        double[] fractions = {0.01, 0.5, 0.9, 0.99, 1};
+        for (double fraction : fractions) {
+            long exact = Math.round(fraction * 10000) * 1000L;
+            long approximated = histogram.getPercentile(fraction);
+            assertTrue(fraction + ": " + approximated + " < " + exact, approximated >= exact);
+            assertTrue(fraction + ": " + approximated + " > " + exact, approximated <= exact * 1.125);
+        }
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(0.99));
+    }
+
+    @Test
+    public void concurrentRecords_areAllCounted() throws InterruptedException {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final int threads = 4;
+        final int records = 100000;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final long value = (t + 1) * 1000L;
+            new Thread(() -> {
+                for (int i = 0; i < records; i++) {
+                    histogram.record(value);
+                }
+                done.countDown();
+            }).start();
+        }
+        done.await();
+
+        assertEquals(threads * records, histogram.getCount());
+        assertEquals(threads * 1000L, histogram.getMax());
+        assertEquals(1000, histogram.getPercentile(0.25), 1000 / 8);
+    }
+}
@@ -0,0 +1,82 @@
+package it.uniba.berluxoding.medboxapp.ppg;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Verifica che {@link PeakDetector} riconosca un battito per ciclo, ignorando l'onda dicrota, che gli indici
+ * di variabilità corrispondano a quelli della sequenza RR simulata e che un battito perso non li alteri.
+ */
+public class PeakDetectorTest {
+
+    private static final double FRAME_INTERVAL_MS = 1000 / 30.0;
+
+    @Test
+    public void dicroticWave_isNotCountedAsABeat() {
+        int[] rates = {45, 60, 90, 150};
+        for (int bpm : rates) {
+            long interval = 60000 / bpm;
+            long[] beats = new long[20];
+            for (int i = 0; i < beats.length; i++) {
+                beats[i] = 500 + i * interval;
+            }
+            PeakDetector detector = run(beats, beats[beats.length - 1] + 500);
+
+            assertEquals("bpm " + bpm, beats.length, detector.getBeatCount());
+            assertEquals("bpm " + bpm, beats.length - 1, detector.getRrCount());
+            assertEquals("bpm " + bpm, interval, detector.getMeanRr(), 2);
+            assertTrue("bpm " + bpm + " sdnn " + detector.getSdnn(), detector.getSdnn() < 5);
+        }
+    }
+
+    @Test
+    public void hrv_matchesTheSimulatedIntervalsAndIgnoresAMissedBeat() {
+        // Intervalli alternati di 800 e 900 ms: RMSSD 100 ms, SDNN circa 50 ms
+        long[] beats = new long[31];
+        beats[0] = 500;
+        for (int i = 1; i < beats.length; i++) {
+            beats[i] = beats[i - 1] + (i % 2 == 0 ? 800 : 900);
+        }
+        PeakDetector detector = run(beats, beats[beats.length - 1] + 500);
+        assertEquals(30, detector.getRrCount());
+        assertEquals(850, detector.getMeanRr(), 2);
+        assertEquals(100, detector.getRmssd(), 5);
+        assertEquals(50 * Math.sqrt(30 / 29.0), detector.getSdnn(), 3);
+
+        // Senza il battito 15 l'intervallo doppio viene scartato e gli indici restano invariati
+        long[] missed = new long[beats.length - 1];
+        System.arraycopy(beats, 0, missed, 0, 15);
+        System.arraycopy(beats, 16, missed, 15, beats.length - 16);
+        detector = run(missed, missed[missed.length - 1] + 500);
+        assertEquals(missed.length, detector.getBeatCount());
+        assertEquals(28, detector.getRrCount());
+        assertEquals(850, detector.getMeanRr(), 2);
+        assertEquals(100, detector.getRmssd(), 5);
+        assertFalse(Double.isNaN(detector.getSdnn()));
+    }
+
+    /**
+     * Fornisce al rilevatore, a 30 campioni al secondo, un segnale lisciato con un picco sistolico
+     * in corrispondenza di ogni battito e un'onda dicrota più bassa 350 ms dopo.
+     */
+    private static PeakDetector run(long[] beats, long duration) {
+        PeakDetector detector = new PeakDetector();
+        for (int i = 0; i * FRAME_INTERVAL_MS <= duration; i++) {
+            long time = Math.round(i * FRAME_INTERVAL_MS);
+            double value = 0;
+            for (long beat : beats) {
+                value += pulse(time - beat, 90) + 0.35 * pulse(time - beat - 350, 70);
+            }
+            detector.push(100 + 8 * value, time);
+        }
+        detector.flush();
+        return detector;
+    }
+
+    private static double pulse(double offset, double width) {
+        return Math.exp(-0.5 * offset * offset / (width * width));
+    }
+}
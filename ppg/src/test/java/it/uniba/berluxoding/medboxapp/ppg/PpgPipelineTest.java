@@ -0,0 +1,205 @@
+package it.uniba.berluxoding.medboxapp.ppg;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test di accuratezza della pipeline PPG su segnali sintetici di 10 secondi a 30 fps,
+ * la stessa durata di una misurazione sul dispositivo.
+ */
+public class PpgPipelineTest {
+
+    private static final long MEASUREMENT_MS = 10000;
+    private static final int TOLERANCE_BPM = 3;
+
+    @Test
+    public void estimator_isAccurateOnNoisySignalsWithDriftAndJitter() {
+        // Ritmi lenti compresi: l'onda dicrota non viene contata come battito
+        int[] rates = {50, 60, 75, 90, 120, 150};
+        for (long seed = 1; seed <= 5; seed++) {
+            for (int bpm : rates) {
+                SyntheticPpgSignal signal = new SyntheticPpgSignal(bpm, seed)
+                        .setNoise(0.3)
+                        .setDrift(1)
+                        .setFrameJitter(0.1);
+
+                HeartRateEstimate estimate = runSamples(signal, new PpgPipeline());
+
+                assertTrue("bpm " + bpm + " seed " + seed, estimate.isValid());
+                assertEquals("bpm " + bpm + " seed " + seed, bpm, estimate.getBpm(), TOLERANCE_BPM);
+            }
+        }
+    }
+
+    @Test
+    public void spectralEngines_areAccurateAcrossTheWholeRange() {
+        int[] rates = {50, 60, 90, 150, 180};
+        for (EstimatorEngine engine : new EstimatorEngine[]{EstimatorEngine.WELCH, EstimatorEngine.AUTOCORRELATION}) {
+            for (long seed = 1; seed <= 3; seed++) {
+                for (int bpm : rates) {
+                    SyntheticPpgSignal signal = new SyntheticPpgSignal(bpm, seed)
+                            .setNoise(1)
+                            .setDrift(1)
+                            .setFrameJitter(0.1);
+
+                    HeartRateEstimate estimate = runSamples(signal, new PpgPipeline(engine.create()));
+
+                    String message = engine + " bpm " + bpm + " seed " + seed;
+                    assertTrue(message, estimate.isValid());
+                    assertEquals(message, bpm, estimate.getBpm(), TOLERANCE_BPM);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void pipeline_isAccurateAtDifferentFrameRatesWithDroppedFrames() {
+        double[] frameRates = {24, 30, 60};
+        int[] rates = {75, 120, 150};
+        for (double frameRate : frameRates) {
+            for (int bpm : rates) {
+                SyntheticPpgSignal signal = new SyntheticPpgSignal(bpm, bpm)
+                        .setFrameRate(frameRate)
+                        .setNoise(0.3)
+                        .setFrameJitter(0.1);
+                // Un frame su cinque, in media, non viene consegnato
+                Random drops = new Random(bpm);
+                PpgPipeline pipeline = new PpgPipeline();
+                while (true) {
+                    signal.next();
+                    if (signal.getTime() > MEASUREMENT_MS) break;
+                    if (drops.nextDouble() < 0.2) continue;
+                    pipeline.addSample(signal.getValue(), signal.getTime());
+                }
+
+                HeartRateEstimate estimate = pipeline.finish();
+                assertTrue("fps " + frameRate + " bpm " + bpm, estimate.isValid());
+                assertEquals("fps " + frameRate + " bpm " + bpm, bpm, estimate.getBpm(), TOLERANCE_BPM);
+            }
+        }
+    }
+
+    @Test
+    public void pipeline_isAccurateOnRenderedStridedFrames() {
+        // Piano Y con padding a fine riga, come spesso restituito dalla fotocamera
+        int width = 160;
+        int height = 120;
+        int rowStride = 192;
+        ByteBuffer yPlane = ByteBuffer.allocateDirect(rowStride * height);
+
+        SyntheticPpgSignal signal = new SyntheticPpgSignal(72, 11).setNoise(0.3).setFrameJitter(0.1);
+        PpgPipeline pipeline = new PpgPipeline();
+        while (true) {
+            signal.next();
+            if (signal.getTime() > MEASUREMENT_MS) break;
+            signal.renderFrame(yPlane, width, height, rowStride, 1);
+            double brightness = pipeline.processFrame(yPlane, rowStride, 1, width, height, signal.getTime());
+            assertEquals(signal.getValue(), brightness, 0.05);
+        }
+
+        HeartRateEstimate estimate = pipeline.finish();
+        assertTrue(estimate.isValid());
+        assertEquals(72, estimate.getBpm(), TOLERANCE_BPM);
+    }
+
+    @Test
+    public void candidateRegions_selectTheRegionUnderTheFinger() {
+        // Polpastrello spostato verso l'alto: la regione candidata superiore ha il segnale più forte
+        int width = 320;
+        int height = 240;
+        ByteBuffer yPlane = ByteBuffer.allocateDirect(width * height);
+
+        SyntheticPpgSignal signal = new SyntheticPpgSignal(96, 7)
+                .setFingerCenter(0.5, 0.2)
+                .setPixelNoise(12);
+        PpgPipeline pipeline = new PpgPipeline();
+        pipeline.setCandidateRegions(RegionSelector.defaultCandidates(), RegionSelector.DEFAULT_CALIBRATION_MS);
+        while (true) {
+            signal.next();
+            if (signal.getTime() > MEASUREMENT_MS) break;
+            signal.renderFingerFrame(yPlane, width, height, width, 1);
+            pipeline.processFrame(yPlane, width, 1, width, height, signal.getTime());
+        }
+
+        assertEquals(1, pipeline.getRegionSelector().getSelectedIndex());
+        HeartRateEstimate estimate = pipeline.finish();
+        assertTrue(estimate.isValid());
+        assertEquals(96, estimate.getBpm(), TOLERANCE_BPM);
+    }
+
+    @Test
+    public void candidateRegions_calibrateForTheSameTimeAtLowerFrameRates() {
+        // A 15 fps la calibrazione dura quanto a 30 fps, con la metà dei frame
+        int width = 320;
+        int height = 240;
+        ByteBuffer yPlane = ByteBuffer.allocateDirect(width * height);
+
+        SyntheticPpgSignal signal = new SyntheticPpgSignal(72, 5)
+                .setFrameRate(15)
+                .setFingerCenter(0.5, 0.2)
+                .setPixelNoise(12);
+        PpgPipeline pipeline = new PpgPipeline();
+        pipeline.setCandidateRegions(RegionSelector.defaultCandidates(), RegionSelector.DEFAULT_CALIBRATION_MS);
+        long start = -1;
+        long calibrated = -1;
+        while (true) {
+            signal.next();
+            if (signal.getTime() > MEASUREMENT_MS) break;
+            if (start < 0) start = signal.getTime();
+            signal.renderFingerFrame(yPlane, width, height, width, 1);
+            pipeline.processFrame(yPlane, width, 1, width, height, signal.getTime());
+            if (calibrated < 0 && !pipeline.getRegionSelector().isCalibrating()) calibrated = signal.getTime();
+        }
+
+        assertEquals(1, pipeline.getRegionSelector().getSelectedIndex());
+        assertEquals(RegionSelector.DEFAULT_CALIBRATION_MS, calibrated - start, 1000 / 15.0);
+        HeartRateEstimate estimate = pipeline.finish();
+        assertTrue(estimate.isValid());
+        assertEquals(72, estimate.getBpm(), TOLERANCE_BPM);
+    }
+
+    @Test
+    public void liveEstimate_convergesBeforeTheEndOfTheMeasurement() {
+        SyntheticPpgSignal signal = new SyntheticPpgSignal(90, 3).setNoise(0.3);
+        PpgPipeline pipeline = new PpgPipeline();
+        while (true) {
+            signal.next();
+            if (signal.getTime() > MEASUREMENT_MS / 2) break;
+            pipeline.addSample(signal.getValue(), signal.getTime());
+        }
+
+        HeartRateEstimate live = pipeline.getEstimate();
+        assertTrue(live.isValid());
+        assertEquals(90, live.getBpm(), TOLERANCE_BPM);
+        assertTrue(live.getConfidence() > 0.5);
+    }
+
+    @Test
+    public void finish_failsWithTooFewSamples() {
+        SyntheticPpgSignal signal = new SyntheticPpgSignal(90, 5);
+        PpgPipeline pipeline = new PpgPipeline();
+        for (int i = 0; i < HeartRateEstimator.MIN_SAMPLES - 1; i++) {
+            signal.next();
+            pipeline.addSample(signal.getValue(), signal.getTime());
+        }
+
+        HeartRateEstimate estimate = pipeline.finish();
+        assertFalse(estimate.isValid());
+        assertEquals(HeartRateEstimator.MIN_SAMPLES - 1, estimate.getSampleCount());
+    }
+
+    private static HeartRateEstimate runSamples(SyntheticPpgSignal signal, PpgPipeline pipeline) {
+        while (true) {
+            signal.next();
+            if (signal.getTime() > MEASUREMENT_MS) break;
+            pipeline.addSample(signal.getValue(), signal.getTime());
+        }
+        return pipeline.finish();
+    }
+}
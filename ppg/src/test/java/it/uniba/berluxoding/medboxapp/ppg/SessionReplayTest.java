@@ -0,0 +1,148 @@
+package it.uniba.berluxoding.medboxapp.ppg;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Verifica che una sessione registrata con {@link SessionRecorder} e riprodotta con {@link SessionReplay}
+ * dia la stessa stima della misurazione originale, anche oltre il primo blocco mappato e quando la calibrazione
+ * delle regioni candidate sceglie una regione diversa dalla prima, e che una registrazione interrotta
+ * venga letta fino all'ultimo record completo.
+ */
+public class SessionReplayTest {
+
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final int LUMA_STEP = 4;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replay_reproducesTheRecordedEstimate() throws IOException {
+        File recording = folder.newFile("session.rec");
+        SyntheticPpgSignal signal = new SyntheticPpgSignal(75, 1).setNoise(0.3).setFrameJitter(0.1);
+        PpgPipeline live = new PpgPipeline(EstimatorEngine.WELCH.create());
+        ByteBuffer y = ByteBuffer.allocate(WIDTH * HEIGHT);
+
+        // 20 secondi a 30 fps con il piano Y sottocampionato: circa 3 MB, oltre il primo blocco mappato
+        try (SessionRecorder recorder = new SessionRecorder(recording, LUMA_STEP)) {
+            for (int i = 0; i < 600; i++) {
+                signal.next();
+                fill(y, (int) Math.round(signal.getValue()));
+                double value = live.processFrame(y, WIDTH, 1, WIDTH, HEIGHT, signal.getTime());
+                recorder.record(y, WIDTH, 1, WIDTH, HEIGHT, signal.getTime(), value, live.getFrameStatistics());
+            }
+            assertEquals(600, recorder.getFrameCount());
+            assertTrue(recorder.getLength() > SessionRecorder.REGION_SIZE);
+        }
+        HeartRateEstimate expected = live.finish();
+
+        try (SessionReplay replay = new SessionReplay(recording)) {
+            HeartRateEstimate replayed = replay.replay(new PpgPipeline(EstimatorEngine.WELCH.create()));
+            assertEquals(expected.getBpm(), replayed.getBpm());
+            assertEquals(expected.getSampleCount(), replayed.getSampleCount());
+            assertEquals(expected.getConfidence(), replayed.getConfidence(), 0);
+
+            // I piani Y sottocampionati di un frame uniforme danno la stessa luminosità
+            HeartRateEstimate fromLuma = replay.replayLuma(new PpgPipeline(EstimatorEngine.WELCH.create()));
+            assertEquals(expected.getBpm(), fromLuma.getBpm());
+
+            replay.rewind();
+            assertTrue(replay.next());
+            assertTrue(replay.hasLuma());
+            assertEquals(WIDTH / LUMA_STEP, replay.getLumaWidth());
+            assertEquals(HEIGHT / LUMA_STEP, replay.getLumaHeight());
+            assertEquals(replay.getLumaWidth() * replay.getLumaHeight(), replay.getLuma().remaining());
+        }
+    }
+
+    @Test
+    public void replay_followsTheRealignmentOnTheSelectedRegion() throws IOException {
+        File recording = folder.newFile("regions.rec");
+        // Polpastrello spostato verso l'alto: viene scelta la seconda regione candidata
+        SyntheticPpgSignal signal = new SyntheticPpgSignal(96, 7).setFingerCenter(0.5, 0.2).setPixelNoise(12);
+        PpgPipeline live = new PpgPipeline(EstimatorEngine.WELCH.create());
+        live.setCandidateRegions(RegionSelector.defaultCandidates(), RegionSelector.DEFAULT_CALIBRATION_MS);
+        ByteBuffer y = ByteBuffer.allocate(WIDTH * HEIGHT);
+
+        int realignments = 0;
+        try (SessionRecorder recorder = new SessionRecorder(recording, 0)) {
+            for (int i = 0; i < 600; i++) {
+                signal.next();
+                signal.renderFingerFrame(y, WIDTH, HEIGHT, WIDTH, 1);
+                double value = live.processFrame(y, WIDTH, 1, WIDTH, HEIGHT, signal.getTime());
+                recorder.record(y, WIDTH, 1, WIDTH, HEIGHT, signal.getTime(), value, live.getFrameStatistics());
+                TimeSeries realignment = live.getRealignment();
+                if (realignment != null) {
+                    recorder.recordRealignment(realignment);
+                    realignments++;
+                }
+            }
+        }
+        assertEquals(1, live.getRegionSelector().getSelectedIndex());
+        assertEquals(1, realignments);
+        HeartRateEstimate expected = live.finish();
+
+        try (SessionReplay replay = new SessionReplay(recording)) {
+            HeartRateEstimate replayed = replay.replay(new PpgPipeline(EstimatorEngine.WELCH.create()));
+            assertEquals(expected.getBpm(), replayed.getBpm());
+            assertEquals(expected.getSampleCount(), replayed.getSampleCount());
+            assertEquals(expected.getConfidence(), replayed.getConfidence(), 0);
+
+            replay.rewind();
+            int frames = 0;
+            while (replay.next() && !replay.isRealignment()) frames++;
+            assertEquals(frames, replay.getRealignedSize());
+            assertTrue(replay.getRealignedTime(frames - 1) - replay.getRealignedTime(0) >= RegionSelector.DEFAULT_CALIBRATION_MS);
+            assertEquals(replay.getTime(), replay.getRealignedTime(replay.getRealignedSize() - 1));
+        }
+    }
+
+    @Test
+    public void interruptedRecording_isReadUpToTheLastCompleteRecord() throws IOException {
+        File recording = folder.newFile("interrupted.rec");
+        FrameStatistics statistics = new FrameStatistics();
+        ByteBuffer y = ByteBuffer.allocate(WIDTH * HEIGHT);
+        SessionRecorder recorder = new SessionRecorder(recording, 0);
+        for (int i = 0; i < 10; i++) {
+            recorder.record(y, WIDTH, 1, WIDTH, HEIGHT, i * 33L, i, statistics);
+        }
+        long length = recorder.getLength();
+        recorder.close();
+
+        // Senza la chiusura il file termina con il blocco mappato ancora a zero; un record interrotto
+        // non ha ancora la lunghezza, scritta per ultima
+        try (RandomAccessFile file = new RandomAccessFile(recording, "rw")) {
+            file.seek(length - SessionRecorder.RECORD_SIZE);
+            file.writeInt(0);
+            file.setLength(SessionRecorder.REGION_SIZE);
+        }
+
+        try (SessionReplay replay = new SessionReplay(recording)) {
+            for (int i = 0; i < 9; i++) {
+                assertTrue(replay.next());
+                assertEquals(i * 33L, replay.getTime());
+                assertEquals(i, replay.getValue(), 0);
+                assertFalse(replay.hasLuma());
+            }
+            assertFalse(replay.next());
+        }
+    }
+
+    private static void fill(ByteBuffer buffer, int value) {
+        for (int i = 0; i < buffer.capacity(); i++) {
+            buffer.put(i, (byte) value);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package it.uniba.berluxoding.medboxapp.ppg;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Verifica che {@link SmoothingFilter} produca esattamente lo stesso risultato
+ * delle nove applicazioni della media mobile con finestra 3 sull'intera serie.
+ */
+public class SmoothingFilterTest {
+
+    private static final int PASSES = 9;
+
+    @Test
+    public void smoothInPlace_matchesRepeatedMovingAverage() {
+        Random random = new Random(42);
+        SmoothingFilter filter = new SmoothingFilter(PASSES);
+        for (int length = 0; length <= 64; length++) {
+            double[] data = randomSignal(random, length);
+            double[] expected = repeatedMovingAverage(data, PASSES);
+
+            filter.smoothInPlace(data, length);
+
+            // Confronto bit per bit, bordi compresi
+            assertArrayEquals("length " + length, expected, data, 0.0);
+        }
+    }
+
+    @Test
+    public void streaming_matchesRepeatedMovingAverageWithTimestamps() {
+        Random random = new Random(7);
+        double[] data = randomSignal(random, 300);
+        double[] expected = repeatedMovingAverage(data, PASSES);
+
+        SmoothingFilter filter = new SmoothingFilter(PASSES);
+        int produced = 0;
+        for (int i = 0; i < data.length; i++) {
+            if (filter.push(data[i], 1000L + i)) {
+                assertEquals(expected[produced], filter.getOutput(), 0.0);
+                assertEquals(1000L + produced, filter.getOutputTime());
+                produced++;
+            }
+        }
+        assertEquals(data.length - filter.getDelay(), produced);
+
+        while (filter.flushNext()) {
+            assertEquals(expected[produced], filter.getOutput(), 0.0);
+            assertEquals(1000L + produced, filter.getOutputTime());
+            produced++;
+        }
+        assertEquals(data.length, produced);
+    }
+
+    @Test
+    public void flushNext_singleSampleIsReturnedUnchanged() {
+        SmoothingFilter filter = new SmoothingFilter(PASSES);
+        assertFalse(filter.push(3.5, 10));
+        assertTrue(filter.flushNext());
+        assertEquals(3.5, filter.getOutput(), 0.0);
+        assertEquals(10, filter.getOutputTime());
+        assertFalse(filter.flushNext());
+    }
+
+    private static double[] randomSignal(Random random, int length) {
+        double[] data = new double[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = 100 + 20 * Math.sin(i / 4.0) + random.nextGaussian() * 5;
+        }
+        return data;
+    }
+
+    /**
+     * Implementazione di riferimento: media mobile centrata con finestra 3 applicata più volte all'intera serie.
+     */
+    private static double[] repeatedMovingAverage(double[] data, int passes) {
+        double[] result = data.clone();
+        for (int pass = 0; pass < passes; pass++) {
+            double[] smoothed = new double[result.length];
+            for (int i = 0; i < result.length; i++) {
+                int windowStart = Math.max(0, i - 1);
+                int windowEnd = Math.min(result.length, i + 2);
+                double sum = 0;
+                for (int j = windowStart; j < windowEnd; j++) {
+                    sum += result[j];
+                }
+                smoothed[i] = sum / (windowEnd - windowStart);
+            }
+            result = smoothed;
+        }
+        return result;
+    }
+}
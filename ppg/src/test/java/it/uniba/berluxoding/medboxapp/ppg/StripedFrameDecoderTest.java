@@ -0,0 +1,80 @@
+package it.uniba.berluxoding.medboxapp.ppg;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Verifica che la decodifica a strisce produca le stesse statistiche della decodifica in un solo thread
+ * e che il canale rosso corrisponda alla conversione pixel per pixel dell'elaborazione originale.
+ */
+public class StripedFrameDecoderTest {
+
+    @Test
+    public void stripedDecode_matchesSingleThreadedDecode() {
+        int[][] sizes = {{640, 480}, {320, 242}, {176, 144}, {64, 30}};
+        try (StripedFrameDecoder decoder = new StripedFrameDecoder(4)) {
+            for (int[] size : sizes) {
+                int width = size[0];
+                int height = size[1];
+                int rowStride = width + 32;
+                ByteBuffer y = randomPlane(rowStride * height, 1);
+                // Piani U e V interleaved (pixelStride 2), come nel formato NV21
+                ByteBuffer vu = randomPlane(rowStride * (height / 2), 2);
+                ByteBuffer v = vu.duplicate();
+                vu.position(1);
+                ByteBuffer u = vu.slice();
+
+                FrameStatistics expected = new FrameStatistics();
+                FrameStatisticsKernel.computeRed(y, rowStride, 1, u, v, rowStride, 2, width, height, expected);
+                FrameStatistics striped = new FrameStatistics();
+                for (int repeat = 0; repeat < 3; repeat++) {
+                    decoder.decode(y, rowStride, 1, u, v, rowStride, 2, width, height, striped);
+                }
+
+                String message = width + "x" + height;
+                assertTrue(message, striped.hasRed());
+                assertEquals(message, expected.getCount(), striped.getCount());
+                assertEquals(message, expected.getMean(), striped.getMean(), 0);
+                assertEquals(message, expected.getVariance(), striped.getVariance(), 0);
+                assertEquals(message, expected.getMin(), striped.getMin());
+                assertEquals(message, expected.getMax(), striped.getMax());
+                assertEquals(message, expected.getMeanU(), striped.getMeanU(), 0);
+                assertEquals(message, expected.getMeanV(), striped.getMeanV(), 0);
+                assertEquals(message, expected.getMeanRed(), striped.getMeanRed(), 0);
+                assertEquals(message, legacyMeanRed(y, v, rowStride, width, height), striped.getMeanRed(), 1e-9);
+            }
+        }
+    }
+
+    /**
+     * Media del canale rosso calcolata come in decodeYUV420SP, pixel per pixel.
+     */
+    private static double legacyMeanRed(ByteBuffer y, ByteBuffer v, int rowStride, int width, int height) {
+        long sum = 0;
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+                int yVal = (0xff & y.get(j * rowStride + i)) - 16;
+                if (yVal < 0) yVal = 0;
+                int vOffset = (0xff & v.get((j >> 1) * rowStride + (i >> 1) * 2)) - 128;
+                int r = 1192 * yVal + 1634 * vOffset;
+                r = Math.max(0, Math.min(262143, r));
+                sum += ((r << 6) & 0xff0000) >> 16;
+            }
+        }
+        return (double) sum / (width * height);
+    }
+
+    private static ByteBuffer randomPlane(int size, long seed) {
+        Random random = new Random(seed);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        for (int i = 0; i < size; i++) {
+            buffer.put(i, (byte) random.nextInt(256));
+        }
+        return buffer;
+    }
+}
@@ -0,0 +1,57 @@
+package it.uniba.berluxoding.medboxapp.ppg;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Verifica la misura della frequenza dei frame e il ricampionamento di {@link UniformResampler}.
+ */
+public class UniformResamplerTest {
+
+    @Test
+    public void frameRate_isMeasuredIgnoringDroppedFrames() {
+        UniformResampler resampler = new UniformResampler(5);
+        // Frame a 40 ms, con il terzo frame perso
+        long[] times = {0, 40, 120, 160, 200, 240};
+        for (long time : times) {
+            resampler.push(time, time);
+        }
+
+        assertTrue(resampler.isLocked());
+        assertEquals(25, resampler.getFrameRate(), 1e-9);
+
+        // Anche il frame mancante viene ricostruito sulla griglia
+        for (int i = 0; i <= 6; i++) {
+            assertTrue(resampler.next());
+            assertEquals(i * 40L, resampler.getTime());
+            assertEquals(i * 40.0, resampler.getValue(), 1e-9);
+        }
+        assertFalse(resampler.next());
+    }
+
+    @Test
+    public void samples_areInterpolatedOnTheGrid() {
+        UniformResampler resampler = new UniformResampler(3);
+        resampler.push(0, 0);
+        resampler.push(10, 10);
+        resampler.push(20, 20);
+        while (resampler.next()) {
+            // Campioni della misura, già sulla griglia
+        }
+
+        // Frame in ritardo di 5 ms: il punto della griglia a 30 ms viene interpolato
+        resampler.push(35, 35);
+        assertTrue(resampler.next());
+        assertEquals(30, resampler.getTime());
+        assertEquals(30, resampler.getValue(), 1e-9);
+        assertFalse(resampler.next());
+
+        // Timestamp duplicati o all'indietro vengono ignorati
+        resampler.push(100, 35);
+        resampler.push(100, 20);
+        assertFalse(resampler.next());
+    }
+}